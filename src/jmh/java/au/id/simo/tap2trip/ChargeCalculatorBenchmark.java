@@ -0,0 +1,84 @@
+package au.id.simo.tap2trip;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Charge look ups, with a charge between every pair of stops, looking up
+ * random pairs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChargeCalculatorBenchmark {
+
+    private static final int LOOKUPS = 4096;
+
+    @Param({"4", "64", "1024"})
+    public int stops;
+
+    private ChargeCalculator chargeCalc;
+    private int[] fromIndexes;
+    private int[] toIndexes;
+    private String[] fromIds;
+    private String[] toIds;
+    private int next;
+
+    @Setup
+    public void setup() throws UnknownChargeException {
+        chargeCalc = new ChargeCalculator();
+        for (int from = 0; from < stops; from++) {
+            for (int to = from + 1; to < stops; to++) {
+                chargeCalc.addCharge("Stop" + from, "Stop" + to, 100 + from + to);
+            }
+        }
+        Random random = new Random(19);
+        fromIndexes = new int[LOOKUPS];
+        toIndexes = new int[LOOKUPS];
+        fromIds = new String[LOOKUPS];
+        toIds = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            int from = random.nextInt(stops);
+            int to = (from + 1 + random.nextInt(stops - 1)) % stops;
+            fromIds[i] = "Stop" + from;
+            toIds[i] = "Stop" + to;
+            fromIndexes[i] = chargeCalc.getStopIndex(fromIds[i]);
+            toIndexes[i] = chargeCalc.getStopIndex(toIds[i]);
+        }
+    }
+
+    @Benchmark
+    public int getCharge() throws UnknownChargeException {
+        int i = next;
+        next = (i + 1) & (LOOKUPS - 1);
+        return chargeCalc.getCharge(fromIndexes[i], toIndexes[i]);
+    }
+
+    @Benchmark
+    public Integer getChargeByStopId() throws UnknownChargeException {
+        int i = next;
+        next = (i + 1) & (LOOKUPS - 1);
+        return chargeCalc.getCharge(fromIds[i], toIds[i]);
+    }
+
+    @Benchmark
+    public int getIncompleteCharge() {
+        int i = next;
+        next = (i + 1) & (LOOKUPS - 1);
+        return chargeCalc.getIncompleteCharge(fromIndexes[i]);
+    }
+}
@@ -0,0 +1,89 @@
+package au.id.simo.tap2trip;
+
+import java.time.Instant;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * {@link TripProducer#addTap(Tap)} for different mixes of taps. Each PAN taps
+ * in turn, so there are always about {@link #PANS} trips in progress.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TripProducerBenchmark {
+
+    private static final int PANS = 1024;
+    private static final int TAPS = PANS * 8;
+
+    /**
+     * COMPLETED: an ON then an OFF at another stop. CANCELLED: an ON then an
+     * OFF at the same stop. INCOMPLETE: only ONs. MIXED: each pair of taps is
+     * one of the others at random.
+     */
+    @Param({"COMPLETED", "CANCELLED", "INCOMPLETE", "MIXED"})
+    public String mix;
+
+    private Tap[] taps;
+    private IdDictionary ids;
+    private TripProducer tripProducer;
+    private int next;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        ChargeCalculator chargeCalc = new ChargeCalculator()
+                .addCharge("Stop1", "Stop2", 325)
+                .addCharge("Stop2", "Stop3", 550)
+                .addCharge("Stop1", "Stop3", 730);
+        ids = chargeCalc.getIdDictionary();
+        tripProducer = new TripProducer(chargeCalc, blackhole::consume);
+        Random random = new Random(19);
+        String[] mixes = {"COMPLETED", "CANCELLED", "INCOMPLETE"};
+        taps = new Tap[TAPS];
+        Instant time = Instant.parse("2018-01-22T13:00:00Z");
+        for (int round = 0; round < TAPS / PANS; round += 2) {
+            for (int pan = 0; pan < PANS; pan++) {
+                String pairMix = "MIXED".equals(mix) ? mixes[random.nextInt(mixes.length)] : mix;
+                int i = round * PANS + pan;
+                taps[i] = tap(i, time, Tap.Type.ON, "Stop1", pan);
+                switch (pairMix) {
+                    case "COMPLETED":
+                        taps[i + PANS] = tap(i + PANS, time, Tap.Type.OFF, "Stop2", pan);
+                        break;
+                    case "CANCELLED":
+                        taps[i + PANS] = tap(i + PANS, time, Tap.Type.OFF, "Stop1", pan);
+                        break;
+                    default:
+                        taps[i + PANS] = tap(i + PANS, time, Tap.Type.ON, "Stop3", pan);
+                        break;
+                }
+            }
+            time = time.plusSeconds(60);
+        }
+    }
+
+    private Tap tap(long id, Instant time, Tap.Type type, String stop, int pan) {
+        return new Tap(ids, id, time, type, stop, "Company1", "Bus37", Long.toString(5500005555555559L + pan));
+    }
+
+    @Benchmark
+    public void addTap() throws UnknownChargeException {
+        tripProducer.addTap(taps[next]);
+        next = (next + 1) & (TAPS - 1);
+    }
+}
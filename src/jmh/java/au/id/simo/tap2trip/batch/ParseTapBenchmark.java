@@ -0,0 +1,84 @@
+package au.id.simo.tap2trip.batch;
+
+import au.id.simo.tap2trip.IdDictionary;
+import au.id.simo.tap2trip.Tap;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing taps, from a commons-csv record with {@link Batch#parseTap} and
+ * from the raw bytes with {@link TapCsvReader#readTap()}. Both are per tap.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseTapBenchmark {
+
+    private static final int RECORDS = 1024;
+
+    private final IdDictionary ids = new IdDictionary();
+    private CSVRecord[] records;
+    private byte[] csv;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        StringBuilder sb = new StringBuilder("ID, DateTimeUTC, TapType, StopId, CompanyId, BusID, PAN\n");
+        for (int i = 0; i < RECORDS; i++) {
+            sb.append(i).append(", 22-01-2018 13:")
+                    .append(String.format("%02d:%02d", i / 60 % 60, i % 60))
+                    .append(i % 2 == 0 ? ", ON, Stop1" : ", OFF, Stop2")
+                    .append(", Company1, Bus37, ")
+                    .append(5500005555555559L + i / 2)
+                    .append('\n');
+        }
+        csv = sb.toString().getBytes(StandardCharsets.UTF_8);
+        CSVFormat format = CSVFormat.DEFAULT.builder()
+                .setHeader(Batch.TapCSVCols.class)
+                .setSkipHeaderRecord(true)
+                .build();
+        try (CSVParser parser = format.parse(new StringReader(sb.toString()))) {
+            List<CSVRecord> list = parser.getRecords();
+            records = list.toArray(new CSVRecord[0]);
+        }
+    }
+
+    @Benchmark
+    public Tap parseTap() throws TapParsingException {
+        CSVRecord record = records[next];
+        next = (next + 1) & (RECORDS - 1);
+        return Batch.parseTap(record, ids);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void tapCsvReader(Blackhole blackhole) throws IOException {
+        try (TapCsvReader reader = new TapCsvReader(new ByteArrayInputStream(csv), ids)) {
+            while (reader.nextRecord()) {
+                blackhole.consume(reader.readTap());
+            }
+        }
+    }
+}
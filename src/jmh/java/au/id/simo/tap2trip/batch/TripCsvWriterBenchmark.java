@@ -0,0 +1,83 @@
+package au.id.simo.tap2trip.batch;
+
+import au.id.simo.tap2trip.IdDictionary;
+import au.id.simo.tap2trip.Trip;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link TripCsvWriter#accept(Trip)} writing to a channel that discards the
+ * bytes, so only the formatting is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TripCsvWriterBenchmark {
+
+    private static final int TRIPS = 1024;
+
+    private Trip[] trips;
+    private TripCsvWriter writer;
+    private int next;
+
+    @Setup
+    public void setup() {
+        IdDictionary ids = new IdDictionary();
+        trips = new Trip[TRIPS];
+        Instant started = Instant.parse("2018-01-22T13:00:00Z");
+        for (int i = 0; i < TRIPS; i++) {
+            Instant on = started.plusSeconds(i * 7L);
+            String pan = Long.toString(5500005555555559L + i);
+            if (i % 4 == 3) {
+                trips[i] = new Trip(ids, on, null, null, "Stop1", null, 730,
+                        "Company1", "Bus37", pan, Trip.Status.INCOMPLETE);
+            } else {
+                Instant off = on.plusSeconds(300 + i);
+                trips[i] = new Trip(ids, on, off, Duration.between(on, off), "Stop1", "Stop2", 325,
+                        "Company1", "Bus37", pan, Trip.Status.COMPLETED);
+            }
+        }
+        writer = new TripCsvWriter(new NullChannel(), ids, new BatchMetrics());
+    }
+
+    @Benchmark
+    public void accept() {
+        writer.accept(trips[next]);
+        next = (next + 1) & (TRIPS - 1);
+    }
+
+    private static class NullChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int remaining = src.remaining();
+            src.position(src.limit());
+            return remaining;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
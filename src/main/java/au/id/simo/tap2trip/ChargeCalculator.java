@@ -1,23 +1,88 @@
 package au.id.simo.tap2trip;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Tracks the charges between each stop to calculate a charge for a given trip.
+ *
+ * Each stop is given an index when it is first added. The charges are
+ * compiled into a dense matrix indexed by stop index the first time a charge
+ * is looked up, so once a stop ID has been resolved with
+ * {@link #getStopIndex(String)} charges are found by array indexing. The
+ * matrix grows with the square of the number of stops, so above
+ * {@link #MAX_DENSE_STOPS} stops the charges are looked up in a map instead.
+ *
+ * The matrix also maps the codes of the calculator's {@link IdDictionary} to
+ * stop indices, so a Tap's stop code resolves without hashing its stop ID.
+ * The dictionary is the one for the Taps and Trips of a run, see
+ * {@link #getIdDictionary()}.
+ *
+ * Charges must all be added before charges are looked up from more than one
+ * thread.
  */
 public class ChargeCalculator {
     /**
-     * Map of maps, indexed by stopId.
-     * Map[fromStopId, Map[toStopId,amount]
+     * Returned by {@link #findCharge(int, int)} for a pair of stops with no
+     * charge.
      */
-    private final Map<String, Map<String, Integer>> amountMap = new HashMap<>();
+    public static final int NO_CHARGE = Integer.MIN_VALUE;
     /**
-     * Keeps track of max charge amounts for incomplete trips.
-     * Map[busStop, maxChangeAmount]
+     * Returned by {@link #findStopIndexOfCode(int)} for an unknown stop.
      */
-    private final Map<String, Integer> maxChargeMap = new HashMap<>();
-    
+    public static final int UNKNOWN_STOP = -1;
+    /**
+     * The most stops compiled into a dense matrix, 16 MB of charges.
+     */
+    static final int MAX_DENSE_STOPS = 2048;
+
+    private final IdDictionary ids;
+    /**
+     * Index of each stop, in the order they were first added.
+     */
+    private final Map<String, Integer> stopIndexMap = new HashMap<>();
+    private final List<String> stopIds = new ArrayList<>();
+    /**
+     * The charges as added, Map[fromStopIndex and toStopIndex, amount].
+     */
+    private final Map<Long, Integer> amountMap = new HashMap<>();
+    /**
+     * Keeps track of max charge amounts for incomplete trips, by stop index.
+     */
+    private int[] maxCharges = new int[16];
+    /**
+     * Compiled from the charges added, or null if a charge has been added
+     * since it was last compiled.
+     */
+    private volatile Matrix matrix;
+
+    /**
+     * Constructor, with a new dictionary for the IDs of a run.
+     */
+    public ChargeCalculator() {
+        this(new IdDictionary());
+    }
+
+    /**
+     * Constructor.
+     * @param ids the dictionary for the stop, company and bus IDs of the
+     * Taps and Trips charged.
+     */
+    public ChargeCalculator(IdDictionary ids) {
+        this.ids = ids;
+    }
+
+    /**
+     * @return the dictionary the stop codes of Taps are looked up in. Taps
+     * charged by this calculator must be encoded with it.
+     */
+    public IdDictionary getIdDictionary() {
+        return ids;
+    }
+
     /**
      * Records the charge between the two listed stops.
      * @param fromStopId the bus stop where the trip begins
@@ -26,25 +91,90 @@ public class ChargeCalculator {
      * @return This instance. Used for method chaining.
      */
     public ChargeCalculator addCharge(String fromStopId, String toStopId, Integer amount) {
+        int from = internStop(fromStopId);
+        int to = internStop(toStopId);
         // maps the charge in both travel directions
-        mapCharge(fromStopId, toStopId, amount);
-        mapCharge(toStopId, fromStopId, amount);
+        mapCharge(from, to, amount);
+        mapCharge(to, from, amount);
+        matrix = null;
         return this;
     }
-    
-    private void mapCharge(String fromStopId, String toStopId, Integer amount) {
-        Map<String, Integer> toAmountMap = amountMap.computeIfAbsent(fromStopId,(key) -> new HashMap<>());
-        toAmountMap.put(toStopId, amount);
-        
+
+    private void mapCharge(int from, int to, int amount) {
+        amountMap.put(pairKey(from, to), amount);
         // set the max charge for this stop, if the new amount is larger.
-        maxChargeMap.compute(fromStopId, (key, value) -> {
-            if (value == null){
-                return amount;
-            } 
-            return Math.max(value, amount);
-        });
+        maxCharges[from] = Math.max(maxCharges[from], amount);
+    }
+
+    private int internStop(String stopId) {
+        Integer index = stopIndexMap.get(stopId);
+        if (index == null) {
+            index = stopIds.size();
+            stopIds.add(stopId);
+            stopIndexMap.put(stopId, index);
+            if (index == maxCharges.length) {
+                maxCharges = Arrays.copyOf(maxCharges, index * 2);
+            }
+            maxCharges[index] = NO_CHARGE;
+        }
+        return index;
+    }
+
+    private static long pairKey(int from, int to) {
+        return ((long) from << 32) | to;
+    }
+
+    /**
+     * Resolves a stop ID to the index used to look up its charges.
+     * @param stopId the stop ID to resolve.
+     * @return the index of the stop.
+     * @throws UnknownChargeException if the provided stop id is unknown.
+     */
+    public int getStopIndex(String stopId) throws UnknownChargeException {
+        Integer index = stopIndexMap.get(stopId);
+        if (index == null) {
+            throw new UnknownChargeException(TapError.unknownStop(stopId).getMessage());
+        }
+        return index;
+    }
+
+    /**
+     * Resolves a stop ID code to the index used to look up its charges.
+     * @param stopCode the code of the stop ID in {@link #getIdDictionary()}.
+     * @return the index of the stop.
+     * @throws UnknownChargeException if the stop is unknown.
+     */
+    public int getStopIndexOfCode(int stopCode) throws UnknownChargeException {
+        int index = findStopIndexOfCode(stopCode);
+        if (index == UNKNOWN_STOP) {
+            throw new UnknownChargeException(
+                    TapError.unknownStop(ids.decode(stopCode)).getMessage());
+        }
+        return index;
+    }
+
+    /**
+     * Resolves a stop ID code to the index used to look up its charges,
+     * without throwing if it is unknown.
+     * @param stopCode the code of the stop ID in {@link #getIdDictionary()}.
+     * @return the index of the stop, or {@link #UNKNOWN_STOP}.
+     */
+    public int findStopIndexOfCode(int stopCode) {
+        int[] codeToIndex = compiled().codeToIndex;
+        if (stopCode < 0 || stopCode >= codeToIndex.length) {
+            return UNKNOWN_STOP;
+        }
+        return codeToIndex[stopCode];
     }
-    
+
+    /**
+     * @param stopIndex the index of a stop from {@link #getStopIndex(String)}.
+     * @return the stop ID.
+     */
+    public String getStopId(int stopIndex) {
+        return stopIds.get(stopIndex);
+    }
+
     /**
      * Calculates the charge amount between two stops.
      * @param fromStopId the stopId of the start of the trip.
@@ -52,26 +182,52 @@ public class ChargeCalculator {
      * @return the change amount.
      * @throws UnknownChargeException if any of the provided bus stop IDs are
      * unknown.
-     * 
+     *
      */
     public Integer getCharge(String fromStopId, String toStopId) throws UnknownChargeException {
-        Map<String, Integer> stopMap = amountMap.get(fromStopId);
-        if (stopMap == null) {
-            throw new UnknownChargeException("Unknown stop ID: "+fromStopId);
+        int from = getStopIndex(fromStopId);
+        Integer to = stopIndexMap.get(toStopId);
+        if (to == null) {
+            throw noCharge(fromStopId, toStopId);
         }
-        Integer charge = stopMap.get(toStopId);
-        if (charge == null) {
-            throw new UnknownChargeException(
-                    String.format(
-                            "No charge is found between stops %s and %s",
-                            fromStopId,
-                            toStopId
-                    )
-            );
+        return getCharge(from, to);
+    }
+
+    /**
+     * Calculates the charge amount between two stops.
+     * @param fromStop the index of the stop at the start of the trip.
+     * @param toStop the index of the stop at the end of the trip.
+     * @return the change amount.
+     * @throws UnknownChargeException if there is no charge between the stops.
+     */
+    public int getCharge(int fromStop, int toStop) throws UnknownChargeException {
+        int charge = findCharge(fromStop, toStop);
+        if (charge == NO_CHARGE) {
+            throw noCharge(getStopId(fromStop), getStopId(toStop));
         }
         return charge;
     }
-    
+
+    /**
+     * Calculates the charge amount between two stops, without throwing if
+     * there is none.
+     * @param fromStop the index of the stop at the start of the trip.
+     * @param toStop the index of the stop at the end of the trip.
+     * @return the change amount, or {@link #NO_CHARGE}.
+     */
+    public int findCharge(int fromStop, int toStop) {
+        Matrix m = compiled();
+        if (m.charges == null) {
+            Integer charge = amountMap.get(pairKey(fromStop, toStop));
+            return charge == null ? NO_CHARGE : charge;
+        }
+        return m.charges[fromStop * m.stopCount + toStop];
+    }
+
+    private static UnknownChargeException noCharge(String fromStopId, String toStopId) {
+        return new UnknownChargeException(TapError.noCharge(fromStopId, toStopId).getMessage());
+    }
+
     /**
      * Obtains the max charge for incomplete trips for a given stop.
      * @param fromStopId the stop to use in calculating the max charge.
@@ -79,10 +235,84 @@ public class ChargeCalculator {
      * @throws UnknownChargeException if the provided stop id is unknown.
      */
     public Integer getIncompleteCharge(String fromStopId) throws UnknownChargeException {
-        Integer charge = maxChargeMap.get(fromStopId);
-        if (charge == null) {
-            throw new UnknownChargeException("Unknown stop ID: "+ fromStopId);
+        return getIncompleteCharge(getStopIndex(fromStopId));
+    }
+
+    /**
+     * Obtains the max charge for incomplete trips for a given stop.
+     * @param fromStop the index of the stop to use in calculating the max
+     * charge.
+     * @return the max charge amount for the given stop.
+     */
+    public int getIncompleteCharge(int fromStop) {
+        return compiled().maxCharges[fromStop];
+    }
+
+    private Matrix compiled() {
+        Matrix m = matrix;
+        if (m == null) {
+            m = compile();
+        }
+        return m;
+    }
+
+    private synchronized Matrix compile() {
+        Matrix m = matrix;
+        if (m != null) {
+            return m;
+        }
+        int stopCount = stopIds.size();
+        int[] charges = null;
+        if (stopCount <= MAX_DENSE_STOPS) {
+            charges = new int[stopCount * stopCount];
+            Arrays.fill(charges, NO_CHARGE);
+            for (Map.Entry<Long, Integer> e : amountMap.entrySet()) {
+                long key = e.getKey();
+                int from = (int) (key >>> 32);
+                int to = (int) key;
+                charges[from * stopCount + to] = e.getValue();
+            }
+        }
+        int[] stopCodes = new int[stopCount];
+        int maxCode = -1;
+        for (int i = 0; i < stopCount; i++) {
+            stopCodes[i] = ids.encode(stopIds.get(i));
+            maxCode = Math.max(maxCode, stopCodes[i]);
+        }
+        int[] codeToIndex = new int[maxCode + 1];
+        Arrays.fill(codeToIndex, -1);
+        for (int i = 0; i < stopCount; i++) {
+            if (stopCodes[i] >= 0) {
+                codeToIndex[stopCodes[i]] = i;
+            }
+        }
+        m = new Matrix(stopCount, charges, Arrays.copyOf(maxCharges, stopCount), codeToIndex);
+        matrix = m;
+        return m;
+    }
+
+    /**
+     * The charges between each pair of stops, and the max charge of each
+     * stop, indexed by stop index.
+     */
+    private static class Matrix {
+        private final int stopCount;
+        /**
+         * Null if there are too many stops, the charges are then looked up
+         * in the charges as added.
+         */
+        private final int[] charges;
+        private final int[] maxCharges;
+        /**
+         * Stop index of each IdDictionary code, or -1 if it isn't a stop.
+         */
+        private final int[] codeToIndex;
+
+        private Matrix(int stopCount, int[] charges, int[] maxCharges, int[] codeToIndex) {
+            this.stopCount = stopCount;
+            this.charges = charges;
+            this.maxCharges = maxCharges;
+            this.codeToIndex = codeToIndex;
         }
-        return charge;
     }
 }
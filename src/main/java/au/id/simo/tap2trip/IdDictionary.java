@@ -0,0 +1,207 @@
+package au.id.simo.tap2trip;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Gives each distinct stop, company and bus ID a small integer code, so Taps
+ * and Trips can carry codes instead of their own copies of the same Strings.
+ *
+ * There are only a few thousand distinct IDs across millions of taps, but
+ * codes are never removed. So rather than one for the whole process, each
+ * {@link ChargeCalculator} has its own dictionary, which is passed to
+ * whatever reads the Taps or writes the Trips of its run. Codes from
+ * different dictionaries must not be mixed.
+ *
+ * IDs can be encoded straight from their UTF-8 bytes, so parsing a tap does
+ * not create a String for an ID that has been seen before. Different bytes
+ * that decode to the same String are given the same code.
+ *
+ * Thread safe. Looking up an existing ID does not lock.
+ */
+public final class IdDictionary {
+
+    /**
+     * The code of a null ID.
+     */
+    public static final int NONE = -1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * The codes of IDs encoded from Strings.
+     */
+    private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<>();
+    /**
+     * Open addressed, keyed by UTF-8 bytes. Only added to while locked, and
+     * replaced when it needs to grow.
+     */
+    private volatile AtomicReferenceArray<Entry> byBytes = new AtomicReferenceArray<>(INITIAL_CAPACITY * 2);
+    private int byBytesCount;
+    /**
+     * The entry of each code. Replaced when it needs to grow.
+     */
+    private volatile AtomicReferenceArray<Entry> byCode = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+    private volatile int size;
+
+    /**
+     * @param value the ID to encode.
+     * @return the code of the ID, or {@link #NONE} if it is null.
+     */
+    public int encode(String value) {
+        if (value == null) {
+            return NONE;
+        }
+        Integer code = codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        return encode(utf8, 0, utf8.length);
+    }
+
+    /**
+     * @param buf the buffer holding the ID.
+     * @param offset the start of the ID's UTF-8 bytes.
+     * @param length the number of bytes.
+     * @return the code of the ID.
+     */
+    public int encode(byte[] buf, int offset, int length) {
+        int hash = hash(buf, offset, length);
+        AtomicReferenceArray<Entry> table = byBytes;
+        int mask = table.length() - 1;
+        for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+            Entry entry = table.get(slot);
+            if (entry == null) {
+                break;
+            }
+            if (entry.hash == hash && entry.matches(buf, offset, length)) {
+                return entry.code;
+            }
+        }
+        return add(Arrays.copyOfRange(buf, offset, offset + length), hash);
+    }
+
+    /**
+     * @param code a code from this dictionary, or {@link #NONE}.
+     * @return the ID, or null for {@link #NONE}.
+     */
+    public String decode(int code) {
+        if (code == NONE) {
+            return null;
+        }
+        return byCode.get(code).value;
+    }
+
+    /**
+     * @param code a code from this dictionary.
+     * @return the UTF-8 bytes of the ID. Must not be modified.
+     */
+    public byte[] getUtf8(int code) {
+        return byCode.get(code).utf8;
+    }
+
+    /**
+     * @return the number of codes. Codes are from zero up to this number.
+     */
+    public int size() {
+        return size;
+    }
+
+    private synchronized int add(byte[] utf8, int hash) {
+        AtomicReferenceArray<Entry> table = byBytes;
+        int mask = table.length() - 1;
+        int slot = hash & mask;
+        for (Entry entry; (entry = table.get(slot)) != null; slot = (slot + 1) & mask) {
+            if (entry.hash == hash && entry.matches(utf8, 0, utf8.length)) {
+                // added by another thread since the unlocked lookup
+                return entry.code;
+            }
+        }
+        String value = new String(utf8, StandardCharsets.UTF_8);
+        Integer existing = codes.get(value);
+        Entry entry;
+        if (existing != null) {
+            // other bytes, such as other invalid UTF-8, already gave this
+            // String a code.
+            entry = new Entry(utf8, hash, byCode.get(existing).value, existing);
+        } else {
+            int code = size;
+            entry = new Entry(utf8, hash, value, code);
+            AtomicReferenceArray<Entry> entries = byCode;
+            if (code == entries.length()) {
+                entries = copy(entries, code * 2);
+            }
+            entries.set(code, entry);
+            byCode = entries;
+            codes.put(value, code);
+            size = code + 1;
+        }
+        table.set(slot, entry);
+        byBytesCount++;
+        if (byBytesCount * 2 > table.length()) {
+            byBytes = rehash(table);
+        }
+        return entry.code;
+    }
+
+    private static AtomicReferenceArray<Entry> rehash(AtomicReferenceArray<Entry> table) {
+        AtomicReferenceArray<Entry> bigger = new AtomicReferenceArray<>(table.length() * 2);
+        int mask = bigger.length() - 1;
+        for (int i = 0; i < table.length(); i++) {
+            Entry entry = table.get(i);
+            if (entry != null) {
+                int slot = entry.hash & mask;
+                while (bigger.get(slot) != null) {
+                    slot = (slot + 1) & mask;
+                }
+                bigger.set(slot, entry);
+            }
+        }
+        return bigger;
+    }
+
+    private static AtomicReferenceArray<Entry> copy(AtomicReferenceArray<Entry> entries, int length) {
+        AtomicReferenceArray<Entry> copy = new AtomicReferenceArray<>(length);
+        for (int i = 0; i < entries.length(); i++) {
+            copy.set(i, entries.get(i));
+        }
+        return copy;
+    }
+
+    private static int hash(byte[] buf, int offset, int length) {
+        int h = 0;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + buf[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Entry {
+        private final byte[] utf8;
+        private final int hash;
+        private final String value;
+        private final int code;
+
+        private Entry(byte[] utf8, int hash, String value, int code) {
+            this.utf8 = utf8;
+            this.hash = hash;
+            this.value = value;
+            this.code = code;
+        }
+
+        private boolean matches(byte[] buf, int offset, int length) {
+            if (utf8.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (utf8[i] != buf[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,613 @@
+package au.id.simo.tap2trip;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * The Tap-ons of trips in progress, keyed by PAN.
+ *
+ * Holds the same information as a {@code LinkedHashMap<String, Tap>} without
+ * an object per entry. The fields of each Tap are kept in parallel primitive
+ * arrays, in the order the PANs were first added. A PAN of up to 18 digits is
+ * kept as a long, and stop, company and bus IDs as their
+ * {@link IdDictionary} codes. An open addressed hash table of entry positions
+ * finds the entry for a PAN.
+ *
+ * Taps handed out are rebuilt from the arrays, so are equal in value to the
+ * Taps added but not the same instances.
+ *
+ * With {@link #setSpill(int, Path)}, once there are more than a maximum number
+ * of Taps in memory the oldest are moved to {@link SpilledTaps} on disk. As
+ * the oldest are always moved first, every Tap on disk was added before every
+ * Tap in memory, so the iteration order is not changed.
+ *
+ * Not thread safe.
+ */
+class InProgressTaps {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * "T2TP", the start of a snapshot written by {@link #writeSnapshot}.
+     */
+    private static final int SNAPSHOT_MAGIC = 0x54325450;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    /**
+     * Open addressed with linear probing. Each slot holds the entry position
+     * plus one, or zero if empty.
+     */
+    private int[] slots;
+    private int slotMask;
+
+    // the entries, in insertion order. Removed entries are marked in removed
+    // and dropped when the entries are compacted.
+    private long[] pans;
+    /**
+     * The PAN of entries where it isn't a plain number, otherwise null.
+     */
+    private String[] textPans;
+    private long[] ids;
+    private long[] epochSeconds;
+    private int[] nanos;
+    private int[] stopIds;
+    private int[] companyIds;
+    private int[] busIds;
+    private boolean[] removed;
+    /**
+     * Number of entries used, including removed entries.
+     */
+    private int end;
+    /**
+     * All entries before this one have been removed.
+     */
+    private int first;
+    private int size;
+
+    private final IdDictionary dictionary;
+    private int maxInMemory = Integer.MAX_VALUE;
+    private Path spillDir;
+    /**
+     * Created when the first Tap is moved to disk.
+     */
+    private SpilledTaps spilled;
+
+    /**
+     * @param dictionary the dictionary of the stop, company and bus codes of the
+     * Taps.
+     */
+    InProgressTaps(IdDictionary dictionary) {
+        this.dictionary = dictionary;
+        allocateEntries(INITIAL_CAPACITY);
+        allocateSlots(INITIAL_CAPACITY * 2);
+    }
+
+    /**
+     * Moves the oldest Taps to files on disk once there are more than the
+     * maximum number of Taps in memory.
+     *
+     * @param maxInMemory the maximum number of Taps to keep in memory.
+     * @param spillDir the directory to create the files in.
+     */
+    void setSpill(int maxInMemory, Path spillDir) {
+        if (maxInMemory < 1) {
+            throw new IllegalArgumentException("maxInMemory must be at least 1: " + maxInMemory);
+        }
+        this.maxInMemory = maxInMemory;
+        this.spillDir = spillDir;
+    }
+
+    /**
+     * Adds the Tap, replacing any Tap for the same PAN. A replaced Tap keeps
+     * its position in the iteration order.
+     *
+     * @param tap the Tap to add.
+     * @return the Tap previously added for the PAN, or null.
+     * @throws IllegalStateException if Taps on disk can't be read or written.
+     */
+    Tap put(Tap tap) {
+        String pan = tap.getPAN();
+        long numericPan = numericPan(pan);
+        String textPan = numericPan < 0 ? pan : null;
+        int slot = findSlot(numericPan, textPan);
+        if (slots[slot] != 0) {
+            int entry = slots[slot] - 1;
+            Tap old = toTap(entry);
+            setEntry(entry, tap);
+            return old;
+        }
+        if (spilled != null) {
+            int record = spilled.find(numericPan, textPan);
+            if (record >= 0) {
+                Tap old = spilledTap(record);
+                Instant dateTime = tap.getDateTime();
+                spilled.update(
+                        record,
+                        tap.getId(),
+                        dateTime.getEpochSecond(),
+                        dateTime.getNano(),
+                        tap.getStopCode(),
+                        tap.getCompanyCode(),
+                        tap.getBusCode()
+                );
+                return old;
+            }
+        }
+        if (end == pans.length) {
+            makeRoom();
+            slot = findSlot(numericPan, textPan);
+        }
+        int entry = end++;
+        pans[entry] = numericPan;
+        textPans[entry] = textPan;
+        removed[entry] = false;
+        setEntry(entry, tap);
+        slots[slot] = entry + 1;
+        size++;
+        if (size > maxInMemory) {
+            spillOldest();
+        }
+        return null;
+    }
+
+    /**
+     * @param pan the PAN of the Tap to remove.
+     * @return the removed Tap, or null if there was no Tap for the PAN.
+     * @throws IllegalStateException if Taps on disk can't be read or written.
+     */
+    Tap remove(String pan) {
+        long numericPan = numericPan(pan);
+        String textPan = numericPan < 0 ? pan : null;
+        int slot = findSlot(numericPan, textPan);
+        if (slots[slot] == 0) {
+            if (spilled != null) {
+                int record = spilled.find(numericPan, textPan);
+                if (record >= 0) {
+                    Tap old = spilledTap(record);
+                    try {
+                        spilled.remove(record);
+                    } catch (IOException ex) {
+                        throw new IllegalStateException("Error in compacting spilled trips in progress", ex);
+                    }
+                    return old;
+                }
+            }
+            return null;
+        }
+        int entry = slots[slot] - 1;
+        Tap old = toTap(entry);
+        removeEntry(slot, entry);
+        return old;
+    }
+
+    /**
+     * @param pan the PAN of the Tap to get.
+     * @return the Tap, or null if there is no Tap for the PAN.
+     */
+    Tap get(String pan) {
+        long numericPan = numericPan(pan);
+        String textPan = numericPan < 0 ? pan : null;
+        int slot = findSlot(numericPan, textPan);
+        if (slots[slot] != 0) {
+            return toTap(slots[slot] - 1);
+        }
+        if (spilled != null) {
+            int record = spilled.find(numericPan, textPan);
+            if (record >= 0) {
+                return spilledTap(record);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param pan the PAN to check.
+     * @return true if a Tap has been added for the PAN and not removed.
+     */
+    boolean contains(String pan) {
+        long numericPan = numericPan(pan);
+        String textPan = numericPan < 0 ? pan : null;
+        return slots[findSlot(numericPan, textPan)] != 0
+                || (spilled != null && spilled.find(numericPan, textPan) >= 0);
+    }
+
+    int size() {
+        return spilled == null ? size : size + spilled.size();
+    }
+
+    /**
+     * @return the number of Taps that have been moved to disk.
+     */
+    int spilledSize() {
+        return spilled == null ? 0 : spilled.size();
+    }
+
+    /**
+     * Passes each Tap to the action, in the order their PANs were added.
+     *
+     * @param action the action to perform with each Tap.
+     */
+    void forEach(Consumer<Tap> action) {
+        if (spilled != null) {
+            // read one at a time, so they don't all have to fit in memory.
+            for (int record = 0; record < spilled.recordCount(); record++) {
+                if (!spilled.isRemoved(record)) {
+                    action.accept(spilledTap(record));
+                }
+            }
+        }
+        for (int i = first; i < end; i++) {
+            if (!removed[i]) {
+                action.accept(toTap(i));
+            }
+        }
+    }
+
+    /**
+     * Writes all Taps, in iteration order, in a compact binary form that can
+     * be read back with {@link #readSnapshot(DataInput)}.
+     *
+     * The snapshot is a header, the {@link IdDictionary} IDs, then a fixed
+     * set of fields for each Tap using the IDs' codes. Codes are given out
+     * in a different order in each run, so the codes are mapped to the
+     * current run's codes when the snapshot is read.
+     *
+     * @param out where to write the snapshot.
+     * @throws IOException if the snapshot can't be written.
+     */
+    void writeSnapshot(DataOutput out) throws IOException {
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(SNAPSHOT_VERSION);
+        int dictionarySize = dictionary.size();
+        out.writeInt(dictionarySize);
+        for (int code = 0; code < dictionarySize; code++) {
+            out.writeUTF(dictionary.decode(code));
+        }
+        out.writeLong(size());
+        if (spilled != null) {
+            for (int record = 0; record < spilled.recordCount(); record++) {
+                if (!spilled.isRemoved(record)) {
+                    writeSnapshotEntry(
+                            out,
+                            spilled.pan(record),
+                            spilled.id(record),
+                            spilled.epochSecond(record),
+                            spilled.nano(record),
+                            spilled.stop(record),
+                            spilled.company(record),
+                            spilled.bus(record)
+                    );
+                }
+            }
+        }
+        for (int i = first; i < end; i++) {
+            if (!removed[i]) {
+                writeSnapshotEntry(
+                        out,
+                        textPans[i],
+                        pans[i],
+                        ids[i],
+                        epochSeconds[i],
+                        nanos[i],
+                        stopIds[i],
+                        companyIds[i],
+                        busIds[i]
+                );
+            }
+        }
+    }
+
+    private static void writeSnapshotEntry(DataOutput out, String pan, long id,
+            long epochSecond, int nano, int stop, int company, int bus) throws IOException {
+        long numericPan = numericPan(pan);
+        writeSnapshotEntry(out, numericPan < 0 ? pan : null, numericPan,
+                id, epochSecond, nano, stop, company, bus);
+    }
+
+    private static void writeSnapshotEntry(DataOutput out, String textPan, long numericPan,
+            long id, long epochSecond, int nano, int stop, int company, int bus) throws IOException {
+        if (textPan == null) {
+            out.writeBoolean(false);
+            out.writeLong(numericPan);
+        } else {
+            out.writeBoolean(true);
+            out.writeUTF(textPan);
+        }
+        out.writeLong(id);
+        out.writeLong(epochSecond);
+        out.writeInt(nano);
+        out.writeInt(stop);
+        out.writeInt(company);
+        out.writeInt(bus);
+    }
+
+    /**
+     * Adds the Taps in a snapshot written by {@link #writeSnapshot}, in the
+     * order they were written.
+     *
+     * @param in where to read the snapshot from.
+     * @throws IOException if the snapshot can't be read or is not a snapshot.
+     */
+    void readSnapshot(DataInput in) throws IOException {
+        if (in.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Not a trips in progress snapshot");
+        }
+        int version = in.readInt();
+        if (version != SNAPSHOT_VERSION) {
+            throw new IOException("Unsupported trips in progress snapshot version: " + version);
+        }
+        int[] codes = new int[in.readInt()];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = dictionary.encode(in.readUTF());
+        }
+        long count = in.readLong();
+        for (long i = 0; i < count; i++) {
+            String pan = in.readBoolean() ? in.readUTF() : Long.toString(in.readLong());
+            long id = in.readLong();
+            Instant dateTime = Instant.ofEpochSecond(in.readLong(), in.readInt());
+            int stopCode = snapshotCode(codes, in.readInt());
+            int companyCode = snapshotCode(codes, in.readInt());
+            int busCode = snapshotCode(codes, in.readInt());
+            put(new Tap(dictionary, id, dateTime, Tap.Type.ON, stopCode, companyCode, busCode, pan));
+        }
+    }
+
+    private static int snapshotCode(int[] codes, int code) throws IOException {
+        if (code == IdDictionary.NONE) {
+            return IdDictionary.NONE;
+        }
+        if (code < 0 || code >= codes.length) {
+            throw new IOException("Invalid ID code in trips in progress snapshot: " + code);
+        }
+        return codes[code];
+    }
+
+    /**
+     * Removes all Taps, deleting any files on disk.
+     *
+     * @throws IllegalStateException if the files on disk can't be closed.
+     */
+    void clear() {
+        Arrays.fill(slots, 0);
+        Arrays.fill(textPans, 0, end, null);
+        end = 0;
+        first = 0;
+        size = 0;
+        if (spilled != null) {
+            SpilledTaps closing = spilled;
+            spilled = null;
+            try {
+                closing.close();
+            } catch (IOException ex) {
+                throw new IllegalStateException("Error in deleting spilled trips in progress", ex);
+            }
+        }
+    }
+
+    private void removeEntry(int slot, int entry) {
+        deleteSlot(slot);
+        removed[entry] = true;
+        textPans[entry] = null;
+        size--;
+        if (size == 0) {
+            end = 0;
+            first = 0;
+        }
+    }
+
+    /**
+     * Moves the oldest Tap in memory to disk.
+     */
+    private void spillOldest() {
+        while (removed[first]) {
+            first++;
+        }
+        int entry = first;
+        try {
+            if (spilled == null) {
+                spilled = new SpilledTaps(spillDir);
+            }
+            spilled.add(
+                    pans[entry],
+                    textPans[entry],
+                    ids[entry],
+                    epochSeconds[entry],
+                    nanos[entry],
+                    stopIds[entry],
+                    companyIds[entry],
+                    busIds[entry]
+            );
+        } catch (IOException ex) {
+            throw new IllegalStateException("Error in spilling trips in progress to disk", ex);
+        }
+        removeEntry(findSlot(pans[entry], textPans[entry]), entry);
+    }
+
+    private Tap spilledTap(int record) {
+        return new Tap(
+                dictionary,
+                spilled.id(record),
+                Instant.ofEpochSecond(spilled.epochSecond(record), spilled.nano(record)),
+                Tap.Type.ON,
+                spilled.stop(record),
+                spilled.company(record),
+                spilled.bus(record),
+                spilled.pan(record)
+        );
+    }
+
+    private void setEntry(int entry, Tap tap) {
+        Instant dateTime = tap.getDateTime();
+        ids[entry] = tap.getId();
+        epochSeconds[entry] = dateTime.getEpochSecond();
+        nanos[entry] = dateTime.getNano();
+        stopIds[entry] = tap.getStopCode();
+        companyIds[entry] = tap.getCompanyCode();
+        busIds[entry] = tap.getBusCode();
+    }
+
+    private Tap toTap(int entry) {
+        String pan = textPans[entry];
+        if (pan == null) {
+            pan = Long.toString(pans[entry]);
+        }
+        return new Tap(
+                dictionary,
+                ids[entry],
+                Instant.ofEpochSecond(epochSeconds[entry], nanos[entry]),
+                Tap.Type.ON,
+                stopIds[entry],
+                companyIds[entry],
+                busIds[entry],
+                pan
+        );
+    }
+
+    /**
+     * @return the slot holding the PAN's entry, or the empty slot where it
+     * would be added.
+     */
+    private int findSlot(long numericPan, String textPan) {
+        int slot = hash(numericPan, textPan) & slotMask;
+        while (true) {
+            int stored = slots[slot];
+            if (stored == 0) {
+                return slot;
+            }
+            int entry = stored - 1;
+            if (textPan == null
+                    ? textPans[entry] == null && pans[entry] == numericPan
+                    : textPan.equals(textPans[entry])) {
+                return slot;
+            }
+            slot = (slot + 1) & slotMask;
+        }
+    }
+
+    /**
+     * Empties the slot, moving back any later entries in the same probe
+     * sequence so that lookups don't stop early.
+     */
+    private void deleteSlot(int slot) {
+        int gap = slot;
+        int next = (gap + 1) & slotMask;
+        while (slots[next] != 0) {
+            int entry = slots[next] - 1;
+            int home = hash(pans[entry], textPans[entry]) & slotMask;
+            // move the entry into the gap if its home slot is not between
+            // the gap and where it is now.
+            if (((next - home) & slotMask) >= ((next - gap) & slotMask)) {
+                slots[gap] = slots[next];
+                gap = next;
+            }
+            next = (next + 1) & slotMask;
+        }
+        slots[gap] = 0;
+    }
+
+    /**
+     * Called when the entry arrays are full. Drops removed entries if there
+     * are enough of them, otherwise grows the arrays, then rebuilds the hash
+     * table.
+     */
+    private void makeRoom() {
+        int capacity = pans.length;
+        if (size * 2 > capacity) {
+            capacity *= 2;
+        }
+        int live = 0;
+        for (int i = 0; i < end; i++) {
+            if (!removed[i]) {
+                pans[live] = pans[i];
+                textPans[live] = textPans[i];
+                ids[live] = ids[i];
+                epochSeconds[live] = epochSeconds[i];
+                nanos[live] = nanos[i];
+                stopIds[live] = stopIds[i];
+                companyIds[live] = companyIds[i];
+                busIds[live] = busIds[i];
+                removed[live] = false;
+                live++;
+            }
+        }
+        Arrays.fill(textPans, live, end, null);
+        end = live;
+        first = 0;
+        if (capacity != pans.length) {
+            pans = Arrays.copyOf(pans, capacity);
+            textPans = Arrays.copyOf(textPans, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+            epochSeconds = Arrays.copyOf(epochSeconds, capacity);
+            nanos = Arrays.copyOf(nanos, capacity);
+            stopIds = Arrays.copyOf(stopIds, capacity);
+            companyIds = Arrays.copyOf(companyIds, capacity);
+            busIds = Arrays.copyOf(busIds, capacity);
+            removed = Arrays.copyOf(removed, capacity);
+            allocateSlots(capacity * 2);
+        } else {
+            Arrays.fill(slots, 0);
+        }
+        for (int i = 0; i < end; i++) {
+            int slot = hash(pans[i], textPans[i]) & slotMask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & slotMask;
+            }
+            slots[slot] = i + 1;
+        }
+    }
+
+    private void allocateEntries(int capacity) {
+        pans = new long[capacity];
+        textPans = new String[capacity];
+        ids = new long[capacity];
+        epochSeconds = new long[capacity];
+        nanos = new int[capacity];
+        stopIds = new int[capacity];
+        companyIds = new int[capacity];
+        busIds = new int[capacity];
+        removed = new boolean[capacity];
+    }
+
+    private void allocateSlots(int slotCount) {
+        slots = new int[slotCount];
+        slotMask = slotCount - 1;
+    }
+
+    static int hash(long numericPan, String textPan) {
+        long h = textPan == null ? numericPan : textPan.hashCode();
+        // the finalizer from MurmurHash3, PANs share long prefixes and end
+        // with a check digit so the low bits alone are poorly spread.
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /**
+     * @param pan the PAN to convert.
+     * @return the PAN as a number, or -1 if it can't be converted back to the
+     * same String. e.g. it has leading zeros or more than 18 digits.
+     */
+    static long numericPan(String pan) {
+        int length = pan.length();
+        if (length == 0 || length > 18 || (length > 1 && pan.charAt(0) == '0')) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            char c = pan.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
@@ -0,0 +1,621 @@
+package au.id.simo.tap2trip;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Accepts Taps to produce Trips on several threads.
+ *
+ * Taps for different PANs never affect each other, so each Tap is passed to
+ * one of a number of shards chosen by its PAN. Each shard owns a
+ * {@link TripProducer} and runs on its own thread. A merge thread passes the
+ * produced Trips to the trip consumer, and the outcome of each Tap to the
+ * {@link TapResultHandler}, either in input order or in whatever order the
+ * shards produce them.
+ *
+ * In {@link Order#INPUT} order the Trips and Tap results are the same, and in
+ * the same order, as passing the Taps to a single TripProducer.
+ *
+ * Taps are passed between threads in blocks, so results for the most recently
+ * added Taps may not be produced until {@link #completePeriod()} is called.
+ *
+ * The add and complete methods must be called from a single thread.
+ */
+public class ShardedTripProducer implements AutoCloseable {
+
+    /**
+     * The order Trips and Tap results are produced in.
+     */
+    public static enum Order {
+        /**
+         * The order of the Taps that produced them. Left over ON taps are
+         * completed in the same order as a single TripProducer.
+         */
+        INPUT,
+        /**
+         * As soon as each shard has produced them.
+         */
+        ANY
+    }
+
+    /**
+     * Number of Taps passed to the shards at a time.
+     */
+    private static final int BLOCK_SIZE = 1024;
+    /**
+     * Number of blocks that can be waiting for each thread. Limits memory use
+     * and slows down the caller if the shards fall behind.
+     */
+    private static final int QUEUE_CAPACITY = 8;
+    private static final long POLL_MILLIS = 100;
+
+    private final ChargeCalculator chargeCalc;
+    private final Consumer<Trip> tripConsumer;
+    private final TapResultHandler resultHandler;
+    private final Order order;
+    private final Shard[] shards;
+    /**
+     * INPUT order: Blocks, describing which shard each Tap went to.
+     * ANY order: completed ShardWork from all shards.
+     */
+    private final BlockingQueue<Object> mergeQueue;
+    private final Thread mergeThread;
+    private final Semaphore periodsCompleted = new Semaphore(0);
+    private volatile Throwable failure;
+    private boolean started;
+    private boolean closed;
+
+    // the Taps waiting to be passed to the shards
+    private final ShardWork[] pending;
+    private Block block;
+    private int inputsInBlock;
+    private long sequence;
+
+    /**
+     * Constructor.
+     *
+     * @param chargeCalc the ChargeCalculator used to calculate the trip fare.
+     * @param tripConsumer the function that is passed the produced Trips. It is
+     * only called from the merge thread.
+     * @param resultHandler passed the outcome of each Tap. It is only called
+     * from the merge thread.
+     * @param shardCount the number of shards, each with its own thread.
+     * @param order the order that Trips and Tap results are produced in.
+     */
+    public ShardedTripProducer(
+            ChargeCalculator chargeCalc,
+            Consumer<Trip> tripConsumer,
+            TapResultHandler resultHandler,
+            int shardCount,
+            Order order) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be at least 1: " + shardCount);
+        }
+        this.chargeCalc = chargeCalc;
+        this.tripConsumer = tripConsumer;
+        this.resultHandler = resultHandler;
+        this.order = order;
+        this.mergeQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY * shardCount);
+        this.shards = new Shard[shardCount];
+        this.pending = new ShardWork[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i);
+        }
+        this.block = newBlock();
+        this.mergeThread = new Thread(this::runMerge, "trip-merge");
+        this.mergeThread.setDaemon(true);
+    }
+
+    /**
+     * Limits the number of trips in progress held in memory, spread evenly
+     * over the shards. See {@link TripProducer#setSpill(int, Path)}. Must be
+     * called before any Taps are added.
+     *
+     * @param maxInMemory the maximum number of trips in progress to hold in
+     * memory across all shards.
+     * @param spillDir the directory to create the files in.
+     * @return This instance. Used for method chaining.
+     */
+    public ShardedTripProducer setSpill(int maxInMemory, Path spillDir) {
+        if (started) {
+            throw new IllegalStateException("Taps have already been added");
+        }
+        int perShard = Math.max(1, (maxInMemory + shards.length - 1) / shards.length);
+        for (Shard shard : shards) {
+            shard.producer.setSpill(perShard, spillDir);
+        }
+        return this;
+    }
+
+    /**
+     * Passes the Tap to its shard.
+     *
+     * @param tap the Tap to add.
+     * @param tag passed back to the TapResultHandler with the Tap's outcome.
+     * @throws IllegalStateException if any of the threads have failed.
+     */
+    public void addTap(Tap tap, long tag) {
+        start();
+        checkFailure();
+        int shardIndex = shardOf(tap.getPAN());
+        ShardWork work = pending[shardIndex];
+        if (work == null) {
+            work = new ShardWork();
+            pending[shardIndex] = work;
+        }
+        work.add(tap, tag, sequence++);
+        if (block != null) {
+            block.addTap(shardIndex);
+        }
+        if (++inputsInBlock == BLOCK_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * Passes an error in place of a Tap straight to the TapResultHandler. In
+     * INPUT order it is passed on after the results of all Taps added before
+     * it. Used for Taps that could not be read.
+     *
+     * @param tag passed back to the TapResultHandler with the error.
+     * @param cause the error.
+     * @throws IllegalStateException if any of the threads have failed.
+     */
+    public void addError(long tag, TapError cause) {
+        start();
+        checkFailure();
+        if (block != null) {
+            block.addError(tag, cause);
+            if (++inputsInBlock == BLOCK_SIZE) {
+                flush();
+            }
+        } else {
+            ShardWork errorWork = new ShardWork();
+            errorWork.add(null, tag, sequence++);
+            errorWork.errors[0] = cause;
+            put(mergeQueue, errorWork);
+        }
+    }
+
+    /**
+     * Called when all taps for a period have been processed. Waits until
+     * every shard has produced INCOMPLETE trips from its left over Tap-ons,
+     * and all Trips have been passed to the trip consumer.
+     *
+     * @throws IllegalStateException if any of the threads have failed.
+     */
+    public void completePeriod() {
+        start();
+        checkFailure();
+        flush();
+        for (Shard shard : shards) {
+            put(shard.input, ShardWork.complete());
+        }
+        if (order == Order.INPUT) {
+            put(mergeQueue, Block.COMPLETE);
+        }
+        try {
+            while (!periodsCompleted.tryAcquire(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                checkFailure();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for period to complete", ex);
+        }
+        checkFailure();
+    }
+
+    /**
+     * Passes on any Taps still waiting to be sent to the shards, then stops all
+     * threads once they have finished with them.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (!started) {
+            return;
+        }
+        try {
+            if (failure == null) {
+                flush();
+                // stop the shards first, so in ANY order all shard work is in
+                // the merge queue before the merge thread is stopped.
+                for (Shard shard : shards) {
+                    put(shard.input, ShardWork.STOP);
+                }
+                for (Shard shard : shards) {
+                    shard.thread.join();
+                }
+                put(mergeQueue, ShardWork.STOP);
+                mergeThread.join();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IllegalStateException ex) {
+            // a thread failed while stopping, the threads are interrupted below
+        } finally {
+            for (Shard shard : shards) {
+                shard.thread.interrupt();
+            }
+            mergeThread.interrupt();
+        }
+    }
+
+    /**
+     * Starts the shard and merge threads when the first Tap is added.
+     */
+    private void start() {
+        if (started) {
+            return;
+        }
+        if (closed) {
+            throw new IllegalStateException("ShardedTripProducer is closed");
+        }
+        started = true;
+        for (Shard shard : shards) {
+            shard.thread.start();
+        }
+        mergeThread.start();
+    }
+
+    private int shardOf(String pan) {
+        int h = pan.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % shards.length;
+    }
+
+    private Block newBlock() {
+        return order == Order.INPUT ? new Block(BLOCK_SIZE, shards.length) : null;
+    }
+
+    /**
+     * Passes all pending Taps to their shards.
+     */
+    private void flush() {
+        for (int i = 0; i < pending.length; i++) {
+            if (pending[i] != null) {
+                put(shards[i].input, pending[i]);
+                pending[i] = null;
+            }
+        }
+        if (block != null && block.count > 0) {
+            put(mergeQueue, block);
+            block = newBlock();
+        }
+        inputsInBlock = 0;
+    }
+
+    private void checkFailure() {
+        Throwable t = failure;
+        if (t != null) {
+            throw new IllegalStateException("Trip producer thread failed", t);
+        }
+    }
+
+    private void fail(Throwable t) {
+        if (failure == null) {
+            failure = t;
+        }
+    }
+
+    /**
+     * Puts the item on the queue, waiting for space. Gives up if any thread
+     * fails so that a failure can not leave the other threads waiting.
+     */
+    private <T> void put(BlockingQueue<T> queue, T item) {
+        try {
+            while (!queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                checkFailure();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted passing on taps", ex);
+        }
+    }
+
+    private <T> T take(BlockingQueue<T> queue) {
+        try {
+            T item;
+            while ((item = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+                checkFailure();
+            }
+            return item;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for taps", ex);
+        }
+    }
+
+    // ---- merge thread ----
+
+    private void runMerge() {
+        try {
+            if (order == Order.INPUT) {
+                mergeInInputOrder();
+            } else {
+                mergeInAnyOrder();
+            }
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    private void mergeInInputOrder() {
+        ShardWork[] works = new ShardWork[shards.length];
+        int[] cursors = new int[shards.length];
+        while (true) {
+            Object item = take(mergeQueue);
+            if (item == ShardWork.STOP) {
+                return;
+            }
+            Block b = (Block) item;
+            if (b == Block.COMPLETE) {
+                for (Shard shard : shards) {
+                    works[shard.index] = take(shard.output);
+                }
+                emitLeftoversInOrder(works);
+                periodsCompleted.release();
+                continue;
+            }
+            for (int i = 0; i < shards.length; i++) {
+                works[i] = b.participants[i] ? take(shards[i].output) : null;
+                cursors[i] = 0;
+            }
+            int errorIndex = 0;
+            for (int i = 0; i < b.count; i++) {
+                int shardIndex = b.route[i];
+                if (shardIndex < 0) {
+                    resultHandler.tapRejected(b.errorTags[errorIndex], b.errors[errorIndex]);
+                    errorIndex++;
+                } else {
+                    emit(works[shardIndex], cursors[shardIndex]++);
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges the left over trips of all shards by when their ON tap was first
+     * put in progress, which is the order a single TripProducer uses.
+     */
+    private void emitLeftoversInOrder(ShardWork[] works) {
+        int[] cursors = new int[works.length];
+        while (true) {
+            int next = -1;
+            for (int i = 0; i < works.length; i++) {
+                ShardWork w = works[i];
+                if (cursors[i] < w.leftovers.size()
+                        && (next < 0 || w.leftoverSeqs[cursors[i]] < works[next].leftoverSeqs[cursors[next]])) {
+                    next = i;
+                }
+            }
+            if (next < 0) {
+                return;
+            }
+            tripConsumer.accept(works[next].leftovers.get(cursors[next]++));
+        }
+    }
+
+    private void mergeInAnyOrder() {
+        int completed = 0;
+        while (true) {
+            Object item = take(mergeQueue);
+            if (item == ShardWork.STOP) {
+                return;
+            }
+            ShardWork work = (ShardWork) item;
+            if (work.complete) {
+                for (Trip trip : work.leftovers) {
+                    tripConsumer.accept(trip);
+                }
+                if (++completed == shards.length) {
+                    completed = 0;
+                    periodsCompleted.release();
+                }
+            } else {
+                for (int i = 0; i < work.count; i++) {
+                    emit(work, i);
+                }
+            }
+        }
+    }
+
+    private void emit(ShardWork work, int i) {
+        TapError error = work.errors[i];
+        if (error != null) {
+            resultHandler.tapRejected(work.tags[i], error);
+            return;
+        }
+        Trip trip = work.trips[i];
+        if (trip != null) {
+            tripConsumer.accept(trip);
+        }
+        resultHandler.tapAccepted(work.tags[i]);
+    }
+
+    // ---- shards ----
+
+    private class Shard {
+        private final int index;
+        private final BlockingQueue<ShardWork> input = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final BlockingQueue<ShardWork> output;
+        private final Thread thread;
+        private final TripProducer producer;
+        /**
+         * In INPUT order, the sequence of the tap that put each PAN in
+         * progress. Used to merge the left over trips of all shards.
+         */
+        private final Map<String, Long> openedAt;
+        private Trip produced;
+        private List<Trip> leftovers;
+
+        private Shard(int index) {
+            this.index = index;
+            this.producer = new TripProducer(chargeCalc, this::tripProduced);
+            if (order == Order.INPUT) {
+                this.output = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+                this.openedAt = new HashMap<>();
+            } else {
+                this.output = null;
+                this.openedAt = null;
+            }
+            this.thread = new Thread(this::run, "trip-shard-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        private void tripProduced(Trip trip) {
+            if (leftovers != null) {
+                leftovers.add(trip);
+            } else {
+                produced = trip;
+            }
+        }
+
+        private void run() {
+            try {
+                while (true) {
+                    ShardWork work = take(input);
+                    if (work == ShardWork.STOP) {
+                        return;
+                    }
+                    if (work.complete) {
+                        completePeriod(work);
+                    } else {
+                        for (int i = 0; i < work.count; i++) {
+                            addTap(work, i);
+                        }
+                    }
+                    if (output != null) {
+                        put(output, work);
+                    } else {
+                        put(mergeQueue, work);
+                    }
+                }
+            } catch (Throwable t) {
+                fail(t);
+            }
+        }
+
+        private void addTap(ShardWork work, int i) {
+            Tap tap = work.taps[i];
+            // drop the reference once applied, the producer keeps what it needs
+            work.taps[i] = null;
+            produced = null;
+            TapError error = producer.offerTap(tap);
+            if (error == null) {
+                work.trips[i] = produced;
+                if (openedAt != null) {
+                    if (tap.getTapType() == Tap.Type.ON) {
+                        openedAt.putIfAbsent(tap.getPAN(), work.seqs[i]);
+                    } else {
+                        openedAt.remove(tap.getPAN());
+                    }
+                }
+            } else {
+                work.errors[i] = error;
+                // an OFF tap may have ended the trip before the charge failed
+                if (openedAt != null && !producer.isInProgress(tap.getPAN())) {
+                    openedAt.remove(tap.getPAN());
+                }
+            }
+        }
+
+        private void completePeriod(ShardWork work) {
+            leftovers = new ArrayList<>();
+            producer.completePeriod();
+            work.leftovers = leftovers;
+            leftovers = null;
+            if (openedAt != null) {
+                work.leftoverSeqs = new long[work.leftovers.size()];
+                for (int i = 0; i < work.leftoverSeqs.length; i++) {
+                    work.leftoverSeqs[i] = openedAt.get(work.leftovers.get(i).getPAN());
+                }
+                openedAt.clear();
+            }
+        }
+    }
+
+    /**
+     * A block of Taps for one shard, and their results once applied.
+     */
+    private static class ShardWork {
+        private static final ShardWork STOP = new ShardWork();
+
+        private Tap[] taps;
+        private long[] tags;
+        private long[] seqs;
+        private Trip[] trips;
+        private TapError[] errors;
+        private int count;
+        private boolean complete;
+        private List<Trip> leftovers;
+        private long[] leftoverSeqs;
+
+        private static ShardWork complete() {
+            ShardWork work = new ShardWork();
+            work.complete = true;
+            return work;
+        }
+
+        private void add(Tap tap, long tag, long seq) {
+            if (taps == null) {
+                taps = new Tap[BLOCK_SIZE];
+                tags = new long[BLOCK_SIZE];
+                seqs = new long[BLOCK_SIZE];
+                trips = new Trip[BLOCK_SIZE];
+                errors = new TapError[BLOCK_SIZE];
+            }
+            taps[count] = tap;
+            tags[count] = tag;
+            seqs[count] = seq;
+            count++;
+        }
+    }
+
+    /**
+     * The shard each Tap in a block was passed to, in input order. Errors added
+     * in place of a Tap have a shard of -1.
+     */
+    private static class Block {
+        private static final Block COMPLETE = new Block(0, 0);
+
+        private final int[] route;
+        private final boolean[] participants;
+        private int count;
+        private long[] errorTags;
+        private TapError[] errors;
+        private int errorCount;
+
+        private Block(int size, int shardCount) {
+            this.route = new int[size];
+            this.participants = new boolean[shardCount];
+        }
+
+        private void addTap(int shardIndex) {
+            route[count++] = shardIndex;
+            participants[shardIndex] = true;
+        }
+
+        private void addError(long tag, TapError cause) {
+            if (errors == null) {
+                errorTags = new long[route.length];
+                errors = new TapError[route.length];
+            }
+            route[count++] = -1;
+            errorTags[errorCount] = tag;
+            errors[errorCount] = cause;
+            errorCount++;
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package au.id.simo.tap2trip;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tap-ons of trips in progress kept in memory mapped files on local disk,
+ * for when there are too many to keep in memory.
+ *
+ * Each Tap is a fixed size record appended to a records file, in the order
+ * they are added. A second file holds an open addressed hash table of record
+ * numbers, keyed by PAN. Removed records stay in the records file, marked as
+ * removed, until they outnumber the records that haven't been removed. Then
+ * the records that haven't been removed are copied, in the same order, to a
+ * new records file and the old one is deleted. So the files and the time to
+ * read all records follow the number of records kept, not the number ever
+ * added.
+ *
+ * PANs that aren't plain numbers are kept in memory, as they can't be stored
+ * in a fixed size record.
+ *
+ * The files are deleted when the store is closed.
+ *
+ * Not thread safe.
+ */
+class SpilledTaps implements Closeable {
+
+    private static final int RECORD_SIZE = 48;
+    private static final int PAN = 0;
+    private static final int ID = 8;
+    private static final int EPOCH_SECOND = 16;
+    private static final int NANO = 24;
+    private static final int STOP = 28;
+    private static final int COMPANY = 32;
+    private static final int BUS = 36;
+    private static final int FLAGS = 40;
+
+    private static final int REMOVED = 1;
+    private static final int TEXT_PAN = 2;
+
+    /**
+     * Records are mapped in segments, so the mapped size can grow without
+     * remapping the records already written.
+     */
+    private static final int SEGMENT_SHIFT = 16;
+    private static final int SEGMENT_RECORDS = 1 << SEGMENT_SHIFT;
+    private static final long SEGMENT_BYTES = (long) SEGMENT_RECORDS * RECORD_SIZE;
+    private static final int INITIAL_SLOTS = 1 << 16;
+
+    private final Path dir;
+    private FileChannel recordChannel;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final Map<Integer, String> textPans = new HashMap<>();
+
+    private FileChannel indexChannel;
+    /**
+     * Each slot holds a record number plus one, or zero if empty.
+     */
+    private MappedByteBuffer index;
+    private int slotMask;
+
+    private int recordCount;
+    private int size;
+
+    /**
+     * Constructor.
+     *
+     * @param dir the directory to create the files in.
+     * @throws IOException if the files can't be created.
+     */
+    SpilledTaps(Path dir) throws IOException {
+        this.dir = dir;
+        this.recordChannel = createFile("records");
+        try {
+            createIndex(INITIAL_SLOTS);
+        } catch (IOException ex) {
+            recordChannel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return the number of records that haven't been removed.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Appends a record. The PAN must not already have a record.
+     *
+     * @return the record number.
+     */
+    int add(long numericPan, String textPan, long id, long epochSecond,
+            int nano, int stop, int company, int bus) throws IOException {
+        if ((size + 1) * 2L > slotMask + 1L) {
+            createIndex((slotMask + 1) * 2);
+        }
+        int record = recordCount;
+        if ((record & (SEGMENT_RECORDS - 1)) == 0) {
+            segments.add(mapSegment(recordChannel, record));
+        }
+        recordCount++;
+        MappedByteBuffer segment = segment(record);
+        int offset = offset(record);
+        segment.putLong(offset + PAN, numericPan);
+        segment.putInt(offset + FLAGS, textPan == null ? 0 : TEXT_PAN);
+        if (textPan != null) {
+            textPans.put(record, textPan);
+        }
+        update(record, id, epochSecond, nano, stop, company, bus);
+        index.putInt(findSlot(numericPan, textPan) * 4, record + 1);
+        size++;
+        return record;
+    }
+
+    /**
+     * Replaces the Tap fields of a record, keeping its PAN.
+     */
+    void update(int record, long id, long epochSecond, int nano, int stop, int company, int bus) {
+        MappedByteBuffer segment = segment(record);
+        int offset = offset(record);
+        segment.putLong(offset + ID, id);
+        segment.putLong(offset + EPOCH_SECOND, epochSecond);
+        segment.putInt(offset + NANO, nano);
+        segment.putInt(offset + STOP, stop);
+        segment.putInt(offset + COMPANY, company);
+        segment.putInt(offset + BUS, bus);
+    }
+
+    /**
+     * @return the record number for the PAN, or -1 if it has no record.
+     */
+    int find(long numericPan, String textPan) {
+        int stored = index.getInt(findSlot(numericPan, textPan) * 4);
+        return stored - 1;
+    }
+
+    /**
+     * Marks the record as removed. Compacts the records once removed records
+     * outnumber the others, which changes the record numbers.
+     *
+     * @throws IOException if the records can't be compacted.
+     */
+    void remove(int record) throws IOException {
+        MappedByteBuffer segment = segment(record);
+        int offset = offset(record);
+        deleteSlot(findSlot(segment.getLong(offset + PAN), textPans.get(record)));
+        segment.putInt(offset + FLAGS, segment.getInt(offset + FLAGS) | REMOVED);
+        textPans.remove(record);
+        size--;
+        int removed = recordCount - size;
+        // the file grows a segment at a time, so fewer removed records would
+        // not make it smaller.
+        if (removed > size && removed >= SEGMENT_RECORDS) {
+            compact();
+        }
+    }
+
+    /**
+     * @return the number of records, including removed records that haven't
+     * been compacted yet. Record numbers are from zero up to this number, in
+     * the order they were added.
+     */
+    int recordCount() {
+        return recordCount;
+    }
+
+    boolean isRemoved(int record) {
+        return (segment(record).getInt(offset(record) + FLAGS) & REMOVED) != 0;
+    }
+
+    String pan(int record) {
+        String textPan = textPans.get(record);
+        if (textPan != null) {
+            return textPan;
+        }
+        return Long.toString(segment(record).getLong(offset(record) + PAN));
+    }
+
+    long id(int record) {
+        return segment(record).getLong(offset(record) + ID);
+    }
+
+    long epochSecond(int record) {
+        return segment(record).getLong(offset(record) + EPOCH_SECOND);
+    }
+
+    int nano(int record) {
+        return segment(record).getInt(offset(record) + NANO);
+    }
+
+    int stop(int record) {
+        return segment(record).getInt(offset(record) + STOP);
+    }
+
+    int company(int record) {
+        return segment(record).getInt(offset(record) + COMPANY);
+    }
+
+    int bus(int record) {
+        return segment(record).getInt(offset(record) + BUS);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            recordChannel.close();
+        } finally {
+            indexChannel.close();
+        }
+    }
+
+    private MappedByteBuffer segment(int record) {
+        return segments.get(record >>> SEGMENT_SHIFT);
+    }
+
+    private static int offset(int record) {
+        return (record & (SEGMENT_RECORDS - 1)) * RECORD_SIZE;
+    }
+
+    private int findSlot(long numericPan, String textPan) {
+        int slot = InProgressTaps.hash(numericPan, textPan) & slotMask;
+        while (true) {
+            int record = index.getInt(slot * 4) - 1;
+            if (record < 0) {
+                return slot;
+            }
+            String recordTextPan = textPans.get(record);
+            if (textPan == null
+                    ? recordTextPan == null && segment(record).getLong(offset(record) + PAN) == numericPan
+                    : textPan.equals(recordTextPan)) {
+                return slot;
+            }
+            slot = (slot + 1) & slotMask;
+        }
+    }
+
+    /**
+     * Empties the slot, moving back any later records in the same probe
+     * sequence so that lookups don't stop early.
+     */
+    private void deleteSlot(int slot) {
+        int gap = slot;
+        int next = (gap + 1) & slotMask;
+        int stored;
+        while ((stored = index.getInt(next * 4)) != 0) {
+            int record = stored - 1;
+            int home = InProgressTaps.hash(
+                    segment(record).getLong(offset(record) + PAN),
+                    textPans.get(record)
+            ) & slotMask;
+            if (((next - home) & slotMask) >= ((next - gap) & slotMask)) {
+                index.putInt(gap * 4, stored);
+                gap = next;
+            }
+            next = (next + 1) & slotMask;
+        }
+        index.putInt(gap * 4, 0);
+    }
+
+    /**
+     * Copies the records that haven't been removed, in order, to a new records
+     * file, deletes the old file, then rebuilds the hash table sized for the
+     * records kept.
+     */
+    private void compact() throws IOException {
+        FileChannel newChannel = createFile("records");
+        List<MappedByteBuffer> newSegments = new ArrayList<>();
+        Map<Integer, String> newTextPans = new HashMap<>();
+        int kept = 0;
+        try {
+            for (int record = 0; record < recordCount; record++) {
+                if (isRemoved(record)) {
+                    continue;
+                }
+                if ((kept & (SEGMENT_RECORDS - 1)) == 0) {
+                    newSegments.add(mapSegment(newChannel, kept));
+                }
+                MappedByteBuffer from = segment(record);
+                MappedByteBuffer to = newSegments.get(kept >>> SEGMENT_SHIFT);
+                int fromOffset = offset(record);
+                int toOffset = offset(kept);
+                for (int i = 0; i < RECORD_SIZE; i += 8) {
+                    to.putLong(toOffset + i, from.getLong(fromOffset + i));
+                }
+                String textPan = textPans.get(record);
+                if (textPan != null) {
+                    newTextPans.put(kept, textPan);
+                }
+                kept++;
+            }
+        } catch (IOException ex) {
+            newChannel.close();
+            throw ex;
+        }
+        FileChannel oldChannel = recordChannel;
+        recordChannel = newChannel;
+        segments.clear();
+        segments.addAll(newSegments);
+        textPans.clear();
+        textPans.putAll(newTextPans);
+        recordCount = kept;
+        oldChannel.close();
+        int slotCount = INITIAL_SLOTS;
+        // room to grow before the table has to be rebuilt again
+        while (size * 4L > slotCount) {
+            slotCount *= 2;
+        }
+        createIndex(slotCount);
+    }
+
+    private static MappedByteBuffer mapSegment(FileChannel channel, int firstRecord) throws IOException {
+        return channel.map(
+                FileChannel.MapMode.READ_WRITE,
+                (firstRecord >>> SEGMENT_SHIFT) * SEGMENT_BYTES,
+                SEGMENT_BYTES
+        );
+    }
+
+    /**
+     * Replaces the hash table with an empty one of the given size, then adds
+     * all records that haven't been removed.
+     */
+    private void createIndex(int slotCount) throws IOException {
+        FileChannel oldChannel = indexChannel;
+        indexChannel = createFile("index");
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, slotCount * 4L);
+        slotMask = slotCount - 1;
+        if (oldChannel != null) {
+            oldChannel.close();
+        }
+        for (int record = 0; record < recordCount; record++) {
+            if (!isRemoved(record)) {
+                long numericPan = segment(record).getLong(offset(record) + PAN);
+                index.putInt(findSlot(numericPan, textPans.get(record)) * 4, record + 1);
+            }
+        }
+    }
+
+    private FileChannel createFile(String name) throws IOException {
+        Path file = Files.createTempFile(dir, "in-progress-" + name, ".bin");
+        return FileChannel.open(
+                file,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE
+        );
+    }
+}
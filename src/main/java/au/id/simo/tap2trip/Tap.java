@@ -4,26 +4,50 @@ import java.time.Instant;
 
 /**
  * A record of a customer taping their card.
+ *
+ * The stop, company and bus IDs are held as codes from the
+ * {@link IdDictionary} of the run.
  */
 public class Tap {
     public static enum Type {
         ON, OFF
     }
-    private final Long id;
+    private final long id;
     private final Instant dateTime;
     private final Type tapType;
-    private final String stopId;
-    private final String companyId;
-    private final String busId;
+    private final int stopCode;
+    private final int companyCode;
+    private final int busCode;
     private final String PAN;
+    private final IdDictionary ids;
 
-    public Tap(Long id, Instant dateTime, Type tapType, String stopId, String companyId, String busId, String PAN) {
+    /**
+     * Constructor, encoding the IDs with the provided dictionary.
+     */
+    public Tap(IdDictionary ids, long id, Instant dateTime, Type tapType, String stopId, String companyId, String busId, String PAN) {
+        this(
+                ids,
+                id,
+                dateTime,
+                tapType,
+                ids.encode(stopId),
+                ids.encode(companyId),
+                ids.encode(busId),
+                PAN
+        );
+    }
+
+    /**
+     * Constructor, using IDs already encoded with the provided dictionary.
+     */
+    public Tap(IdDictionary ids, long id, Instant dateTime, Type tapType, int stopCode, int companyCode, int busCode, String PAN) {
+        this.ids = ids;
         this.id = id;
         this.dateTime = dateTime;
         this.tapType = tapType;
-        this.stopId = stopId;
-        this.companyId = companyId;
-        this.busId = busId;
+        this.stopCode = stopCode;
+        this.companyCode = companyCode;
+        this.busCode = busCode;
         this.PAN = PAN;
     }
 
@@ -40,18 +64,37 @@ public class Tap {
     }
 
     public String getStopId() {
-        return stopId;
+        return ids.decode(stopCode);
     }
 
     public String getCompanyId() {
-        return companyId;
+        return ids.decode(companyCode);
     }
 
     public String getBusId() {
-        return busId;
+        return ids.decode(busCode);
+    }
+
+    public int getStopCode() {
+        return stopCode;
+    }
+
+    public int getCompanyCode() {
+        return companyCode;
+    }
+
+    public int getBusCode() {
+        return busCode;
     }
 
     public String getPAN() {
         return PAN;
     }
+
+    /**
+     * @return the dictionary the stop, company and bus codes are from.
+     */
+    public IdDictionary getIdDictionary() {
+        return ids;
+    }
 }
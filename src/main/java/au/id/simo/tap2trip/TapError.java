@@ -0,0 +1,152 @@
+package au.id.simo.tap2trip;
+
+/**
+ * Why a Tap was rejected, passed around in place of an exception.
+ *
+ * Bad taps are common enough in some feeds that throwing an exception for
+ * each, with its stack trace, costs more than the rest of processing the
+ * tap. Instead, parsing and charging return a TapError. Errors that recur,
+ * such as an unknown stop, are created once and reused.
+ *
+ * The message is the same as the one line message built from the exception
+ * that used to be thrown, and its causes, as written to the error file.
+ */
+public final class TapError {
+
+    /**
+     * The kinds of error.
+     */
+    public enum Code {
+        /**
+         * The record is not a valid Tap.
+         */
+        INVALID_TAP,
+        /**
+         * The Tap arrived after taps were released past its time.
+         */
+        LATE_TAP,
+        /**
+         * The Tap's stop has no charges.
+         */
+        UNKNOWN_STOP,
+        /**
+         * There is no charge between the stops of the Tap's trip.
+         */
+        NO_CHARGE
+    }
+
+    private static final String UNKNOWN_STOP = "Unknown stop ID: ";
+    private static final String NO_CHARGE = "No charge is found between stops ";
+
+    private final Code code;
+    private final String reason;
+    private final String detail;
+    private final Throwable cause;
+    private final String message;
+
+    /**
+     * Constructor.
+     * @param code the kind of error.
+     * @param reason the message of the error.
+     * @param detail the message of what caused it, or null.
+     */
+    public TapError(Code code, String reason, String detail) {
+        this(code, reason, detail, null);
+    }
+
+    private TapError(Code code, String reason, String detail, Throwable cause) {
+        this.code = code;
+        this.reason = reason;
+        this.detail = detail;
+        this.cause = cause;
+        this.message = detail == null ? reason : reason + ": " + detail;
+    }
+
+    /**
+     * Keeps an exception that has already been thrown, for the places that
+     * still use one.
+     * @param code the kind of error.
+     * @param exception the exception.
+     * @return the error, with the message of the exception and its causes.
+     */
+    public static TapError of(Code code, Throwable exception) {
+        Throwable cause = exception.getCause();
+        String detail = null;
+        if (cause != null) {
+            StringBuilder sb = new StringBuilder();
+            for (Throwable t = cause; t != null; t = t.getCause()) {
+                if (sb.length() > 0) {
+                    sb.append(": ");
+                }
+                sb.append(t.getMessage());
+            }
+            detail = sb.toString();
+        }
+        return new TapError(code, String.valueOf(exception.getMessage()), detail, cause);
+    }
+
+    /**
+     * @param stopId the stop with no charges.
+     * @return an {@link Code#UNKNOWN_STOP} error.
+     */
+    public static TapError unknownStop(String stopId) {
+        return new TapError(Code.UNKNOWN_STOP, UNKNOWN_STOP + stopId, null);
+    }
+
+    /**
+     * @param tapId the ID of a Tap-on loaded from a snapshot of trips in
+     * progress.
+     * @param stopId the stop of the Tap-on, which has no charges.
+     * @return the error for dropping the trip in progress.
+     */
+    public static TapError droppedInProgress(long tapId, String stopId) {
+        return new TapError(Code.UNKNOWN_STOP,
+                "Trip in progress from snapshot dropped, tap ID " + tapId, UNKNOWN_STOP + stopId);
+    }
+
+    /**
+     * @param fromStopId the stop at the start of the trip.
+     * @param toStopId the stop at the end of the trip.
+     * @return a {@link Code#NO_CHARGE} error.
+     */
+    public static TapError noCharge(String fromStopId, String toStopId) {
+        return new TapError(Code.NO_CHARGE, NO_CHARGE + fromStopId + " and " + toStopId, null);
+    }
+
+    public Code getCode() {
+        return code;
+    }
+
+    /**
+     * @return the message of the error, without its cause.
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * @return the message of what caused the error, or null.
+     */
+    public String getDetail() {
+        return detail;
+    }
+
+    /**
+     * @return the exception that caused the error, if it came from one.
+     */
+    public Throwable getCause() {
+        return cause;
+    }
+
+    /**
+     * @return the reason and detail, as one line.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return code + ": " + message;
+    }
+}
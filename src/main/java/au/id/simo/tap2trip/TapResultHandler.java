@@ -0,0 +1,27 @@
+package au.id.simo.tap2trip;
+
+/**
+ * Receives the outcome of each Tap added to a {@link ShardedTripProducer}.
+ *
+ * All calls are made from a single thread, which is also the thread that
+ * passes Trips to the trip consumer.
+ */
+public interface TapResultHandler {
+
+    /**
+     * Called once a Tap has been applied. Any Trip produced by the Tap has
+     * already been passed to the trip consumer.
+     *
+     * @param tag the tag the Tap was added with.
+     */
+    void tapAccepted(long tag);
+
+    /**
+     * Called when a Tap could not be applied, or an error was added in its
+     * place.
+     *
+     * @param tag the tag the Tap or error was added with.
+     * @param cause why the Tap was rejected.
+     */
+    void tapRejected(long tag, TapError cause);
+}
@@ -5,6 +5,9 @@ import java.time.Instant;
 
 /**
  * A record of a customer taking a trip on a bus.
+ *
+ * The stop, company and bus IDs are held as codes from the
+ * {@link IdDictionary} of the run.
  */
 public class Trip {
     public static enum Status {
@@ -13,26 +16,51 @@ public class Trip {
     private final Instant started;
     private final Instant finished;
     private final Duration duration;
-    private final String fromStopId;
-    private final String toStopId;
+    private final int fromStopCode;
+    private final int toStopCode;
     /**
      * Charge amount in cents. i.e 100 is 1 dollar
      */
     private final Integer chargeAmount;
-    private final String companyId;
-    private final String busId;
+    private final int companyCode;
+    private final int busCode;
     private final String PAN;
     private final Status status;
+    private final IdDictionary ids;
 
-    public Trip(Instant started, Instant finished, Duration duration, String fromStopId, String toStopId, Integer chargeAmount, String companyId, String busId, String PAN, Status status) {
+    /**
+     * Constructor, encoding the IDs with the provided dictionary.
+     */
+    public Trip(IdDictionary ids, Instant started, Instant finished, Duration duration, String fromStopId, String toStopId, Integer chargeAmount, String companyId, String busId, String PAN, Status status) {
+        this(
+                ids,
+                started,
+                finished,
+                duration,
+                ids.encode(fromStopId),
+                ids.encode(toStopId),
+                chargeAmount,
+                ids.encode(companyId),
+                ids.encode(busId),
+                PAN,
+                status
+        );
+    }
+
+    /**
+     * Constructor, using IDs already encoded with the provided dictionary.
+     * Use {@link IdDictionary#NONE} for a stop that is not known.
+     */
+    public Trip(IdDictionary ids, Instant started, Instant finished, Duration duration, int fromStopCode, int toStopCode, Integer chargeAmount, int companyCode, int busCode, String PAN, Status status) {
+        this.ids = ids;
         this.started = started;
         this.finished = finished;
         this.duration = duration;
-        this.fromStopId = fromStopId;
-        this.toStopId = toStopId;
+        this.fromStopCode = fromStopCode;
+        this.toStopCode = toStopCode;
         this.chargeAmount = chargeAmount;
-        this.companyId = companyId;
-        this.busId = busId;
+        this.companyCode = companyCode;
+        this.busCode = busCode;
         this.PAN = PAN;
         this.status = status;
     }
@@ -50,11 +78,19 @@ public class Trip {
     }
 
     public String getFromStopId() {
-        return fromStopId;
+        return ids.decode(fromStopCode);
     }
 
     public String getToStopId() {
-        return toStopId;
+        return ids.decode(toStopCode);
+    }
+
+    public int getFromStopCode() {
+        return fromStopCode;
+    }
+
+    public int getToStopCode() {
+        return toStopCode;
     }
 
     public Integer getChargeAmount() {
@@ -62,11 +98,19 @@ public class Trip {
     }
 
     public String getCompanyId() {
-        return companyId;
+        return ids.decode(companyCode);
     }
 
     public String getBusId() {
-        return busId;
+        return ids.decode(busCode);
+    }
+
+    public int getCompanyCode() {
+        return companyCode;
+    }
+
+    public int getBusCode() {
+        return busCode;
     }
 
     public String getPAN() {
@@ -76,4 +120,11 @@ public class Trip {
     public Status getStatus() {
         return status;
     }
+
+    /**
+     * @return the dictionary the stop, company and bus codes are from.
+     */
+    public IdDictionary getIdDictionary() {
+        return ids;
+    }
 }
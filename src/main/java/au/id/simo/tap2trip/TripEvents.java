@@ -0,0 +1,102 @@
+package au.id.simo.tap2trip;
+
+import java.time.Duration;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events for the trips in progress and the trips
+ * produced.
+ *
+ * A trip event is created for every trip, so it is disabled by default and
+ * has to be enabled in the recording settings. On a JVM without JFR the event
+ * classes are never loaded and no events are created.
+ */
+final class TripEvents {
+
+    /**
+     * True if the JVM has the jdk.jfr module.
+     */
+    static final boolean AVAILABLE = isAvailable();
+
+    private TripEvents() {
+    }
+
+    /**
+     * Records the number of trips in progress.
+     * @param inProgress the trips in progress, including those on disk.
+     * @param spilled the trips in progress that have been moved to disk.
+     */
+    static void inProgress(int inProgress, int spilled) {
+        if (!AVAILABLE) {
+            return;
+        }
+        InProgressEvent event = new InProgressEvent();
+        if (event.shouldCommit()) {
+            event.inProgress = inProgress;
+            event.spilled = spilled;
+            event.commit();
+        }
+    }
+
+    /**
+     * Records a trip being produced. The PAN is not recorded.
+     * @param trip the trip produced.
+     */
+    static void tripProduced(Trip trip) {
+        if (!AVAILABLE) {
+            return;
+        }
+        TripEvent event = new TripEvent();
+        if (event.shouldCommit()) {
+            event.status = trip.getStatus().name();
+            Integer charge = trip.getChargeAmount();
+            event.chargeAmount = charge == null ? 0 : charge;
+            Duration duration = trip.getDuration();
+            event.tripDuration = duration == null ? 0 : duration.toNanos();
+            event.commit();
+        }
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, TripEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError ex) {
+            return false;
+        }
+    }
+
+    @Name("au.id.simo.tap2trip.InProgress")
+    @Label("Trips In Progress")
+    @Description("The number of tap-ons waiting for a tap-off, sampled as taps are added")
+    @Category("Tap2Trip")
+    static final class InProgressEvent extends Event {
+        @Label("In Progress")
+        int inProgress;
+        @Label("Spilled")
+        @Description("Trips in progress moved to disk")
+        int spilled;
+    }
+
+    @Name("au.id.simo.tap2trip.Trip")
+    @Label("Trip")
+    @Description("A trip produced from the taps")
+    @Category("Tap2Trip")
+    @Enabled(false)
+    static final class TripEvent extends Event {
+        @Label("Status")
+        String status;
+        @Label("Charge Amount")
+        @Description("In cents")
+        int chargeAmount;
+        @Label("Trip Duration")
+        @Timespan
+        long tripDuration;
+    }
+}
@@ -1,7 +1,18 @@
 package au.id.simo.tap2trip;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.time.Duration;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.function.Consumer;
 
@@ -10,41 +21,157 @@ import java.util.function.Consumer;
  */
 public class TripProducer {
 
-    private final Map<String, Tap> inProgressMap;
+    /**
+     * The number of trips in progress is recorded once every this many taps
+     * plus one, when JFR is recording.
+     */
+    private static final int IN_PROGRESS_SAMPLE_MASK = 4095;
+
+    private final InProgressTaps inProgressMap;
     private final ChargeCalculator chargeCalc;
+    private final IdDictionary ids;
     private final Consumer<Trip> tripConsumer;
+    /**
+     * Tap-ons in the order they were added, to find those older than the
+     * maximum trip duration. Null if trips don't expire.
+     */
+    private ExpiryQueue expiryQueue;
+    private long maxTripSeconds;
+    /**
+     * The latest tap time seen, in epoch seconds.
+     */
+    private long clock = Long.MIN_VALUE;
+    private int tapsAdded;
+    /**
+     * The error for each unknown stop code seen, so a bad stop that repeats
+     * builds its message once.
+     */
+    private TapError[] unknownStops = new TapError[0];
+    /**
+     * The error for each pair of stop indexes with no charge seen, keyed by
+     * the from index in the high int and the to index in the low.
+     */
+    private final Map<Long, TapError> noCharges = new HashMap<>();
 
     /**
      * Constructor.
-     * @param chargeCalc the ChargeCalculator used to calculate the trip fare
+     * @param chargeCalc the ChargeCalculator used to calculate the trip fare.
+     * Taps added must be encoded with its {@link IdDictionary}, which the
+     * Trips produced are also encoded with.
      * @param tripConsumer the function that is passed the produced Trips
      */
     public TripProducer(ChargeCalculator chargeCalc, Consumer<Trip> tripConsumer) {
-        this.inProgressMap = new LinkedHashMap<>();
+        this.ids = chargeCalc.getIdDictionary();
+        this.inProgressMap = new InProgressTaps(ids);
         this.chargeCalc = chargeCalc;
         this.tripConsumer = tripConsumer;
     }
 
+    /**
+     * Limits the number of trips in progress held in memory. Once there are
+     * more, the oldest are moved to memory mapped files in the provided
+     * directory, and read back when their PAN taps again or the period is
+     * completed. The Trips produced are the same, in the same order, as
+     * holding every trip in memory. The files are deleted when the period is
+     * completed.
+     * @param maxInMemory the maximum number of trips in progress to hold in
+     * memory.
+     * @param spillDir the directory to create the files in.
+     * @return This instance. Used for method chaining.
+     */
+    public TripProducer setSpill(int maxInMemory, Path spillDir) {
+        inProgressMap.setSpill(maxInMemory, spillDir);
+        return this;
+    }
+
+    /**
+     * Limits how long a trip can be in progress. Once the taps have moved on
+     * past a Tap-on's time plus the maximum duration, the Tap-on is charged as
+     * an INCOMPLETE trip, as if the customer had tapped on again. The time of
+     * the taps is used, not the time on the clock, so taps are expected to be
+     * added in date time order. By default trips in progress are kept until
+     * their PAN taps again or the period is completed.
+     *
+     * Trips in progress are checked in the order their Tap-ons were added, so
+     * only Tap-ons that have expired are looked at. Expired Tap-ons are
+     * charged before the Tap that moved the time past them is applied.
+     * @param maxTripDuration the longest a trip can be in progress, or null
+     * for no limit.
+     * @return This instance. Used for method chaining.
+     */
+    public TripProducer setMaxTripDuration(Duration maxTripDuration) {
+        if (maxTripDuration == null) {
+            expiryQueue = null;
+            return this;
+        }
+        if (maxTripDuration.isNegative()) {
+            throw new IllegalArgumentException("maxTripDuration must not be negative: " + maxTripDuration);
+        }
+        maxTripSeconds = maxTripDuration.getSeconds();
+        if (expiryQueue == null) {
+            expiryQueue = new ExpiryQueue();
+            inProgressMap.forEach(this::expireLater);
+        }
+        return this;
+    }
+
     /**
      * Applies the provided Tap to the internal state. Potentially triggering
      * a Trip to be produced and passed to the Trip consumer.
      * @param tap The Tap to add to the internal state.
      * @throws UnknownChargeException if the stop ID in the provided tap, is
      * used to calculate a trip that the ChargeCalulator is not configured with.
+     * @throws IllegalArgumentException if the Tap is not encoded with the
+     * IdDictionary of the ChargeCalculator.
+     * @throws IllegalStateException if trips in progress moved to disk can't be
+     * read or written.
      */
     public void addTap(Tap tap) throws UnknownChargeException {
+        TapError error = offerTap(tap);
+        if (error != null) {
+            throw new UnknownChargeException(error.getMessage());
+        }
+    }
+
+    /**
+     * The same as {@link #addTap(Tap)}, returning why the Tap was rejected
+     * instead of throwing an exception. The errors for the same unknown stop,
+     * or pair of stops without a charge, are the same instance.
+     * @param tap The Tap to add to the internal state.
+     * @return null if the Tap was applied, otherwise the error.
+     * @throws IllegalArgumentException if the Tap is not encoded with the
+     * IdDictionary of the ChargeCalculator.
+     * @throws IllegalStateException if trips in progress moved to disk can't be
+     * read or written.
+     */
+    public TapError offerTap(Tap tap) {
+        if (tap.getIdDictionary() != ids) {
+            throw new IllegalArgumentException("Tap is not encoded with the IdDictionary of the ChargeCalculator");
+        }
         // verify incomplete charge exists for this stop, just in case it is
-        // an INCOMPLETE trip later. An exception is thrown if no charge exists.
-        chargeCalc.getIncompleteCharge(tap.getStopId());
+        // an INCOMPLETE trip later. The tap is rejected if no charge exists.
+        // Every known stop has an incomplete charge.
+        int stop = chargeCalc.findStopIndexOfCode(tap.getStopCode());
+        if (stop == ChargeCalculator.UNKNOWN_STOP) {
+            return unknownStop(tap.getStopCode());
+        }
+        if ((++tapsAdded & IN_PROGRESS_SAMPLE_MASK) == 0) {
+            TripEvents.inProgress(inProgressMap.size(), inProgressMap.spilledSize());
+        }
+        if (expiryQueue != null) {
+            expireTrips(tap.getDateTime().getEpochSecond());
+        }
         
         switch (tap.getTapType()) {
             case ON:
-                Tap oldTap = inProgressMap.put(tap.getPAN(), tap);
+                if (expiryQueue != null) {
+                    expireLater(tap);
+                }
+                Tap oldTap = inProgressMap.put(tap);
                 if (oldTap != null) {
                     // end and charge old trip as incomplete.
                     // assume customer failed to tap off.
-                    Trip oldTrip = incompleteOnTrip(oldTap);
-                    tripConsumer.accept(oldTrip);
+                    emitIncompleteOnTrip(oldTap);
                 }
                 break;
             case OFF:
@@ -53,45 +180,103 @@ public class TripProducer {
                 if (on == null) {
                     // No tap on, but a tap off exists, mark as imcomplete
                     // assume customer failed to tap on.
-                    trip = incompleteOffTrip(tap);
+                    trip = incompleteOffTrip(tap, stop);
                 } else {
-                    trip = calcTrip(on, tap);
+                    int onStop = chargeCalc.findStopIndexOfCode(on.getStopCode());
+                    if (onStop != stop && chargeCalc.findCharge(onStop, stop) == ChargeCalculator.NO_CHARGE) {
+                        // the trip in progress has already been removed, as
+                        // it always has been when there is no charge.
+                        return noCharge(onStop, stop);
+                    }
+                    trip = calcTrip(on, tap, onStop, stop);
                 }
-                tripConsumer.accept(trip);
+                produce(trip);
                 break;
         }
+        return null;
+    }
+
+    private TapError unknownStop(int stopCode) {
+        if (stopCode < 0) {
+            return TapError.unknownStop(ids.decode(stopCode));
+        }
+        if (stopCode >= unknownStops.length) {
+            unknownStops = Arrays.copyOf(unknownStops, Math.max(stopCode + 1, unknownStops.length * 2));
+        }
+        TapError error = unknownStops[stopCode];
+        if (error == null) {
+            error = TapError.unknownStop(ids.decode(stopCode));
+            unknownStops[stopCode] = error;
+        }
+        return error;
+    }
+
+    private TapError noCharge(int fromStop, int toStop) {
+        return noCharges.computeIfAbsent(((long) fromStop << 32) | toStop,
+                k -> TapError.noCharge(chargeCalc.getStopId(fromStop), chargeCalc.getStopId(toStop)));
     }
     
+    /**
+     * Moves the clock forward to the time of a Tap, charging every trip in
+     * progress that started more than the maximum duration before it.
+     */
+    private void expireTrips(long epochSecond) {
+        if (epochSecond <= clock) {
+            return;
+        }
+        clock = epochSecond;
+        while (!expiryQueue.isEmpty() && clock - expiryQueue.headEpochSecond() > maxTripSeconds) {
+            String pan = expiryQueue.headPan();
+            long id = expiryQueue.headId();
+            long onEpochSecond = expiryQueue.headEpochSecond();
+            expiryQueue.removeHead();
+            // skip Tap-ons that have since tapped off or on again
+            if (isTripInProgress(pan, id, onEpochSecond)) {
+                emitIncompleteOnTrip(inProgressMap.remove(pan));
+            }
+        }
+    }
+
+    private void expireLater(Tap on) {
+        expiryQueue.add(on, this::isTripInProgress);
+    }
+
+    /**
+     * @return true if the Tap-on is still the trip in progress of its PAN.
+     */
+    private boolean isTripInProgress(String pan, long id, long onEpochSecond) {
+        Tap on = inProgressMap.get(pan);
+        return on != null && on.getId() == id && on.getDateTime().getEpochSecond() == onEpochSecond;
+    }
+
     /**
      * Creates the Trip based on the provided ON and OFF taps.
      * 
      * @param on tap on
      * @param off tap off
+     * @param onStop the ChargeCalculator stop index of the tap on
+     * @param offStop the ChargeCalculator stop index of the tap off
      * @return The calculated trip
-     * @throws UnknownChargeException if the ChargeCalculator isn't configured
-     * with the stops in the provided on and off Taps.
      */
-    private Trip calcTrip(Tap on, Tap off) throws UnknownChargeException {
-        String fromStopId = on.getStopId();
-        String toStopId = off.getStopId();
-        
+    private Trip calcTrip(Tap on, Tap off, int onStop, int offStop) {
         Trip.Status status = Trip.Status.COMPLETED;
         Integer charge;
-        if (fromStopId.equals(toStopId)) {
+        if (onStop == offStop) {
             status = Trip.Status.CANCELLED;
             charge = 0;
         } else {
-            charge = chargeCalc.getCharge(fromStopId,toStopId);
+            charge = chargeCalc.findCharge(onStop, offStop);
         }
         return new Trip(
+                ids,
                 on.getDateTime(),
                 off.getDateTime(),
                 Duration.between(on.getDateTime(), off.getDateTime()),
-                fromStopId,
-                toStopId,
+                on.getStopCode(),
+                off.getStopCode(),
                 charge,
-                on.getCompanyId(),
-                on.getBusId(),
+                on.getCompanyCode(),
+                on.getBusCode(),
                 on.getPAN(),
                 status);
     }
@@ -99,20 +284,25 @@ public class TripProducer {
     /**
      * Creates a trip where the customer failed to tap off.
      * @param on the Tap on.
-     * @return the incomplete Trip where the Tap off details are unknown.
-     * @throws UnknownChargeException if the ChargeCalculator isn't configured
-     * with the stop in the provided on Tap.
+     * @return the incomplete Trip where the Tap off details are unknown, or
+     * null if the ChargeCalculator isn't configured with the stop in the
+     * provided on Tap.
      */
-    private Trip incompleteOnTrip(Tap on) throws UnknownChargeException {
+    private Trip incompleteOnTrip(Tap on) {
+        int onStop = chargeCalc.findStopIndexOfCode(on.getStopCode());
+        if (onStop == ChargeCalculator.UNKNOWN_STOP) {
+            return null;
+        }
         return new Trip(
+                ids,
                 on.getDateTime(),
                 null,
                 null,
-                on.getStopId(),
-                null,
-                chargeCalc.getIncompleteCharge(on.getStopId()),
-                on.getCompanyId(),
-                on.getBusId(),
+                on.getStopCode(),
+                IdDictionary.NONE,
+                chargeCalc.getIncompleteCharge(onStop),
+                on.getCompanyCode(),
+                on.getBusCode(),
                 on.getPAN(),
                 Trip.Status.INCOMPLETE);
     }
@@ -120,37 +310,247 @@ public class TripProducer {
     /**
      * Creates a trip where the customer failed to tap on.
      * @param off the Tap off.
+     * @param offStop the ChargeCalculator stop index of the tap off.
      * @return the incomplete trip where the Tap on details are unknown.
-     * @throws UnknownChargeException if the ChargeCalculator isn't configured
-     * with the stop in the provided on Tap.
      */
-    private Trip incompleteOffTrip(Tap off) throws UnknownChargeException {
+    private Trip incompleteOffTrip(Tap off, int offStop) {
         return new Trip(
+                ids,
                 null,
                 off.getDateTime(),
                 null,
-                null,
-                off.getStopId(),
-                chargeCalc.getIncompleteCharge(off.getStopId()),
-                off.getCompanyId(),
-                off.getBusId(),
+                IdDictionary.NONE,
+                off.getStopCode(),
+                chargeCalc.getIncompleteCharge(offStop),
+                off.getCompanyCode(),
+                off.getBusCode(),
                 off.getPAN(),
                 Trip.Status.INCOMPLETE);
     }
 
     /**
      * Called when all taps for a period have been processed. This is to produce
-     * INCOMPLETE trips from all the left over Tap-ons.
+     * INCOMPLETE trips from all the left over Tap-ons. The next period starts
+     * with no trips in progress.
+     * @throws IllegalStateException if trips in progress moved to disk can't be
+     * read or deleted.
      */
     public void completePeriod() {
-        for(Tap tap: inProgressMap.values()) {
-            try {
-                Trip trip = incompleteOnTrip(tap);
-                tripConsumer.accept(trip);
-            } catch(UnknownChargeException e) {
-                // shouldn't occur due to all stop being checked on entry to
-                // this class in the addTap() method.
+        TripEvents.inProgress(inProgressMap.size(), inProgressMap.spilledSize());
+        inProgressMap.forEach(this::emitIncompleteOnTrip);
+        inProgressMap.clear();
+        if (expiryQueue != null) {
+            expiryQueue.clear();
+        }
+    }
+
+    /**
+     * Charges the trip in progress for a PAN as an INCOMPLETE trip, the same
+     * as {@link #completePeriod()} does for every PAN. Used when the taps are
+     * grouped by PAN, so a PAN that has moved on will not tap again.
+     * @param pan the PAN to complete the trip of.
+     */
+    public void completeInProgress(String pan) {
+        Tap tap = inProgressMap.remove(pan);
+        if (tap != null) {
+            emitIncompleteOnTrip(tap);
+        }
+    }
+
+    private void emitIncompleteOnTrip(Tap tap) {
+        Trip trip = incompleteOnTrip(tap);
+        // null shouldn't occur due to all stop being checked on entry to
+        // this class in the offerTap() method, and when loaded from a
+        // snapshot.
+        if (trip != null) {
+            produce(trip);
+        }
+    }
+
+    private void produce(Trip trip) {
+        TripEvents.tripProduced(trip);
+        tripConsumer.accept(trip);
+    }
+
+    /**
+     * Called instead of {@link #completePeriod()} when trips in progress are
+     * to be continued by a later run. Writes the left over Tap-ons to a binary
+     * snapshot file, to be loaded with {@link #loadInProgress(Path)}, and
+     * starts the next period with no trips in progress.
+     *
+     * The snapshot is written to a temporary file that then replaces the
+     * provided file, so a failed write leaves any previous snapshot in place.
+     * @param snapshot the file to write.
+     * @throws IOException if the snapshot can't be written.
+     */
+    public void saveInProgress(Path snapshot) throws IOException {
+        Path tmp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024))) {
+                inProgressMap.writeSnapshot(out);
+            }
+            Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        inProgressMap.clear();
+        if (expiryQueue != null) {
+            expiryQueue.clear();
+        }
+    }
+
+    /**
+     * Adds the trips in progress from a snapshot written by
+     * {@link #saveInProgress(Path)}, as if their Tap-ons had been added in the
+     * same order. Called before any Taps are added.
+     *
+     * Tap-ons at a stop the ChargeCalculator no longer has charges for are
+     * dropped, as their trip can't be charged.
+     * @param snapshot the file to read.
+     * @return the dropped Tap-ons, in the order they were saved.
+     * @throws IOException if the snapshot can't be read or is not a snapshot.
+     */
+    public List<Tap> loadInProgress(Path snapshot) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(snapshot), 64 * 1024))) {
+            inProgressMap.readSnapshot(in);
+        }
+        List<Tap> dropped = new ArrayList<>();
+        inProgressMap.forEach(tap -> {
+            if (chargeCalc.findStopIndexOfCode(tap.getStopCode()) == ChargeCalculator.UNKNOWN_STOP) {
+                dropped.add(tap);
             }
+        });
+        for (Tap tap : dropped) {
+            inProgressMap.remove(tap.getPAN());
+        }
+        if (expiryQueue != null) {
+            expiryQueue.clear();
+            inProgressMap.forEach(this::expireLater);
         }
+        return dropped;
+    }
+
+    /**
+     * @param pan the PAN to check.
+     * @return true if the PAN has tapped on and not yet off.
+     */
+    boolean isInProgress(String pan) {
+        return inProgressMap.contains(pan);
+    }
+
+    /**
+     * @return the number of Tap-ons waiting to expire, including those whose
+     * trip has since ended. 0 if trips don't expire.
+     */
+    int expiryQueueSize() {
+        return expiryQueue == null ? 0 : expiryQueue.size;
+    }
+
+    /**
+     * A FIFO of Tap-ons, held in parallel arrays. Entries are not removed when
+     * their trip ends, they are skipped when they reach the head, or dropped
+     * when the queue is full. The queue only grows if more than half of it is
+     * still in progress, so it holds at most about twice the trips in
+     * progress.
+     */
+    private static class ExpiryQueue {
+        private long[] epochSeconds = new long[1024];
+        private long[] ids = new long[1024];
+        private String[] pans = new String[1024];
+        private int head;
+        private int size;
+
+        /**
+         * @param tap the Tap-on to add.
+         * @param inProgress whether an entry is still a trip in progress, so
+         * the entries that are not can be dropped when the queue is full.
+         */
+        private void add(Tap tap, EntryFilter inProgress) {
+            if (size == pans.length) {
+                compact(inProgress);
+                if (size > pans.length / 2) {
+                    grow();
+                }
+            }
+            int index = (head + size) & (pans.length - 1);
+            epochSeconds[index] = tap.getDateTime().getEpochSecond();
+            ids[index] = tap.getId();
+            pans[index] = tap.getPAN();
+            size++;
+        }
+
+        private boolean isEmpty() {
+            return size == 0;
+        }
+
+        private long headEpochSecond() {
+            return epochSeconds[head];
+        }
+
+        private long headId() {
+            return ids[head];
+        }
+
+        private String headPan() {
+            return pans[head];
+        }
+
+        private void removeHead() {
+            pans[head] = null;
+            head = (head + 1) & (pans.length - 1);
+            size--;
+        }
+
+        private void clear() {
+            Arrays.fill(pans, null);
+            head = 0;
+            size = 0;
+        }
+
+        /**
+         * Drops the entries that are no longer in progress, keeping the
+         * order of the rest.
+         */
+        private void compact(EntryFilter inProgress) {
+            int mask = pans.length - 1;
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                int index = (head + i) & mask;
+                if (inProgress.test(pans[index], ids[index], epochSeconds[index])) {
+                    int to = (head + kept) & mask;
+                    epochSeconds[to] = epochSeconds[index];
+                    ids[to] = ids[index];
+                    pans[to] = pans[index];
+                    kept++;
+                }
+            }
+            for (int i = kept; i < size; i++) {
+                pans[(head + i) & mask] = null;
+            }
+            size = kept;
+        }
+
+        private void grow() {
+            int length = pans.length;
+            long[] newEpochSeconds = new long[length * 2];
+            long[] newIds = new long[length * 2];
+            String[] newPans = new String[length * 2];
+            for (int i = 0; i < size; i++) {
+                int index = (head + i) & (length - 1);
+                newEpochSeconds[i] = epochSeconds[index];
+                newIds[i] = ids[index];
+                newPans[i] = pans[index];
+            }
+            epochSeconds = newEpochSeconds;
+            ids = newIds;
+            pans = newPans;
+            head = 0;
+        }
+    }
+
+    private interface EntryFilter {
+        boolean test(String pan, long id, long epochSecond);
     }
 }
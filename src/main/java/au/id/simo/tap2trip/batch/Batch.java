@@ -1,22 +1,36 @@
 package au.id.simo.tap2trip.batch;
 
 import au.id.simo.tap2trip.ChargeCalculator;
+import au.id.simo.tap2trip.IdDictionary;
+import au.id.simo.tap2trip.ShardedTripProducer;
 import au.id.simo.tap2trip.Tap;
+import au.id.simo.tap2trip.TapError;
+import au.id.simo.tap2trip.TapResultHandler;
+import au.id.simo.tap2trip.Trip;
 import au.id.simo.tap2trip.TripProducer;
-import au.id.simo.tap2trip.UnknownChargeException;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
@@ -49,6 +63,11 @@ public class Batch {
     public static final DateTimeFormatter DTF = DateTimeFormatter
             .ofPattern("dd-MM-yyyy HH:mm:ss")
             .withZone(ZoneId.of("UTC"));
+    /**
+     * When not pipelined, the number of taps parsed before they are matched,
+     * so the stages are timed over a block of taps.
+     */
+    private static final int STAGE_BLOCK_SIZE = 1024;
     /**
      * Enum of all the CSV columns in the Taps file.
      */
@@ -62,11 +81,41 @@ public class Batch {
     public static enum TripsCSVCols {
         Started, Finished, DurationSecs, FromStopId, ToStopId, ChargeAmount, CompanyId, BusID, PAN, Status
     }
+
+    /**
+     * The formats the trips file can be written in.
+     */
+    public static enum TripFormat {
+        /**
+         * CSV, written by {@link TripCsvWriter}.
+         */
+        CSV,
+        /**
+         * Binary columns, written by {@link TripBinaryWriter} and read with
+         * {@link TripBinaryReader}. Only written by
+         * {@link Batch#process(Path, Path, Path)}.
+         */
+        BINARY
+    }
     /**
      * 
-     * @param args [taps.csv] [trips.csv] [error.csv]
+     * @param args [taps.csv] [trips.csv] [error.csv] [in-progress.bin], or
+     * ingest [taps.csv] [taps.bin] [error.csv], or
+     * stream source [trips.csv] [error.csv]
      */
     public static void main(String[] args) {
+        if (args.length >= 1 && "ingest".equals(args[0])) {
+            if (!ingest(args)) {
+                System.exit(1);
+            }
+            return;
+        }
+        if (args.length >= 2 && "stream".equals(args[0])) {
+            if (!stream(args)) {
+                System.exit(1);
+            }
+            return;
+        }
         String tapsCsv = "taps.csv";
         if (args.length >= 1) {
             tapsCsv = args[0];
@@ -79,30 +128,403 @@ public class Batch {
         if (args.length >= 3) {
             errorCsv = args[2];
         }
+        String inProgressSnapshot = null;
+        if (args.length >= 4) {
+            inProgressSnapshot = args[3];
+        }
 
-        ChargeCalculator chargeCalc = new ChargeCalculator();
-        chargeCalc.addCharge("Stop1", "Stop2", 325);
-        chargeCalc.addCharge("Stop2", "Stop3", 550);
-        chargeCalc.addCharge("Stop1", "Stop3", 730);
-
-        Batch batch = new Batch(chargeCalc);
+        MetricsExporter metricsExporter;
+        try {
+            metricsExporter = metricsExporter();
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+            return;
+        }
+        Batch batch = new Batch(charges())
+                .setMetricsExporter(metricsExporter);
+        if (inProgressSnapshot != null) {
+            batch.setInProgressSnapshot(Paths.get(inProgressSnapshot));
+        }
         try {
             BatchMetrics metrics = batch.process(
-                new InputStreamReader(new FileInputStream(tapsCsv), StandardCharsets.UTF_8),
-                new OutputStreamWriter(new FileOutputStream(tripsCsv), StandardCharsets.UTF_8),
-                new OutputStreamWriter(new FileOutputStream(errorCsv), StandardCharsets.UTF_8)
+                Paths.get(tapsCsv),
+                Paths.get(tripsCsv),
+                Paths.get(errorCsv)
             );
             metrics.printCounts(System.out);
+            writeMetricsJson(metrics);
         } catch (IOException ex) {
             System.exit(1);
         }
     }
+
+    /**
+     * @param args ingest [taps.csv] [taps.bin] [error.csv]
+     * @return false if the taps could not be ingested.
+     */
+    private static boolean ingest(String[] args) {
+        String tapsCsv = args.length >= 2 ? args[1] : "taps.csv";
+        String tapsBin = args.length >= 3 ? args[2] : "taps.bin";
+        String errorCsv = args.length >= 4 ? args[3] : "errors.csv";
+        try {
+            BatchMetrics metrics = new Batch(new ChargeCalculator()).ingest(
+                Paths.get(tapsCsv),
+                Paths.get(tapsBin),
+                Paths.get(errorCsv)
+            );
+            metrics.printCounts(System.out);
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Streams taps until the source ends or the process is shut down. The
+     * period is closed when the time of the taps crosses a multiple of the
+     * tap2trip.stream.period system property, an ISO-8601 duration that
+     * defaults to P1D for midnight UTC, or PT0S for no boundaries. It is also
+     * closed when the process receives SIGHUP, where the JVM allows it.
+     *
+     * @param args stream source [trips.csv] [error.csv], where source is - for
+     * stdin, tcp:port for a local port, follow:file for a file that is still
+     * being written, or a file or named pipe to read to the end.
+     * @return false if the stream failed.
+     */
+    private static boolean stream(String[] args) {
+        String source = args[1];
+        Path tripsCsv = Paths.get(args.length >= 3 ? args[2] : "trips.csv");
+        Path errorCsv = Paths.get(args.length >= 4 ? args[3] : "errors.csv");
+        Duration period;
+        MetricsExporter metricsExporter;
+        try {
+            period = durationProperty("tap2trip.stream.period", "P1D");
+            metricsExporter = metricsExporter();
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            return false;
+        }
+        ChargeCalculator chargeCalc = charges();
+        TapStream tapStream = new TapStream(chargeCalc)
+                .setPeriod(period)
+                .setMetricsExporter(metricsExporter);
+        if (!HangupSignal.install(tapStream::closePeriod)) {
+            System.err.println("SIGHUP can't be handled, the period is only closed by the time of the taps");
+        }
+        CountDownLatch finished = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            tapStream.stop();
+            try {
+                finished.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }, "tap-stream-shutdown"));
+        BatchMetrics metrics = new BatchMetrics();
+        // closed by the stream once it runs, and here if a later one can't
+        // be opened
+        try (TapSource taps = openStreamSource(source, chargeCalc.getIdDictionary());
+             FileChannel tripsChannel = FileChannel.open(tripsCsv,
+                     StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING,
+                     StandardOpenOption.WRITE);
+             Writer errorWriter = Files.newBufferedWriter(errorCsv, StandardCharsets.UTF_8)) {
+            tapStream.run(
+                    taps,
+                    new TripCsvWriter(tripsChannel, chargeCalc.getIdDictionary(), metrics),
+                    errorWriter,
+                    metrics
+            );
+            metrics.printCounts(System.out);
+            writeMetricsJson(metrics);
+            return true;
+        } catch (IOException | IllegalStateException | NumberFormatException ex) {
+            System.err.println(ex);
+            return false;
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    /**
+     * @param source - for stdin, tcp:port for a local port, follow:file for a
+     * file that is still being written, or a file or named pipe.
+     * @param ids the dictionary of the run.
+     * @return the taps of the stream source.
+     */
+    private static TapSource openStreamSource(String source, IdDictionary ids) throws IOException {
+        if ("-".equals(source)) {
+            return new TapCsvReader(System.in, ids);
+        } else if (source.startsWith("tcp:")) {
+            return new TcpTapSource(Integer.parseInt(source.substring(4)), ids);
+        } else if (source.startsWith("follow:")) {
+            return new TapCsvReader(new FollowInputStream(
+                    Paths.get(source.substring(7)), Duration.ofMillis(200)), ids);
+        }
+        return new TapCsvReader(Files.newInputStream(Paths.get(source)), ids);
+    }
+
+    /**
+     * Writes the metrics as JSON to the file named by the
+     * tap2trip.metrics.json system property, if it is set.
+     */
+    private static void writeMetricsJson(BatchMetrics metrics) throws IOException {
+        String json = System.getProperty("tap2trip.metrics.json");
+        if (json != null) {
+            Files.write(Paths.get(json), metrics.toJson().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Exports the metrics while running only when asked to by a system
+     * property. tap2trip.metrics.report prints progress to stderr at an
+     * interval such as PT1M, tap2trip.metrics.jmx=true registers the metrics
+     * with JMX and tap2trip.metrics.port serves them over HTTP.
+     *
+     * @return the exporter, or null if none of the properties are set.
+     * @throws IllegalArgumentException if the report interval is invalid.
+     */
+    private static MetricsExporter metricsExporter() {
+        Duration reportInterval = durationProperty("tap2trip.metrics.report", null);
+        if (reportInterval != null && (reportInterval.isZero() || reportInterval.isNegative())) {
+            reportInterval = null;
+        }
+        boolean jmx = Boolean.getBoolean("tap2trip.metrics.jmx");
+        int httpPort = Integer.getInteger("tap2trip.metrics.port", -1);
+        if (reportInterval == null && !jmx && httpPort < 0) {
+            return null;
+        }
+        return new MetricsExporter()
+                .setReportInterval(reportInterval, System.err)
+                .setJmx(jmx)
+                .setHttpPort(httpPort);
+    }
+
+    /**
+     * @param name the system property.
+     * @param defaultValue the ISO-8601 duration if the property is not set.
+     * @return the duration, or null if the property and default are not set.
+     * @throws IllegalArgumentException if the duration is invalid.
+     */
+    private static Duration durationProperty(String name, String defaultValue) {
+        String value = System.getProperty(name, defaultValue);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Duration.parse(value);
+        } catch (DateTimeParseException ex) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value, ex);
+        }
+    }
+
+    /**
+     * @return the charges between the example stops.
+     */
+    private static ChargeCalculator charges() {
+        ChargeCalculator chargeCalc = new ChargeCalculator();
+        chargeCalc.addCharge("Stop1", "Stop2", 325);
+        chargeCalc.addCharge("Stop2", "Stop3", 550);
+        chargeCalc.addCharge("Stop1", "Stop3", 730);
+        return chargeCalc;
+    }
     
     private final ChargeCalculator chargeCalc;
+    private int readerThreads = Runtime.getRuntime().availableProcessors();
+    private int matcherShards = 1;
+    private ShardedTripProducer.Order tripOrder = ShardedTripProducer.Order.INPUT;
+    private int maxInMemoryTrips;
+    private Path spillDir;
+    private Path inProgressSnapshot;
+    private boolean pipelined;
+    private Duration maxTripDuration;
+    private Duration reorderWindow;
+    private int sortRunTaps;
+    private MetricsExporter metricsExporter;
+    private Path sortRunDir;
+    private TripFormat tripFormat = TripFormat.CSV;
+    private int compressorThreads = Runtime.getRuntime().availableProcessors();
     
     public Batch(ChargeCalculator chargeCalc) {
         this.chargeCalc = chargeCalc;
     }
+
+    /**
+     * Sets the number of threads used to parse the taps file when processing
+     * a {@link Path}. Defaults to the number of available processors.
+     * @param readerThreads the number of parsing threads.
+     * @return This instance. Used for method chaining.
+     */
+    public Batch setReaderThreads(int readerThreads) {
+        if (readerThreads < 1) {
+            throw new IllegalArgumentException("readerThreads must be at least 1: " + readerThreads);
+        }
+        this.readerThreads = readerThreads;
+        return this;
+    }
+
+    /**
+     * Sets the number of threads used to compress a trips or error file
+     * whose name ends in .gz. Defaults to the number of available processors.
+     * @param compressorThreads the number of compressing threads.
+     * @return This instance. Used for method chaining.
+     */
+    public Batch setCompressorThreads(int compressorThreads) {
+        if (compressorThreads < 1) {
+            throw new IllegalArgumentException("compressorThreads must be at least 1: " + compressorThreads);
+        }
+        this.compressorThreads = compressorThreads;
+        return this;
+    }
+
+    /**
+     * Sets the number of shards, each with its own thread, that taps are
+     * matched into trips on. With more than one shard a
+     * {@link ShardedTripProducer} is used. Defaults to 1, matching on the
+     * calling thread with a single {@link TripProducer}.
+     * @param matcherShards the number of matching shards.
+     * @return This instance. Used for method chaining.
+     */
+    public Batch setMatcherShards(int matcherShards) {
+        if (matcherShards < 1) {
+            throw new IllegalArgumentException("matcherShards must be at least 1: " + matcherShards);
+        }
+        this.matcherShards = matcherShards;
+        return this;
+    }
+
+    /**
+     * Sets the order trips and errors are written in when matching with more
+     * than one shard. Defaults to {@link ShardedTripProducer.Order#INPUT},
+     * which gives the same files as a single shard.
+     * @param tripOrder the order to write trips and errors in.
+     * @return This instance. Used for method chaining.
+     */
+    public Batch setTripOrder(ShardedTripProducer.Order tripOrder) {
+        this.tripOrder = tripOrder;
+        return this;
+    }
+
+    /**
+     * Limits the number of trips in progress held in memory, moving the rest
+     * to files on local disk. See {@link TripProducer#setSpill(int, Path)}.
+     * By default all trips in progress are held in memory.
+     * @param maxInMemoryTrips the maximum number of trips in progress to hold
+     * in memory.
+     * @param spillDir the directory to create the files in.
+     * @return This instance. Used for method chaining.
+     */
+    public Batch setSpill(int maxInMemoryTrips, Path spillDir) {
+        if (maxInMemoryTrips < 1) {
+            throw new IllegalArgumentException("maxInMemoryTrips must be at least 1: " + maxInMemoryTrips);
+        }
+        this.maxInMemoryTrips = maxInMemoryTrips;
+        this.spillDir = spillDir;
+        return this;
+    }
+
+    /**
+     * Carries trips in progress over between runs. Trips in progress are
+     * loaded from the snapshot file at the start of the run, if it exists. At
+     * the end of the run the left over Tap-ons are written back to it instead
+     * of being charged as INCOMPLETE trips. See
+     * {@link TripProducer#saveInProgress(Path)}. Only supported with a single
+     * matcher shard. Trips in progress at a stop that no longer has charges
+     * are dropped when loaded, and written to the error file with record
+     * number 0.
+     * @param inProgressSnapshot the snapshot file, or null to complete the
+     * period at the end of each run.
+     * @return This instance. Used for method chaining.
+     */
+    public Batch setInProgressSnapshot(Path inProgressSnapshot) {
+        this.inProgressSnapshot = inProgressSnapshot;
+        return this;
+    }
+
+    /**
+     * Charges Tap-ons as INCOMPLETE trips once the taps have moved on past
+     * the maximum trip duration. See
+     * {@link TripProducer#setMaxTripDuration(Duration)}. Only supported with a
+     * single matcher shard.
+     * @param maxTripDuration the longest a trip can be in progress, or null
+     * for no limit.
+     * @return This instance. Used for method chaining.
+     */
+    public Batch setMaxTripDuration(Duration maxTripDuration) {
+        this.maxTripDuration = maxTripDuration;
+        return this;
+    }
+
+    /**
+     * Puts taps that arrive slightly out of date time order back in order
+     * before they are matched. See {@link ReorderingTapSource}. Taps more than
+     * the window behind the latest tap read are written to the errors file.
+     * By default taps are matched in the order they are read.
+     * @param reorderWindow how late a tap can be and still be put in order, or
+     * null to not reorder.
+     * @return This instance. Used for method chaining.
+     */
+    public Batch setReorderWindow(Duration reorderWindow) {
+        this.reorderWindow = reorderWindow;
+        return this;
+    }
+
+    /**
+     * Matches taps in any order by sorting them by PAN and time first, with
+     * {@link SortingTripMatcher}. Trips are written grouped by PAN. Not
+     * supported with more than one matcher shard, pipelining, in progress
+     * snapshots or a maximum trip duration.
+     * @param runTaps the most taps to sort in memory at a time, or 0 to match
+     * taps in the order they are read.
+     * @param runDir the directory to write sorted runs to.
+     * @return This instance. Used for method chaining.
+     */
+    public Batch setSortMatching(int runTaps, Path runDir) {
+        if (runTaps < 0) {
+            throw new IllegalArgumentException("runTaps must not be negative: " + runTaps);
+        }
+        this.sortRunTaps = runTaps;
+        this.sortRunDir = runDir;
+        return this;
+    }
+
+    /**
+     * Exports the metrics of each run while it is running.
+     * @param metricsExporter how to export the metrics, or null to not export
+     * them.
+     * @return This instance. Used for method chaining.
+     */
+    public Batch setMetricsExporter(MetricsExporter metricsExporter) {
+        this.metricsExporter = metricsExporter;
+        return this;
+    }
+
+    /**
+     * Reads taps, matches them into trips and writes the output files on
+     * separate threads, so that reading, matching and writing overlap. See
+     * {@link TapPipeline}. Writes the same files as when run on the calling
+     * thread. Only supported with a single matcher shard. Defaults to false.
+     * @param pipelined true to run each stage on its own thread.
+     * @return This instance. Used for method chaining.
+     */
+    public Batch setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+        return this;
+    }
+
+    /**
+     * Sets the format of the trips file written by
+     * {@link #process(Path, Path, Path)}. Defaults to
+     * {@link TripFormat#CSV}. The methods taking a Writer for the trips
+     * always write CSV.
+     * @param tripFormat the format to write trips in.
+     * @return This instance. Used for method chaining.
+     */
+    public Batch setTripFormat(TripFormat tripFormat) {
+        this.tripFormat = tripFormat;
+        return this;
+    }
     
     /**
      * Runs the batch process.
@@ -113,50 +535,377 @@ public class Batch {
      * @throws IOException when there is any issues in read or writing to files.
      */
     public BatchMetrics process(Reader tapsCsv, Writer tripsCsv, Writer errorCsv) throws IOException {
-        CSVFormat tapsCsvFormat = CSVFormat.DEFAULT.builder()
-                .setHeader(TapCSVCols.class)
-                .setSkipHeaderRecord(true)
-                .build();
-        
+        return process(new CsvRecordTapSource(tapsCsv, chargeCalc.getIdDictionary()), tripsCsv, errorCsv);
+    }
+
+    /**
+     * Runs the batch process, reading the taps CSV file directly from its
+     * UTF-8 bytes with a {@link TapCsvReader}.
+     *
+     * Produces the same output as {@link #process(Reader, Writer, Writer)}.
+     *
+     * @param tapsCsv the bytes of the taps CSV file. This will be closed.
+     * @param tripsCsv A writer for the trips CSV file. This will be closed.
+     * @param errorCsv A writer for the error CSV file. This will be closed.
+     * @throws IOException when there is any issues in read or writing to files.
+     */
+    public BatchMetrics process(InputStream tapsCsv, Writer tripsCsv, Writer errorCsv) throws IOException {
+        return process(new TapCsvReader(tapsCsv, chargeCalc.getIdDictionary()), tripsCsv, errorCsv);
+    }
+
+    /**
+     * Runs the batch process, memory mapping the taps CSV file and parsing it
+     * in chunks on {@link #setReaderThreads(int) reader threads} with a
+     * {@link MappedTapCsvReader}. A binary taps file is read with a
+     * {@link MappedTapBinaryReader} instead, and a file whose name ends in
+     * .gz is decompressed on its own thread with a
+     * {@link ReadAheadGzipInputStream}.
+     *
+     * Produces the same output as {@link #process(Reader, Writer, Writer)}.
+     *
+     * @param tapsCsv the taps CSV file, or a binary taps file written by
+     * {@link #ingest(Path, Path, Path)}.
+     * @param tripsCsv A writer for the trips CSV file. This will be closed.
+     * @param errorCsv A writer for the error CSV file. This will be closed.
+     * @throws IOException when there is any issues in read or writing to files.
+     */
+    public BatchMetrics process(Path tapsCsv, Writer tripsCsv, Writer errorCsv) throws IOException {
+        TapSource tapSource;
+        try {
+            tapSource = openTaps(tapsCsv);
+        } catch (IOException ex) {
+            tripsCsv.close();
+            errorCsv.close();
+            throw ex;
+        }
+        return process(tapSource, tripsCsv, errorCsv);
+    }
+
+    /**
+     * Runs the batch process on files, reading the taps file as
+     * {@link #process(Path, Writer, Writer)} does and writing the trips file
+     * through a FileChannel in large blocks, in the
+     * {@link #setTripFormat(TripFormat) trip format}.
+     *
+     * Produces the same output as {@link #process(Reader, Writer, Writer)}.
+     *
+     * @param tapsCsv the taps CSV file, or a binary taps file written by
+     * {@link #ingest(Path, Path, Path)}.
+     * @param tripsFile the trips file to create or replace. Written as gzip,
+     * compressed on {@link #setCompressorThreads(int) compressor threads}, if
+     * the name ends in .gz.
+     * @param errorCsv the error CSV file to create or replace. Written as gzip
+     * if the name ends in .gz.
+     * @throws IOException when there is any issues in read or writing to files.
+     */
+    public BatchMetrics process(Path tapsCsv, Path tripsFile, Path errorCsv) throws IOException {
         BatchMetrics metrics = new BatchMetrics();
-        
-        try (Writer tapErrWriter = errorCsv;
-             Writer tripWriter = tripsCsv;
-             CSVParser tapsCsvParser = tapsCsvFormat.parse(tapsCsv)) {
-
-            TapErrorCsvWriter tapErrCsvWriter = new TapErrorCsvWriter(tapErrWriter);
-            TripProducer tripProducer = new TripProducer(
-                    chargeCalc,
-                    new TripCsvWriter(tripWriter, metrics)
+        TapSource tapSource = openTaps(tapsCsv);
+        TripWriter tripWriter = null;
+        Writer errorWriter;
+        try {
+            WritableByteChannel tripsChannel = FileChannel.open(tripsFile,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING
             );
-            for (CSVRecord record : tapsCsvParser) {
-                try {
-                    Tap tap = parseTap(record);
-                    tripProducer.addTap(tap);
+            if (isGzip(tripsFile)) {
+                tripsChannel = Channels.newChannel(new ParallelGzipOutputStream(
+                        Channels.newOutputStream(tripsChannel),
+                        compressorThreads
+                ));
+            }
+            try {
+                if (tripFormat == TripFormat.BINARY) {
+                    tripWriter = new TripBinaryWriter(tripsChannel, chargeCalc.getIdDictionary(), metrics);
+                } else {
+                    tripWriter = new TripCsvWriter(tripsChannel, chargeCalc.getIdDictionary(), metrics);
+                }
+            } catch (IOException ex) {
+                tripsChannel.close();
+                throw ex;
+            }
+            errorWriter = newErrorWriter(errorCsv);
+        } catch (IOException ex) {
+            tapSource.close();
+            if (tripWriter != null) {
+                tripWriter.close();
+            }
+            throw ex;
+        }
+        return process(tapSource, tripWriter, errorWriter, metrics);
+    }
+
+    /**
+     * Converts a taps CSV file to a binary taps file, so it can be processed
+     * any number of times without parsing the CSV again. Taps that can't be
+     * read are written to the error CSV file, the same as when processing.
+     * Pass the binary taps file to {@link #process(Path, Path, Path)} or
+     * {@link #process(Path, Writer, Writer)} in place of the taps CSV file.
+     *
+     * @param tapsCsv the taps CSV file.
+     * @param tapsBin the binary taps file to create or replace.
+     * @param errorCsv the error CSV file to create or replace.
+     * @return the taps read and rejected. No trips are written.
+     * @throws IOException when there is any issues in read or writing to files.
+     */
+    public BatchMetrics ingest(Path tapsCsv, Path tapsBin, Path errorCsv) throws IOException {
+        BatchMetrics metrics = new BatchMetrics();
+        try (TapSource taps = openTapsCsv(tapsCsv);
+             TapBinaryWriter tapWriter = new TapBinaryWriter(tapsBin, chargeCalc.getIdDictionary());
+             TapErrorCsvWriter tapErrCsvWriter = new TapErrorCsvWriter(newErrorWriter(errorCsv), metrics)) {
+
+            while (taps.nextRecord()) {
+                Tap tap = taps.readTap();
+                if (tap != null) {
+                    tapWriter.write(tap, taps.getRecordNumber());
                     metrics.incrementTapsRead();
-                } catch (UnknownChargeException | TapParsingException ex) {
+                } else {
                     metrics.incrementTapReadErrors();
-                    tapErrCsvWriter.writeError(
-                            record.getRecordNumber(),
-                            ex
-                    );
+                    tapErrCsvWriter.writeError(taps.getRecordNumber(), taps.getTapError());
                 }
             }
-            tripProducer.completePeriod();
+        } catch (IOException | IllegalStateException ex) {
+            metrics.printCounts(System.err);
+            throw new IOException(ex);
+        }
+        return metrics;
+    }
+
+    /**
+     * @return a MappedTapBinaryReader if the file is a binary taps file,
+     * otherwise a MappedTapCsvReader.
+     */
+    private TapSource openTaps(Path taps) throws IOException {
+        if (!isGzip(taps) && MappedTapBinaryReader.isBinaryTaps(taps)) {
+            return new MappedTapBinaryReader(taps, chargeCalc.getIdDictionary());
+        }
+        return openTapsCsv(taps);
+    }
+
+    /**
+     * @return a TapCsvReader decompressing on its own thread if the file is
+     * gzip, otherwise a MappedTapCsvReader.
+     */
+    private TapSource openTapsCsv(Path tapsCsv) throws IOException {
+        if (isGzip(tapsCsv)) {
+            return new TapCsvReader(new ReadAheadGzipInputStream(tapsCsv), chargeCalc.getIdDictionary());
+        }
+        return new MappedTapCsvReader(tapsCsv, chargeCalc.getIdDictionary(), readerThreads);
+    }
+
+    /**
+     * @return a Writer for the error CSV file, compressing it if the file is
+     * gzip.
+     */
+    private Writer newErrorWriter(Path errorCsv) throws IOException {
+        OutputStream out = Files.newOutputStream(errorCsv);
+        if (isGzip(errorCsv)) {
+            out = new ParallelGzipOutputStream(out, compressorThreads);
+        }
+        return new OutputStreamWriter(out, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return true if the file name ends in .gz.
+     */
+    private static boolean isGzip(Path file) {
+        return file.toString().toLowerCase(Locale.ROOT).endsWith(".gz");
+    }
+
+    /**
+     * Runs the batch process.
+     *
+     * @param tapSource the taps to process. This will be closed.
+     * @param tripsCsv A writer for the trips CSV file. This will be closed.
+     * @param errorCsv A writer for the error CSV file. This will be closed.
+     * @throws IOException when there is any issues in read or writing to files.
+     */
+    public BatchMetrics process(TapSource tapSource, Writer tripsCsv, Writer errorCsv) throws IOException {
+        BatchMetrics metrics = new BatchMetrics();
+        TripCsvWriter tripCsvWriter;
+        try {
+            tripCsvWriter = new TripCsvWriter(tripsCsv, chargeCalc.getIdDictionary(), metrics);
+        } catch (IOException ex) {
+            tapSource.close();
+            tripsCsv.close();
+            errorCsv.close();
+            throw ex;
+        }
+        return process(tapSource, tripCsvWriter, errorCsv, metrics);
+    }
+
+    private BatchMetrics process(
+            TapSource tapSource,
+            TripWriter tripsOut,
+            Writer errorCsv,
+            BatchMetrics metrics) throws IOException {
+        if (metricsExporter != null) {
+            try {
+                metricsExporter.start(metrics);
+            } catch (IOException ex) {
+                tapSource.close();
+                tripsOut.close();
+                errorCsv.close();
+                throw ex;
+            }
+        }
+        try (TapErrorCsvWriter tapErrCsvWriter = new TapErrorCsvWriter(errorCsv, metrics);
+             TripWriter tripWriter = tripsOut;
+             TapSource taps = reorderWindow == null
+                     ? tapSource
+                     : new ReorderingTapSource(tapSource, reorderWindow)) {
+
+            taps.setMetrics(metrics);
+            if (sortRunTaps > 0) {
+                if (matcherShards > 1 || pipelined || inProgressSnapshot != null || maxTripDuration != null) {
+                    throw new IllegalStateException("Sort matching only supports one matcher shard, "
+                            + "without pipelining, snapshots or a maximum trip duration");
+                }
+                new SortingTripMatcher(chargeCalc, sortRunTaps, sortRunDir)
+                        .match(taps, tripWriter, tapErrCsvWriter, metrics);
+                return metrics;
+            }
+            if (matcherShards > 1) {
+                if (inProgressSnapshot != null) {
+                    throw new IllegalStateException("In progress snapshots are only supported with one matcher shard");
+                }
+                if (pipelined) {
+                    throw new IllegalStateException("Pipelining is only supported with one matcher shard");
+                }
+                if (maxTripDuration != null) {
+                    throw new IllegalStateException("A maximum trip duration is only supported with one matcher shard");
+                }
+                matchSharded(taps, tripWriter, tapErrCsvWriter, metrics);
+                return metrics;
+            }
+            if (pipelined) {
+                TapPipeline pipeline = new TapPipeline(taps, tripWriter, tapErrCsvWriter, metrics);
+                pipeline.run(newTripProducer(pipeline.tripConsumer(), tapErrCsvWriter), inProgressSnapshot);
+                return metrics;
+            }
+            TripProducer tripProducer = newTripProducer(tripWriter, tapErrCsvWriter);
+            StageTimer parseTimer = new StageTimer(metrics, BatchMetrics.Stage.PARSE, 1);
+            StageTimer matchTimer = new StageTimer(metrics, BatchMetrics.Stage.MATCH, 1);
+            // taps are parsed and then matched a block at a time, so each
+            // stage is timed over many taps rather than sampled
+            Tap[] block = new Tap[STAGE_BLOCK_SIZE];
+            long[] recordNumbers = new long[STAGE_BLOCK_SIZE];
+            TapError[] errors = new TapError[STAGE_BLOCK_SIZE];
+            boolean more = true;
+            while (more) {
+                parseTimer.start();
+                int count = 0;
+                while (count < STAGE_BLOCK_SIZE && (more = taps.nextRecord())) {
+                    recordNumbers[count] = taps.getRecordNumber();
+                    Tap tap = taps.readTap();
+                    block[count] = tap;
+                    errors[count] = tap == null ? taps.getTapError() : null;
+                    count++;
+                }
+                if (count == 0) {
+                    break;
+                }
+                parseTimer.stop(count);
+                matchTimer.start();
+                int read = 0;
+                int rejected = 0;
+                for (int i = 0; i < count; i++) {
+                    TapError error = errors[i];
+                    if (error == null) {
+                        error = tripProducer.offerTap(block[i]);
+                    }
+                    if (error == null) {
+                        read++;
+                    } else {
+                        // the rejected taps are gathered at the start of
+                        // the arrays, which have already been read up to i
+                        recordNumbers[rejected] = recordNumbers[i];
+                        errors[rejected++] = error;
+                    }
+                }
+                metrics.addTapsRead(read);
+                metrics.addTapReadErrors(rejected);
+                tapErrCsvWriter.writeErrors(recordNumbers, errors, rejected);
+                matchTimer.stop(count);
+            }
+            if (inProgressSnapshot != null) {
+                tripProducer.saveInProgress(inProgressSnapshot);
+            } else {
+                tripProducer.completePeriod();
+            }
         } catch (IOException | IllegalStateException ex) {
             // apache csv library wrapps all parsing exceptions as 
             // IllegalStateExceptions, so it makes sense to catch them here too
             metrics.printCounts(System.err);
             throw new IOException(ex);
+        } finally {
+            if (metricsExporter != null) {
+                metricsExporter.stop();
+            }
         }
         return metrics;
     }
 
-    public static Tap parseTap(CSVRecord record) throws TapParsingException {
+    /**
+     * @return a TripProducer with the spill settings, and trips in progress
+     * loaded from the snapshot if there is one. Trips in progress dropped from
+     * the snapshot are written as errors with record number 0, as they aren't
+     * from this run's taps.
+     */
+    private TripProducer newTripProducer(
+            Consumer<Trip> tripConsumer,
+            TapErrorCsvWriter tapErrCsvWriter) throws IOException {
+        TripProducer tripProducer = new TripProducer(chargeCalc, tripConsumer);
+        if (spillDir != null) {
+            tripProducer.setSpill(maxInMemoryTrips, spillDir);
+        }
+        tripProducer.setMaxTripDuration(maxTripDuration);
+        if (inProgressSnapshot != null && Files.exists(inProgressSnapshot)) {
+            for (Tap dropped : tripProducer.loadInProgress(inProgressSnapshot)) {
+                tapErrCsvWriter.writeError(0, TapError.droppedInProgress(dropped.getId(), dropped.getStopId()));
+            }
+        }
+        return tripProducer;
+    }
+
+    /**
+     * Matches taps into trips with a ShardedTripProducer. The metrics and error
+     * file are only updated from its merge thread.
+     */
+    private void matchSharded(
+            TapSource taps,
+            TripWriter tripWriter,
+            TapErrorCsvWriter tapErrCsvWriter,
+            BatchMetrics metrics) throws IOException {
+        try (ShardedTripProducer tripProducer = new ShardedTripProducer(
+                chargeCalc,
+                tripWriter,
+                new TapResultRecorder(metrics, tapErrCsvWriter),
+                matcherShards,
+                tripOrder)) {
+            if (spillDir != null) {
+                tripProducer.setSpill(maxInMemoryTrips, spillDir);
+            }
+            while (taps.nextRecord()) {
+                long recordNumber = taps.getRecordNumber();
+                Tap tap = taps.readTap();
+                if (tap != null) {
+                    tripProducer.addTap(tap, recordNumber);
+                } else {
+                    tripProducer.addError(recordNumber, taps.getTapError());
+                }
+            }
+            tripProducer.completePeriod();
+        }
+    }
+
+    public static Tap parseTap(CSVRecord record, IdDictionary ids) throws TapParsingException {
         try {
             return new Tap(
+                    ids,
                     Long.parseLong(record.get(TapCSVCols.ID).trim()),
-                    DTF.parse(record.get(TapCSVCols.DateTimeUTC).trim(), Instant::from),
+                    Instant.ofEpochSecond(DateTimeCodec.parseEpochSecond(record.get(TapCSVCols.DateTimeUTC).trim())),
                     Tap.Type.valueOf(record.get(TapCSVCols.TapType).trim()),
                     record.get(TapCSVCols.StopId).trim(),
                     record.get(TapCSVCols.CompanyId).trim(),
@@ -167,4 +916,102 @@ public class Batch {
             throw new TapParsingException("Error in parsing Tap", e);
         }
     }
+
+    /**
+     * Counts the outcome of each Tap, writing rejected Taps to the error file.
+     */
+    private static class TapResultRecorder implements TapResultHandler {
+        private final BatchMetrics metrics;
+        private final TapErrorCsvWriter tapErrCsvWriter;
+
+        private TapResultRecorder(BatchMetrics metrics, TapErrorCsvWriter tapErrCsvWriter) {
+            this.metrics = metrics;
+            this.tapErrCsvWriter = tapErrCsvWriter;
+        }
+
+        @Override
+        public void tapAccepted(long recordNumber) {
+            metrics.incrementTapsRead();
+        }
+
+        @Override
+        public void tapRejected(long recordNumber, TapError cause) {
+            metrics.incrementTapReadErrors();
+            try {
+                tapErrCsvWriter.writeError(recordNumber, cause);
+            } catch (IOException ex) {
+                throw new IllegalStateException("Error in writing tap error", ex);
+            }
+        }
+    }
+
+    /**
+     * Reads taps with a commons-csv CSVParser and
+     * {@link #parseTap(CSVRecord, IdDictionary)}.
+     */
+    private static class CsvRecordTapSource implements TapSource {
+        private final Reader tapsCsv;
+        private final IdDictionary ids;
+        private CSVParser parser;
+        private Iterator<CSVRecord> records;
+        private CSVRecord record;
+        private TapError tapError;
+
+        private CsvRecordTapSource(Reader tapsCsv, IdDictionary ids) {
+            this.tapsCsv = tapsCsv;
+            this.ids = ids;
+        }
+
+        @Override
+        public boolean nextRecord() throws IOException {
+            if (parser == null) {
+                CSVFormat tapsCsvFormat = CSVFormat.DEFAULT.builder()
+                        .setHeader(TapCSVCols.class)
+                        .setSkipHeaderRecord(true)
+                        .build();
+                parser = tapsCsvFormat.parse(tapsCsv);
+                records = parser.iterator();
+            }
+            if (!records.hasNext()) {
+                return false;
+            }
+            record = records.next();
+            return true;
+        }
+
+        @Override
+        public long getRecordNumber() {
+            return record.getRecordNumber();
+        }
+
+        @Override
+        public Tap getTap() throws TapParsingException {
+            return parseTap(record, ids);
+        }
+
+        @Override
+        public Tap readTap() {
+            tapError = null;
+            try {
+                return parseTap(record, ids);
+            } catch (TapParsingException ex) {
+                tapError = TapError.of(TapError.Code.INVALID_TAP, ex);
+                return null;
+            }
+        }
+
+        @Override
+        public TapError getTapError() {
+            return tapError;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (parser != null) {
+                parser.close();
+            } else {
+                tapsCsv.close();
+            }
+        }
+    }
 }
@@ -0,0 +1,158 @@
+package au.id.simo.tap2trip.batch;
+
+import au.id.simo.tap2trip.TapError;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events for the batch stages and tap errors.
+ *
+ * Each {@link BatchMetrics.Stage} has its own event type, so they can be
+ * enabled and given thresholds separately. Their duration is the time the
+ * block took, the same time recorded in the BatchMetrics stage histograms.
+ * While nothing is recording an event is never committed, and the JIT
+ * removes the allocation, so they cost close to nothing.
+ *
+ * JFR is part of Java 11 and later, and of OpenJDK 8 from update 262. On a
+ * JVM without it the event classes are never loaded and no events are
+ * created.
+ */
+final class BatchEvents {
+
+    /**
+     * True if the JVM has the jdk.jfr module.
+     */
+    static final boolean AVAILABLE = isAvailable();
+
+    private BatchEvents() {
+    }
+
+    /**
+     * Starts timing a stage.
+     * @param stage the stage being timed.
+     * @return the event to pass to {@link #commit(StageEvent, int)}, or null
+     * if JFR is not available or the stage is ERROR, which is recorded as a
+     * {@link TapErrorEvent}.
+     */
+    static StageEvent begin(BatchMetrics.Stage stage) {
+        if (!AVAILABLE) {
+            return null;
+        }
+        StageEvent event;
+        switch (stage) {
+            case PARSE:
+                event = new ParseEvent();
+                break;
+            case MATCH:
+                event = new MatchEvent();
+                break;
+            case WRITE:
+                event = new WriteEvent();
+                break;
+            default:
+                return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends timing a stage, committing the event if it is being recorded.
+     * @param event the event from {@link #begin(BatchMetrics.Stage)}, can be
+     * null.
+     * @param count the number of taps or trips handled.
+     */
+    static void commit(StageEvent event, int count) {
+        if (event != null && event.shouldCommit()) {
+            event.count = count;
+            event.commit();
+        }
+    }
+
+    /**
+     * Commits a WRITE event with the number of bytes written.
+     * @param event the event from {@link #begin(BatchMetrics.Stage)}, can be
+     * null.
+     * @param count the number of trips written.
+     * @param bytes the number of bytes written.
+     */
+    static void commitWrite(StageEvent event, int count, long bytes) {
+        if (event != null && event.shouldCommit()) {
+            ((WriteEvent) event).bytes = bytes;
+            event.count = count;
+            event.commit();
+        }
+    }
+
+    /**
+     * Records a tap that could not be parsed or charged.
+     * @param recordNumber the record number of the tap.
+     * @param error why the tap was rejected.
+     */
+    static void tapError(long recordNumber, TapError error) {
+        if (!AVAILABLE) {
+            return;
+        }
+        TapErrorEvent event = new TapErrorEvent();
+        if (event.shouldCommit()) {
+            event.recordNumber = recordNumber;
+            event.type = error.getCode().name();
+            event.message = error.getMessage();
+            event.commit();
+        }
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, BatchEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError ex) {
+            return false;
+        }
+    }
+
+    @Category("Tap2Trip")
+    abstract static class StageEvent extends Event {
+        @Label("Count")
+        @Description("Taps parsed or matched, or trips written")
+        int count;
+    }
+
+    @Name("au.id.simo.tap2trip.Parse")
+    @Label("Parse Taps")
+    @Description("Reading and parsing a tap, or a block of taps when pipelined")
+    static final class ParseEvent extends StageEvent {
+    }
+
+    @Name("au.id.simo.tap2trip.Match")
+    @Label("Match Taps")
+    @Description("Matching a tap, or a block of taps when pipelined, into trips")
+    static final class MatchEvent extends StageEvent {
+    }
+
+    @Name("au.id.simo.tap2trip.Write")
+    @Label("Write Trips")
+    @Description("Writing a block of trips out of the trip writer's buffer, or flushing its Writer")
+    static final class WriteEvent extends StageEvent {
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("au.id.simo.tap2trip.TapError")
+    @Label("Tap Error")
+    @Description("A tap that could not be parsed or charged")
+    @Category("Tap2Trip")
+    static final class TapErrorEvent extends Event {
+        @Label("Record Number")
+        long recordNumber;
+        @Label("Error Type")
+        String type;
+        @Label("Message")
+        String message;
+    }
+}
@@ -1,44 +1,272 @@
 package au.id.simo.tap2trip.batch;
 
 import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * A set of batch metrics to be incremented while processing.
  * 
- * Not thread safe.
+ * Safe to update and read from any number of threads, so the counts can be
+ * read while the batch is running. See {@link MetricsExporter}. Along with
+ * the counts, the time taken by each {@link Stage} is kept in a
+ * {@link Histogram}, with the number of taps or trips handled at a time in
+ * another.
+ *
+ * The CPU time used and bytes allocated by each stage are measured from the
+ * thread running it. When streaming they are measured for a sample of the
+ * taps, and totals are estimated from the cost per tap measured. When not
+ * pipelined, trips and errors are written while matching, so a WRITE or
+ * ERROR is also counted in the MATCH it happened in.
  */
 public class BatchMetrics {
-    private long tapReadErrors = 0;
-    private long tapsRead = 0;
-    private long tripsWritten = 0;
+
+    /**
+     * The stages that time is recorded for.
+     */
+    public static enum Stage {
+        /**
+         * Reading and parsing taps. Per block of taps, or per tap when
+         * streaming.
+         */
+        PARSE,
+        /**
+         * Matching taps into trips, including looking up their charges and
+         * passing the trips on to be written. Per block of taps, or per tap
+         * when streaming.
+         */
+        MATCH,
+        /**
+         * Writing a block of trips out of the trip writer's buffer, or
+         * flushing its Writer.
+         */
+        WRITE,
+        /**
+         * Writing a rejected tap to the errors CSV.
+         */
+        ERROR
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final LongAdder tapReadErrors = new LongAdder();
+    private final LongAdder tapsRead = new LongAdder();
+    private final LongAdder tripsWritten = new LongAdder();
+    private final long startNanos = System.nanoTime();
+    private final Histogram[] latencies = new Histogram[STAGES.length];
+    private final Histogram[] batchSizes = new Histogram[STAGES.length];
+    private final LongAdder[] usageCounts = new LongAdder[STAGES.length];
+    private final LongAdder[] cpuNanos = new LongAdder[STAGES.length];
+    private final LongAdder[] allocatedBytes = new LongAdder[STAGES.length];
+
+    public BatchMetrics() {
+        for (int i = 0; i < STAGES.length; i++) {
+            latencies[i] = new Histogram();
+            batchSizes[i] = new Histogram();
+            usageCounts[i] = new LongAdder();
+            cpuNanos[i] = new LongAdder();
+            allocatedBytes[i] = new LongAdder();
+        }
+    }
     
     public void incrementTapReadErrors() {
-        tapReadErrors++;
+        tapReadErrors.increment();
+    }
+
+    /**
+     * @param taps the number of taps rejected.
+     */
+    public void addTapReadErrors(int taps) {
+        tapReadErrors.add(taps);
     }
     
     public void incrementTapsRead() {
-        tapsRead++;
+        tapsRead.increment();
+    }
+
+    /**
+     * @param taps the number of taps read.
+     */
+    public void addTapsRead(int taps) {
+        tapsRead.add(taps);
     }
     
     public void incrementTripsWritten() {
-        tripsWritten++;
+        tripsWritten.increment();
+    }
+
+    /**
+     * Records the time a stage took.
+     * @param stage the stage.
+     * @param nanos how long it took.
+     * @param batchSize how many taps or trips it handled.
+     */
+    public void recordStage(Stage stage, long nanos, int batchSize) {
+        latencies[stage.ordinal()].record(nanos);
+        batchSizes[stage.ordinal()].record(batchSize);
+    }
+
+    /**
+     * Records the CPU time used and bytes allocated by a stage, measured on
+     * the thread that ran it.
+     * @param stage the stage.
+     * @param cpuNanos the CPU time used.
+     * @param allocatedBytes the bytes allocated.
+     * @param count how many taps or trips it handled. 0 for work done ahead
+     * on another thread, for taps that are counted when they are handed on.
+     */
+    public void recordUsage(Stage stage, long cpuNanos, long allocatedBytes, int count) {
+        usageCounts[stage.ordinal()].add(count);
+        this.cpuNanos[stage.ordinal()].add(cpuNanos);
+        this.allocatedBytes[stage.ordinal()].add(allocatedBytes);
     }
 
     public long getTapReadErrors() {
-        return tapReadErrors;
+        return tapReadErrors.sum();
     }
 
     public long getTapsRead() {
-        return tapsRead;
+        return tapsRead.sum();
     }
 
     public long getTripsWritten() {
-        return tripsWritten;
+        return tripsWritten.sum();
+    }
+
+    /**
+     * @return the nanoseconds since these metrics were created.
+     */
+    public long getElapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * @param stage the stage.
+     * @return the nanoseconds taken each time the stage was recorded.
+     */
+    public Histogram getLatency(Stage stage) {
+        return latencies[stage.ordinal()];
+    }
+
+    /**
+     * @param stage the stage.
+     * @return the taps or trips handled each time the stage was recorded.
+     */
+    public Histogram getBatchSize(Stage stage) {
+        return batchSizes[stage.ordinal()];
     }
     
+    /**
+     * @param stage the stage.
+     * @return the CPU nanoseconds used per tap or trip, over the times the
+     * stage was measured. 0 if it never was.
+     */
+    public double getCpuNanosPerItem(Stage stage) {
+        long count = usageCounts[stage.ordinal()].sum();
+        return count == 0 ? 0 : (double) cpuNanos[stage.ordinal()].sum() / count;
+    }
+
+    /**
+     * @param stage the stage.
+     * @return the bytes allocated per tap or trip, over the times the stage
+     * was measured. 0 if it never was.
+     */
+    public double getAllocatedBytesPerItem(Stage stage) {
+        long count = usageCounts[stage.ordinal()].sum();
+        return count == 0 ? 0 : (double) allocatedBytes[stage.ordinal()].sum() / count;
+    }
+
+    /**
+     * @param stage the stage.
+     * @return the estimated CPU nanoseconds used by the stage for every tap
+     * or trip it handled.
+     */
+    public long getCpuNanos(Stage stage) {
+        return Math.round(getCpuNanosPerItem(stage) * getItems(stage));
+    }
+
+    /**
+     * @param stage the stage.
+     * @return the estimated bytes allocated by the stage for every tap or
+     * trip it handled.
+     */
+    public long getAllocatedBytes(Stage stage) {
+        return Math.round(getAllocatedBytesPerItem(stage) * getItems(stage));
+    }
+
+    /**
+     * @param stage the stage.
+     * @return the taps or trips the stage handled. Taps for PARSE and MATCH,
+     * trips for WRITE and rejected taps for ERROR.
+     */
+    public long getItems(Stage stage) {
+        switch (stage) {
+            case PARSE:
+                return getTapsRead() + getTapReadErrors();
+            case MATCH:
+                return getTapsRead();
+            case WRITE:
+                return getTripsWritten();
+            default:
+                return getTapReadErrors();
+        }
+    }
+
     public void printCounts(PrintStream ps) {
-        ps.println("Tap records read:    " + tapsRead);
-        ps.println("Taps failed to read: " + tapReadErrors);
-        ps.println("Trips written:       " + tripsWritten);
+        ps.println("Tap records read:    " + getTapsRead());
+        ps.println("Taps failed to read: " + getTapReadErrors());
+        ps.println("Trips written:       " + getTripsWritten());
+        boolean header = false;
+        for (Stage stage : STAGES) {
+            if (usageCounts[stage.ordinal()].sum() == 0) {
+                continue;
+            }
+            if (!header) {
+                ps.println("Stage       CPU ms   Allocated MB   CPU ns/item   Bytes/item");
+                header = true;
+            }
+            ps.println(String.format(Locale.ROOT, "%-6s %11.1f %14.1f %13.1f %12.1f",
+                    stage,
+                    getCpuNanos(stage) / 1e6,
+                    getAllocatedBytes(stage) / (1024.0 * 1024.0),
+                    getCpuNanosPerItem(stage),
+                    getAllocatedBytesPerItem(stage)));
+        }
+    }
+
+    /**
+     * @return the counts, and the time, CPU time and allocation of each
+     * stage, as a JSON object.
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append("{\"tapsRead\":").append(getTapsRead())
+                .append(",\"tapReadErrors\":").append(getTapReadErrors())
+                .append(",\"tripsWritten\":").append(getTripsWritten())
+                .append(",\"elapsedNanos\":").append(getElapsedNanos())
+                .append(",\"stages\":{");
+        for (Stage stage : STAGES) {
+            Histogram latency = getLatency(stage);
+            if (stage.ordinal() > 0) {
+                sb.append(',');
+            }
+            sb.append('"').append(stage.name().toLowerCase(Locale.ROOT)).append("\":{")
+                    .append("\"items\":").append(getItems(stage))
+                    .append(",\"timed\":").append(latency.getCount())
+                    .append(",\"meanNanos\":").append(number(latency.getMean()))
+                    .append(",\"p99Nanos\":").append(latency.getPercentile(0.99))
+                    .append(",\"maxNanos\":").append(latency.getMax())
+                    .append(",\"measuredItems\":").append(usageCounts[stage.ordinal()].sum())
+                    .append(",\"cpuNanos\":").append(getCpuNanos(stage))
+                    .append(",\"allocatedBytes\":").append(getAllocatedBytes(stage))
+                    .append(",\"cpuNanosPerItem\":").append(number(getCpuNanosPerItem(stage)))
+                    .append(",\"allocatedBytesPerItem\":").append(number(getAllocatedBytesPerItem(stage)))
+                    .append('}');
+        }
+        return sb.append("}}").toString();
+    }
+
+    private static String number(double value) {
+        return String.format(Locale.ROOT, "%.1f", value);
     }
 }
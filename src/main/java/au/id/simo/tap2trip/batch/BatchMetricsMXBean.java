@@ -0,0 +1,42 @@
+package au.id.simo.tap2trip.batch;
+
+import java.util.Map;
+
+/**
+ * The JMX view of a running batch's {@link BatchMetrics}, registered by
+ * {@link MetricsExporter}. Stage maps are keyed on {@link BatchMetrics.Stage}
+ * name.
+ */
+public interface BatchMetricsMXBean {
+
+    long getTapsRead();
+
+    long getTapReadErrors();
+
+    long getTripsWritten();
+
+    /**
+     * @return taps read per second since the batch started.
+     */
+    double getTapsPerSecond();
+
+    /**
+     * @return trips written per second since the batch started.
+     */
+    double getTripsPerSecond();
+
+    /**
+     * @return the fraction of tap records that failed.
+     */
+    double getErrorRate();
+
+    Map<String, Long> getStageCounts();
+
+    Map<String, Double> getStageMeanNanos();
+
+    Map<String, Long> getStageP99Nanos();
+
+    Map<String, Long> getStageMaxNanos();
+
+    Map<String, Double> getStageMeanBatchSize();
+}
@@ -0,0 +1,377 @@
+package au.id.simo.tap2trip.batch;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParsePosition;
+import java.time.DateTimeException;
+import java.time.Instant;
+
+/**
+ * Parses and formats the {@code dd-MM-yyyy HH:mm:ss} UTC date times of the
+ * taps and trips files, without going through the java.time formatting
+ * machinery for every value.
+ *
+ * Values are parsed straight to epoch seconds. Anything the fast path does
+ * not handle, such as a day past the end of the month, 24:00:00 or a
+ * malformed value, is passed to {@link Batch#DTF} so it is resolved or
+ * rejected exactly as before.
+ *
+ * {@link #tryParseEpochSecond(byte[], int, int)} rejects a value without
+ * throwing an exception, with the same message {@link Batch#DTF} would throw.
+ * Only a value in an uncommon but valid form, such as a signed five digit
+ * year, is left to {@link Batch#DTF} to parse.
+ *
+ * Formatting writes the same bytes as {@link Batch#DTF}. The date part of the
+ * last day formatted is kept, so only the time of day is computed for each
+ * value on the same day. Instances are not thread safe, the static methods
+ * are.
+ */
+public final class DateTimeCodec {
+
+    /**
+     * The length of a formatted date time.
+     */
+    public static final int LENGTH = 19;
+    /**
+     * Returned by {@link #tryParseEpochSecond(byte[], int, int)} for a value
+     * that is not a valid date time. No valid value is this many seconds.
+     */
+    public static final long INVALID = Long.MIN_VALUE;
+    private static final int SECONDS_PER_DAY = 86400;
+    /**
+     * The longest text {@link Batch#DTF} includes in full in its messages.
+     */
+    private static final int MAX_MESSAGE_TEXT = 64;
+
+    private long cachedEpochDay = Long.MIN_VALUE;
+    private final byte[] cachedDate = new byte[10];
+    private String parseError;
+
+    /**
+     * Parses a date time from its bytes.
+     *
+     * @param buf the buffer holding the date time.
+     * @param start the index of the first byte.
+     * @param end the index after the last byte.
+     * @return the epoch seconds.
+     * @throws java.time.format.DateTimeParseException if the value is not a
+     * valid date time.
+     */
+    public static long parseEpochSecond(byte[] buf, int start, int end) {
+        if (end - start == LENGTH
+                && buf[start + 2] == '-'
+                && buf[start + 5] == '-'
+                && buf[start + 10] == ' '
+                && buf[start + 13] == ':'
+                && buf[start + 16] == ':') {
+            long epochSecond = toEpochSecond(
+                    digits2(buf[start], buf[start + 1]),
+                    digits2(buf[start + 3], buf[start + 4]),
+                    digits4(buf[start + 6], buf[start + 7], buf[start + 8], buf[start + 9]),
+                    digits2(buf[start + 11], buf[start + 12]),
+                    digits2(buf[start + 14], buf[start + 15]),
+                    digits2(buf[start + 17], buf[start + 18])
+            );
+            if (epochSecond != Long.MIN_VALUE) {
+                return epochSecond;
+            }
+        }
+        String value = new String(buf, start, end - start, StandardCharsets.UTF_8);
+        return Batch.DTF.parse(value, Instant::from).getEpochSecond();
+    }
+
+    /**
+     * Parses a date time from a String.
+     *
+     * @param value the date time.
+     * @return the epoch seconds.
+     * @throws java.time.format.DateTimeParseException if the value is not a
+     * valid date time.
+     */
+    public static long parseEpochSecond(CharSequence value) {
+        if (value.length() == LENGTH
+                && value.charAt(2) == '-'
+                && value.charAt(5) == '-'
+                && value.charAt(10) == ' '
+                && value.charAt(13) == ':'
+                && value.charAt(16) == ':') {
+            long epochSecond = toEpochSecond(
+                    digits2(value.charAt(0), value.charAt(1)),
+                    digits2(value.charAt(3), value.charAt(4)),
+                    digits4(value.charAt(6), value.charAt(7), value.charAt(8), value.charAt(9)),
+                    digits2(value.charAt(11), value.charAt(12)),
+                    digits2(value.charAt(14), value.charAt(15)),
+                    digits2(value.charAt(17), value.charAt(18))
+            );
+            if (epochSecond != Long.MIN_VALUE) {
+                return epochSecond;
+            }
+        }
+        return Batch.DTF.parse(value, Instant::from).getEpochSecond();
+    }
+
+    /**
+     * Parses a date time from its bytes, without throwing an exception if it
+     * is not valid.
+     *
+     * @param buf the buffer holding the date time.
+     * @param start the index of the first byte.
+     * @param end the index after the last byte.
+     * @return the epoch seconds, or {@link #INVALID} with the reason in
+     * {@link #getParseError()}.
+     */
+    public long tryParseEpochSecond(byte[] buf, int start, int end) {
+        parseError = null;
+        String value = null;
+        if (end - start == LENGTH
+                && buf[start + 2] == '-'
+                && buf[start + 5] == '-'
+                && buf[start + 10] == ' '
+                && buf[start + 13] == ':'
+                && buf[start + 16] == ':') {
+            int day = digits2(buf[start], buf[start + 1]);
+            int month = digits2(buf[start + 3], buf[start + 4]);
+            int year = digits4(buf[start + 6], buf[start + 7], buf[start + 8], buf[start + 9]);
+            int hour = digits2(buf[start + 11], buf[start + 12]);
+            int minute = digits2(buf[start + 14], buf[start + 15]);
+            int second = digits2(buf[start + 17], buf[start + 18]);
+            long epochSecond = toEpochSecond(day, month, year, hour, minute, second);
+            if (epochSecond != Long.MIN_VALUE) {
+                return epochSecond;
+            }
+            if (day >= 0 && month >= 0 && year >= 0 && hour >= 0 && minute >= 0 && second >= 0) {
+                value = new String(buf, start, LENGTH, StandardCharsets.US_ASCII);
+                String invalidField = invalidField(day, month, year, hour, minute, second);
+                if (invalidField != null) {
+                    parseError = "Text '" + value + "' could not be parsed: " + invalidField + ": " + invalidField;
+                    return INVALID;
+                }
+                // a day past the end of the month or 24:00:00, which are
+                // resolved by the formatter
+            }
+        }
+        if (value == null) {
+            value = new String(buf, start, end - start, StandardCharsets.UTF_8);
+            ParsePosition position = new ParsePosition(0);
+            Batch.DTF.parseUnresolved(value, position);
+            if (position.getErrorIndex() >= 0) {
+                parseError = "Text '" + abbreviate(value) + "' could not be parsed at index "
+                        + position.getErrorIndex();
+                return INVALID;
+            }
+            if (position.getIndex() < value.length()) {
+                parseError = "Text '" + abbreviate(value) + "' could not be parsed, unparsed text found at index "
+                        + position.getIndex();
+                return INVALID;
+            }
+        }
+        try {
+            return Batch.DTF.parse(value, Instant::from).getEpochSecond();
+        } catch (DateTimeException ex) {
+            // an uncommon form with a field out of range
+            parseError = ex.getCause() == null
+                    ? ex.getMessage()
+                    : ex.getMessage() + ": " + ex.getCause().getMessage();
+            return INVALID;
+        }
+    }
+
+    /**
+     * @return why the last value passed to
+     * {@link #tryParseEpochSecond(byte[], int, int)} was not valid, the same
+     * as the message of the exception {@link Batch#DTF} throws followed by
+     * that of its cause, or null if it was valid.
+     */
+    public String getParseError() {
+        return parseError;
+    }
+
+    /**
+     * Finds the first field {@link Batch#DTF} rejects, checked in the same
+     * order it resolves them.
+     *
+     * @return the message for the field, or null if all the fields resolve.
+     */
+    private static String invalidField(int day, int month, int year, int hour, int minute, int second) {
+        if (year < 1) {
+            return "Invalid value for YearOfEra (valid values 1 - 999999999/1000000000): " + year;
+        }
+        if (month < 1 || month > 12) {
+            return "Invalid value for MonthOfYear (valid values 1 - 12): " + month;
+        }
+        if (day < 1 || day > 31) {
+            return "Invalid value for DayOfMonth (valid values 1 - 28/31): " + day;
+        }
+        if (minute > 59) {
+            return "Invalid value for MinuteOfHour (valid values 0 - 59): " + minute;
+        }
+        if (hour == 24 && minute == 0 && second == 0) {
+            return null;
+        }
+        if (hour > 23) {
+            return "Invalid value for HourOfDay (valid values 0 - 23): " + hour;
+        }
+        if (second > 59) {
+            return "Invalid value for SecondOfMinute (valid values 0 - 59): " + second;
+        }
+        return null;
+    }
+
+    private static String abbreviate(String value) {
+        if (value.length() > MAX_MESSAGE_TEXT) {
+            return value.substring(0, MAX_MESSAGE_TEXT) + "...";
+        }
+        return value;
+    }
+
+    /**
+     * @return the epoch seconds, or Long.MIN_VALUE if any field is out of the
+     * range that can be converted directly.
+     */
+    private static long toEpochSecond(int day, int month, int year, int hour, int minute, int second) {
+        // Anything outside of these ranges is left to the DateTimeFormatter
+        // to resolve or reject.
+        if (year >= 1 && month >= 1 && month <= 12
+                && day >= 1 && day <= monthLength(year, month)
+                && hour >= 0 && hour <= 23
+                && minute >= 0 && minute <= 59
+                && second >= 0 && second <= 59) {
+            return epochDay(year, month, day) * SECONDS_PER_DAY
+                    + hour * 3600L
+                    + minute * 60L
+                    + second;
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * Writes the date time as {@code dd-MM-yyyy HH:mm:ss}.
+     *
+     * @param epochSecond the date time to write.
+     * @param out the buffer to write to. Must have {@link #LENGTH} bytes of
+     * room, unless the year is outside 1 to 9999.
+     * @param pos the index to write the first byte at.
+     * @return the index after the last byte written.
+     */
+    public int format(long epochSecond, byte[] out, int pos) {
+        long epochDay = Math.floorDiv(epochSecond, SECONDS_PER_DAY);
+        if (epochDay != cachedEpochDay && !cacheDate(epochDay)) {
+            // years the fixed width fast path can't write
+            byte[] formatted = Batch.DTF.format(Instant.ofEpochSecond(epochSecond))
+                    .getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(formatted, 0, out, pos, formatted.length);
+            return pos + formatted.length;
+        }
+        System.arraycopy(cachedDate, 0, out, pos, cachedDate.length);
+        int secondOfDay = (int) Math.floorMod(epochSecond, SECONDS_PER_DAY);
+        int hour = secondOfDay / 3600;
+        int minute = secondOfDay / 60 % 60;
+        int second = secondOfDay % 60;
+        out[pos + 10] = ' ';
+        out[pos + 11] = (byte) ('0' + hour / 10);
+        out[pos + 12] = (byte) ('0' + hour % 10);
+        out[pos + 13] = ':';
+        out[pos + 14] = (byte) ('0' + minute / 10);
+        out[pos + 15] = (byte) ('0' + minute % 10);
+        out[pos + 16] = ':';
+        out[pos + 17] = (byte) ('0' + second / 10);
+        out[pos + 18] = (byte) ('0' + second % 10);
+        return pos + LENGTH;
+    }
+
+    /**
+     * Formats the date time as {@code dd-MM-yyyy HH:mm:ss}.
+     *
+     * @param epochSecond the date time to format.
+     * @return the formatted date time.
+     */
+    public String format(long epochSecond) {
+        byte[] out = new byte[32];
+        int end = format(epochSecond, out, 0);
+        return new String(out, 0, end, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Fills the date cache with {@code dd-MM-yyyy} for the day.
+     *
+     * @return false if the year is outside 1 to 9999, which DTF writes with a
+     * sign or as a year of era.
+     */
+    private boolean cacheDate(long epochDay) {
+        // civil from days, the inverse of epochDay()
+        long z = epochDay + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 1 || year > 9999) {
+            return false;
+        }
+        int y = (int) year;
+        cachedDate[0] = (byte) ('0' + day / 10);
+        cachedDate[1] = (byte) ('0' + day % 10);
+        cachedDate[2] = '-';
+        cachedDate[3] = (byte) ('0' + month / 10);
+        cachedDate[4] = (byte) ('0' + month % 10);
+        cachedDate[5] = '-';
+        cachedDate[6] = (byte) ('0' + y / 1000);
+        cachedDate[7] = (byte) ('0' + y / 100 % 10);
+        cachedDate[8] = (byte) ('0' + y / 10 % 10);
+        cachedDate[9] = (byte) ('0' + y % 10);
+        cachedEpochDay = epochDay;
+        return true;
+    }
+
+    /**
+     * @return the 2 digit number, or -1 if not digits.
+     */
+    private static int digits2(int c1, int c2) {
+        int d1 = c1 - '0';
+        int d2 = c2 - '0';
+        if (d1 < 0 || d1 > 9 || d2 < 0 || d2 > 9) {
+            return -1;
+        }
+        return d1 * 10 + d2;
+    }
+
+    private static int digits4(int c1, int c2, int c3, int c4) {
+        int hi = digits2(c1, c2);
+        int lo = digits2(c3, c4);
+        if (hi < 0 || lo < 0) {
+            return -1;
+        }
+        return hi * 100 + lo;
+    }
+
+    private static int monthLength(int year, int month) {
+        switch (month) {
+            case 2:
+                boolean leap = (year % 4 == 0) && (year % 100 != 0 || year % 400 == 0);
+                return leap ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    /**
+     * @return days since 1970-01-01 for a proleptic Gregorian date.
+     */
+    private static long epochDay(int year, int month, int day) {
+        // shift the year to start in March, so the leap day is the last day
+        int y = month <= 2 ? year - 1 : year;
+        int era = y / 400;
+        int yearOfEra = y - era * 400;
+        int mp = (month + 9) % 12;
+        int dayOfYear = (153 * mp + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+}
@@ -0,0 +1,77 @@
+package au.id.simo.tap2trip.batch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+
+/**
+ * Reads a file that is still being written, like {@code tail -f}. At the end
+ * of the file it waits for more to be written instead of returning end of
+ * stream, until it is closed. If the file is truncated it is read again from
+ * the start.
+ *
+ * Closing from another thread ends a read that is waiting, with end of
+ * stream.
+ */
+public class FollowInputStream extends InputStream {
+
+    private final FileChannel channel;
+    private final long pollMillis;
+    private volatile boolean closed;
+
+    /**
+     * Constructor.
+     * @param file the file to read from the start.
+     * @param pollInterval how long to wait before checking the file again at
+     * the end of the file.
+     * @throws IOException if the file can't be opened.
+     */
+    public FollowInputStream(Path file, Duration pollInterval) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.pollMillis = Math.max(pollInterval.toMillis(), 1);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int read = read(b, 0, 1);
+        return read < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        while (!closed) {
+            int read = channel.read(buffer);
+            if (read > 0) {
+                return read;
+            }
+            if (channel.size() < channel.position()) {
+                // truncated, e.g. the log was rotated in place
+                channel.position(0);
+                continue;
+            }
+            try {
+                Thread.sleep(pollMillis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the file to grow");
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        channel.close();
+    }
+}
@@ -0,0 +1,29 @@
+package au.id.simo.tap2trip.batch;
+
+import sun.misc.Signal;
+
+/**
+ * Runs an action each time the process receives SIGHUP, e.g. from
+ * {@code kill -HUP pid}. Uses sun.misc.Signal, so {@link #install(Runnable)}
+ * does nothing on a JVM without it.
+ */
+final class HangupSignal {
+
+    private HangupSignal() {
+    }
+
+    /**
+     * Replaces the default handling of SIGHUP, which shuts down the JVM.
+     * @param action run on the JVM's signal dispatcher thread for each SIGHUP.
+     * @return false if the JVM does not have sun.misc.Signal, or SIGHUP can't
+     * be handled on this platform or is reserved by the JVM, e.g. with -Xrs.
+     */
+    static boolean install(Runnable action) {
+        try {
+            Signal.handle(new Signal("HUP"), signal -> action.run());
+            return true;
+        } catch (LinkageError | IllegalArgumentException ex) {
+            return false;
+        }
+    }
+}
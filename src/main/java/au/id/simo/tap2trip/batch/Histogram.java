@@ -0,0 +1,83 @@
+package au.id.simo.tap2trip.batch;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts non-negative values in power of two buckets, such as latencies in
+ * nanoseconds or batch sizes. Recording a value is a few atomic adds, so it
+ * can be done from any number of threads. Percentiles are the upper bound of
+ * the bucket they fall in, so are within a factor of two.
+ */
+public class Histogram {
+
+    /**
+     * Bucket 0 holds 0, bucket n holds values from 2^(n-1) to 2^n - 1.
+     */
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param value the value to count. Negative values are counted as 0.
+     */
+    public void record(long value) {
+        long v = Math.max(value, 0);
+        counts.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(v), BUCKETS - 1));
+        count.increment();
+        sum.add(v);
+        max.accumulate(v);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return the mean of the values, or 0 if there are none.
+     */
+    public double getMean() {
+        long n = getCount();
+        return n == 0 ? 0 : (double) getSum() / n;
+    }
+
+    /**
+     * @param quantile the quantile, from 0 to 1. e.g. 0.99 for the 99th
+     * percentile.
+     * @return the upper bound of the bucket holding the quantile, no more
+     * than the largest value. 0 if there are no values.
+     */
+    public long getPercentile(double quantile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && snapshot[i] > 0) {
+                long upper = i == 0 ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+                return Math.min(upper, getMax());
+            }
+        }
+        return getMax();
+    }
+}
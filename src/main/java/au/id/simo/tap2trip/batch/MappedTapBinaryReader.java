@@ -0,0 +1,192 @@
+package au.id.simo.tap2trip.batch;
+
+import au.id.simo.tap2trip.IdDictionary;
+import au.id.simo.tap2trip.Tap;
+import au.id.simo.tap2trip.TapError;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+
+/**
+ * Reads a binary taps file written by {@link TapBinaryWriter}.
+ *
+ * The records are memory mapped a segment at a time, and each Tap is read
+ * straight from its fixed position, so reading the file costs little more
+ * than scanning it. Every record was a valid Tap when it was written, so
+ * {@link #getTap()} does not throw.
+ *
+ * Not thread safe.
+ */
+public class MappedTapBinaryReader implements TapSource {
+
+    /**
+     * Number of records mapped at a time.
+     */
+    private static final int SEGMENT_RECORDS = 1 << 20;
+    private static final Tap.Type[] TYPES = Tap.Type.values();
+
+    private final FileChannel channel;
+    private final long recordCount;
+    /**
+     * The IdDictionary code of each ID in the file's ID table.
+     */
+    private final int[] dictionaryCodes;
+    /**
+     * The IDs of the file's ID table, for PANs that are not numbers.
+     */
+    private final String[] ids;
+    private final IdDictionary dictionary;
+
+    private MappedByteBuffer segment;
+    private long segmentStart;
+    private long index = -1;
+    private int offset;
+
+    /**
+     * Opens the file and reads its ID table.
+     *
+     * @param tapsBin a file written by TapBinaryWriter.
+     * @param dictionary the dictionary to encode the stop, company and bus IDs
+     * with.
+     * @throws IOException if the file can't be read, or is not a complete
+     * binary taps file.
+     */
+    public MappedTapBinaryReader(Path tapsBin, IdDictionary dictionary) throws IOException {
+        this.dictionary = dictionary;
+        this.channel = FileChannel.open(tapsBin, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = readAt(0, TapBinaryWriter.HEADER_SIZE);
+            if (header.getInt() != TapBinaryWriter.MAGIC) {
+                throw new IOException("Not a binary taps file: " + tapsBin);
+            }
+            int version = header.getInt();
+            if (version != TapBinaryWriter.VERSION) {
+                throw new IOException("Unsupported binary taps version: " + version);
+            }
+            this.recordCount = header.getLong();
+            long idTablePosition = header.getLong();
+            if (idTablePosition != TapBinaryWriter.HEADER_SIZE + recordCount * TapBinaryWriter.RECORD_SIZE) {
+                throw new IOException("Binary taps file was not completely written: " + tapsBin);
+            }
+            ByteBuffer idTable = readAt(idTablePosition, (int) (channel.size() - idTablePosition));
+            int idCount = idTable.getInt();
+            this.ids = new String[idCount];
+            this.dictionaryCodes = new int[idCount];
+            for (int i = 0; i < idCount; i++) {
+                byte[] utf8 = new byte[idTable.getInt()];
+                idTable.get(utf8);
+                ids[i] = new String(utf8, StandardCharsets.UTF_8);
+                dictionaryCodes[i] = dictionary.encode(ids[i]);
+            }
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @param file the file to check.
+     * @return true if the file starts with the binary taps {@link
+     * TapBinaryWriter#MAGIC}.
+     * @throws IOException if the file can't be read.
+     */
+    public static boolean isBinaryTaps(Path file) throws IOException {
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining()) {
+                if (fc.read(magic) < 0) {
+                    return false;
+                }
+            }
+            return magic.getInt(0) == TapBinaryWriter.MAGIC;
+        }
+    }
+
+    @Override
+    public boolean nextRecord() throws IOException {
+        if (index + 1 >= recordCount) {
+            index = recordCount;
+            segment = null;
+            return false;
+        }
+        index++;
+        if (segment == null || index - segmentStart >= SEGMENT_RECORDS) {
+            segmentStart = index;
+            long records = Math.min(SEGMENT_RECORDS, recordCount - index);
+            segment = channel.map(
+                    FileChannel.MapMode.READ_ONLY,
+                    TapBinaryWriter.HEADER_SIZE + index * TapBinaryWriter.RECORD_SIZE,
+                    records * TapBinaryWriter.RECORD_SIZE
+            );
+        }
+        offset = (int) (index - segmentStart) * TapBinaryWriter.RECORD_SIZE;
+        return true;
+    }
+
+    @Override
+    public long getRecordNumber() {
+        return segment.getLong(offset);
+    }
+
+    @Override
+    public Tap readTap() {
+        return getTap();
+    }
+
+    @Override
+    public TapError getTapError() {
+        return null;
+    }
+
+    @Override
+    public Tap getTap() {
+        int nanoAndType = segment.getInt(offset + 44);
+        return new Tap(
+                dictionary,
+                segment.getLong(offset + 8),
+                Instant.ofEpochSecond(segment.getLong(offset + 16), nanoAndType >>> 1),
+                TYPES[nanoAndType & 1],
+                dictionaryCode(segment.getInt(offset + 32)),
+                dictionaryCode(segment.getInt(offset + 36)),
+                dictionaryCode(segment.getInt(offset + 40)),
+                pan(segment.getLong(offset + 24))
+        );
+    }
+
+    @Override
+    public void close() throws IOException {
+        segment = null;
+        channel.close();
+    }
+
+    private int dictionaryCode(int fileCode) {
+        return fileCode < 0 ? IdDictionary.NONE : dictionaryCodes[fileCode];
+    }
+
+    private String pan(long pan) {
+        if (pan >= 0) {
+            return Long.toString(pan);
+        }
+        if (pan == -1) {
+            return null;
+        }
+        return ids[(int) (-2L - pan)];
+    }
+
+    private ByteBuffer readAt(long pos, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, pos + buffer.position()) < 0) {
+                throw new EOFException("Binary taps file is truncated");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
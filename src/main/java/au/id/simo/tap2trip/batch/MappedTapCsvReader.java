@@ -0,0 +1,372 @@
+package au.id.simo.tap2trip.batch;
+
+import au.id.simo.tap2trip.IdDictionary;
+import au.id.simo.tap2trip.Tap;
+import au.id.simo.tap2trip.TapError;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Reads a taps CSV file by memory mapping it in chunks and parsing the chunks
+ * on a pool of threads.
+ *
+ * The file is split into chunks at line breaks. Each chunk is parsed by a
+ * {@link TapCsvReader} on its own thread, and the parsed Taps are handed out
+ * in the original record order with the same record numbers as reading the
+ * file with a single TapCsvReader.
+ *
+ * A line break inside a quoted field may be picked as a chunk boundary. The
+ * chunk before it then fails with an unterminated quote, and the rest of the
+ * file from the start of that chunk is read with a single TapCsvReader instead.
+ *
+ * Not thread safe. Only the parsing is done on other threads.
+ */
+public class MappedTapCsvReader implements TapSource {
+
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+    /**
+     * Read buffer size of each chunk's TapCsvReader.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final IdDictionary ids;
+    private final long fileSize;
+    private final int chunkSize;
+    private final int maxChunksInFlight;
+    private final ExecutorService executor;
+    private final Deque<PendingChunk> inFlight = new ArrayDeque<>();
+    /**
+     * File position where the next chunk to be submitted starts.
+     */
+    private long nextChunkStart;
+
+    private TapChunk chunk;
+    private int chunkIndex;
+    /**
+     * Record number and line breaks before the current chunk.
+     */
+    private long recordBase;
+    private long lineBreakBase;
+    /**
+     * Used for the rest of the file once chunked parsing can't be used.
+     */
+    private TapCsvReader fallback;
+    /**
+     * Where the parsing threads record their usage, or null.
+     */
+    private BatchMetrics metrics;
+
+    /**
+     * Constructor, using a chunk size of {@link #DEFAULT_CHUNK_SIZE}.
+     *
+     * @param tapsCsv the taps CSV file to read.
+     * @param ids the dictionary to encode the stop, company and bus IDs with.
+     * @param threads the number of threads to parse chunks with.
+     * @throws IOException if the file can not be opened.
+     */
+    public MappedTapCsvReader(Path tapsCsv, IdDictionary ids, int threads) throws IOException {
+        this(tapsCsv, ids, threads, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param tapsCsv the taps CSV file to read.
+     * @param ids the dictionary to encode the stop, company and bus IDs with.
+     * @param threads the number of threads to parse chunks with.
+     * @param chunkSize the approximate size in bytes of each chunk. Chunks are
+     * extended to the next line break.
+     * @throws IOException if the file can not be opened.
+     */
+    public MappedTapCsvReader(Path tapsCsv, IdDictionary ids, int threads, int chunkSize) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        }
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be at least 1: " + chunkSize);
+        }
+        this.ids = ids;
+        this.channel = FileChannel.open(tapsCsv, StandardOpenOption.READ);
+        this.fileSize = channel.size();
+        this.chunkSize = chunkSize;
+        // keep enough chunks parsed ahead to keep all threads busy, without
+        // holding the whole file's Taps in memory.
+        this.maxChunksInFlight = threads * 2;
+        this.executor = Executors.newFixedThreadPool(threads, new ReaderThreadFactory());
+        this.chunk = new TapChunk();
+        this.chunkIndex = -1;
+    }
+
+    @Override
+    public boolean nextRecord() throws IOException {
+        if (fallback != null) {
+            return fallback.nextRecord();
+        }
+        while (++chunkIndex >= chunk.count) {
+            if (!nextChunk()) {
+                return fallback != null && fallback.nextRecord();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void setMetrics(BatchMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public long getRecordNumber() {
+        if (fallback != null) {
+            return fallback.getRecordNumber();
+        }
+        return recordBase + chunkIndex + 1;
+    }
+
+    @Override
+    public Tap readTap() {
+        if (fallback != null) {
+            return fallback.readTap();
+        }
+        return chunk.taps[chunkIndex];
+    }
+
+    @Override
+    public TapError getTapError() {
+        if (fallback != null) {
+            return fallback.getTapError();
+        }
+        return chunk.errors[chunkIndex];
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        if (fallback != null) {
+            fallback.close();
+        }
+        channel.close();
+    }
+
+    /**
+     * Moves on to the next parsed chunk, waiting for it to be parsed if
+     * needed.
+     *
+     * @return false if there are no more chunks.
+     */
+    private boolean nextChunk() throws IOException {
+        recordBase += chunk.count;
+        lineBreakBase += chunk.lineBreaks;
+        submitChunks();
+        PendingChunk pending = inFlight.poll();
+        if (pending == null) {
+            chunk = new TapChunk();
+            return false;
+        }
+        try {
+            chunk = pending.result.get();
+            chunkIndex = -1;
+            return true;
+        } catch (ExecutionException ex) {
+            // Most likely a line break in a quoted field was used as a chunk
+            // boundary. Read the rest of the file in order, which will also
+            // report any real error with the correct line number.
+            startFallback(pending);
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for taps to be parsed", ex);
+        }
+    }
+
+    private void startFallback(PendingChunk pending) throws IOException {
+        for (PendingChunk p : inFlight) {
+            p.result.cancel(false);
+        }
+        inFlight.clear();
+        channel.position(pending.start);
+        InputStream in = Channels.newInputStream(channel);
+        if (pending.start == 0) {
+            fallback = new TapCsvReader(in, ids, READ_BUFFER_SIZE);
+        } else {
+            fallback = new TapCsvReader(in, ids, READ_BUFFER_SIZE, recordBase, lineBreakBase);
+        }
+    }
+
+    private void submitChunks() throws IOException {
+        while (inFlight.size() < maxChunksInFlight && nextChunkStart < fileSize) {
+            long start = nextChunkStart;
+            long end = findChunkEnd(start + chunkSize);
+            nextChunkStart = end;
+            inFlight.add(new PendingChunk(
+                    start,
+                    CompletableFuture.supplyAsync(new ChunkParser(start, end), executor)
+            ));
+        }
+    }
+
+    /**
+     * @return the position after the first line feed at or after the provided
+     * position, or the end of the file.
+     */
+    private long findChunkEnd(long from) throws IOException {
+        if (from >= fileSize) {
+            return fileSize;
+        }
+        ByteBuffer scan = ByteBuffer.allocate(4096);
+        long position = from;
+        while (position < fileSize) {
+            scan.clear();
+            int read = channel.read(scan, position);
+            if (read < 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (scan.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return fileSize;
+    }
+
+    /**
+     * Maps and parses one chunk of the file.
+     */
+    private class ChunkParser implements Supplier<TapChunk> {
+        private final long start;
+        private final long end;
+
+        private ChunkParser(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public TapChunk get() {
+            BatchMetrics usageMetrics = metrics;
+            long cpuNanos = usageMetrics == null ? 0 : ThreadUsage.cpuNanos();
+            long allocatedBytes = usageMetrics == null ? 0 : ThreadUsage.allocatedBytes();
+            try {
+                return parse();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            } finally {
+                if (usageMetrics != null) {
+                    // the taps are counted as they are handed out
+                    usageMetrics.recordUsage(BatchMetrics.Stage.PARSE,
+                            ThreadUsage.cpuNanos() - cpuNanos,
+                            ThreadUsage.allocatedBytes() - allocatedBytes,
+                            0);
+                }
+            }
+        }
+
+        private TapChunk parse() throws IOException {
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            InputStream in = new ByteBufferInputStream(mapped);
+            TapCsvReader reader;
+            if (start == 0) {
+                reader = new TapCsvReader(in, ids, READ_BUFFER_SIZE);
+            } else {
+                reader = new TapCsvReader(in, ids, READ_BUFFER_SIZE, 0, 0);
+            }
+            TapChunk result = new TapChunk();
+            while (reader.nextRecord()) {
+                Tap tap = reader.readTap();
+                result.add(tap, tap == null ? reader.getTapError() : null);
+            }
+            result.lineBreaks = reader.getLineBreaks();
+            return result;
+        }
+    }
+
+    /**
+     * The parsed records of one chunk. Each record has either a Tap or an
+     * error.
+     */
+    private static class TapChunk {
+        private Tap[] taps = new Tap[1024];
+        private TapError[] errors = new TapError[1024];
+        private int count;
+        private long lineBreaks;
+
+        private void add(Tap tap, TapError error) {
+            if (count == taps.length) {
+                taps = Arrays.copyOf(taps, count * 2);
+                errors = Arrays.copyOf(errors, count * 2);
+            }
+            taps[count] = tap;
+            errors[count] = error;
+            count++;
+        }
+    }
+
+    private static class PendingChunk {
+        private final long start;
+        private final Future<TapChunk> result;
+
+        private PendingChunk(long start, Future<TapChunk> result) {
+            this.start = start;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Reads a mapped chunk into the TapCsvReader's buffer.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+
+    private static class ReaderThreadFactory implements ThreadFactory {
+        private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+        private final int pool = POOL_COUNT.incrementAndGet();
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "tap-reader-" + pool + "-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
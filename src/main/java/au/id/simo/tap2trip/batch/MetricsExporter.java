@@ -0,0 +1,332 @@
+package au.id.simo.tap2trip.batch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Makes the {@link BatchMetrics} of a running batch visible while it runs.
+ * Any of:
+ * <ul>
+ * <li>a line of throughput printed at a fixed interval, see
+ * {@link #setReportInterval(Duration, PrintStream)}.</li>
+ * <li>a {@link BatchMetricsMXBean} registered with the platform MBean server
+ * as {@value #OBJECT_NAME}, see {@link #setJmx(boolean)}.</li>
+ * <li>the metrics as plain text from {@code http://localhost:port/metrics},
+ * see {@link #setHttpPort(int)}.</li>
+ * </ul>
+ * Configured once, then started for each run with
+ * {@link #start(BatchMetrics)} and stopped with {@link #stop()}. Exports one
+ * run at a time.
+ */
+public class MetricsExporter implements Closeable {
+
+    /**
+     * The JMX name the metrics are registered under.
+     */
+    public static final String OBJECT_NAME = "au.id.simo.tap2trip:type=BatchMetrics";
+    private static final BatchMetrics.Stage[] STAGES = BatchMetrics.Stage.values();
+
+    private Duration reportInterval;
+    private PrintStream reportOut;
+    private boolean jmx;
+    private int httpPort = -1;
+
+    private ScheduledExecutorService reporter;
+    private HttpServer server;
+    private ObjectName registeredName;
+
+    /**
+     * Prints the taps and trips per second, and the error rate, since the
+     * last report. Not printed by default.
+     * @param interval how often to print, or null to not print.
+     * @param out where to print.
+     * @return This instance. Used for method chaining.
+     */
+    public synchronized MetricsExporter setReportInterval(Duration interval, PrintStream out) {
+        this.reportInterval = interval;
+        this.reportOut = out;
+        return this;
+    }
+
+    /**
+     * @param jmx true to register the metrics with the platform MBean server.
+     * Defaults to false.
+     * @return This instance. Used for method chaining.
+     */
+    public synchronized MetricsExporter setJmx(boolean jmx) {
+        this.jmx = jmx;
+        return this;
+    }
+
+    /**
+     * Serves the metrics as text on the loopback address. Not served by
+     * default.
+     * @param httpPort the port, 0 for any free port, or -1 to not serve.
+     * @return This instance. Used for method chaining.
+     */
+    public synchronized MetricsExporter setHttpPort(int httpPort) {
+        this.httpPort = httpPort;
+        return this;
+    }
+
+    /**
+     * @return the port the metrics are served on, or -1 if not serving.
+     */
+    public synchronized int getHttpPort() {
+        return server == null ? -1 : server.getAddress().getPort();
+    }
+
+    /**
+     * Starts exporting the metrics of a run, stopping any previous run.
+     * @param metrics the metrics to export.
+     * @throws IOException if the HTTP port can't be listened on.
+     */
+    public synchronized void start(BatchMetrics metrics) throws IOException {
+        stop();
+        if (httpPort >= 0) {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+            server.createContext("/metrics", exchange -> serve(exchange, metrics));
+            server.start();
+        }
+        if (jmx) {
+            register(new MetricsBean(metrics));
+        }
+        if (reportInterval != null) {
+            reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "metrics-reporter");
+                t.setDaemon(true);
+                return t;
+            });
+            long millis = Math.max(reportInterval.toMillis(), 1);
+            reporter.scheduleAtFixedRate(new Reporter(metrics, reportOut), millis, millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops exporting the current run, if any.
+     */
+    public synchronized void stop() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        if (registeredName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+            } catch (JMException ex) {
+                // already unregistered
+            }
+            registeredName = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+    /**
+     * Formats the metrics as text, one {@code name{labels} value} per line.
+     * @param metrics the metrics to format.
+     * @return the metrics as text.
+     */
+    public static String toText(BatchMetrics metrics) {
+        StringBuilder sb = new StringBuilder();
+        MetricsBean bean = new MetricsBean(metrics);
+        line(sb, "tap2trip_taps_read", null, bean.getTapsRead());
+        line(sb, "tap2trip_tap_read_errors", null, bean.getTapReadErrors());
+        line(sb, "tap2trip_trips_written", null, bean.getTripsWritten());
+        line(sb, "tap2trip_taps_per_second", null, bean.getTapsPerSecond());
+        line(sb, "tap2trip_trips_per_second", null, bean.getTripsPerSecond());
+        line(sb, "tap2trip_error_rate", null, bean.getErrorRate());
+        for (BatchMetrics.Stage stage : STAGES) {
+            String label = "stage=\"" + stage.name().toLowerCase(Locale.ROOT) + "\"";
+            Histogram latency = metrics.getLatency(stage);
+            Histogram batchSize = metrics.getBatchSize(stage);
+            line(sb, "tap2trip_stage_count", label, latency.getCount());
+            line(sb, "tap2trip_stage_nanos_sum", label, latency.getSum());
+            line(sb, "tap2trip_stage_nanos", label + ",quantile=\"0.5\"", latency.getPercentile(0.5));
+            line(sb, "tap2trip_stage_nanos", label + ",quantile=\"0.99\"", latency.getPercentile(0.99));
+            line(sb, "tap2trip_stage_nanos_max", label, latency.getMax());
+            line(sb, "tap2trip_stage_batch_size_mean", label, batchSize.getMean());
+            line(sb, "tap2trip_stage_batch_size_max", label, batchSize.getMax());
+        }
+        return sb.toString();
+    }
+
+    private static void line(StringBuilder sb, String name, String labels, Object value) {
+        sb.append(name);
+        if (labels != null) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static void serve(HttpExchange exchange, BatchMetrics metrics) throws IOException {
+        try {
+            byte[] body = toText(metrics).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void register(MetricsBean bean) {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            try {
+                mbeanServer.registerMBean(bean, name);
+            } catch (InstanceAlreadyExistsException ex) {
+                // left by another exporter, the latest run replaces it
+                mbeanServer.unregisterMBean(name);
+                mbeanServer.registerMBean(bean, name);
+            }
+            registeredName = name;
+        } catch (JMException ex) {
+            throw new IllegalStateException("Error in registering metrics MBean", ex);
+        }
+    }
+
+    /**
+     * Prints the rates since the last report.
+     */
+    private static class Reporter implements Runnable {
+        private final BatchMetrics metrics;
+        private final PrintStream out;
+        private long lastNanos;
+        private long lastTaps;
+        private long lastTrips;
+        private long lastErrors;
+
+        Reporter(BatchMetrics metrics, PrintStream out) {
+            this.metrics = metrics;
+            this.out = out;
+            this.lastNanos = metrics.getElapsedNanos();
+        }
+
+        @Override
+        public void run() {
+            long nanos = metrics.getElapsedNanos();
+            long taps = metrics.getTapsRead();
+            long trips = metrics.getTripsWritten();
+            long errors = metrics.getTapReadErrors();
+            double seconds = Math.max(nanos - lastNanos, 1) / 1e9;
+            long records = taps - lastTaps + errors - lastErrors;
+            out.println(String.format(Locale.ROOT,
+                    "Taps read: %d (%.0f/s), trips written: %d (%.0f/s), tap errors: %d (%.2f%%)",
+                    taps, (taps - lastTaps) / seconds,
+                    trips, (trips - lastTrips) / seconds,
+                    errors, records == 0 ? 0.0 : 100.0 * (errors - lastErrors) / records));
+            lastNanos = nanos;
+            lastTaps = taps;
+            lastTrips = trips;
+            lastErrors = errors;
+        }
+    }
+
+    private static class MetricsBean implements BatchMetricsMXBean {
+        private final BatchMetrics metrics;
+
+        MetricsBean(BatchMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public long getTapsRead() {
+            return metrics.getTapsRead();
+        }
+
+        @Override
+        public long getTapReadErrors() {
+            return metrics.getTapReadErrors();
+        }
+
+        @Override
+        public long getTripsWritten() {
+            return metrics.getTripsWritten();
+        }
+
+        @Override
+        public double getTapsPerSecond() {
+            return metrics.getTapsRead() / seconds();
+        }
+
+        @Override
+        public double getTripsPerSecond() {
+            return metrics.getTripsWritten() / seconds();
+        }
+
+        @Override
+        public double getErrorRate() {
+            long errors = metrics.getTapReadErrors();
+            long records = metrics.getTapsRead() + errors;
+            return records == 0 ? 0 : (double) errors / records;
+        }
+
+        @Override
+        public Map<String, Long> getStageCounts() {
+            return byStage(stage -> metrics.getLatency(stage).getCount());
+        }
+
+        @Override
+        public Map<String, Double> getStageMeanNanos() {
+            return byStage(stage -> metrics.getLatency(stage).getMean());
+        }
+
+        @Override
+        public Map<String, Long> getStageP99Nanos() {
+            return byStage(stage -> metrics.getLatency(stage).getPercentile(0.99));
+        }
+
+        @Override
+        public Map<String, Long> getStageMaxNanos() {
+            return byStage(stage -> metrics.getLatency(stage).getMax());
+        }
+
+        @Override
+        public Map<String, Double> getStageMeanBatchSize() {
+            return byStage(stage -> metrics.getBatchSize(stage).getMean());
+        }
+
+        private double seconds() {
+            return Math.max(metrics.getElapsedNanos(), 1) / 1e9;
+        }
+
+        private static <T> Map<String, T> byStage(Function<BatchMetrics.Stage, T> value) {
+            Map<String, T> map = new LinkedHashMap<>();
+            for (BatchMetrics.Stage stage : STAGES) {
+                map.put(stage.name(), value.apply(stage));
+            }
+            return map;
+        }
+    }
+}
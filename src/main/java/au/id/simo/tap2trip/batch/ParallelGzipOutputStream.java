@@ -0,0 +1,174 @@
+package au.id.simo.tap2trip.batch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes gzip, compressing blocks of the output on a pool of threads.
+ *
+ * Each block is compressed as its own gzip member, and the members are
+ * written in order. Any gzip reader, including gunzip and
+ * {@link java.util.zip.GZIPInputStream}, reads the members back as a single
+ * stream. Compressing the blocks separately costs a little in size, as no
+ * block can refer back to an earlier one.
+ *
+ * Not thread safe. Only the compression is done on other threads.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    private final OutputStream out;
+    private final int blockSize;
+    private final int maxBlocksInFlight;
+    private final ExecutorService executor;
+    private final Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+    private byte[] block;
+    private int count;
+    private boolean written;
+    private boolean closed;
+
+    /**
+     * Constructor, using a block size of {@link #DEFAULT_BLOCK_SIZE}.
+     *
+     * @param out where to write the gzip. Closed by {@link #close()}.
+     * @param threads the number of threads to compress blocks with.
+     */
+    public ParallelGzipOutputStream(OutputStream out, int threads) {
+        this(out, threads, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param out where to write the gzip. Closed by {@link #close()}.
+     * @param threads the number of threads to compress blocks with.
+     * @param blockSize the number of bytes compressed as each gzip member.
+     */
+    public ParallelGzipOutputStream(OutputStream out, int threads, int blockSize) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        }
+        this.out = out;
+        this.blockSize = blockSize;
+        // enough to keep every thread busy while the oldest block is written
+        this.maxBlocksInFlight = threads * 2;
+        this.executor = Executors.newFixedThreadPool(threads, new CompressorThreadFactory());
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[count++] = (byte) b;
+        if (count == blockSize) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, blockSize - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Compresses any buffered bytes as a gzip member, and writes out all
+     * members compressed so far. Flushing often makes the output larger.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            submitBlock();
+        }
+        while (!inFlight.isEmpty()) {
+            writeOldest();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+            if (!written) {
+                // an empty gzip file is not valid, so write an empty member
+                out.write(compress(new byte[0], 0));
+            }
+        } finally {
+            executor.shutdownNow();
+            out.close();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        byte[] data = block;
+        int length = count;
+        inFlight.add(CompletableFuture.supplyAsync(() -> compress(data, length), executor));
+        block = new byte[blockSize];
+        count = 0;
+        while (inFlight.size() > maxBlocksInFlight) {
+            writeOldest();
+        }
+    }
+
+    private void writeOldest() throws IOException {
+        Future<byte[]> oldest = inFlight.poll();
+        try {
+            out.write(oldest.get());
+            written = true;
+        } catch (ExecutionException ex) {
+            throw new IOException("Error compressing block", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for block to be compressed", ex);
+        }
+    }
+
+    private static byte[] compress(byte[] data, int length) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed, 64 * 1024)) {
+            gzip.write(data, 0, length);
+        } catch (IOException ex) {
+            // not expected writing to memory
+            throw new UncheckedIOException(ex);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static class CompressorThreadFactory implements ThreadFactory {
+        private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+        private final int pool = POOL_COUNT.incrementAndGet();
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "gzip-" + pool + "-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package au.id.simo.tap2trip.batch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a gzip file, decompressing it ahead of the reader on its own thread.
+ *
+ * The decompressed bytes are passed to the reader in large chunks through a
+ * bounded queue, so parsing overlaps with decompressing and reading the file.
+ * Files of several gzip members, such as those written by
+ * {@link ParallelGzipOutputStream}, are read as one stream.
+ *
+ * Not thread safe. Only the decompression is done on another thread.
+ */
+public class ReadAheadGzipInputStream extends InputStream {
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int QUEUE_CAPACITY = 4;
+    private static final int FILE_BUFFER_SIZE = 1024 * 1024;
+    private static final long POLL_MILLIS = 100;
+    private static final Chunk END = new Chunk(new byte[0], 0);
+
+    private final InputStream in;
+    private final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread thread;
+    private volatile Throwable failure;
+    private volatile boolean closed;
+    private boolean started;
+    private Chunk chunk;
+    private int position;
+
+    /**
+     * Opens the file. Decompression starts on the first read.
+     *
+     * @param gzipFile the gzip file to read.
+     * @throws IOException if the file can't be opened, or is not gzip.
+     */
+    public ReadAheadGzipInputStream(Path gzipFile) throws IOException {
+        InputStream file = Files.newInputStream(gzipFile);
+        try {
+            this.in = new GZIPInputStream(file, FILE_BUFFER_SIZE);
+        } catch (IOException | RuntimeException ex) {
+            file.close();
+            throw ex;
+        }
+        this.thread = new Thread(this::run, "gzip-reader");
+        this.thread.setDaemon(true);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        return chunk.data[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int n = Math.min(len, chunk.length - position);
+        System.arraycopy(chunk.data, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (started) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        in.close();
+    }
+
+    /**
+     * Makes sure there are bytes left in the current chunk, waiting for the
+     * next one if needed.
+     *
+     * @return false at the end of the stream.
+     */
+    private boolean nextChunk() throws IOException {
+        if (!started) {
+            started = true;
+            thread.start();
+        }
+        while (chunk == null || position == chunk.length) {
+            if (chunk == END) {
+                return false;
+            }
+            chunk = take();
+            position = 0;
+        }
+        return true;
+    }
+
+    private Chunk take() throws IOException {
+        try {
+            Chunk next;
+            while ((next = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+                Throwable t = failure;
+                if (t != null) {
+                    throw new IOException("Error decompressing", t);
+                }
+            }
+            return next;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for decompressed bytes", ex);
+        }
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                byte[] data = new byte[CHUNK_SIZE];
+                int length = 0;
+                int n;
+                while (length < CHUNK_SIZE && (n = in.read(data, length, CHUNK_SIZE - length)) > 0) {
+                    length += n;
+                }
+                if (length > 0 && !put(new Chunk(data, length))) {
+                    return;
+                }
+                if (length < CHUNK_SIZE) {
+                    put(END);
+                    return;
+                }
+            }
+        } catch (Throwable t) {
+            failure = t;
+        }
+    }
+
+    /**
+     * @return false if the stream was closed while waiting for space.
+     */
+    private boolean put(Chunk next) throws InterruptedException {
+        while (!queue.offer(next, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (closed) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class Chunk {
+        private final byte[] data;
+        private final int length;
+
+        private Chunk(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package au.id.simo.tap2trip.batch;
+
+import au.id.simo.tap2trip.Tap;
+import au.id.simo.tap2trip.TapError;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * Puts the Taps of another TapSource back into date time order, when they may
+ * arrive up to a fixed lateness out of order. e.g. uploads from validators
+ * that are a few minutes behind the others.
+ *
+ * Taps are held in a heap keyed on their time until the watermark, the time
+ * of the latest Tap read less the lateness, has passed them. A Tap older than
+ * the watermark when it is read can no longer be put in order, and is
+ * returned as a {@link TapError.Code#LATE_TAP} error in place of the Tap so
+ * that it is written to the errors file. Records that fail to parse are returned as
+ * soon as they are read. Taps with the same time keep their record order.
+ *
+ * Only the Taps within the lateness are held, up to a maximum count. If more
+ * than that many are waiting the oldest is released early, and Taps older
+ * than it are then late.
+ *
+ * Not thread safe.
+ */
+public class ReorderingTapSource implements TapSource {
+
+    private static final int DEFAULT_MAX_TAPS = 1 << 20;
+
+    private final TapSource source;
+    private final long latenessSeconds;
+    private final int latenessNanos;
+    private final int maxTaps;
+    private final String lateMessage;
+
+    // heap of waiting taps, in parallel arrays
+    private long[] seconds = new long[1024];
+    private int[] nanos = new int[1024];
+    private long[] recordNumbers = new long[1024];
+    private Tap[] taps = new Tap[1024];
+    private int size;
+
+    private boolean sourceEnded;
+    private boolean seenTap;
+    private long latestSecond;
+    private int latestNano;
+    /**
+     * Taps before this time are late. The later of the watermark and the
+     * last Tap returned.
+     */
+    private long floorSecond = Long.MIN_VALUE;
+    private int floorNano;
+
+    private long recordNumber;
+    private Tap tap;
+    private TapError error;
+
+    /**
+     * Constructor.
+     * @param source the Taps to put in order. Closed when this is closed.
+     * @param lateness how far behind the latest Tap read a Tap can be and
+     * still be put in order.
+     */
+    public ReorderingTapSource(TapSource source, Duration lateness) {
+        this(source, lateness, DEFAULT_MAX_TAPS);
+    }
+
+    /**
+     * Constructor.
+     * @param source the Taps to put in order. Closed when this is closed.
+     * @param lateness how far behind the latest Tap read a Tap can be and
+     * still be put in order.
+     * @param maxTaps the most Taps to hold.
+     */
+    public ReorderingTapSource(TapSource source, Duration lateness, int maxTaps) {
+        if (lateness.isNegative()) {
+            throw new IllegalArgumentException("lateness must not be negative: " + lateness);
+        }
+        if (maxTaps < 1) {
+            throw new IllegalArgumentException("maxTaps must be at least 1: " + maxTaps);
+        }
+        this.source = source;
+        this.latenessSeconds = lateness.getSeconds();
+        this.latenessNanos = lateness.getNano();
+        this.maxTaps = maxTaps;
+        this.lateMessage = "Tap is more than " + lateness
+                + " older than the latest tap, so can not be put in date time order";
+    }
+
+    @Override
+    public boolean nextRecord() throws IOException {
+        while (true) {
+            if (size > 0 && (sourceEnded || isBeforeFloor(seconds[0], nanos[0], true))) {
+                release();
+                return true;
+            }
+            if (sourceEnded) {
+                tap = null;
+                error = null;
+                return false;
+            }
+            if (!source.nextRecord()) {
+                sourceEnded = true;
+                continue;
+            }
+            Tap read = source.readTap();
+            if (read == null) {
+                recordNumber = source.getRecordNumber();
+                tap = null;
+                error = source.getTapError();
+                return true;
+            }
+            Instant dateTime = read.getDateTime();
+            long second = dateTime.getEpochSecond();
+            int nano = dateTime.getNano();
+            if (isBeforeFloor(second, nano, false)) {
+                recordNumber = source.getRecordNumber();
+                tap = null;
+                error = new TapError(TapError.Code.LATE_TAP, lateMessage + ": " + Batch.DTF.format(dateTime), null);
+                return true;
+            }
+            push(second, nano, source.getRecordNumber(), read);
+            if (!seenTap || compare(second, nano, latestSecond, latestNano) > 0) {
+                seenTap = true;
+                latestSecond = second;
+                latestNano = nano;
+                raiseFloor(watermarkSecond(), watermarkNano());
+            }
+            if (size > maxTaps) {
+                release();
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public long getRecordNumber() {
+        return recordNumber;
+    }
+
+    @Override
+    public Tap readTap() {
+        return tap;
+    }
+
+    @Override
+    public TapError getTapError() {
+        return error;
+    }
+
+    @Override
+    public void setMetrics(BatchMetrics metrics) {
+        source.setMetrics(metrics);
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    /**
+     * @return true if the time is before the floor, or at it when inclusive.
+     */
+    private boolean isBeforeFloor(long second, int nano, boolean inclusive) {
+        if (floorSecond == Long.MIN_VALUE) {
+            return false;
+        }
+        int cmp = compare(second, nano, floorSecond, floorNano);
+        return inclusive ? cmp <= 0 : cmp < 0;
+    }
+
+    private long watermarkSecond() {
+        long second = latestSecond - latenessSeconds;
+        return latestNano < latenessNanos ? second - 1 : second;
+    }
+
+    private int watermarkNano() {
+        int nano = latestNano - latenessNanos;
+        return nano < 0 ? nano + 1_000_000_000 : nano;
+    }
+
+    private void raiseFloor(long second, int nano) {
+        if (floorSecond == Long.MIN_VALUE || compare(second, nano, floorSecond, floorNano) > 0) {
+            floorSecond = second;
+            floorNano = nano;
+        }
+    }
+
+    /**
+     * Makes the oldest waiting Tap the current record.
+     */
+    private void release() {
+        recordNumber = recordNumbers[0];
+        tap = taps[0];
+        error = null;
+        raiseFloor(seconds[0], nanos[0]);
+        size--;
+        if (size > 0) {
+            move(size, 0);
+            siftDown(0);
+        }
+        taps[size] = null;
+    }
+
+    private void push(long second, int nano, long record, Tap t) {
+        if (size == taps.length) {
+            int length = taps.length * 2;
+            seconds = Arrays.copyOf(seconds, length);
+            nanos = Arrays.copyOf(nanos, length);
+            recordNumbers = Arrays.copyOf(recordNumbers, length);
+            taps = Arrays.copyOf(taps, length);
+        }
+        int i = size++;
+        seconds[i] = second;
+        nanos[i] = nano;
+        recordNumbers[i] = record;
+        taps[i] = t;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!less(i, parent)) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= size) {
+                return;
+            }
+            int child = left + 1 < size && less(left + 1, left) ? left + 1 : left;
+            if (!less(child, i)) {
+                return;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private boolean less(int a, int b) {
+        int cmp = compare(seconds[a], nanos[a], seconds[b], nanos[b]);
+        return cmp < 0 || (cmp == 0 && recordNumbers[a] < recordNumbers[b]);
+    }
+
+    private void swap(int a, int b) {
+        long second = seconds[a];
+        int nano = nanos[a];
+        long record = recordNumbers[a];
+        Tap t = taps[a];
+        move(b, a);
+        seconds[b] = second;
+        nanos[b] = nano;
+        recordNumbers[b] = record;
+        taps[b] = t;
+    }
+
+    private void move(int from, int to) {
+        seconds[to] = seconds[from];
+        nanos[to] = nanos[from];
+        recordNumbers[to] = recordNumbers[from];
+        taps[to] = taps[from];
+    }
+
+    private static int compare(long secondA, int nanoA, long secondB, int nanoB) {
+        int cmp = Long.compare(secondA, secondB);
+        return cmp != 0 ? cmp : Integer.compare(nanoA, nanoB);
+    }
+}
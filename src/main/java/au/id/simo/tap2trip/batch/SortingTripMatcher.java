@@ -0,0 +1,267 @@
+package au.id.simo.tap2trip.batch;
+
+import au.id.simo.tap2trip.ChargeCalculator;
+import au.id.simo.tap2trip.IdDictionary;
+import au.id.simo.tap2trip.Tap;
+import au.id.simo.tap2trip.TapError;
+import au.id.simo.tap2trip.Trip;
+import au.id.simo.tap2trip.TripProducer;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Matches Taps that are in any order, by sorting them by PAN and time first.
+ * For taps files that are not in date time order at all, such as a backfill
+ * of many validators' uploads, or that are too large to hold the trips in
+ * progress in memory.
+ *
+ * Taps are read into runs of up to a set number of Taps. Each full run is
+ * sorted with {@link Arrays#parallelSort(Object[], int, int, Comparator)}
+ * and written to a binary taps file in the spill directory on a background
+ * thread, while the next run is read. The runs are then merged, and the
+ * Taps of each PAN passed to a {@link TripProducer} in time order. When the
+ * PAN changes its trip in progress is completed, so only one trip is ever in
+ * progress and Trips are produced by the same rules as a TripProducer
+ * reading the taps in date time order. If all the Taps fit in one run
+ * nothing is written to disk.
+ *
+ * Trips are written grouped by PAN, rather than in the order of the Taps.
+ * Taps that can't be read or have an unknown stop are written to the errors
+ * file as they are read, in record order. Taps between stops without a charge
+ * are found while matching, so are written after them.
+ */
+public class SortingTripMatcher {
+
+    private static final Comparator<SortEntry> ORDER = Comparator
+            .comparing((SortEntry e) -> e.tap.getPAN())
+            .thenComparing(e -> e.tap.getDateTime())
+            .thenComparingLong(e -> e.recordNumber);
+
+    private final ChargeCalculator chargeCalc;
+    private final int runTaps;
+    private final Path spillDir;
+
+    /**
+     * Constructor.
+     * @param chargeCalc the charges of trips.
+     * @param runTaps the most Taps to sort in memory at a time. Up to twice
+     * this many are held while a run is being written.
+     * @param spillDir the directory to write the sorted runs to. They are
+     * deleted once matched.
+     */
+    public SortingTripMatcher(ChargeCalculator chargeCalc, int runTaps, Path spillDir) {
+        if (runTaps < 1) {
+            throw new IllegalArgumentException("runTaps must be at least 1: " + runTaps);
+        }
+        this.chargeCalc = chargeCalc;
+        this.runTaps = runTaps;
+        this.spillDir = spillDir;
+    }
+
+    /**
+     * Reads all the Taps, then matches them into Trips.
+     *
+     * @param taps the taps to match. Not closed.
+     * @param tripConsumer receives the Trips, grouped by PAN.
+     * @param tapErrCsvWriter where to write taps that can't be matched.
+     * @param metrics counts the taps matched and failed.
+     * @throws IOException if the taps can't be read, or the runs can't be
+     * written or read.
+     */
+    public void match(
+            TapSource taps,
+            Consumer<Trip> tripConsumer,
+            TapErrorCsvWriter tapErrCsvWriter,
+            BatchMetrics metrics) throws IOException {
+        List<Path> runFiles = new ArrayList<>();
+        ExecutorService runWriter = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "tap-run-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            SortEntry[] run = new SortEntry[Math.min(runTaps, 1024)];
+            int count = 0;
+            CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+            while (taps.nextRecord()) {
+                long recordNumber = taps.getRecordNumber();
+                Tap tap = taps.readTap();
+                TapError error = taps.getTapError();
+                // checked now so errors are written in record order
+                if (tap != null && chargeCalc.findStopIndexOfCode(tap.getStopCode()) == ChargeCalculator.UNKNOWN_STOP) {
+                    error = TapError.unknownStop(chargeCalc.getIdDictionary().decode(tap.getStopCode()));
+                    tap = null;
+                }
+                if (tap == null) {
+                    metrics.incrementTapReadErrors();
+                    tapErrCsvWriter.writeError(recordNumber, error);
+                    continue;
+                }
+                if (count == run.length) {
+                    if (count == runTaps) {
+                        await(written);
+                        written = writeRun(run, count, runFiles, runWriter);
+                        run = new SortEntry[runTaps];
+                        count = 0;
+                    } else {
+                        run = Arrays.copyOf(run, Math.min(runTaps, count * 2));
+                    }
+                }
+                run[count++] = new SortEntry(tap, recordNumber);
+            }
+            await(written);
+            Arrays.parallelSort(run, 0, count, ORDER);
+            merge(run, count, runFiles, tripConsumer, tapErrCsvWriter, metrics);
+        } finally {
+            runWriter.shutdownNow();
+            for (Path runFile : runFiles) {
+                Files.deleteIfExists(runFile);
+            }
+        }
+    }
+
+    private CompletableFuture<Void> writeRun(
+            SortEntry[] run,
+            int count,
+            List<Path> runFiles,
+            ExecutorService runWriter) throws IOException {
+        Path runFile = Files.createTempFile(spillDir, "taps-run", ".bin");
+        runFiles.add(runFile);
+        return CompletableFuture.runAsync(() -> {
+            Arrays.parallelSort(run, 0, count, ORDER);
+            try (TapBinaryWriter writer = new TapBinaryWriter(runFile, chargeCalc.getIdDictionary())) {
+                for (int i = 0; i < count; i++) {
+                    writer.write(run[i].tap, run[i].recordNumber);
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }, runWriter);
+    }
+
+    private static void await(CompletableFuture<Void> written) throws IOException {
+        try {
+            written.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted writing a sorted run", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw new IOException("Failed to write a sorted run", cause);
+        }
+    }
+
+    /**
+     * Merges the runs on disk and the last run in memory, passing each PAN's
+     * Taps to the TripProducer in turn.
+     */
+    private void merge(
+            SortEntry[] run,
+            int count,
+            List<Path> runFiles,
+            Consumer<Trip> tripConsumer,
+            TapErrorCsvWriter tapErrCsvWriter,
+            BatchMetrics metrics) throws IOException {
+        TripProducer tripProducer = new TripProducer(chargeCalc, tripConsumer);
+        PriorityQueue<RunHead> heads = new PriorityQueue<>(runFiles.size() + 1,
+                (a, b) -> ORDER.compare(a.entry, b.entry));
+        List<MappedTapBinaryReader> readers = new ArrayList<>();
+        try {
+            for (Path runFile : runFiles) {
+                MappedTapBinaryReader reader = new MappedTapBinaryReader(runFile, chargeCalc.getIdDictionary());
+                readers.add(reader);
+                RunHead head = new RunHead(reader, null, 0);
+                if (head.advance()) {
+                    heads.add(head);
+                }
+            }
+            RunHead memoryHead = new RunHead(null, run, count);
+            if (memoryHead.advance()) {
+                heads.add(memoryHead);
+            }
+            String pan = null;
+            while (!heads.isEmpty()) {
+                RunHead head = heads.poll();
+                Tap tap = head.entry.tap;
+                if (pan != null && !pan.equals(tap.getPAN())) {
+                    tripProducer.completeInProgress(pan);
+                }
+                pan = tap.getPAN();
+                TapError error = tripProducer.offerTap(tap);
+                if (error == null) {
+                    metrics.incrementTapsRead();
+                } else {
+                    metrics.incrementTapReadErrors();
+                    tapErrCsvWriter.writeError(head.entry.recordNumber, error);
+                }
+                if (head.advance()) {
+                    heads.add(head);
+                }
+            }
+            tripProducer.completePeriod();
+        } finally {
+            for (MappedTapBinaryReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * The next Tap of a sorted run, either on disk or in memory.
+     */
+    private static class RunHead {
+        private final MappedTapBinaryReader reader;
+        private final SortEntry[] run;
+        private final int count;
+        private int index;
+        private SortEntry entry;
+
+        RunHead(MappedTapBinaryReader reader, SortEntry[] run, int count) {
+            this.reader = reader;
+            this.run = run;
+            this.count = count;
+        }
+
+        boolean advance() throws IOException {
+            if (reader == null) {
+                if (index == count) {
+                    return false;
+                }
+                entry = run[index];
+                run[index++] = null;
+                return true;
+            }
+            if (!reader.nextRecord()) {
+                return false;
+            }
+            entry = new SortEntry(reader.getTap(), reader.getRecordNumber());
+            return true;
+        }
+    }
+
+    private static class SortEntry {
+        private final Tap tap;
+        private final long recordNumber;
+
+        SortEntry(Tap tap, long recordNumber) {
+            this.tap = tap;
+            this.recordNumber = recordNumber;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package au.id.simo.tap2trip.batch;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded ring buffer for passing items from one producer thread to one
+ * consumer thread without locking.
+ *
+ * Only one thread may call {@link #offer(Object)} and only one thread may
+ * call {@link #poll()}. Neither method waits, so the caller decides how to
+ * wait when the ring is full or empty.
+ *
+ * @param <T> the type of item passed.
+ */
+final class SpscRing<T> {
+
+    private final Object[] items;
+    private final int mask;
+    /**
+     * The index of the next item to poll. Only written by the consumer.
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * The index of the next item to offer. Only written by the producer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+    // the last head seen by the producer, to avoid reading it for every offer
+    private long producerHead;
+    // the last tail seen by the consumer, to avoid reading it for every poll
+    private long consumerTail;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the maximum number of items in the ring. Rounded up to
+     * a power of two.
+     */
+    SpscRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.items = new Object[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Adds an item to the ring. Producer thread only.
+     *
+     * @param item the item to add, must not be null.
+     * @return false if the ring is full.
+     */
+    boolean offer(T item) {
+        long t = tail.get();
+        if (t - producerHead == items.length) {
+            producerHead = head.get();
+            if (t - producerHead == items.length) {
+                return false;
+            }
+        }
+        items[(int) t & mask] = item;
+        // publishes the item to the consumer
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Removes the oldest item from the ring. Consumer thread only.
+     *
+     * @return the item, or null if the ring is empty.
+     */
+    @SuppressWarnings("unchecked")
+    T poll() {
+        long h = head.get();
+        if (h == consumerTail) {
+            consumerTail = tail.get();
+            if (h == consumerTail) {
+                return null;
+            }
+        }
+        int index = (int) h & mask;
+        T item = (T) items[index];
+        items[index] = null;
+        // frees the slot for the producer
+        head.lazySet(h + 1);
+        return item;
+    }
+
+    /**
+     * @return the number of items that can be held.
+     */
+    int capacity() {
+        return items.length;
+    }
+}
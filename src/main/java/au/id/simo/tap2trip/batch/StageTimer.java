@@ -0,0 +1,85 @@
+package au.id.simo.tap2trip.batch;
+
+/**
+ * Times a stage each time it runs, recording the time in {@link BatchMetrics}
+ * and as a {@link BatchEvents} JFR event. Every so often it also measures the
+ * CPU time used and the bytes allocated by the thread during the stage, see
+ * {@link BatchMetrics#recordUsage(BatchMetrics.Stage, long, long, int)}.
+ *
+ * Not thread safe, each thread timing a stage uses its own.
+ */
+final class StageTimer {
+
+    private final BatchMetrics metrics;
+    private final BatchMetrics.Stage stage;
+    private final int usageInterval;
+    private int untilUsage;
+    private boolean measuringUsage;
+    private long startNanos;
+    private long startCpuNanos;
+    private long startAllocatedBytes;
+    private BatchEvents.StageEvent event;
+
+    /**
+     * Constructor.
+     * @param metrics where to record the stage.
+     * @param stage the stage being timed.
+     * @param usageInterval the CPU time and bytes allocated are measured once
+     * every this many times the stage runs, as reading them costs more than
+     * reading the clock.
+     */
+    StageTimer(BatchMetrics metrics, BatchMetrics.Stage stage, int usageInterval) {
+        this.metrics = metrics;
+        this.stage = stage;
+        this.usageInterval = usageInterval;
+    }
+
+    /**
+     * Called when the stage starts.
+     */
+    void start() {
+        measuringUsage = ThreadUsage.SUPPORTED && --untilUsage <= 0;
+        if (measuringUsage) {
+            untilUsage = usageInterval;
+            startCpuNanos = ThreadUsage.cpuNanos();
+            startAllocatedBytes = ThreadUsage.allocatedBytes();
+        }
+        event = BatchEvents.begin(stage);
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Called when the stage ends.
+     * @param count the number of taps or trips handled.
+     */
+    void stop(int count) {
+        long nanos = System.nanoTime() - startNanos;
+        recordUsage(count);
+        BatchEvents.commit(event, count);
+        event = null;
+        metrics.recordStage(stage, nanos, count);
+    }
+
+    /**
+     * Called when a WRITE stage ends.
+     * @param count the number of trips written.
+     * @param bytes the number of bytes written.
+     */
+    void stop(int count, long bytes) {
+        long nanos = System.nanoTime() - startNanos;
+        recordUsage(count);
+        BatchEvents.commitWrite(event, count, bytes);
+        event = null;
+        metrics.recordStage(stage, nanos, count);
+    }
+
+    private void recordUsage(int count) {
+        if (measuringUsage) {
+            measuringUsage = false;
+            metrics.recordUsage(stage,
+                    ThreadUsage.cpuNanos() - startCpuNanos,
+                    ThreadUsage.allocatedBytes() - startAllocatedBytes,
+                    count);
+        }
+    }
+}
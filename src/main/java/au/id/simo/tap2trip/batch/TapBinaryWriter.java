@@ -0,0 +1,192 @@
+package au.id.simo.tap2trip.batch;
+
+import au.id.simo.tap2trip.IdDictionary;
+import au.id.simo.tap2trip.Tap;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes Taps to a binary file of fixed width records, so a taps file only
+ * needs to be parsed once however many times it is processed. See
+ * {@link MappedTapBinaryReader}.
+ *
+ * The file is laid out as, all big endian:
+ * <pre>
+ * int  {@link #MAGIC}
+ * int  {@link #VERSION}
+ * long number of records
+ * long file position of the ID table
+ * records of {@link #RECORD_SIZE} bytes:
+ *     long record number in the taps CSV file
+ *     long ID
+ *     long DateTimeUTC epoch seconds
+ *     long PAN, or -2 minus the ID table code of a PAN that is not a number
+ *     int  StopId, ID table code
+ *     int  CompanyId, ID table code
+ *     int  BusID, ID table code
+ *     int  DateTimeUTC nanoseconds shifted left by one, or'ed with the
+ *          TapType ordinal
+ * ID table:
+ *     int  number of IDs
+ *     int  UTF-8 length, then the bytes, for each ID in code order
+ * </pre>
+ * The header is written last, by {@link #close()}, so a file that was not
+ * completely written has no ID table position and is rejected by the reader.
+ *
+ * Not thread safe.
+ */
+public class TapBinaryWriter implements Closeable {
+
+    /**
+     * The first 4 bytes of a binary taps file, "T2TT".
+     */
+    public static final int MAGIC = 0x54325454;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 24;
+    public static final int RECORD_SIZE = 48;
+    private static final int BUFFER_RECORDS = 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_RECORDS * RECORD_SIZE);
+    private long recordCount;
+    /**
+     * The file's code of each IdDictionary code, plus one.
+     */
+    private int[] fileCodes = new int[1024];
+    private final IdDictionary dictionary;
+    private final Map<String, Integer> panCodes = new HashMap<>();
+    private final List<byte[]> ids = new ArrayList<>();
+
+    /**
+     * Creates or replaces the file.
+     *
+     * @param tapsBin the binary taps file to write.
+     * @param dictionary the dictionary the stop, company and bus IDs of the
+     * taps are encoded with.
+     * @throws IOException if the file can't be created.
+     */
+    public TapBinaryWriter(Path tapsBin, IdDictionary dictionary) throws IOException {
+        this.dictionary = dictionary;
+        this.channel = FileChannel.open(tapsBin,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING
+        );
+        channel.position(HEADER_SIZE);
+    }
+
+    /**
+     * Appends a Tap.
+     *
+     * @param tap the Tap to write.
+     * @param recordNumber the Tap's record number in the taps CSV file.
+     * @throws IOException if the file can't be written.
+     */
+    public void write(Tap tap, long recordNumber) throws IOException {
+        Instant dateTime = tap.getDateTime();
+        buffer.putLong(recordNumber);
+        buffer.putLong(tap.getId());
+        buffer.putLong(dateTime.getEpochSecond());
+        buffer.putLong(pan(tap.getPAN()));
+        buffer.putInt(fileCode(tap.getStopCode()));
+        buffer.putInt(fileCode(tap.getCompanyCode()));
+        buffer.putInt(fileCode(tap.getBusCode()));
+        buffer.putInt(dateTime.getNano() << 1 | tap.getTapType().ordinal());
+        recordCount++;
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the ID table and header, then closes the file.
+     *
+     * @throws IOException if the file can't be written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            long idTablePosition = channel.position();
+            int length = 4;
+            for (byte[] id : ids) {
+                length += 4 + id.length;
+            }
+            ByteBuffer table = ByteBuffer.allocate(length);
+            table.putInt(ids.size());
+            for (byte[] id : ids) {
+                table.putInt(id.length);
+                table.put(id);
+            }
+            table.flip();
+            writeFully(table);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putLong(recordCount)
+                    .putLong(idTablePosition)
+                    .flip();
+            channel.position(0);
+            writeFully(header);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer out) throws IOException {
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+    }
+
+    private int fileCode(int code) {
+        if (code == IdDictionary.NONE) {
+            return -1;
+        }
+        if (code >= fileCodes.length) {
+            fileCodes = Arrays.copyOf(fileCodes, Math.max(code + 1, fileCodes.length * 2));
+        }
+        int fileCode = fileCodes[code] - 1;
+        if (fileCode < 0) {
+            fileCode = ids.size();
+            ids.add(dictionary.getUtf8(code));
+            fileCodes[code] = fileCode + 1;
+        }
+        return fileCode;
+    }
+
+    private long pan(String pan) {
+        if (pan == null) {
+            return -1;
+        }
+        long numericPan = TripBinaryWriter.numericPan(pan);
+        if (numericPan >= 0) {
+            return numericPan;
+        }
+        Integer fileCode = panCodes.get(pan);
+        if (fileCode == null) {
+            fileCode = ids.size();
+            ids.add(pan.getBytes(StandardCharsets.UTF_8));
+            panCodes.put(pan, fileCode);
+        }
+        return -2L - fileCode;
+    }
+}
@@ -0,0 +1,675 @@
+package au.id.simo.tap2trip.batch;
+
+import au.id.simo.tap2trip.IdDictionary;
+import au.id.simo.tap2trip.Tap;
+import au.id.simo.tap2trip.TapError;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * Reads Taps directly from the raw bytes of a UTF-8 (or ASCII) taps CSV file.
+ *
+ * This is a replacement for reading the taps file with a commons-csv
+ * {@code CSVParser} and
+ * {@link Batch#parseTap(org.apache.commons.csv.CSVRecord, IdDictionary)}.
+ * Records are found by scanning the bytes in place, the ID and timestamp
+ * columns are parsed straight into primitives, and the only objects created
+ * per record are the ones kept by the resulting {@link Tap}.
+ *
+ * The produced Taps, record numbers and {@link TapParsingException} messages
+ * are the same as those of the commons-csv {@code CSVFormat.DEFAULT} format
+ * with the {@link Batch.TapCSVCols} header skipped. {@link #readTap()} checks
+ * each column without throwing, and builds the messages the JDK parsing
+ * methods would give from templates. The message for a missing column only
+ * depends on how many columns the record has, so it is built once for each
+ * count.
+ *
+ * Not thread safe.
+ */
+public class TapCsvReader implements TapSource {
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final int COMMA = ',';
+    private static final int QUOTE = '"';
+    private static final int CR = '\r';
+    private static final int LF = '\n';
+    /**
+     * Returned by read() when there is no more input.
+     */
+    private static final int END_OF_STREAM = -1;
+    /**
+     * Value of lastByte before anything has been read.
+     */
+    private static final int UNDEFINED = -2;
+
+    // token types
+    private static final int TOKEN = 0;
+    private static final int EORECORD = 1;
+    private static final int EOF = 2;
+
+    private static final Tap.Type[] TAP_TYPES = Tap.Type.values();
+    private static final Batch.TapCSVCols[] COLS = Batch.TapCSVCols.values();
+    private static final String PARSE_ERROR = "Error in parsing Tap";
+    /**
+     * The start of the message of {@code Tap.Type.valueOf()} for a value that
+     * is not a type.
+     */
+    private static final String NO_TAP_TYPE = "No enum constant " + Tap.Type.class.getCanonicalName() + ".";
+
+    private final InputStream in;
+    private final IdDictionary ids;
+    private byte[] buf;
+    /**
+     * Index of the next unread byte in buf.
+     */
+    private int pos;
+    /**
+     * Index after the last valid byte in buf.
+     */
+    private int limit;
+    private boolean endOfInput;
+    /**
+     * The last byte returned by read(). Used for empty line detection and line
+     * numbers in error messages.
+     */
+    private int lastByte = UNDEFINED;
+    /**
+     * Count of line breaks read so far.
+     */
+    private long lineBreaks;
+    private boolean headerSkipped;
+    private long recordNumber;
+
+    /**
+     * Start of the record currently being read. Bytes before this index may
+     * be discarded when the buffer is refilled.
+     */
+    private int recordStart;
+    private int tokenStart;
+    private int tokenEnd;
+    private int fieldCount;
+    private int[] fieldStart = new int[COLS.length + 1];
+    private int[] fieldEnd = new int[COLS.length + 1];
+
+    private final DateTimeCodec dateTimeCodec = new DateTimeCodec();
+    /**
+     * The error for a record with each number of columns less than needed.
+     */
+    private final TapError[] missingColumns = new TapError[COLS.length];
+    private TapError tapError;
+
+    /**
+     * Constructor.
+     * @param in the taps CSV file contents, including the header line. It is
+     * read in large blocks so does not need to be buffered. It will be closed
+     * when this reader is closed.
+     * @param ids the dictionary to encode the stop, company and bus IDs with.
+     */
+    public TapCsvReader(InputStream in, IdDictionary ids) {
+        this(in, ids, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * @param in the taps CSV file contents. It will be closed when this reader
+     * is closed.
+     * @param ids the dictionary to encode the stop, company and bus IDs with.
+     * @param bufferSize the initial read buffer size in bytes. The buffer will
+     * grow if a single record is larger than this.
+     */
+    public TapCsvReader(InputStream in, IdDictionary ids, int bufferSize) {
+        this.in = in;
+        this.ids = ids;
+        this.buf = new byte[Math.max(bufferSize, 16)];
+    }
+
+    /**
+     * Constructor for reading a part of a taps CSV file that starts on a new
+     * line after the header, such as a chunk of a larger file.
+     *
+     * @param in the part of the taps CSV file to read.
+     * @param ids the dictionary to encode the stop, company and bus IDs with.
+     * @param bufferSize the initial read buffer size in bytes.
+     * @param recordNumber the number of records before this part of the file.
+     * @param lineBreaks the number of line breaks before this part of the
+     * file. Only used in error messages.
+     */
+    TapCsvReader(InputStream in, IdDictionary ids, int bufferSize, long recordNumber, long lineBreaks) {
+        this(in, ids, bufferSize);
+        this.headerSkipped = true;
+        this.recordNumber = recordNumber;
+        this.lineBreaks = lineBreaks;
+        this.lastByte = LF;
+    }
+
+    /**
+     * Advances to the next tap record, skipping the header record if it hasn't
+     * been read yet.
+     *
+     * @return true if a record was read, false if there are no more records.
+     * @throws IOException if the input can not be read, or it is not a valid
+     * CSV file. e.g. an unterminated quoted field.
+     */
+    @Override
+    public boolean nextRecord() throws IOException {
+        if (!headerSkipped) {
+            headerSkipped = true;
+            if (!readRecord()) {
+                return false;
+            }
+        }
+        if (!readRecord()) {
+            return false;
+        }
+        recordNumber++;
+        return true;
+    }
+
+    /**
+     * @return the number of the current record. The first record after the
+     * header is 1.
+     */
+    @Override
+    public long getRecordNumber() {
+        return recordNumber;
+    }
+
+    /**
+     * @return number of fields in the current record.
+     */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * @return the number of line breaks read so far.
+     */
+    long getLineBreaks() {
+        return lineBreaks;
+    }
+
+    /**
+     * Parses the current record into a Tap, checking the columns in file
+     * order.
+     *
+     * @return the Tap of the current record, or null if any column is missing
+     * or can not be parsed.
+     */
+    @Override
+    public Tap readTap() {
+        tapError = null;
+        if (fieldCount <= Batch.TapCSVCols.ID.ordinal()) {
+            return missingColumn();
+        }
+        long id = readId();
+        if (tapError != null) {
+            return null;
+        }
+        if (fieldCount <= Batch.TapCSVCols.DateTimeUTC.ordinal()) {
+            return missingColumn();
+        }
+        int col = Batch.TapCSVCols.DateTimeUTC.ordinal();
+        int s = trimStart(col);
+        long epochSecond = dateTimeCodec.tryParseEpochSecond(buf, s, trimEnd(col, s));
+        if (epochSecond == DateTimeCodec.INVALID) {
+            return invalid(dateTimeCodec.getParseError());
+        }
+        if (fieldCount <= Batch.TapCSVCols.TapType.ordinal()) {
+            return missingColumn();
+        }
+        Tap.Type tapType = readTapType();
+        if (tapType == null) {
+            return null;
+        }
+        if (fieldCount < COLS.length) {
+            return missingColumn();
+        }
+        return new Tap(
+                ids,
+                id,
+                Instant.ofEpochSecond(epochSecond),
+                tapType,
+                code(Batch.TapCSVCols.StopId),
+                code(Batch.TapCSVCols.CompanyId),
+                code(Batch.TapCSVCols.BusID),
+                string(Batch.TapCSVCols.PAN)
+        );
+    }
+
+    @Override
+    public TapError getTapError() {
+        return tapError;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    // ---- Column parsing ----
+
+    /**
+     * Parses the ID column the same as {@code Long.parseLong()}, setting
+     * tapError with its message instead of throwing.
+     */
+    private long readId() {
+        int col = Batch.TapCSVCols.ID.ordinal();
+        int s = trimStart(col);
+        int e = trimEnd(col, s);
+        int i = s;
+        boolean negative = false;
+        if (i < e && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+        // up to 18 digits can not overflow a long
+        if (i < e && e - i <= 18) {
+            long value = 0;
+            for (; i < e; i++) {
+                int digit = buf[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    return readLong(decode(s, e));
+                }
+                value = value * 10 + digit;
+            }
+            return negative ? -value : value;
+        }
+        return readLong(decode(s, e));
+    }
+
+    /**
+     * The checks of {@code Long.parseLong()}, which also accepts non-ASCII
+     * digits.
+     */
+    private long readLong(String value) {
+        int length = value.length();
+        int i = 0;
+        boolean negative = false;
+        long limit = -Long.MAX_VALUE;
+        if (length > 0 && value.charAt(0) < '0') {
+            char first = value.charAt(0);
+            if (first == '-') {
+                negative = true;
+                limit = Long.MIN_VALUE;
+            } else if (first != '+') {
+                return notALong(value);
+            }
+            i++;
+        }
+        if (i == length) {
+            return notALong(value);
+        }
+        // accumulated negatively, as Long.MIN_VALUE has no positive
+        long multmin = limit / 10;
+        long result = 0;
+        while (i < length) {
+            int digit = Character.digit(value.charAt(i++), 10);
+            if (digit < 0 || result < multmin) {
+                return notALong(value);
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                return notALong(value);
+            }
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    private long notALong(String value) {
+        invalid("For input string: \"" + value + "\"");
+        return 0;
+    }
+
+    /**
+     * @return the type, or null with tapError set if it is not a type.
+     */
+    private Tap.Type readTapType() {
+        int col = Batch.TapCSVCols.TapType.ordinal();
+        int s = trimStart(col);
+        int e = trimEnd(col, s);
+        for (Tap.Type type : TAP_TYPES) {
+            if (equalsAscii(s, e, type.name())) {
+                return type;
+            }
+        }
+        // a non-ASCII value never matches a name
+        return invalid(NO_TAP_TYPE + decode(s, e));
+    }
+
+    /**
+     * Sets tapError for the first column missing from the current record.
+     * @return null, in place of the Tap.
+     */
+    private Tap missingColumn() {
+        TapError error = missingColumns[fieldCount];
+        if (error == null) {
+            error = new TapError(TapError.Code.INVALID_TAP, PARSE_ERROR, String.format(
+                    "Index for header '%s' is %d but CSVRecord only has %d values!",
+                    COLS[fieldCount].name(),
+                    fieldCount,
+                    fieldCount));
+            missingColumns[fieldCount] = error;
+        }
+        tapError = error;
+        return null;
+    }
+
+    /**
+     * Sets tapError for a column that can not be parsed.
+     * @return null, in place of the Tap or column value.
+     */
+    private <T> T invalid(String detail) {
+        tapError = new TapError(TapError.Code.INVALID_TAP, PARSE_ERROR, detail);
+        return null;
+    }
+
+    private String string(Batch.TapCSVCols column) {
+        int col = column.ordinal();
+        int s = trimStart(col);
+        return decode(s, trimEnd(col, s));
+    }
+
+    /**
+     * Encodes the trimmed column with the IdDictionary, without
+     * creating a String unless it is a new ID.
+     */
+    private int code(Batch.TapCSVCols column) {
+        int col = column.ordinal();
+        int s = trimStart(col);
+        return ids.encode(buf, s, trimEnd(col, s) - s);
+    }
+
+    /**
+     * Same as String.trim(), all chars at or below space are removed. UTF-8
+     * multi-byte sequences never contain such bytes.
+     */
+    private int trimStart(int col) {
+        int s = fieldStart[col];
+        int e = fieldEnd[col];
+        while (s < e && (buf[s] & 0xFF) <= ' ') {
+            s++;
+        }
+        return s;
+    }
+
+    private int trimEnd(int col, int trimmedStart) {
+        int e = fieldEnd[col];
+        while (e > trimmedStart && (buf[e - 1] & 0xFF) <= ' ') {
+            e--;
+        }
+        return e;
+    }
+
+    private String decode(int s, int e) {
+        return new String(buf, s, e - s, StandardCharsets.UTF_8);
+    }
+
+    private boolean equalsAscii(int s, int e, String str) {
+        if (e - s != str.length()) {
+            return false;
+        }
+        for (int i = 0; i < str.length(); i++) {
+            if (buf[s + i] != str.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ---- CSV lexing ----
+    // Follows the commons-csv Lexer for CSVFormat.DEFAULT, so records split,
+    // empty lines and quoted fields are handled the same way.
+
+    /**
+     * Reads the fields of the next record.
+     * @return false if there are no more records.
+     */
+    private boolean readRecord() throws IOException {
+        fieldCount = 0;
+        recordStart = pos;
+        int type;
+        do {
+            type = nextToken();
+        } while (type == TOKEN);
+        return fieldCount > 0;
+    }
+
+    private int nextToken() throws IOException {
+        int lastChar = lastByte;
+        int c = readEndOfLine(read());
+        boolean eol = isEndOfLine(c);
+        // ignore empty lines
+        while (eol && isStartOfLine(lastChar)) {
+            lastChar = c;
+            c = readEndOfLine(read());
+            eol = isEndOfLine(c);
+            if (c == END_OF_STREAM) {
+                return EOF;
+            }
+        }
+        if (lastChar == END_OF_STREAM || (lastChar != COMMA && c == END_OF_STREAM)) {
+            return EOF;
+        }
+        if (c == COMMA) {
+            addField(pos - 1, pos - 1);
+            return TOKEN;
+        }
+        if (eol) {
+            addField(pos, pos);
+            return EORECORD;
+        }
+        if (c == QUOTE) {
+            return parseEncapsulatedToken();
+        }
+        if (c == END_OF_STREAM) {
+            addField(pos, pos);
+            return EOF;
+        }
+        return parseSimpleToken();
+    }
+
+    /**
+     * Reads an unquoted field, the first byte of which has just been read.
+     */
+    private int parseSimpleToken() throws IOException {
+        tokenStart = pos - 1;
+        while (true) {
+            // scan directly over the buffer until a special byte is found
+            byte[] b = buf;
+            int i = pos;
+            int l = limit;
+            while (i < l) {
+                byte v = b[i];
+                if (v == COMMA || v == LF || v == CR) {
+                    break;
+                }
+                i++;
+            }
+            lastByte = i > pos ? b[i - 1] & 0xFF : lastByte;
+            pos = i;
+            int c = read();
+            if (c == COMMA) {
+                addField(tokenStart, pos - 1);
+                return TOKEN;
+            }
+            if (c == END_OF_STREAM) {
+                addField(tokenStart, pos);
+                return EOF;
+            }
+            if (c == CR || c == LF) {
+                addField(tokenStart, pos - 1);
+                readEndOfLine(c);
+                return EORECORD;
+            }
+        }
+    }
+
+    /**
+     * Reads a quoted field. The opening quote has just been read. The unquoted
+     * content is written back over the buffer, as it is never longer than the
+     * quoted bytes.
+     */
+    private int parseEncapsulatedToken() throws IOException {
+        long startLineNumber = getCurrentLineNumber();
+        tokenStart = pos;
+        tokenEnd = pos;
+        while (true) {
+            int c = read();
+            if (c == QUOTE) {
+                if (peek() == QUOTE) {
+                    // double quote escape
+                    read();
+                    buf[tokenEnd++] = QUOTE;
+                } else {
+                    addField(tokenStart, tokenEnd);
+                    // only whitespace may follow the closing quote
+                    while (true) {
+                        c = read();
+                        if (c == COMMA) {
+                            return TOKEN;
+                        } else if (c == END_OF_STREAM) {
+                            return EOF;
+                        } else if (isEndOfLine(readEndOfLine(c))) {
+                            return EORECORD;
+                        } else if (!isWhitespace(c)) {
+                            throw new IOException("(line "
+                                    + getCurrentLineNumber()
+                                    + ") invalid char between encapsulated token and delimiter");
+                        }
+                    }
+                }
+            } else if (c == END_OF_STREAM) {
+                throw new IOException("(startline "
+                        + startLineNumber
+                        + ") EOF reached before encapsulated token finished");
+            } else {
+                buf[tokenEnd++] = (byte) c;
+            }
+        }
+    }
+
+    /**
+     * Same as the commons-csv whitespace check, Character.isWhitespace() on the
+     * decoded char. Non-ASCII whitespace is all encoded in 3 UTF-8 bytes.
+     */
+    private boolean isWhitespace(int c) throws IOException {
+        if (c < 0x80) {
+            return Character.isWhitespace(c);
+        }
+        if ((c & 0xF0) != 0xE0) {
+            return false;
+        }
+        int b2 = peek();
+        if ((b2 & 0xC0) != 0x80) {
+            return false;
+        }
+        read();
+        int b3 = peek();
+        if ((b3 & 0xC0) != 0x80) {
+            return false;
+        }
+        read();
+        return Character.isWhitespace(((c & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F));
+    }
+
+    private void addField(int start, int end) {
+        if (fieldCount == fieldStart.length) {
+            fieldStart = Arrays.copyOf(fieldStart, fieldCount * 2);
+            fieldEnd = Arrays.copyOf(fieldEnd, fieldCount * 2);
+        }
+        fieldStart[fieldCount] = start;
+        fieldEnd[fieldCount] = end;
+        fieldCount++;
+    }
+
+    /**
+     * Consumes the LF of a CRLF pair.
+     * @return LF if a CRLF pair was read, otherwise the provided byte.
+     */
+    private int readEndOfLine(int c) throws IOException {
+        if (c == CR && peek() == LF) {
+            return read();
+        }
+        return c;
+    }
+
+    private static boolean isEndOfLine(int c) {
+        return c == LF || c == CR;
+    }
+
+    private static boolean isStartOfLine(int c) {
+        return c == LF || c == CR || c == UNDEFINED;
+    }
+
+    /**
+     * Same as the commons-csv line number, the line break counter is only
+     * incremented once a line break is read.
+     */
+    private long getCurrentLineNumber() {
+        if (lastByte == CR || lastByte == LF || lastByte == UNDEFINED || lastByte == END_OF_STREAM) {
+            return lineBreaks;
+        }
+        return lineBreaks + 1;
+    }
+
+    private int read() throws IOException {
+        if (pos == limit && !fill()) {
+            lastByte = END_OF_STREAM;
+            return END_OF_STREAM;
+        }
+        int c = buf[pos++] & 0xFF;
+        if (c == CR || (c == LF && lastByte != CR)) {
+            lineBreaks++;
+        }
+        lastByte = c;
+        return c;
+    }
+
+    private int peek() throws IOException {
+        if (pos == limit && !fill()) {
+            return END_OF_STREAM;
+        }
+        return buf[pos] & 0xFF;
+    }
+
+    /**
+     * Reads more of the input into the buffer, discarding any bytes before the
+     * current record and growing the buffer if the current record fills it.
+     * @return false if there is no more input.
+     */
+    private boolean fill() throws IOException {
+        if (endOfInput) {
+            return false;
+        }
+        int shift = recordStart;
+        if (shift > 0) {
+            System.arraycopy(buf, shift, buf, 0, limit - shift);
+            for (int i = 0; i < fieldCount; i++) {
+                fieldStart[i] -= shift;
+                fieldEnd[i] -= shift;
+            }
+            recordStart = 0;
+            tokenStart -= shift;
+            tokenEnd -= shift;
+            pos -= shift;
+            limit -= shift;
+        } else if (limit == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        int read;
+        do {
+            read = in.read(buf, limit, buf.length - limit);
+        } while (read == 0);
+        if (read < 0) {
+            endOfInput = true;
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+}
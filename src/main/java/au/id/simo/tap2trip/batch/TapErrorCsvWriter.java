@@ -1,9 +1,11 @@
 package au.id.simo.tap2trip.batch;
 
+import au.id.simo.tap2trip.TapError;
+import java.io.Closeable;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.Writer;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVPrinter;
+import java.util.Arrays;
 
 /**
  * Writes Tap parsing and processing errors.
@@ -12,42 +14,179 @@ import org.apache.commons.csv.CSVPrinter;
  * <pre>
  * Record No.,Message
  * </pre>
+ * Line endings will always be {@code \r\n}
+ *
+ * Fields are quoted the same way as commons-csv's {@code CSVFormat.DEFAULT}.
+ * Errors are appended to a reusable char buffer, which is passed to the
+ * Writer in large blocks, so {@link #flush()} or {@link #close()} must be
+ * called once all errors have been written. The message of each
+ * {@link TapError} is already built, and shared by errors with the same
+ * cause, so writing an error only copies it.
  */
-public class TapErrorCsvWriter {
-    
-    private final CSVPrinter errorCsvPrinter;
+public class TapErrorCsvWriter implements Closeable, Flushable {
+
+    private static final String HEADER = "Record No.,Message\r\n";
+    /**
+     * The buffer is passed to the Writer once it holds this many chars.
+     */
+    private static final int BLOCK_SIZE = 32 * 1024;
+
+    private final Writer writer;
+    private final StageTimer errorTimer;
+    private char[] buf = new char[BLOCK_SIZE + 256];
+    private int len;
     
-    public TapErrorCsvWriter(Writer writer) throws IOException {
-        CSVFormat tapsErrFormat = CSVFormat.DEFAULT.builder()
-                .setHeader("Record No.", "Message")
-                .build();
-        errorCsvPrinter = tapsErrFormat.print(writer);
+    public TapErrorCsvWriter(Writer writer) {
+        this(writer, null);
     }
-    
-    public void writeError(long recordNumber, Throwable exception) throws IOException{
-        errorCsvPrinter.printRecord(
-                recordNumber,
-                buildExceptionMessage(exception)
-        );
+
+    /**
+     * Constructor, timing the errors written as the ERROR stage.
+     * @param writer where to write the errors. Closed by {@link #close()}.
+     * @param metrics where to record the ERROR stage, or null to not record
+     * it.
+     */
+    public TapErrorCsvWriter(Writer writer, BatchMetrics metrics) {
+        this.writer = writer;
+        this.errorTimer = metrics == null ? null : new StageTimer(metrics, BatchMetrics.Stage.ERROR, 1);
+        append(HEADER);
     }
     
     /**
-     * Builds a one line message from a thrown exception that also includes all
-     * causedBy exceptions in the chain.
-     * 
-     * @param ex the exception to make the message from.
-     * @return the concatenated error messages of all exceptions in the caused
-     * by chain.
+     * Writes one error.
+     * @param recordNumber the record number of the rejected Tap.
+     * @param error why the Tap was rejected.
+     * @throws IOException if the buffered errors can't be written.
      */
-    private static String buildExceptionMessage(Throwable ex) {
-        StringBuilder sb = new StringBuilder();
-        Throwable currEx = ex;
+    public void writeError(long recordNumber, TapError error) throws IOException {
+        if (errorTimer != null) {
+            errorTimer.start();
+        }
+        appendError(recordNumber, error);
+        if (len >= BLOCK_SIZE) {
+            writeBuffer();
+        }
+        if (errorTimer != null) {
+            errorTimer.stop(1);
+        }
+    }
+
+    /**
+     * Writes the errors of a block of taps, in order.
+     * @param recordNumbers the record number of each rejected Tap.
+     * @param errors why each Tap was rejected.
+     * @param count the number of errors to write from the start of the
+     * arrays.
+     * @throws IOException if the buffered errors can't be written.
+     */
+    public void writeErrors(long[] recordNumbers, TapError[] errors, int count) throws IOException {
+        if (count == 0) {
+            return;
+        }
+        if (errorTimer != null) {
+            errorTimer.start();
+        }
+        for (int i = 0; i < count; i++) {
+            appendError(recordNumbers[i], errors[i]);
+            if (len >= BLOCK_SIZE) {
+                writeBuffer();
+            }
+        }
+        if (errorTimer != null) {
+            errorTimer.stop(count);
+        }
+    }
+
+    /**
+     * Writes any buffered errors and flushes the Writer.
+     * @throws IOException if the errors can't be written.
+     */
+    @Override
+    public void flush() throws IOException {
+        writeBuffer();
+        writer.flush();
+    }
+
+    /**
+     * Writes any buffered errors, then closes the Writer.
+     * @throws IOException if the errors can't be written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            writeBuffer();
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void appendError(long recordNumber, TapError error) {
+        BatchEvents.tapError(recordNumber, error);
+        appendLong(recordNumber);
+        append(',');
+        String message = error.getMessage();
+        if (TripCsvWriter.needsQuotes(message)) {
+            append('"');
+            int start = 0;
+            int quote;
+            while ((quote = message.indexOf('"', start)) >= 0) {
+                // a quote is escaped by doubling it
+                append(message, start, quote + 1);
+                append('"');
+                start = quote + 1;
+            }
+            append(message, start, message.length());
+            append('"');
+        } else {
+            append(message, 0, message.length());
+        }
+        append('\r');
+        append('\n');
+    }
+
+    private void writeBuffer() throws IOException {
+        writer.write(buf, 0, len);
+        len = 0;
+    }
+
+    private void appendLong(long value) {
+        if (value < 0 || value > 999_999_999_999_999_999L) {
+            append(Long.toString(value));
+            return;
+        }
+        ensureRoom(19);
+        int start = len;
         do {
-            sb.append(currEx.getMessage());
-            sb.append(": ");
-            currEx = currEx.getCause();
-        } while(currEx != null);
-        sb.delete(sb.length()-2, sb.length());
-        return sb.toString();
+            buf[len++] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        // digits were written least significant first
+        for (int i = start, j = len - 1; i < j; i++, j--) {
+            char tmp = buf[i];
+            buf[i] = buf[j];
+            buf[j] = tmp;
+        }
+    }
+
+    private void append(String value) {
+        append(value, 0, value.length());
+    }
+
+    private void append(String value, int start, int end) {
+        ensureRoom(end - start);
+        value.getChars(start, end, buf, len);
+        len += end - start;
+    }
+
+    private void append(char c) {
+        ensureRoom(1);
+        buf[len++] = c;
+    }
+
+    private void ensureRoom(int chars) {
+        int needed = len + chars;
+        if (needed > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(needed, buf.length * 2));
+        }
     }
 }
@@ -1,5 +1,7 @@
 package au.id.simo.tap2trip.batch;
 
+import au.id.simo.tap2trip.TapError;
+
 /**
  * Specialised exception for flagging errors in parsing Taps.
  */
@@ -12,4 +14,23 @@ public class TapParsingException extends Exception {
     public TapParsingException(String message, Throwable cause) {
         super(message, cause);
     }
+
+    /**
+     * Creates the exception for an error returned in place of a Tap. The
+     * messages of the exception and its cause are those of the error.
+     * @param error why the Tap could not be read.
+     */
+    public TapParsingException(TapError error) {
+        super(error.getReason(), cause(error));
+    }
+
+    private static Throwable cause(TapError error) {
+        if (error.getCause() != null) {
+            return error.getCause();
+        }
+        if (error.getDetail() != null) {
+            return new IllegalArgumentException(error.getDetail());
+        }
+        return null;
+    }
 }
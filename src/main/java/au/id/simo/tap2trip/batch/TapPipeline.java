@@ -0,0 +1,305 @@
+package au.id.simo.tap2trip.batch;
+
+import au.id.simo.tap2trip.Tap;
+import au.id.simo.tap2trip.TapError;
+import au.id.simo.tap2trip.Trip;
+import au.id.simo.tap2trip.TripProducer;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Runs the batch process as a pipeline of three stages, so reading taps,
+ * matching them into trips and writing the output files overlap.
+ * <ol>
+ * <li>The reader thread reads Taps from the TapSource in blocks.</li>
+ * <li>The matcher thread passes them to a TripProducer, collecting the Trips
+ * produced and the Taps rejected.</li>
+ * <li>The calling thread writes the Trips and errors, and updates the
+ * BatchMetrics.</li>
+ * </ol>
+ * Blocks are passed between the stages through bounded {@link SpscRing}s, so
+ * a stage that falls behind slows down the stages before it. Every stage
+ * handles the blocks in order, so the files written are the same as when all
+ * stages run on the calling thread.
+ *
+ * If any stage fails the other stages stop at their next block, and
+ * {@link #run(TripProducer, Path)} throws the first failure, with any later
+ * failures suppressed by it.
+ */
+final class TapPipeline {
+
+    /**
+     * Number of Taps passed between stages at a time.
+     */
+    private static final int BLOCK_SIZE = 1024;
+    /**
+     * Number of blocks that can be waiting for each stage.
+     */
+    private static final int RING_CAPACITY = 16;
+    /**
+     * Number of times to yield while waiting, before parking.
+     */
+    private static final int SPINS = 100;
+    private static final long PARK_NANOS = 50_000;
+
+    private final TapSource taps;
+    private final TripWriter tripWriter;
+    private final TapErrorCsvWriter tapErrCsvWriter;
+    private final BatchMetrics metrics;
+    private final SpscRing<TapBlock> tapRing = new SpscRing<>(RING_CAPACITY);
+    private final SpscRing<ResultBlock> resultRing = new SpscRing<>(RING_CAPACITY);
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    /**
+     * The block the matcher thread is collecting results in.
+     */
+    private ResultBlock results = new ResultBlock();
+
+    /**
+     * Constructor.
+     *
+     * @param taps the taps to process. Only read from the reader thread.
+     * @param tripWriter written to from the calling thread.
+     * @param tapErrCsvWriter written to from the calling thread.
+     * @param metrics stage times are recorded from each stage's thread, the
+     * counts from the calling thread.
+     */
+    TapPipeline(
+            TapSource taps,
+            TripWriter tripWriter,
+            TapErrorCsvWriter tapErrCsvWriter,
+            BatchMetrics metrics) {
+        this.taps = taps;
+        this.tripWriter = tripWriter;
+        this.tapErrCsvWriter = tapErrCsvWriter;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the trip consumer to construct the TripProducer passed to
+     * {@link #run(TripProducer, Path)} with.
+     */
+    Consumer<Trip> tripConsumer() {
+        return this::tripProduced;
+    }
+
+    /**
+     * Runs all the stages, returning once every Tap has been read and all
+     * output written.
+     *
+     * @param tripProducer the TripProducer to match with, constructed with
+     * {@link #tripConsumer()}. Only used from the matcher thread.
+     * @param inProgressSnapshot where to save the trips in progress at the
+     * end, or null to complete the period.
+     * @throws IOException if a stage failed to read or write.
+     * @throws IllegalStateException if a stage failed for any other reason.
+     */
+    void run(TripProducer tripProducer, Path inProgressSnapshot) throws IOException {
+        Thread reader = new Thread(this::runReader, "tap-reader");
+        Thread matcher = new Thread(() -> runMatcher(tripProducer, inProgressSnapshot), "trip-matcher");
+        reader.setDaemon(true);
+        matcher.setDaemon(true);
+        reader.start();
+        matcher.start();
+        try {
+            runWriter();
+        } catch (Throwable t) {
+            fail(t);
+        }
+        try {
+            reader.join();
+            matcher.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            fail(ex);
+            reader.interrupt();
+            matcher.interrupt();
+        }
+        Throwable t = failure.get();
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t != null) {
+            throw new IllegalStateException("Pipeline stage failed", t);
+        }
+    }
+
+    // ---- reader thread ----
+
+    private void runReader() {
+        try {
+            StageTimer timer = new StageTimer(metrics, BatchMetrics.Stage.PARSE, 1);
+            TapBlock block = new TapBlock();
+            timer.start();
+            while (taps.nextRecord()) {
+                Tap tap = taps.readTap();
+                block.add(tap, taps.getRecordNumber(), tap == null ? taps.getTapError() : null);
+                if (block.count == BLOCK_SIZE) {
+                    timer.stop(block.count);
+                    put(tapRing, block);
+                    block = new TapBlock();
+                    timer.start();
+                }
+            }
+            timer.stop(block.count);
+            block.last = true;
+            put(tapRing, block);
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    // ---- matcher thread ----
+
+    private void runMatcher(TripProducer tripProducer, Path inProgressSnapshot) {
+        try {
+            StageTimer timer = new StageTimer(metrics, BatchMetrics.Stage.MATCH, 1);
+            while (true) {
+                TapBlock block = take(tapRing);
+                timer.start();
+                for (int i = 0; i < block.count; i++) {
+                    TapError error = block.errors[i];
+                    if (error == null) {
+                        error = tripProducer.offerTap(block.taps[i]);
+                    }
+                    if (error == null) {
+                        results.tapsRead++;
+                    } else {
+                        results.addError(block.recordNumbers[i], error);
+                    }
+                }
+                timer.stop(block.count);
+                if (block.last) {
+                    if (inProgressSnapshot != null) {
+                        tripProducer.saveInProgress(inProgressSnapshot);
+                    } else {
+                        tripProducer.completePeriod();
+                    }
+                    results.last = true;
+                    put(resultRing, results);
+                    return;
+                }
+                put(resultRing, results);
+                results = new ResultBlock();
+            }
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    private void tripProduced(Trip trip) {
+        if (results.tripCount == BLOCK_SIZE) {
+            // completing the period produces many trips at once
+            put(resultRing, results);
+            results = new ResultBlock();
+        }
+        results.trips[results.tripCount++] = trip;
+    }
+
+    // ---- writer, the calling thread ----
+
+    private void runWriter() throws IOException {
+        while (true) {
+            ResultBlock block = take(resultRing);
+            for (int i = 0; i < block.tripCount; i++) {
+                tripWriter.accept(block.trips[i]);
+            }
+            metrics.addTapReadErrors(block.errorCount);
+            tapErrCsvWriter.writeErrors(block.errorRecordNumbers, block.errors, block.errorCount);
+            metrics.addTapsRead(block.tapsRead);
+            if (block.last) {
+                return;
+            }
+        }
+    }
+
+    // ---- shared ----
+
+    private void fail(Throwable t) {
+        if (!failure.compareAndSet(null, t)) {
+            Throwable first = failure.get();
+            if (first != t) {
+                first.addSuppressed(t);
+            }
+        }
+    }
+
+    private void checkFailure() {
+        if (failure.get() != null) {
+            throw new IllegalStateException("Another pipeline stage failed");
+        }
+    }
+
+    /**
+     * Puts the block on the ring, waiting for space. Gives up if any stage
+     * fails so that a failure can not leave the other stages waiting.
+     */
+    private <T> void put(SpscRing<T> ring, T block) {
+        for (int idle = 0; !ring.offer(block); idle++) {
+            idle(idle);
+        }
+    }
+
+    private <T> T take(SpscRing<T> ring) {
+        T block;
+        for (int idle = 0; (block = ring.poll()) == null; idle++) {
+            idle(idle);
+        }
+        return block;
+    }
+
+    private void idle(int idle) {
+        checkFailure();
+        if (idle < SPINS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for another pipeline stage");
+            }
+        }
+    }
+
+    /**
+     * A block of read Taps, or the errors reading them.
+     */
+    private static final class TapBlock {
+        private final Tap[] taps = new Tap[BLOCK_SIZE];
+        private final long[] recordNumbers = new long[BLOCK_SIZE];
+        private final TapError[] errors = new TapError[BLOCK_SIZE];
+        private int count;
+        private boolean last;
+
+        private void add(Tap tap, long recordNumber, TapError error) {
+            taps[count] = tap;
+            recordNumbers[count] = recordNumber;
+            errors[count] = error;
+            count++;
+        }
+    }
+
+    /**
+     * The Trips and rejected Taps from matching a block of Taps.
+     */
+    private static final class ResultBlock {
+        private final Trip[] trips = new Trip[BLOCK_SIZE];
+        private int tripCount;
+        private long[] errorRecordNumbers;
+        private TapError[] errors;
+        private int errorCount;
+        private int tapsRead;
+        private boolean last;
+
+        private void addError(long recordNumber, TapError error) {
+            if (errors == null) {
+                errorRecordNumbers = new long[BLOCK_SIZE];
+                errors = new TapError[BLOCK_SIZE];
+            }
+            errorRecordNumbers[errorCount] = recordNumber;
+            errors[errorCount] = error;
+            errorCount++;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package au.id.simo.tap2trip.batch;
+
+import au.id.simo.tap2trip.Tap;
+import au.id.simo.tap2trip.TapError;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A source of tap records, read one record at a time in file order.
+ */
+public interface TapSource extends Closeable {
+
+    /**
+     * Advances to the next tap record.
+     *
+     * @return true if a record was read, false if there are no more records.
+     * @throws IOException if the source can not be read.
+     */
+    boolean nextRecord() throws IOException;
+
+    /**
+     * @return the number of the current record. The first record after the
+     * header is 1.
+     */
+    long getRecordNumber();
+
+    /**
+     * Reads the Tap of the current record, without throwing an exception if it
+     * is not valid. Invalid records are common enough in some files that
+     * creating an exception for each is a large part of the cost of reading
+     * them.
+     *
+     * @return the Tap of the current record, or null if it is not a valid
+     * Tap, in which case {@link #getTapError()} says why.
+     */
+    Tap readTap();
+
+    /**
+     * @return why the Tap of the current record is not valid, or null if it
+     * is valid. Only set once {@link #readTap()} has been called.
+     */
+    TapError getTapError();
+
+    /**
+     * @return the Tap of the current record.
+     * @throws TapParsingException if the current record is not a valid Tap.
+     */
+    default Tap getTap() throws TapParsingException {
+        Tap tap = readTap();
+        if (tap == null) {
+            throw new TapParsingException(getTapError());
+        }
+        return tap;
+    }
+
+    /**
+     * Called before the first record is read. Sources that parse taps ahead
+     * on threads of their own record the CPU time and allocation of that
+     * parsing as the {@link BatchMetrics.Stage#PARSE} stage. Does nothing by
+     * default.
+     *
+     * @param metrics where to record the parsing.
+     */
+    default void setMetrics(BatchMetrics metrics) {
+    }
+}
@@ -0,0 +1,415 @@
+package au.id.simo.tap2trip.batch;
+
+import au.id.simo.tap2trip.ChargeCalculator;
+import au.id.simo.tap2trip.Tap;
+import au.id.simo.tap2trip.TapError;
+import au.id.simo.tap2trip.Trip;
+import au.id.simo.tap2trip.TripProducer;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Matches Taps into Trips as they arrive, from a source that has no known
+ * end. Such as stdin, a named pipe, a file that is still being written (see
+ * {@link FollowInputStream}) or a local socket (see {@link TcpTapSource}).
+ *
+ * A reader thread reads the Taps, so the calling thread can write out the
+ * Trips while waiting for more. Output is flushed once
+ * {@link #setFlushTrips(int)} Trips are waiting, or the oldest has waited
+ * {@link #setFlushLatency(Duration)}, so Trips are written seconds after
+ * their Tap-off rather than at the end of the run.
+ *
+ * Trips are produced by a {@link TripProducer}, the same as a batch run. The
+ * trips in progress are charged as INCOMPLETE trips when a period closes:
+ * <ul>
+ * <li>when a Tap's time crosses a period boundary, see
+ * {@link #setPeriod(Duration)}.</li>
+ * <li>when {@link #closePeriod()} is called, e.g. from a signal handler.</li>
+ * <li>when the source ends or {@link #stop()} is called.</li>
+ * </ul>
+ *
+ * {@link #run(TapSource, TripWriter, Writer, BatchMetrics)} can only be called once.
+ */
+public class TapStream {
+
+    /**
+     * Number of records that can be waiting for the calling thread.
+     */
+    private static final int QUEUE_CAPACITY = 4096;
+    /**
+     * How often the reader thread checks if the stream has stopped when the
+     * queue is full.
+     */
+    private static final long OFFER_MILLIS = 100;
+    /**
+     * The CPU time and allocation of parsing and matching are measured for
+     * one in this many taps.
+     */
+    private static final int USAGE_SAMPLE_INTERVAL = 64;
+    private static final StreamRecord END = new StreamRecord(0, null, null);
+    /**
+     * States of the reader thread. It is given up on while it is waiting
+     * for the source, once the stream has stopped and the queue is empty.
+     */
+    private static final int READER_IDLE = 0;
+    private static final int READER_WAITING = 1;
+    private static final int READER_ABANDONED = 2;
+
+    private final ChargeCalculator chargeCalc;
+    private final BlockingQueue<StreamRecord> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicBoolean closePeriod = new AtomicBoolean();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final AtomicInteger readerState = new AtomicInteger(READER_IDLE);
+    /**
+     * Set to stop reading from the source.
+     */
+    private volatile boolean stopped;
+    /**
+     * Set once nothing more is taken from the queue.
+     */
+    private volatile boolean matchEnded;
+    private volatile Throwable readerFailure;
+    private long flushLatencyNanos = TimeUnit.SECONDS.toNanos(1);
+    private int flushTrips = 1000;
+    private long periodSeconds;
+    private Duration maxTripDuration;
+    private Duration reorderWindow;
+    private MetricsExporter metricsExporter;
+
+    /**
+     * Constructor.
+     * @param chargeCalc the charges of trips.
+     */
+    public TapStream(ChargeCalculator chargeCalc) {
+        this.chargeCalc = chargeCalc;
+    }
+
+    /**
+     * Sets the longest a Trip or error is held before the output is flushed.
+     * Defaults to 1 second.
+     * @param flushLatency the longest to hold output.
+     * @return This instance. Used for method chaining.
+     */
+    public TapStream setFlushLatency(Duration flushLatency) {
+        this.flushLatencyNanos = flushLatency.toNanos();
+        return this;
+    }
+
+    /**
+     * Sets how many Trips are held before the output is flushed, however long
+     * they have waited. Defaults to 1000.
+     * @param flushTrips the number of Trips to hold.
+     * @return This instance. Used for method chaining.
+     */
+    public TapStream setFlushTrips(int flushTrips) {
+        this.flushTrips = flushTrips;
+        return this;
+    }
+
+    /**
+     * Closes the period whenever a Tap's time crosses a multiple of the period
+     * since the epoch, UTC. e.g. a period of 1 day closes at midnight UTC. The
+     * period is closed before the Tap is matched. By default the period is
+     * only closed by {@link #closePeriod()} or at the end of the stream.
+     * @param period the length of each period, or null for no boundaries.
+     * @return This instance. Used for method chaining.
+     */
+    public TapStream setPeriod(Duration period) {
+        this.periodSeconds = period == null ? 0 : period.getSeconds();
+        return this;
+    }
+
+    /**
+     * See {@link TripProducer#setMaxTripDuration(Duration)}.
+     * @param maxTripDuration the longest a trip can be in progress, or null
+     * for no limit.
+     * @return This instance. Used for method chaining.
+     */
+    public TapStream setMaxTripDuration(Duration maxTripDuration) {
+        this.maxTripDuration = maxTripDuration;
+        return this;
+    }
+
+    /**
+     * See {@link Batch#setReorderWindow(Duration)}. Taps are held until a Tap
+     * at least the window later is read, so this adds the window to the
+     * latency of each Trip.
+     * @param reorderWindow how late a tap can be and still be put in order, or
+     * null to not reorder.
+     * @return This instance. Used for method chaining.
+     */
+    public TapStream setReorderWindow(Duration reorderWindow) {
+        this.reorderWindow = reorderWindow;
+        return this;
+    }
+
+    /**
+     * Exports the metrics while the stream is running.
+     * @param metricsExporter how to export the metrics, or null to not export
+     * them.
+     * @return This instance. Used for method chaining.
+     */
+    public TapStream setMetricsExporter(MetricsExporter metricsExporter) {
+        this.metricsExporter = metricsExporter;
+        return this;
+    }
+
+    /**
+     * Closes the period before the next Tap is matched, or within the flush
+     * latency if no Taps arrive. Can be called from any thread.
+     */
+    public void closePeriod() {
+        closePeriod.set(true);
+    }
+
+    /**
+     * Stops reading Taps, and stops the stream once the Taps already read are
+     * matched. Every Tap read from the source is matched or written as an
+     * error, then the period is closed and all output flushed before
+     * {@link #run(TapSource, TripWriter, Writer, BatchMetrics)} returns. If
+     * the source is waiting for more input, it is given up on within the
+     * flush latency of the last Tap being matched, and Taps not read yet are
+     * left in the source. Can be called from any thread.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Reads Taps until the source ends or the stream is stopped.
+     *
+     * @param taps the taps to read. It will be closed.
+     * @param tripWriter where to write trips. It will be closed. Should count
+     * the trips it writes in the provided metrics.
+     * @param errorCsv where to write the tap errors. It will be closed.
+     * @param metrics where to count the Taps and time the stages, the same
+     * metrics the trip writer counts the Trips in.
+     * @return the provided metrics.
+     * @throws IOException if reading or writing fails, or the metrics
+     * exporter can't be started.
+     */
+    public BatchMetrics run(
+            TapSource taps,
+            TripWriter tripWriter,
+            Writer errorCsv,
+            BatchMetrics metrics) throws IOException {
+        try (TapErrorCsvWriter tapErrCsvWriter = new TapErrorCsvWriter(errorCsv, metrics);
+             TripWriter tripsOut = tripWriter;
+             TapSource source = taps) {
+            if (!started.compareAndSet(false, true)) {
+                throw new IllegalStateException("A TapStream can only be run once");
+            }
+            try {
+                if (metricsExporter != null) {
+                    metricsExporter.start(metrics);
+                }
+                // closed by closing the source it reads
+                TapSource tapSource = reorderWindow == null
+                        ? source
+                        : new ReorderingTapSource(source, reorderWindow);
+                Output output = new Output(tripsOut, tapErrCsvWriter);
+                TripProducer tripProducer = new TripProducer(chargeCalc, output)
+                        .setMaxTripDuration(maxTripDuration);
+                Thread reader = new Thread(() -> runReader(tapSource, metrics), "tap-stream-reader");
+                reader.setDaemon(true);
+                reader.start();
+                try {
+                    match(tripProducer, output, tapErrCsvWriter, metrics);
+                } finally {
+                    // lets the reader thread finish if it is waiting on a full queue
+                    stopped = true;
+                    matchEnded = true;
+                }
+                tripProducer.completePeriod();
+                output.flush();
+            } finally {
+                if (metricsExporter != null) {
+                    metricsExporter.stop();
+                }
+            }
+        }
+        Throwable t = readerFailure;
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t != null) {
+            throw new IllegalStateException("Tap reader failed", t);
+        }
+        return metrics;
+    }
+
+    private void match(
+            TripProducer tripProducer,
+            Output output,
+            TapErrorCsvWriter tapErrCsvWriter,
+            BatchMetrics metrics) throws IOException {
+        StageTimer matchTimer = new StageTimer(metrics, BatchMetrics.Stage.MATCH, USAGE_SAMPLE_INTERVAL);
+        long periodEnd = Long.MIN_VALUE;
+        boolean readerAbandoned = false;
+        while (true) {
+            long waitNanos = output.pending()
+                    ? output.flushDeadline - System.nanoTime()
+                    : flushLatencyNanos;
+            StreamRecord record;
+            try {
+                record = readerAbandoned
+                        ? queue.poll()
+                        : queue.poll(Math.max(waitNanos, 0), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for taps");
+            }
+            if (closePeriod.getAndSet(false)) {
+                tripProducer.completePeriod();
+            }
+            if (record == END || (record == null && readerAbandoned)) {
+                return;
+            }
+            if (record == null && stopped
+                    && readerState.compareAndSet(READER_WAITING, READER_ABANDONED)) {
+                // the reader has offered everything it took from the source,
+                // so only what is already queued is left to match
+                readerAbandoned = true;
+            }
+            if (record != null) {
+                if (record.error != null) {
+                    metrics.incrementTapReadErrors();
+                    tapErrCsvWriter.writeError(record.recordNumber, record.error);
+                    output.errorWritten();
+                } else {
+                    if (periodSeconds > 0) {
+                        long epochSecond = record.tap.getDateTime().getEpochSecond();
+                        if (epochSecond >= periodEnd) {
+                            if (periodEnd != Long.MIN_VALUE) {
+                                tripProducer.completePeriod();
+                            }
+                            periodEnd = (Math.floorDiv(epochSecond, periodSeconds) + 1) * periodSeconds;
+                        }
+                    }
+                    matchTimer.start();
+                    TapError error = tripProducer.offerTap(record.tap);
+                    matchTimer.stop(1);
+                    if (error == null) {
+                        metrics.incrementTapsRead();
+                    } else {
+                        metrics.incrementTapReadErrors();
+                        tapErrCsvWriter.writeError(record.recordNumber, error);
+                        output.errorWritten();
+                    }
+                }
+            }
+            if (output.trips >= flushTrips
+                    || (output.pending() && System.nanoTime() - output.flushDeadline >= 0)) {
+                output.flush();
+            }
+        }
+    }
+
+    private void runReader(TapSource taps, BatchMetrics metrics) {
+        StageTimer parseTimer = new StageTimer(metrics, BatchMetrics.Stage.PARSE, USAGE_SAMPLE_INTERVAL);
+        try {
+            while (!stopped) {
+                readerState.set(READER_WAITING);
+                boolean read = taps.nextRecord();
+                if (!readerState.compareAndSet(READER_WAITING, READER_IDLE)) {
+                    // given up on by the stream
+                    return;
+                }
+                if (!read) {
+                    break;
+                }
+                long recordNumber = taps.getRecordNumber();
+                parseTimer.start();
+                Tap tap = taps.readTap();
+                StreamRecord record = new StreamRecord(recordNumber, tap, tap == null ? taps.getTapError() : null);
+                parseTimer.stop(1);
+                offer(record);
+            }
+        } catch (Throwable t) {
+            readerState.compareAndSet(READER_WAITING, READER_IDLE);
+            if (readerState.get() == READER_ABANDONED) {
+                // the source was closed after the stream gave up on it
+                return;
+            }
+            readerFailure = t;
+        }
+        try {
+            offer(END);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void offer(StreamRecord record) throws InterruptedException {
+        while (!matchEnded) {
+            if (queue.offer(record, OFFER_MILLIS, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes Trips and keeps track of the output waiting to be flushed.
+     */
+    private class Output implements Consumer<Trip> {
+        private final TripWriter tripWriter;
+        private final TapErrorCsvWriter errWriter;
+        private int trips;
+        private boolean errors;
+        private long flushDeadline;
+
+        Output(TripWriter tripWriter, TapErrorCsvWriter errWriter) {
+            this.tripWriter = tripWriter;
+            this.errWriter = errWriter;
+        }
+
+        @Override
+        public void accept(Trip trip) {
+            tripWriter.accept(trip);
+            if (!pending()) {
+                flushDeadline = System.nanoTime() + flushLatencyNanos;
+            }
+            trips++;
+        }
+
+        void errorWritten() {
+            if (!pending()) {
+                flushDeadline = System.nanoTime() + flushLatencyNanos;
+            }
+            errors = true;
+        }
+
+        boolean pending() {
+            return trips > 0 || errors;
+        }
+
+        void flush() throws IOException {
+            tripWriter.flush();
+            errWriter.flush();
+            trips = 0;
+            errors = false;
+        }
+    }
+
+    /**
+     * A Tap, or the error reading it.
+     */
+    private static class StreamRecord {
+        private final long recordNumber;
+        private final Tap tap;
+        private final TapError error;
+
+        StreamRecord(long recordNumber, Tap tap, TapError error) {
+            this.recordNumber = recordNumber;
+            this.tap = tap;
+            this.error = error;
+        }
+    }
+}
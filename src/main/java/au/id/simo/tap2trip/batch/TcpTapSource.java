@@ -0,0 +1,104 @@
+package au.id.simo.tap2trip.batch;
+
+import au.id.simo.tap2trip.IdDictionary;
+import au.id.simo.tap2trip.Tap;
+import au.id.simo.tap2trip.TapError;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Reads taps CSV sent to a local TCP port. Connections are accepted one after
+ * another, and each sends a taps CSV file including its header line. Record
+ * numbers carry on from one connection to the next.
+ *
+ * There are no more records once this is closed, which can be done from
+ * another thread to stop waiting for a connection.
+ */
+public class TcpTapSource implements TapSource {
+
+    private final ServerSocket serverSocket;
+    private final IdDictionary ids;
+    private volatile boolean closed;
+    private volatile Socket socket;
+    /**
+     * Reads the current connection, empty until the first is accepted.
+     */
+    private TapCsvReader reader;
+    /**
+     * Records read from earlier connections.
+     */
+    private long recordsBefore;
+
+    /**
+     * Constructor, listening on the loopback address.
+     * @param port the port to listen on, or 0 for any free port.
+     * @param ids the dictionary to encode the stop, company and bus IDs with.
+     * @throws IOException if the port can't be listened on.
+     */
+    public TcpTapSource(int port, IdDictionary ids) throws IOException {
+        this.ids = ids;
+        this.reader = new TapCsvReader(new ByteArrayInputStream(new byte[0]), ids);
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * @return the port being listened on.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public boolean nextRecord() throws IOException {
+        while (true) {
+            try {
+                if (reader.nextRecord()) {
+                    return true;
+                }
+                recordsBefore += reader.getRecordNumber();
+                reader.close();
+                Socket accepted = serverSocket.accept();
+                socket = accepted;
+                reader = new TapCsvReader(accepted.getInputStream(), ids);
+            } catch (IOException ex) {
+                if (closed) {
+                    return false;
+                }
+                throw ex;
+            }
+        }
+    }
+
+    @Override
+    public long getRecordNumber() {
+        return recordsBefore + reader.getRecordNumber();
+    }
+
+    @Override
+    public Tap readTap() {
+        return reader.readTap();
+    }
+
+    @Override
+    public TapError getTapError() {
+        return reader.getTapError();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            serverSocket.close();
+        } finally {
+            Socket s = socket;
+            if (s != null) {
+                s.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package au.id.simo.tap2trip.batch;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Reads the CPU time used and the bytes allocated by the current thread.
+ *
+ * The bytes allocated come from com.sun.management.ThreadMXBean, which
+ * HotSpot based JVMs provide. From Java 14 the current thread's count is read
+ * without allocating, before that reading it allocates a couple of small
+ * arrays, which are counted too.
+ */
+final class ThreadUsage {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_SUPPORTED = cpuSupported();
+    /**
+     * Returns the bytes allocated by the current thread, or null if not
+     * supported.
+     */
+    private static final MethodHandle ALLOCATED_BYTES = allocatedBytesHandle();
+
+    /**
+     * True if either the CPU time or the bytes allocated can be read.
+     */
+    static final boolean SUPPORTED = CPU_SUPPORTED || ALLOCATED_BYTES != null;
+
+    private ThreadUsage() {
+    }
+
+    /**
+     * @return the CPU time used by the current thread in nanoseconds, or 0 if
+     * not supported.
+     */
+    static long cpuNanos() {
+        return CPU_SUPPORTED ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    /**
+     * @return the bytes allocated by the current thread, or 0 if not
+     * supported.
+     */
+    static long allocatedBytes() {
+        if (ALLOCATED_BYTES == null) {
+            return 0;
+        }
+        try {
+            return (long) ALLOCATED_BYTES.invokeExact();
+        } catch (Throwable t) {
+            throw new IllegalStateException("Can not read the bytes allocated", t);
+        }
+    }
+
+    private static boolean cpuSupported() {
+        try {
+            if (!THREADS.isCurrentThreadCpuTimeSupported()) {
+                return false;
+            }
+            if (!THREADS.isThreadCpuTimeEnabled()) {
+                THREADS.setThreadCpuTimeEnabled(true);
+            }
+            return true;
+        } catch (UnsupportedOperationException | SecurityException ex) {
+            return false;
+        }
+    }
+
+    private static MethodHandle allocatedBytesHandle() {
+        try {
+            Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+            if (!type.isInstance(THREADS)) {
+                return null;
+            }
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            if (!(Boolean) lookup.findVirtual(type, "isThreadAllocatedMemorySupported",
+                    MethodType.methodType(boolean.class)).invoke(THREADS)) {
+                return null;
+            }
+            lookup.findVirtual(type, "setThreadAllocatedMemoryEnabled",
+                    MethodType.methodType(void.class, boolean.class)).invoke(THREADS, true);
+            MethodHandle handle;
+            try {
+                handle = lookup.findVirtual(type, "getCurrentThreadAllocatedBytes",
+                        MethodType.methodType(long.class));
+            } catch (NoSuchMethodException ex) {
+                // before Java 14
+                MethodHandle byId = lookup.findVirtual(type, "getThreadAllocatedBytes",
+                        MethodType.methodType(long.class, long.class));
+                MethodHandle currentId = MethodHandles.filterReturnValue(
+                        lookup.findStatic(Thread.class, "currentThread", MethodType.methodType(Thread.class)),
+                        lookup.findVirtual(Thread.class, "getId", MethodType.methodType(long.class)));
+                handle = MethodHandles.collectArguments(byId, 1, currentId);
+            }
+            return handle.bindTo(THREADS).asType(MethodType.methodType(long.class));
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package au.id.simo.tap2trip.batch;
+
+import au.id.simo.tap2trip.IdDictionary;
+import au.id.simo.tap2trip.Trip;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Reads a file written by {@link TripBinaryWriter}, one block at a time.
+ *
+ * Each block is memory mapped, and the column methods return views of the
+ * mapped file, so a column can be scanned without reading the others or
+ * creating any Trips. Row numbers are within the current block.
+ * <pre>
+ * try (TripBinaryReader reader = new TripBinaryReader(path)) {
+ *     long cents = 0;
+ *     while (reader.nextBlock()) {
+ *         IntBuffer charges = reader.getChargeColumn();
+ *         for (int row = 0; row &lt; reader.getBlockSize(); row++) {
+ *             ...
+ * </pre>
+ *
+ * Not thread safe.
+ */
+public class TripBinaryReader implements Closeable {
+
+    private static final Trip.Status[] STATUSES = Trip.Status.values();
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private long position;
+
+    private ByteBuffer block;
+    private int count;
+    private LongBuffer started;
+    private LongBuffer finished;
+    private LongBuffer durations;
+    private IntBuffer charges;
+    private IntBuffer fromStops;
+    private IntBuffer toStops;
+    private IntBuffer companies;
+    private IntBuffer buses;
+    private LongBuffer pans;
+    private ByteBuffer statuses;
+    private final Map<Integer, String> textPans = new HashMap<>();
+
+    /**
+     * The IDs of the file by their code, and the IdDictionary code of each.
+     */
+    private String[] ids = new String[1024];
+    private int[] dictionaryCodes = new int[1024];
+    private int idCount;
+    private final IdDictionary dictionary;
+
+    /**
+     * Opens the file and checks its header.
+     *
+     * @param file a file written by TripBinaryWriter.
+     * @param dictionary the dictionary to encode the stop, company and bus IDs
+     * with.
+     * @throws IOException if the file can't be read, or is not a binary trips
+     * file.
+     */
+    public TripBinaryReader(Path file, IdDictionary dictionary) throws IOException {
+        this.dictionary = dictionary;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            this.fileSize = channel.size();
+            ByteBuffer header = readAt(0, 8);
+            if (header.getInt() != TripBinaryWriter.MAGIC) {
+                throw new IOException("Not a binary trips file: " + file);
+            }
+            int version = header.getInt();
+            if (version != TripBinaryWriter.VERSION) {
+                throw new IOException("Unsupported binary trips version: " + version);
+            }
+            this.position = 8;
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Moves to the next block of trips.
+     *
+     * @return false if there are no more blocks.
+     * @throws IOException if the block can't be read.
+     */
+    public boolean nextBlock() throws IOException {
+        if (position >= fileSize) {
+            block = null;
+            count = 0;
+            return false;
+        }
+        int length = readAt(position, 4).getInt();
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L + length);
+        position += 4L + length;
+        block = mapped;
+        count = block.getInt(4);
+        int newIdCount = block.getInt(8);
+        int textPanCount = block.getInt(12);
+
+        int pos = TripBinaryWriter.BLOCK_HEADER_BYTES;
+        started = longColumn(pos);
+        pos += count * 8;
+        finished = longColumn(pos);
+        pos += count * 8;
+        durations = longColumn(pos);
+        pos += count * 8;
+        charges = intColumn(pos);
+        pos += count * 4;
+        fromStops = intColumn(pos);
+        pos += count * 4;
+        toStops = intColumn(pos);
+        pos += count * 4;
+        companies = intColumn(pos);
+        pos += count * 4;
+        buses = intColumn(pos);
+        pos += count * 4;
+        pans = longColumn(pos);
+        pos += count * 8;
+        statuses = slice(pos, count);
+        pos += count;
+
+        for (int i = 0; i < newIdCount; i++) {
+            int idLength = block.getInt(pos);
+            addId(string(pos + 4, idLength));
+            pos += 4 + idLength;
+        }
+        textPans.clear();
+        for (int i = 0; i < textPanCount; i++) {
+            int row = block.getInt(pos);
+            int panLength = block.getInt(pos + 4);
+            textPans.put(row, string(pos + 8, panLength));
+            pos += 8 + panLength;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of trips in the current block.
+     */
+    public int getBlockSize() {
+        return count;
+    }
+
+    /**
+     * @return the Started column, epoch seconds or
+     * {@link TripBinaryWriter#NULL_LONG}.
+     */
+    public LongBuffer getStartedColumn() {
+        return started.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the Finished column, epoch seconds or
+     * {@link TripBinaryWriter#NULL_LONG}.
+     */
+    public LongBuffer getFinishedColumn() {
+        return finished.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the DurationSecs column, or {@link TripBinaryWriter#NULL_LONG}.
+     */
+    public LongBuffer getDurationColumn() {
+        return durations.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the ChargeAmount column, cents or
+     * {@link TripBinaryWriter#NULL_INT}.
+     */
+    public IntBuffer getChargeColumn() {
+        return charges.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the FromStopId column, as codes for {@link #getId(int)}.
+     */
+    public IntBuffer getFromStopColumn() {
+        return fromStops.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the ToStopId column, as codes for {@link #getId(int)}.
+     */
+    public IntBuffer getToStopColumn() {
+        return toStops.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the CompanyId column, as codes for {@link #getId(int)}.
+     */
+    public IntBuffer getCompanyColumn() {
+        return companies.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the BusID column, as codes for {@link #getId(int)}.
+     */
+    public IntBuffer getBusColumn() {
+        return buses.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the PAN column. -1 for null, or
+     * {@link TripBinaryWriter#TEXT_PAN} when {@link #getPAN(int)} must be
+     * used.
+     */
+    public LongBuffer getPanColumn() {
+        return pans.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the Status column, as {@link Trip.Status} ordinals or -1.
+     */
+    public ByteBuffer getStatusColumn() {
+        return statuses.asReadOnlyBuffer();
+    }
+
+    /**
+     * @param code an ID code from one of the ID columns.
+     * @return the ID, or null for -1.
+     */
+    public String getId(int code) {
+        return code < 0 ? null : ids[code];
+    }
+
+    /**
+     * @param row the row in the current block.
+     * @return the PAN of the row.
+     */
+    public String getPAN(int row) {
+        long pan = pans.get(row);
+        if (pan == TripBinaryWriter.TEXT_PAN) {
+            return textPans.get(row);
+        }
+        return pan < 0 ? null : Long.toString(pan);
+    }
+
+    /**
+     * @param row the row in the current block.
+     * @return the Trip of the row.
+     */
+    public Trip getTrip(int row) {
+        long durationSecs = durations.get(row);
+        int charge = charges.get(row);
+        byte status = statuses.get(row);
+        return new Trip(
+                dictionary,
+                instant(started.get(row)),
+                instant(finished.get(row)),
+                durationSecs == TripBinaryWriter.NULL_LONG ? null : Duration.ofSeconds(durationSecs),
+                dictionaryCode(fromStops.get(row)),
+                dictionaryCode(toStops.get(row)),
+                charge == TripBinaryWriter.NULL_INT ? null : charge,
+                dictionaryCode(companies.get(row)),
+                dictionaryCode(buses.get(row)),
+                getPAN(row),
+                status < 0 ? null : STATUSES[status]
+        );
+    }
+
+    /**
+     * Passes every trip from the next block on to the consumer, in the order
+     * they were written.
+     *
+     * @param consumer passed each Trip.
+     * @throws IOException if the file can't be read.
+     */
+    public void forEachTrip(Consumer<Trip> consumer) throws IOException {
+        while (nextBlock()) {
+            for (int row = 0; row < count; row++) {
+                consumer.accept(getTrip(row));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        block = null;
+        channel.close();
+    }
+
+    private void addId(String id) {
+        if (idCount == ids.length) {
+            ids = Arrays.copyOf(ids, idCount * 2);
+            dictionaryCodes = Arrays.copyOf(dictionaryCodes, idCount * 2);
+        }
+        ids[idCount] = id;
+        dictionaryCodes[idCount] = dictionary.encode(id);
+        idCount++;
+    }
+
+    private int dictionaryCode(int code) {
+        return code < 0 ? IdDictionary.NONE : dictionaryCodes[code];
+    }
+
+    private static Instant instant(long epochSecond) {
+        return epochSecond == TripBinaryWriter.NULL_LONG ? null : Instant.ofEpochSecond(epochSecond);
+    }
+
+    private ByteBuffer slice(int pos, int length) {
+        ByteBuffer dup = block.duplicate();
+        dup.position(pos);
+        dup.limit(pos + length);
+        return dup.slice();
+    }
+
+    private LongBuffer longColumn(int pos) {
+        return slice(pos, count * 8).asLongBuffer();
+    }
+
+    private IntBuffer intColumn(int pos) {
+        return slice(pos, count * 4).asIntBuffer();
+    }
+
+    private String string(int pos, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer dup = block.duplicate();
+        dup.position(pos);
+        dup.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private ByteBuffer readAt(long pos, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, pos + buffer.position()) < 0) {
+                throw new EOFException("Binary trips file is truncated");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
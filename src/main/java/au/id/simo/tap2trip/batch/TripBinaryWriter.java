@@ -0,0 +1,315 @@
+package au.id.simo.tap2trip.batch;
+
+import au.id.simo.tap2trip.IdDictionary;
+import au.id.simo.tap2trip.Trip;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes Trips in a compact binary format, for jobs that read the trips back
+ * in without parsing CSV. See {@link TripBinaryReader}.
+ *
+ * The file starts with an 8 byte header, the {@link #MAGIC} and
+ * {@link #VERSION} ints. Trips follow in blocks of up to {@link #BLOCK_SIZE},
+ * each stored column by column, all big endian:
+ * <pre>
+ * int    length of the block after this field, a multiple of 8 minus 4
+ * int    count, the number of trips
+ * int    number of new IDs
+ * int    number of text PANs
+ * long[] Started, epoch seconds
+ * long[] Finished, epoch seconds
+ * long[] DurationSecs
+ * int[]  ChargeAmount, cents
+ * int[]  FromStopId, ToStopId, CompanyId and BusID, as ID codes
+ * long[] PAN
+ * byte[] Status ordinal
+ * new IDs: int UTF-8 length, then the bytes. Their codes follow on from the
+ *          IDs of the earlier blocks.
+ * text PANs: int row, int UTF-8 length, then the bytes.
+ * padding to a multiple of 8 bytes
+ * </pre>
+ * Nulls are written as {@link #NULL_LONG}, {@link #NULL_INT} or -1. A PAN
+ * that can't be held as a long, such as one with leading zeros, is written as
+ * {@link #TEXT_PAN} with the text in the block's text PANs. Date times are
+ * held to the second, as in the CSV output.
+ *
+ * Not thread safe.
+ */
+public class TripBinaryWriter implements TripWriter {
+
+    /**
+     * The first 4 bytes of a binary trips file, "T2TB".
+     */
+    public static final int MAGIC = 0x54325442;
+    public static final int VERSION = 1;
+    /**
+     * The most trips in a block.
+     */
+    public static final int BLOCK_SIZE = 16384;
+    /**
+     * A null date time or duration.
+     */
+    public static final long NULL_LONG = Long.MIN_VALUE;
+    /**
+     * A null charge.
+     */
+    public static final int NULL_INT = Integer.MIN_VALUE;
+    /**
+     * A PAN held in the block's text PANs.
+     */
+    public static final long TEXT_PAN = -2;
+    /**
+     * The bytes each trip takes in the columns.
+     */
+    static final int ROW_BYTES = 8 * 4 + 4 * 5 + 1;
+    /**
+     * The bytes before the columns, including the length.
+     */
+    static final int BLOCK_HEADER_BYTES = 16;
+
+    private final WritableByteChannel channel;
+    private final BatchMetrics metrics;
+    private final StageTimer writeTimer;
+
+    private final long[] started = new long[BLOCK_SIZE];
+    private final long[] finished = new long[BLOCK_SIZE];
+    private final long[] durations = new long[BLOCK_SIZE];
+    private final int[] charges = new int[BLOCK_SIZE];
+    private final int[] fromStops = new int[BLOCK_SIZE];
+    private final int[] toStops = new int[BLOCK_SIZE];
+    private final int[] companies = new int[BLOCK_SIZE];
+    private final int[] buses = new int[BLOCK_SIZE];
+    private final long[] pans = new long[BLOCK_SIZE];
+    private final byte[] statuses = new byte[BLOCK_SIZE];
+    private int count;
+
+    /**
+     * The file's code of each IdDictionary code, plus one. Zero for
+     * IDs not yet written.
+     */
+    private int[] fileCodes = new int[1024];
+    private int fileCodeCount;
+    private final IdDictionary ids;
+    private final List<byte[]> newIds = new ArrayList<>();
+    private final List<byte[]> textPans = new ArrayList<>();
+    private final List<Integer> textPanRows = new ArrayList<>();
+    private ByteBuffer out = ByteBuffer.allocate(0);
+    /**
+     * Set when a block could not be written, after which the file is
+     * incomplete and nothing more is written.
+     */
+    private IOException writeFailure;
+
+    /**
+     * Constructor.
+     *
+     * @param channel where to write the trips, usually a FileChannel. Closed
+     * by {@link #close()}.
+     * @param ids the dictionary the stop, company and bus IDs of the trips are
+     * encoded with.
+     * @param metrics counts the trips written.
+     * @throws IOException if the header can't be written.
+     */
+    public TripBinaryWriter(WritableByteChannel channel, IdDictionary ids, BatchMetrics metrics) throws IOException {
+        this.channel = channel;
+        this.ids = ids;
+        this.metrics = metrics;
+        this.writeTimer = new StageTimer(metrics, BatchMetrics.Stage.WRITE, 1);
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        writeFully(header);
+    }
+
+    @Override
+    public void accept(Trip t) {
+        if (writeFailure != null) {
+            throw new IllegalStateException("Error in writing trip", writeFailure);
+        }
+        int row = count;
+        started[row] = epochSecond(t.getStarted());
+        finished[row] = epochSecond(t.getFinished());
+        Duration duration = t.getDuration();
+        durations[row] = duration == null ? NULL_LONG : duration.getSeconds();
+        Integer charge = t.getChargeAmount();
+        charges[row] = charge == null ? NULL_INT : charge;
+        fromStops[row] = fileCode(t.getFromStopCode());
+        toStops[row] = fileCode(t.getToStopCode());
+        companies[row] = fileCode(t.getCompanyCode());
+        buses[row] = fileCode(t.getBusCode());
+        String pan = t.getPAN();
+        if (pan == null) {
+            pans[row] = -1;
+        } else {
+            long numericPan = numericPan(pan);
+            if (numericPan < 0) {
+                numericPan = TEXT_PAN;
+                textPanRows.add(row);
+                textPans.add(pan.getBytes(StandardCharsets.UTF_8));
+            }
+            pans[row] = numericPan;
+        }
+        Trip.Status status = t.getStatus();
+        statuses[row] = status == null ? -1 : (byte) status.ordinal();
+        count++;
+        metrics.incrementTripsWritten();
+        if (count == BLOCK_SIZE) {
+            try {
+                writeBlock();
+            } catch (IOException ex) {
+                throw new IllegalStateException("Error in writing trip", ex);
+            }
+        }
+    }
+
+    /**
+     * Writes the trips buffered so far as a block.
+     *
+     * @throws IOException if the block can't be written, or an earlier block
+     * could not be written.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (writeFailure != null) {
+            throw writeFailure;
+        }
+        if (count > 0) {
+            writeBlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        try {
+            writeTimer.start();
+            int length = encodeBlock();
+            writeFully(out);
+            writeTimer.stop(count, length);
+        } catch (IOException ex) {
+            writeFailure = ex;
+            throw ex;
+        } finally {
+            count = 0;
+            newIds.clear();
+            textPans.clear();
+            textPanRows.clear();
+        }
+    }
+
+    /**
+     * Encodes the trips buffered so far as a block in {@link #out}.
+     *
+     * @return the length of the block.
+     */
+    private int encodeBlock() {
+        int length = BLOCK_HEADER_BYTES + count * ROW_BYTES;
+        for (byte[] id : newIds) {
+            length += 4 + id.length;
+        }
+        for (byte[] pan : textPans) {
+            length += 8 + pan.length;
+        }
+        length = (length + 7) & ~7;
+        if (out.capacity() < length) {
+            out = ByteBuffer.allocate(length);
+        }
+        out.clear();
+        out.putInt(length - 4);
+        out.putInt(count);
+        out.putInt(newIds.size());
+        out.putInt(textPans.size());
+        out.asLongBuffer().put(started, 0, count);
+        out.position(out.position() + count * 8);
+        out.asLongBuffer().put(finished, 0, count);
+        out.position(out.position() + count * 8);
+        out.asLongBuffer().put(durations, 0, count);
+        out.position(out.position() + count * 8);
+        for (int[] column : new int[][]{charges, fromStops, toStops, companies, buses}) {
+            out.asIntBuffer().put(column, 0, count);
+            out.position(out.position() + count * 4);
+        }
+        out.asLongBuffer().put(pans, 0, count);
+        out.position(out.position() + count * 8);
+        out.put(statuses, 0, count);
+        for (byte[] id : newIds) {
+            out.putInt(id.length);
+            out.put(id);
+        }
+        for (int i = 0; i < textPans.size(); i++) {
+            byte[] pan = textPans.get(i);
+            out.putInt(textPanRows.get(i));
+            out.putInt(pan.length);
+            out.put(pan);
+        }
+        while (out.position() < length) {
+            out.put((byte) 0);
+        }
+        out.flip();
+        return length;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * @return the file's code for the dictionary code, adding the ID
+     * to the block if it has not been written before.
+     */
+    private int fileCode(int code) {
+        if (code == IdDictionary.NONE) {
+            return -1;
+        }
+        if (code >= fileCodes.length) {
+            fileCodes = Arrays.copyOf(fileCodes, Math.max(code + 1, fileCodes.length * 2));
+        }
+        int fileCode = fileCodes[code] - 1;
+        if (fileCode < 0) {
+            fileCode = fileCodeCount++;
+            fileCodes[code] = fileCode + 1;
+            newIds.add(ids.getUtf8(code));
+        }
+        return fileCode;
+    }
+
+    private static long epochSecond(Instant dateTime) {
+        return dateTime == null ? NULL_LONG : dateTime.getEpochSecond();
+    }
+
+    /**
+     * @return the PAN as a number, or -1 if it can't be converted back to the
+     * same String. e.g. it has leading zeros or more than 18 digits.
+     */
+    static long numericPan(String pan) {
+        int length = pan.length();
+        if (length == 0 || length > 18 || (length > 1 && pan.charAt(0) == '0')) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            char c = pan.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
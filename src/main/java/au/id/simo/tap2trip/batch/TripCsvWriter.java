@@ -1,14 +1,15 @@
 package au.id.simo.tap2trip.batch;
 
+import au.id.simo.tap2trip.IdDictionary;
 import au.id.simo.tap2trip.Trip;
 import java.io.IOException;
 import java.io.Writer;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
-import java.util.function.Consumer;
-import java.util.function.Function;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVPrinter;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
 
 /**
  * Outputs in the following format:
@@ -16,61 +17,359 @@ import org.apache.commons.csv.CSVPrinter;
  * Started,Finished,DurationSecs,FromStopId,ToStopId,ChargeAmount,CompanyId,BusID,PAN,Status
  * </pre>
  * Line endings will always be {@code \n}
+ *
+ * Fields are quoted the same way as commons-csv's {@code CSVFormat.DEFAULT}.
+ * Each record is appended to a reusable UTF-8 byte buffer. Dates, durations,
+ * charges and statuses never need quoting, and the quoted form of each stop,
+ * company and bus ID is kept by its {@link IdDictionary} code, so writing a
+ * trip allocates nothing for them.
+ *
+ * When writing to a channel the buffer is written out in large blocks, so
+ * {@link #flush()} or {@link #close()} must be called once all trips have been
+ * written. When writing to a Writer each record is passed on as it is
+ * written.
  */
-public class TripCsvWriter implements Consumer<Trip>{
+public class TripCsvWriter implements TripWriter {
 
-    private static final DateTimeFormatter DTF = DateTimeFormatter
-            .ofPattern("dd-MM-yyyy HH:mm:ss")
-            .withZone(ZoneId.of("UTC"));
-    
-    private final CSVPrinter csvPrinter;
+    private static final byte[] HEADER = (String.join(",", names(Batch.TripsCSVCols.values())) + "\n")
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final byte[][] STATUSES = statuses();
+    /**
+     * Channel output is written once the buffer holds this many bytes.
+     */
+    private static final int BLOCK_SIZE = 256 * 1024;
+    /**
+     * Enough room for a record without any long IDs or PAN.
+     */
+    private static final int RECORD_ROOM = 256;
+    private static final byte COMMA = ',';
+    private static final byte QUOTE = '"';
+    private static final byte LF = '\n';
+
+    private final DateTimeCodec dateTimeCodec = new DateTimeCodec();
     private final BatchMetrics metrics;
+    private final StageTimer writeTimer;
+    private final Writer writer;
+    private final WritableByteChannel channel;
+    private final IdDictionary ids;
+    /**
+     * The quoted form of each IdDictionary code, filled as codes are used.
+     */
+    private byte[][] encodedIds = new byte[1024][];
+    private byte[] buf = new byte[BLOCK_SIZE + RECORD_ROOM];
+    private int len;
+    private char[] chars = new char[RECORD_ROOM];
+    /**
+     * Trips written since the last flush.
+     */
+    private int bufferedTrips;
+
+    /**
+     * Constructor, passing each record to the Writer as it is written.
+     * @param writer where to write the trips. Closed by {@link #close()}.
+     * @param ids the dictionary the stop, company and bus IDs of the trips are
+     * encoded with.
+     * @param metrics counts the trips written.
+     * @throws IOException if the header can't be written.
+     */
+    public TripCsvWriter(Writer writer, IdDictionary ids, BatchMetrics metrics) throws IOException {
+        this.writer = writer;
+        this.channel = null;
+        this.ids = ids;
+        this.metrics = metrics;
+        this.writeTimer = new StageTimer(metrics, BatchMetrics.Stage.WRITE, 1);
+        append(HEADER);
+        writeRecord();
+    }
 
-    public TripCsvWriter(Writer writer, BatchMetrics metrics) throws IOException {
-        CSVFormat tripsCsvFormat = CSVFormat.DEFAULT.builder()
-                .setHeader(Batch.TripsCSVCols.class)
-                .setRecordSeparator('\n')
-                .build();
-        this.csvPrinter = tripsCsvFormat.print(writer);
+    /**
+     * Constructor, writing the trips to the channel in large blocks.
+     * @param channel where to write the trips, usually a FileChannel. Closed
+     * by {@link #close()}.
+     * @param ids the dictionary the stop, company and bus IDs of the trips are
+     * encoded with.
+     * @param metrics counts the trips written.
+     */
+    public TripCsvWriter(WritableByteChannel channel, IdDictionary ids, BatchMetrics metrics) {
+        this.writer = null;
+        this.channel = channel;
+        this.ids = ids;
         this.metrics = metrics;
+        this.writeTimer = new StageTimer(metrics, BatchMetrics.Stage.WRITE, 1);
+        append(HEADER);
     }
-    
+
     @Override
     public void accept(Trip t) {
         try {
-            csvPrinter.printRecord(
-                    emptyIfNull(t.getStarted(), v -> DTF.format(v)),
-                    emptyIfNull(t.getFinished(), v -> DTF.format(v)),
-                    emptyIfNull(t.getDuration(), v -> v.getSeconds()),
-                    emptyIfNull(t.getFromStopId()),
-                    emptyIfNull(t.getToStopId()),
-                    emptyIfNull(t.getChargeAmount(), v -> {
-                        int dollars = v / 100;
-                        int cents = v % 100;
-                        return String.format("$%d.%02d", dollars, cents); 
-                    }),
-                    emptyIfNull(t.getCompanyId()),
-                    emptyIfNull(t.getBusId()),
-                    emptyIfNull(t.getPAN()),
-                    emptyIfNull(t.getStatus())
-            );
+            writeDateTime(t.getStarted(), true);
+            buf[len++] = COMMA;
+            writeDateTime(t.getFinished(), false);
+            buf[len++] = COMMA;
+            Duration duration = t.getDuration();
+            if (duration != null) {
+                writeLong(duration.getSeconds());
+            }
+            buf[len++] = COMMA;
+            writeId(t.getFromStopCode());
+            buf[len++] = COMMA;
+            writeId(t.getToStopCode());
+            buf[len++] = COMMA;
+            Integer charge = t.getChargeAmount();
+            if (charge != null) {
+                writeCharge(charge);
+            }
+            buf[len++] = COMMA;
+            writeId(t.getCompanyCode());
+            buf[len++] = COMMA;
+            writeId(t.getBusCode());
+            buf[len++] = COMMA;
+            writeString(t.getPAN());
+            buf[len++] = COMMA;
+            Trip.Status status = t.getStatus();
+            if (status != null) {
+                append(STATUSES[status.ordinal()]);
+            }
+            buf[len++] = LF;
+            bufferedTrips++;
+            writeRecord();
         } catch (IOException ex) {
             throw new IllegalStateException("Error in writing trip", ex);
         }
         metrics.incrementTripsWritten();
     }
-    
-    private String emptyIfNull(Object obj) {
-        if (obj == null) {
-            return "";
+
+    /**
+     * Writes any buffered trips to the channel.
+     * @throws IOException if the trips can't be written.
+     */
+    @Override
+    public void flush() throws IOException {
+        writeTimer.start();
+        if (channel != null) {
+            ByteBuffer out = ByteBuffer.wrap(buf, 0, len);
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            writeTimer.stop(bufferedTrips, len);
+            len = 0;
+        } else {
+            writer.flush();
+            writeTimer.stop(bufferedTrips);
+        }
+        bufferedTrips = 0;
+    }
+
+    /**
+     * Writes any buffered trips, then closes the channel or Writer.
+     * @throws IOException if the trips can't be written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            if (channel != null) {
+                channel.close();
+            } else {
+                writer.close();
+            }
+        }
+    }
+
+    /**
+     * Called after each record has been appended to the buffer.
+     */
+    private void writeRecord() throws IOException {
+        if (channel != null) {
+            if (len >= BLOCK_SIZE) {
+                flush();
+            }
+            return;
+        }
+        if (chars.length < len) {
+            chars = new char[Math.max(len, chars.length * 2)];
+        }
+        for (int i = 0; i < len; i++) {
+            byte b = buf[i];
+            if (b < 0) {
+                // not ASCII, let the decoder handle it
+                writer.write(new String(buf, 0, len, StandardCharsets.UTF_8));
+                len = 0;
+                return;
+            }
+            chars[i] = (char) b;
+        }
+        writer.write(chars, 0, len);
+        len = 0;
+    }
+
+    private void writeDateTime(Instant dateTime, boolean firstField) {
+        if (dateTime == null) {
+            if (firstField) {
+                // commons-csv always quotes an empty first field, so the
+                // record is not an empty line.
+                buf[len++] = QUOTE;
+                buf[len++] = QUOTE;
+            }
+            return;
+        }
+        ensureRoom(32);
+        len = dateTimeCodec.format(dateTime.getEpochSecond(), buf, len);
+    }
+
+    /**
+     * Same as {@code String.format("$%d.%02d", dollars, cents)}.
+     */
+    private void writeCharge(int amount) {
+        int dollars = amount / 100;
+        int cents = amount % 100;
+        buf[len++] = '$';
+        writeLong(dollars);
+        buf[len++] = '.';
+        if (cents >= 0 && cents < 10) {
+            buf[len++] = '0';
+        }
+        writeLong(cents);
+    }
+
+    private void writeLong(long value) {
+        ensureRoom(20);
+        if (value == Long.MIN_VALUE) {
+            append(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        if (value < 0) {
+            buf[len++] = '-';
+            value = -value;
+        }
+        int start = len;
+        do {
+            buf[len++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        // digits were written least significant first
+        for (int i = start, j = len - 1; i < j; i++, j--) {
+            byte tmp = buf[i];
+            buf[i] = buf[j];
+            buf[j] = tmp;
         }
-        return String.valueOf(obj);
     }
-    
-    private <T> String emptyIfNull(T obj, Function<T,Object> func) {
-        if (obj == null) {
-            return "";
+
+    private void writeId(int code) {
+        if (code == IdDictionary.NONE) {
+            return;
+        }
+        if (code >= encodedIds.length) {
+            encodedIds = Arrays.copyOf(encodedIds, Math.max(code + 1, encodedIds.length * 2));
+        }
+        byte[] encoded = encodedIds[code];
+        if (encoded == null) {
+            encoded = encode(ids.decode(code));
+            encodedIds[code] = encoded;
+        }
+        append(encoded);
+    }
+
+    private void writeString(String value) {
+        if (value == null) {
+            return;
+        }
+        int length = value.length();
+        if (length > 0 && !needsQuotes(value)) {
+            ensureRoom(length);
+            // plain ASCII, such as a numeric PAN, is copied without an encoder
+            int start = len;
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c >= 0x80) {
+                    len = start;
+                    append(value.getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                buf[len++] = (byte) c;
+            }
+            return;
+        }
+        append(encode(value));
+    }
+
+    /**
+     * @return the value as it is written in a field that is not the first in
+     * a record.
+     */
+    static byte[] encode(String value) {
+        if (!needsQuotes(value)) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+        StringBuilder sb = new StringBuilder(value.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                sb.append('"');
+            }
+            sb.append(c);
+        }
+        sb.append('"');
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The minimal quoting rules of commons-csv, for a field that is not the
+     * first in a record.
+     */
+    static boolean needsQuotes(String value) {
+        int length = value.length();
+        if (length == 0) {
+            return false;
+        }
+        // commons-csv quotes a value starting with anything up to the
+        // comment character, to be safe when it is read back.
+        if (value.charAt(0) <= '#') {
+            return true;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                return true;
+            }
+        }
+        // or ending in whitespace that would be trimmed
+        return value.charAt(length - 1) <= ' ';
+    }
+
+    private void append(byte[] bytes) {
+        ensureRoom(bytes.length);
+        System.arraycopy(bytes, 0, buf, len, bytes.length);
+        len += bytes.length;
+    }
+
+    /**
+     * Makes sure the buffer has room for the bytes, plus the commas and line
+     * feed still to come in the record.
+     */
+    private void ensureRoom(int bytes) {
+        int needed = len + bytes + RECORD_ROOM;
+        if (needed > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(needed, buf.length * 2));
+        }
+    }
+
+    private static String[] names(Batch.TripsCSVCols[] cols) {
+        String[] names = new String[cols.length];
+        for (int i = 0; i < cols.length; i++) {
+            names[i] = cols[i].name();
+        }
+        return names;
+    }
+
+    private static byte[][] statuses() {
+        Trip.Status[] values = Trip.Status.values();
+        byte[][] statuses = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            statuses[i] = values[i].name().getBytes(StandardCharsets.US_ASCII);
         }
-        return String.valueOf(func.apply(obj));
+        return statuses;
     }
 }
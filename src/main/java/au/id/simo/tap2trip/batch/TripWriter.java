@@ -0,0 +1,23 @@
+package au.id.simo.tap2trip.batch;
+
+import au.id.simo.tap2trip.Trip;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Writes Trips to an output file. Closing writes out anything buffered and
+ * closes the file.
+ *
+ * @see TripCsvWriter
+ * @see TripBinaryWriter
+ */
+public interface TripWriter extends Consumer<Trip>, Closeable {
+
+    /**
+     * Writes out the trips buffered so far, without closing the file.
+     *
+     * @throws IOException if the trips can't be written.
+     */
+    void flush() throws IOException;
+}
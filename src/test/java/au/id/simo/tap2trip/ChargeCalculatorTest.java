@@ -67,6 +67,49 @@ public class ChargeCalculatorTest {
         assertEquals(10, calc.getIncompleteCharge("hub"));
     }
     
+    @Test
+    public void testStopIndex() throws UnknownChargeException {
+        ChargeCalculator calc = new ChargeCalculator();
+        calc.addCharge("stop1", "stop2", 100);
+        int stop1 = calc.getStopIndex("stop1");
+        int stop2 = calc.getStopIndex("stop2");
+        assertEquals(100, calc.getCharge(stop1, stop2));
+
+        // adding stops after charges have been looked up keeps the indices
+        calc.addCharge("stop2", "stop3", 250);
+        int stop3 = calc.getStopIndex("stop3");
+        assertEquals(stop1, calc.getStopIndex("stop1"));
+        assertEquals("stop3", calc.getStopId(stop3));
+        assertEquals(250, calc.getCharge(stop3, stop2));
+        assertEquals(250, calc.getIncompleteCharge(stop2));
+
+        UnknownChargeException ex = assertThrows(UnknownChargeException.class, () -> {
+            calc.getCharge(stop1, stop3);
+        });
+        assertEquals("No charge is found between stops stop1 and stop3", ex.getMessage());
+        ex = assertThrows(UnknownChargeException.class, () -> {
+            calc.getStopIndex("unknown");
+        });
+        assertEquals("Unknown stop ID: unknown", ex.getMessage());
+    }
+
+    @Test
+    public void testTooManyStopsForMatrix() throws UnknownChargeException {
+        ChargeCalculator calc = new ChargeCalculator();
+        int stops = ChargeCalculator.MAX_DENSE_STOPS + 10;
+        for (int i = 1; i < stops; i++) {
+            calc.addCharge("stop" + (i - 1), "stop" + i, i);
+        }
+        int first = calc.getStopIndex("stop0");
+        int last = calc.getStopIndex("stop" + (stops - 1));
+        assertEquals(stops - 1, calc.getCharge(last, calc.getStopIndex("stop" + (stops - 2))));
+        assertEquals(1, calc.getCharge("stop1", "stop0"));
+        assertEquals(stops - 1, calc.getIncompleteCharge(last));
+        assertEquals(ChargeCalculator.NO_CHARGE, calc.findCharge(first, last));
+        assertEquals(last, calc.findStopIndexOfCode(
+                calc.getIdDictionary().encode("stop" + (stops - 1))));
+    }
+
     @Test
     public void testMaxChargeWithMultipleCharges() throws UnknownChargeException {
         ChargeCalculator calc = new ChargeCalculator(); 
@@ -0,0 +1,69 @@
+package au.id.simo.tap2trip;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IdDictionaryTest {
+
+    @Test
+    public void testEncodeAndDecode() {
+        IdDictionary dictionary = new IdDictionary();
+        int stop1 = dictionary.encode("Stop1");
+        byte[] bytes = " Stop1,Stop2".getBytes(StandardCharsets.UTF_8);
+        assertEquals(stop1, dictionary.encode(bytes, 1, 5));
+        int stop2 = dictionary.encode(bytes, 7, 5);
+        assertNotEquals(stop1, stop2);
+        assertEquals("Stop2", dictionary.decode(stop2));
+        assertArrayEquals("Stop2".getBytes(StandardCharsets.UTF_8), dictionary.getUtf8(stop2));
+        assertEquals(2, dictionary.size());
+
+        assertEquals(IdDictionary.NONE, dictionary.encode(null));
+        assertNull(dictionary.decode(IdDictionary.NONE));
+    }
+
+    @Test
+    public void testInvalidUtf8SharesCode() {
+        IdDictionary dictionary = new IdDictionary();
+        // both decode to the replacement character
+        int first = dictionary.encode(new byte[]{(byte) 0xFF}, 0, 1);
+        int second = dictionary.encode(new byte[]{(byte) 0xFE}, 0, 1);
+        assertEquals(first, second);
+        assertEquals(first, dictionary.encode("\uFFFD"));
+        assertEquals(1, dictionary.size());
+    }
+
+    @Test
+    public void testConcurrentEncode() throws Exception {
+        IdDictionary dictionary = new IdDictionary();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<int[]>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                results.add(executor.submit(() -> {
+                    int[] codes = new int[5000];
+                    for (int i = 0; i < codes.length; i++) {
+                        byte[] bytes = ("Bus" + i).getBytes(StandardCharsets.UTF_8);
+                        codes[i] = dictionary.encode(bytes, 0, bytes.length);
+                    }
+                    return codes;
+                }));
+            }
+            int[] expected = results.get(0).get();
+            for (Future<int[]> result : results) {
+                assertArrayEquals(expected, result.get());
+            }
+            assertEquals(5000, dictionary.size());
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals("Bus" + i, dictionary.decode(expected[i]));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
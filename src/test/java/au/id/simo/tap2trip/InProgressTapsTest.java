@@ -0,0 +1,239 @@
+package au.id.simo.tap2trip;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InProgressTapsTest {
+
+    private final IdDictionary ids = new IdDictionary();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testNumericPan() {
+        assertEquals(5500005555555559L, InProgressTaps.numericPan("5500005555555559"));
+        assertEquals(0, InProgressTaps.numericPan("0"));
+        assertEquals(-1, InProgressTaps.numericPan("0055"));
+        assertEquals(-1, InProgressTaps.numericPan("cust1"));
+        assertEquals(-1, InProgressTaps.numericPan(""));
+        assertEquals(-1, InProgressTaps.numericPan("1234567890123456789"));
+    }
+
+    @Test
+    public void testPutAndRemove() {
+        InProgressTaps taps = new InProgressTaps(ids);
+        Tap on = new Tap(ids, 7, Instant.ofEpochSecond(1516626000, 5), Tap.Type.ON,
+                "Stop1", "Company1", "Bus37", "5500005555555559");
+        assertNull(taps.put(on));
+        assertTrue(taps.contains("5500005555555559"));
+        assertFalse(taps.contains("0055"));
+
+        Tap removed = taps.remove("5500005555555559");
+        assertSameTap(on, removed);
+        assertEquals(0, taps.size());
+        assertNull(taps.remove("5500005555555559"));
+    }
+
+    @Test
+    public void testSameAsLinkedHashMap() {
+        assertSameAsLinkedHashMap(new InProgressTaps(ids));
+    }
+
+    @Test
+    public void testSpilledSameAsLinkedHashMap() throws Exception {
+        InProgressTaps taps = new InProgressTaps(ids);
+        taps.setSpill(100, tempDir);
+        assertSameAsLinkedHashMap(taps);
+        assertEquals(0, taps.spilledSize());
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(0, files.count(), "spill files should be deleted on clear");
+        }
+    }
+
+    @Test
+    public void testSpillManyPans() {
+        InProgressTaps taps = new InProgressTaps(ids);
+        taps.setSpill(10, tempDir);
+        Map<String, Tap> expected = new LinkedHashMap<>();
+        // enough to need more than one mapped segment and to grow the index.
+        for (int i = 0; i < 70_000; i++) {
+            Tap tap = new Tap(ids, i, Instant.ofEpochSecond(i), Tap.Type.ON,
+                    "Stop1", "Company1", "Bus" + (i % 7), Long.toString(5500000000000000L + i * 7919L));
+            expected.put(tap.getPAN(), tap);
+            taps.put(tap);
+        }
+        assertEquals(70_000, taps.size());
+        assertEquals(69_990, taps.spilledSize());
+        for (int i = 0; i < 70_000; i += 3) {
+            String pan = Long.toString(5500000000000000L + i * 7919L);
+            assertSameTap(expected.remove(pan), taps.remove(pan));
+        }
+        assertSameOrder(expected, taps);
+        taps.clear();
+        assertEquals(0, taps.size());
+    }
+
+    @Test
+    public void testSpilledRecordsCompacted() throws Exception {
+        InProgressTaps taps = new InProgressTaps(ids);
+        taps.setSpill(10, tempDir);
+        Map<String, Tap> expected = new LinkedHashMap<>();
+        // enough for three mapped segments of records
+        for (int i = 0; i < 140_000; i++) {
+            Tap tap = new Tap(ids, i, Instant.ofEpochSecond(i), Tap.Type.ON,
+                    "Stop1", "Company1", "Bus" + (i % 7), pan(i));
+            expected.put(tap.getPAN(), tap);
+            taps.put(tap);
+        }
+        long spilledBytes = recordsFileSize();
+        for (int i = 0; i < 140_000; i++) {
+            if (i % 10 != 0) {
+                assertSameTap(expected.remove(pan(i)), taps.remove(pan(i)));
+            }
+        }
+        assertEquals(14_000, taps.size());
+        assertTrue(recordsFileSize() * 3 <= spilledBytes,
+                "records file should shrink to the records kept: " + recordsFileSize());
+        assertSameOrder(expected, taps);
+
+        // records added after compacting are still found and in order
+        for (int i = 140_000; i < 150_000; i++) {
+            Tap tap = new Tap(ids, i, Instant.ofEpochSecond(i), Tap.Type.ON,
+                    "Stop2", "Company1", "Bus1", pan(i));
+            expected.put(tap.getPAN(), tap);
+            taps.put(tap);
+        }
+        for (String pan : expected.keySet()) {
+            assertTrue(taps.contains(pan));
+        }
+        assertSameOrder(expected, taps);
+        taps.clear();
+        assertEquals(0, recordsFileSize());
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        InProgressTaps taps = new InProgressTaps(ids);
+        taps.setSpill(5, tempDir);
+        Map<String, Tap> expected = new LinkedHashMap<>();
+        for (int i = 0; i < 20; i++) {
+            Tap tap = new Tap(ids, i, Instant.ofEpochSecond(1516626000L + i, i), Tap.Type.ON,
+                    "Stop" + (i % 3), "Company1", i == 7 ? null : "Bus" + i, pan(i));
+            expected.put(tap.getPAN(), tap);
+            taps.put(tap);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        taps.writeSnapshot(new DataOutputStream(bytes));
+        taps.clear();
+
+        // the IDs are encoded again by the dictionary that loads them
+        InProgressTaps loaded = new InProgressTaps(new IdDictionary());
+        loaded.readSnapshot(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertSameOrder(expected, loaded);
+
+        byte[] notSnapshot = "ID, DateTimeUTC".getBytes("UTF-8");
+        IOException ex = assertThrows(IOException.class, () -> new InProgressTaps(ids)
+                .readSnapshot(new DataInputStream(new ByteArrayInputStream(notSnapshot))));
+        assertEquals("Not a trips in progress snapshot", ex.getMessage());
+    }
+
+    private void assertSameAsLinkedHashMap(InProgressTaps taps) {
+        Random random = new Random(42);
+        Map<String, Tap> expected = new LinkedHashMap<>();
+        for (int i = 0; i < 50_000; i++) {
+            String pan = pan(random.nextInt(2_000));
+            if (random.nextInt(3) == 0) {
+                assertSameTap(expected.remove(pan), taps.remove(pan));
+            } else {
+                Tap tap = new Tap(
+                        ids,
+                        i,
+                        Instant.ofEpochSecond(1516626000L + i),
+                        Tap.Type.ON,
+                        "Stop" + random.nextInt(10),
+                        "Company" + random.nextInt(3),
+                        "Bus" + random.nextInt(50),
+                        pan
+                );
+                assertSameTap(expected.put(pan, tap), taps.put(tap));
+            }
+            assertEquals(expected.size(), taps.size());
+            if (i % 10_000 == 9_999) {
+                assertSameOrder(expected, taps);
+            }
+            if (i == 25_000) {
+                expected.clear();
+                taps.clear();
+            }
+        }
+        for (String pan : new ArrayList<>(expected.keySet())) {
+            assertTrue(taps.contains(pan));
+        }
+        assertSameOrder(expected, taps);
+        taps.clear();
+    }
+
+    private long recordsFileSize() throws IOException {
+        long bytes = 0;
+        try (Stream<Path> files = Files.list(tempDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (file.getFileName().toString().startsWith("in-progress-records")) {
+                    bytes += Files.size(file);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private static String pan(int n) {
+        switch (n % 4) {
+            case 0:
+                return "cust" + n;
+            case 1:
+                return "00" + n;
+            default:
+                return Long.toString(5500005555550000L + n);
+        }
+    }
+
+    private static void assertSameOrder(Map<String, Tap> expected, InProgressTaps taps) {
+        List<Tap> actual = new ArrayList<>();
+        taps.forEach(actual::add);
+        assertEquals(expected.size(), actual.size());
+        int i = 0;
+        for (Tap tap : expected.values()) {
+            assertSameTap(tap, actual.get(i++));
+        }
+    }
+
+    private static void assertSameTap(Tap expected, Tap actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertNotNull(actual);
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getDateTime(), actual.getDateTime());
+        assertEquals(expected.getTapType(), actual.getTapType());
+        assertEquals(expected.getStopId(), actual.getStopId());
+        assertEquals(expected.getCompanyId(), actual.getCompanyId());
+        assertEquals(expected.getBusId(), actual.getBusId());
+        assertEquals(expected.getPAN(), actual.getPAN());
+    }
+}
@@ -0,0 +1,181 @@
+package au.id.simo.tap2trip;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ */
+public class ShardedTripProducerTest {
+
+    private static final String[] STOPS = {"stop1", "stop2", "stop3", "stop4", "unknown"};
+
+    private final IdDictionary ids = new IdDictionary();
+
+    @Test
+    public void testInputOrderSameAsTripProducer() throws Exception {
+        List<Tap> taps = randomTaps(20_000, 500);
+        List<String> expected = produceSequentially(taps);
+        for (int shards : new int[]{1, 2, 5}) {
+            assertEquals(
+                    expected,
+                    produceSharded(taps, shards, ShardedTripProducer.Order.INPUT),
+                    "shards: " + shards
+            );
+        }
+    }
+
+    @Test
+    public void testAnyOrderSameTrips() throws Exception {
+        List<Tap> taps = randomTaps(20_000, 500);
+        List<String> expected = produceSequentially(taps);
+        List<String> actual = produceSharded(taps, 4, ShardedTripProducer.Order.ANY);
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testCompletePeriodFlushesEveryShard() {
+        List<Trip> trips = new ArrayList<>();
+        List<Long> accepted = new ArrayList<>();
+        try (ShardedTripProducer producer = new ShardedTripProducer(
+                chargeCalc(),
+                trips::add,
+                resultHandler(accepted, new ArrayList<>()),
+                3,
+                ShardedTripProducer.Order.INPUT)) {
+            for (int i = 0; i < 10; i++) {
+                producer.addTap(tap(i, Tap.Type.ON, "stop1", "pan" + i), i);
+            }
+            producer.completePeriod();
+            assertEquals(10, trips.size());
+            assertEquals(10, accepted.size());
+            for (int i = 0; i < 10; i++) {
+                assertEquals("pan" + i, trips.get(i).getPAN());
+                assertEquals(Trip.Status.INCOMPLETE, trips.get(i).getStatus());
+            }
+            // nothing left in progress for the next period
+            producer.completePeriod();
+            assertEquals(10, trips.size());
+        }
+    }
+
+    @Test
+    public void testConsumerFailure() {
+        try (ShardedTripProducer producer = new ShardedTripProducer(
+                chargeCalc(),
+                t -> {
+                    throw new IllegalStateException("write failed");
+                },
+                resultHandler(new ArrayList<>(), new ArrayList<>()),
+                2,
+                ShardedTripProducer.Order.INPUT)) {
+            IllegalStateException ex = assertThrows(IllegalStateException.class, () -> {
+                producer.addTap(tap(1, Tap.Type.ON, "stop1", "pan"), 1);
+                producer.completePeriod();
+            });
+            assertEquals("write failed", ex.getCause().getMessage());
+        }
+    }
+
+    private ChargeCalculator chargeCalc() {
+        // no charge between stop1 and stop4, so some trips fail
+        return new ChargeCalculator(ids)
+                .addCharge("stop1", "stop2", 100)
+                .addCharge("stop2", "stop3", 200)
+                .addCharge("stop1", "stop3", 300)
+                .addCharge("stop3", "stop4", 400);
+    }
+
+    private List<Tap> randomTaps(int count, int pans) {
+        Random rnd = new Random(42);
+        List<Tap> taps = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            taps.add(tap(
+                    i,
+                    rnd.nextBoolean() ? Tap.Type.ON : Tap.Type.OFF,
+                    STOPS[rnd.nextInt(STOPS.length)],
+                    "pan" + rnd.nextInt(pans)
+            ));
+        }
+        return taps;
+    }
+
+    private Tap tap(long id, Tap.Type type, String stop, String pan) {
+        return new Tap(ids, id, Instant.ofEpochSecond(id), type, stop, "company", "bus", pan);
+    }
+
+    private List<String> produceSequentially(List<Tap> taps) {
+        List<String> results = new ArrayList<>();
+        TripProducer producer = new TripProducer(chargeCalc(), t -> results.add(describe(t)));
+        for (int i = 0; i < taps.size(); i++) {
+            try {
+                producer.addTap(taps.get(i));
+                results.add("accepted " + i);
+            } catch (UnknownChargeException ex) {
+                results.add("rejected " + i + " " + ex.getMessage());
+            }
+        }
+        producer.completePeriod();
+        return results;
+    }
+
+    private List<String> produceSharded(List<Tap> taps, int shards, ShardedTripProducer.Order order) {
+        List<String> results = new ArrayList<>();
+        TapResultHandler handler = new TapResultHandler() {
+            @Override
+            public void tapAccepted(long tag) {
+                results.add("accepted " + tag);
+            }
+
+            @Override
+            public void tapRejected(long tag, TapError cause) {
+                results.add("rejected " + tag + " " + cause.getMessage());
+            }
+        };
+        try (ShardedTripProducer producer = new ShardedTripProducer(
+                chargeCalc(),
+                t -> results.add(describe(t)),
+                handler,
+                shards,
+                order)) {
+            for (int i = 0; i < taps.size(); i++) {
+                producer.addTap(taps.get(i), i);
+            }
+            producer.completePeriod();
+        }
+        return results;
+    }
+
+    private static TapResultHandler resultHandler(List<Long> accepted, List<Long> rejected) {
+        return new TapResultHandler() {
+            @Override
+            public void tapAccepted(long tag) {
+                accepted.add(tag);
+            }
+
+            @Override
+            public void tapRejected(long tag, TapError cause) {
+                rejected.add(tag);
+            }
+        };
+    }
+
+    private static String describe(Trip t) {
+        return String.join("|",
+                String.valueOf(t.getStarted()),
+                String.valueOf(t.getFinished()),
+                String.valueOf(t.getDuration()),
+                t.getFromStopId(),
+                t.getToStopId(),
+                String.valueOf(t.getChargeAmount()),
+                t.getPAN(),
+                String.valueOf(t.getStatus()));
+    }
+}
@@ -1,11 +1,14 @@
 package au.id.simo.tap2trip;
 
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
@@ -14,6 +17,10 @@ import static org.junit.jupiter.api.Assertions.*;
 public class TripProducerTest {
 
     private final AtomicLong tapId = new AtomicLong();
+    private final IdDictionary ids = new IdDictionary();
+
+    @TempDir
+    Path tempDir;
 
     @Test
     public void testHappyPath() throws UnknownChargeException {
@@ -21,7 +28,7 @@ public class TripProducerTest {
         String stop2 = "stop2";
         String cust1 = "cust1";
         
-        ChargeCalculator chargeCalc = new ChargeCalculator()
+        ChargeCalculator chargeCalc = new ChargeCalculator(ids)
                 .addCharge(stop1, stop2, 10_00);
         
         // all trips produced will just be added to the tripList
@@ -47,7 +54,7 @@ public class TripProducerTest {
         String stop2 = "stop2";
         String cust1 = "cust1";
         
-        ChargeCalculator chargeCalc = new ChargeCalculator()
+        ChargeCalculator chargeCalc = new ChargeCalculator(ids)
                 .addCharge(stop1, stop2, 10_00);
         
         // all trips produced will just be added to the tripList
@@ -71,7 +78,7 @@ public class TripProducerTest {
         String stop2 = "stop2";
         String cust1 = "cust1";
         
-        ChargeCalculator chargeCalc = new ChargeCalculator()
+        ChargeCalculator chargeCalc = new ChargeCalculator(ids)
                 .addCharge(stop1, stop2, 10_00);
         
         // all trips produced will just be added to the tripList
@@ -89,7 +96,7 @@ public class TripProducerTest {
         String stop2 = "stop2";
         String cust1 = "cust1";
         
-        ChargeCalculator chargeCalc = new ChargeCalculator()
+        ChargeCalculator chargeCalc = new ChargeCalculator(ids)
                 .addCharge(stop1, stop2, 10_00);
         
         // all trips produced will just be added to the tripList
@@ -108,7 +115,7 @@ public class TripProducerTest {
         String stop2 = "stop2";
         String cust1 = "cust1";
         
-        ChargeCalculator chargeCalc = new ChargeCalculator()
+        ChargeCalculator chargeCalc = new ChargeCalculator(ids)
                 .addCharge(stop1, stop2, 10_00);
         
         // all trips produced will just be added to the tripList
@@ -121,6 +128,39 @@ public class TripProducerTest {
         });
         assertEquals(0, tripList.size(), "There should be no trips in the list");
     }
+
+    @Test
+    public void testOfferTapErrors() {
+        String cust1 = "cust1";
+        String cust2 = "cust2";
+        ChargeCalculator chargeCalc = new ChargeCalculator(ids)
+                .addCharge("stop1", "stop2", 10_00)
+                .addCharge("stop2", "stop3", 5_00);
+        List<Trip> tripList = new ArrayList<>();
+        TripProducer te = new TripProducer(chargeCalc, t -> tripList.add(t));
+
+        TapError unknown = te.offerTap(tapOn(cust1, "An unknown stop"));
+        assertEquals(TapError.Code.UNKNOWN_STOP, unknown.getCode());
+        assertEquals("Unknown stop ID: An unknown stop", unknown.getMessage());
+        // the message is only built once for each stop
+        assertSame(unknown, te.offerTap(tapOff(cust2, "An unknown stop")));
+
+        assertNull(te.offerTap(tapOn(cust1, "stop1")));
+        TapError noCharge = te.offerTap(tapOff(cust1, "stop3"));
+        assertEquals(TapError.Code.NO_CHARGE, noCharge.getCode());
+        assertEquals("No charge is found between stops stop1 and stop3", noCharge.getMessage());
+        // the trip has ended, the same as when addTap() throws
+        assertFalse(te.isInProgress(cust1));
+        assertNull(te.offerTap(tapOn(cust1, "stop1")));
+        assertSame(noCharge, te.offerTap(tapOff(cust1, "stop3")));
+        assertEquals(0, tripList.size(), "There should be no trips in the list");
+
+        assertNull(te.offerTap(tapOn(cust2, "stop1")));
+        UnknownChargeException ex = assertThrows(UnknownChargeException.class, () -> {
+            te.addTap(tapOff(cust2, "stop3"));
+        });
+        assertEquals(noCharge.getMessage(), ex.getMessage());
+    }
     
     @Test
     public void testIncompleteTrips() throws UnknownChargeException {
@@ -128,7 +168,7 @@ public class TripProducerTest {
         String stop2 = "stop2";
         String cust1 = "cust1";
         
-        ChargeCalculator chargeCalc = new ChargeCalculator()
+        ChargeCalculator chargeCalc = new ChargeCalculator(ids)
                 .addCharge(stop1, stop2, 10_00);
                 
         
@@ -144,8 +184,200 @@ public class TripProducerTest {
         assertEquals(Trip.Status.INCOMPLETE, tripList.get(0).getStatus());
     }
     
+    @Test
+    public void testSaveAndLoadInProgress() throws Exception {
+        String stop1 = "stop1";
+        String stop2 = "stop2";
+        String cust1 = "cust1";
+        String cust2 = "5500005555555559";
+
+        ChargeCalculator chargeCalc = new ChargeCalculator(ids)
+                .addCharge(stop1, stop2, 10_00);
+        Path snapshot = tempDir.resolve("in-progress.bin");
+
+        List<Trip> tripList = new ArrayList<>();
+        TripProducer first = new TripProducer(chargeCalc, t -> tripList.add(t));
+        first.addTap(tapOn(cust1, stop1));
+        first.addTap(tapOn(cust2, stop2));
+        first.saveInProgress(snapshot);
+        assertEquals(0, tripList.size(), "Trips in progress should be saved, not completed");
+        first.completePeriod();
+        assertEquals(0, tripList.size(), "Saved trips are no longer in progress");
+
+        TripProducer second = new TripProducer(chargeCalc, t -> tripList.add(t));
+        second.loadInProgress(snapshot);
+        second.addTap(tapOff(cust1, stop2));
+        assertEquals(1, tripList.size());
+        assertEquals(Trip.Status.COMPLETED, tripList.get(0).getStatus());
+        assertEquals(Instant.EPOCH, tripList.get(0).getStarted());
+        assertEquals(1000, tripList.get(0).getChargeAmount());
+
+        second.completePeriod();
+        assertEquals(2, tripList.size());
+        assertEquals(cust2, tripList.get(1).getPAN());
+        assertEquals(stop2, tripList.get(1).getFromStopId());
+        assertEquals(Trip.Status.INCOMPLETE, tripList.get(1).getStatus());
+    }
+
+    @Test
+    public void testLoadInProgressDropsUnknownStops() throws Exception {
+        String stop1 = "stop1";
+        String stop2 = "stop2";
+        String closedStop = "stop9";
+
+        ChargeCalculator before = new ChargeCalculator(ids)
+                .addCharge(stop1, stop2, 10_00)
+                .addCharge(stop2, closedStop, 5_00);
+        ChargeCalculator after = new ChargeCalculator(ids)
+                .addCharge(stop1, stop2, 10_00);
+        Path snapshot = tempDir.resolve("in-progress.bin");
+
+        List<Trip> tripList = new ArrayList<>();
+        TripProducer first = new TripProducer(before, t -> tripList.add(t));
+        first.addTap(tapOn("cust1", closedStop));
+        first.addTap(tapOn("cust2", stop1));
+        first.saveInProgress(snapshot);
+
+        TripProducer second = new TripProducer(after, t -> tripList.add(t));
+        List<Tap> dropped = second.loadInProgress(snapshot);
+        assertEquals(1, dropped.size());
+        assertEquals("cust1", dropped.get(0).getPAN());
+        assertEquals(closedStop, dropped.get(0).getStopId());
+        assertFalse(second.isInProgress("cust1"));
+        assertTrue(second.isInProgress("cust2"));
+
+        // a new Tap-on for the dropped PAN is applied like any other
+        assertNull(second.offerTap(tapOn("cust1", stop2)));
+        assertTrue(second.isInProgress("cust1"));
+        assertEquals(0, tripList.size());
+
+        second.completePeriod();
+        assertEquals(2, tripList.size());
+        assertEquals("cust2", tripList.get(0).getPAN());
+        assertEquals("cust1", tripList.get(1).getPAN());
+        assertEquals(stop2, tripList.get(1).getFromStopId());
+    }
+
+    @Test
+    public void testMaxTripDuration() throws Exception {
+        String stop1 = "stop1";
+        String stop2 = "stop2";
+
+        ChargeCalculator chargeCalc = new ChargeCalculator(ids)
+                .addCharge(stop1, stop2, 10_00);
+
+        List<Trip> tripList = new ArrayList<>();
+        TripProducer te = new TripProducer(chargeCalc, t -> tripList.add(t))
+                .setMaxTripDuration(Duration.ofHours(2));
+
+        te.addTap(tap("cust1", stop1, Tap.Type.ON, 0));
+        te.addTap(tap("cust2", stop1, Tap.Type.ON, 10));
+        te.addTap(tap("cust3", stop1, Tap.Type.ON, 20));
+        // cust2 taps on again, so its trip in progress starts later
+        te.addTap(tap("cust2", stop2, Tap.Type.ON, 30));
+        assertEquals(1, tripList.size());
+
+        // exactly 2 hours is not over the limit
+        te.addTap(tap("cust4", stop1, Tap.Type.ON, 120));
+        assertEquals(1, tripList.size());
+        assertTrue(te.isInProgress("cust1"));
+
+        te.addTap(tap("cust4", stop2, Tap.Type.OFF, 145));
+        assertEquals(4, tripList.size());
+        assertEquals("cust1", tripList.get(1).getPAN());
+        assertEquals(Trip.Status.INCOMPLETE, tripList.get(1).getStatus());
+        assertEquals("cust3", tripList.get(2).getPAN());
+        assertEquals(Trip.Status.INCOMPLETE, tripList.get(2).getStatus());
+        assertEquals("cust4", tripList.get(3).getPAN());
+        assertEquals(Trip.Status.COMPLETED, tripList.get(3).getStatus());
+        assertTrue(te.isInProgress("cust2"), "cust2 tapped on again at 30 minutes");
+
+        // a Tap-off after the trip expired has no Tap-on
+        te.addTap(tap("cust2", stop1, Tap.Type.OFF, 200));
+        assertEquals(6, tripList.size());
+        assertEquals("cust2", tripList.get(4).getPAN());
+        assertEquals(Trip.Status.INCOMPLETE, tripList.get(4).getStatus());
+        assertEquals(stop2, tripList.get(4).getFromStopId());
+        assertEquals("cust2", tripList.get(5).getPAN());
+        assertEquals(Trip.Status.INCOMPLETE, tripList.get(5).getStatus());
+        assertNull(tripList.get(5).getFromStopId());
+
+        te.completePeriod();
+        assertEquals(6, tripList.size());
+    }
+
+    @Test
+    public void testExpiryQueueBounded() throws Exception {
+        String stop1 = "stop1";
+        String stop2 = "stop2";
+
+        ChargeCalculator chargeCalc = new ChargeCalculator(ids)
+                .addCharge(stop1, stop2, 10_00);
+
+        List<Trip> tripList = new ArrayList<>();
+        TripProducer te = new TripProducer(chargeCalc, t -> tripList.add(t))
+                .setMaxTripDuration(Duration.ofHours(2));
+
+        // 100 PANs tap on then off, 250 times each, all within the maximum
+        // duration, so only Tap-ons of trips that ended are ever queued
+        int maxQueued = 0;
+        for (int i = 0; i < 50_000; i++) {
+            boolean on = (i / 100) % 2 == 0;
+            te.addTap(tap("cust" + (i % 100), on ? stop1 : stop2, on ? Tap.Type.ON : Tap.Type.OFF, i / 1000));
+            maxQueued = Math.max(maxQueued, te.expiryQueueSize());
+        }
+        assertEquals(25_000, tripList.size());
+        assertTrue(maxQueued <= 1024, "expiry queue grew to " + maxQueued);
+
+        // trips in progress still expire in order
+        te.addTap(tap("cust1", stop1, Tap.Type.ON, 60));
+        te.addTap(tap("cust2", stop1, Tap.Type.ON, 61));
+        te.addTap(tap("cust3", stop1, Tap.Type.ON, 181));
+        assertEquals(25_001, tripList.size());
+        assertEquals("cust1", tripList.get(25_000).getPAN());
+        assertEquals(Trip.Status.INCOMPLETE, tripList.get(25_000).getStatus());
+        assertTrue(te.isInProgress("cust2"));
+    }
+
+    @Test
+    public void testMaxTripDurationAfterLoad() throws Exception {
+        String stop1 = "stop1";
+        String stop2 = "stop2";
+
+        ChargeCalculator chargeCalc = new ChargeCalculator(ids)
+                .addCharge(stop1, stop2, 10_00);
+        Path snapshot = tempDir.resolve("in-progress.bin");
+
+        List<Trip> tripList = new ArrayList<>();
+        TripProducer first = new TripProducer(chargeCalc, t -> tripList.add(t));
+        first.addTap(tap("cust1", stop1, Tap.Type.ON, 0));
+        first.saveInProgress(snapshot);
+
+        TripProducer second = new TripProducer(chargeCalc, t -> tripList.add(t))
+                .setMaxTripDuration(Duration.ofHours(1));
+        second.loadInProgress(snapshot);
+        second.addTap(tap("cust2", stop1, Tap.Type.ON, 61));
+        assertEquals(1, tripList.size());
+        assertEquals("cust1", tripList.get(0).getPAN());
+        assertEquals(Trip.Status.INCOMPLETE, tripList.get(0).getStatus());
+    }
+
+    private Tap tap(String pan, String stop, Tap.Type type, int minutes) {
+        return new Tap(
+                ids,
+                tapId.incrementAndGet(),
+                Instant.EPOCH.plus(minutes, ChronoUnit.MINUTES),
+                type,
+                stop,
+                "company",
+                "bus",
+                pan
+        );
+    }
+
     private Tap tapOn(String pan, String stop) {
         return new Tap(
+                ids,
                 tapId.incrementAndGet(),
                 Instant.EPOCH,
                 Tap.Type.ON,
@@ -158,6 +390,7 @@ public class TripProducerTest {
 
     private Tap tapOff(String pan, String stop) {
         return new Tap(
+                ids,
                 tapId.incrementAndGet(),
                 Instant.EPOCH.plus(10, ChronoUnit.MINUTES),
                 Tap.Type.OFF,
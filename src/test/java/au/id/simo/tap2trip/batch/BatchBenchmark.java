@@ -0,0 +1,539 @@
+package au.id.simo.tap2trip.batch;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * End to end benchmark of {@link Batch#process(Path, Path, Path)} over a set
+ * of seeded scenarios, compared against a baseline.
+ *
+ * Each scenario generates its taps with a {@link BulkTapDataGenerator}, then
+ * processes them a number of times after a warm up run. The median wall time
+ * and GC time, and the largest peak heap, are kept. The results are compared
+ * with the same scenarios in the baseline JSON file, and the benchmark fails
+ * if the throughput drops, or the peak heap or GC time grows, by more than
+ * the threshold. Without a baseline, or with --record, the results are
+ * written as the new baseline.
+ *
+ * Results only compare with a baseline recorded on the same machine with the
+ * same JVM options, in particular the heap size.
+ *
+ * Arguments:
+ * <pre>
+ * --baseline file     the baseline JSON, benchmark-baseline.json by default.
+ * --record            write the results to the baseline, even if it exists.
+ * --threshold 0.1     the change allowed before failing, as a fraction.
+ * --runs 3            the measured runs of each scenario.
+ * --scale 1           multiplies the number of taps of every scenario.
+ * --scenarios a,b     only run these scenarios.
+ * --dir dir           where to put the generated files, the temp dir by default.
+ * </pre>
+ */
+public class BatchBenchmark {
+
+    /**
+     * GC time can move by a few collections between runs, so this much more
+     * is allowed on top of the threshold.
+     */
+    private static final long GC_ALLOWANCE_MILLIS = 50;
+
+    /**
+     * Main method entry point. Exits with 1 if any scenario regressed.
+     *
+     * @param args see the class description.
+     * @throws IOException if the files can't be read or written.
+     */
+    public static void main(String[] args) throws IOException {
+        BatchBenchmark benchmark = new BatchBenchmark();
+        Path baselineFile = Paths.get("benchmark-baseline.json");
+        boolean record = false;
+        double threshold = 0.1;
+        double scale = 1;
+        List<String> names = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--baseline":
+                    baselineFile = Paths.get(args[++i]);
+                    break;
+                case "--record":
+                    record = true;
+                    break;
+                case "--threshold":
+                    threshold = Double.parseDouble(args[++i]);
+                    break;
+                case "--runs":
+                    benchmark.setRuns(Integer.parseInt(args[++i]));
+                    break;
+                case "--scale":
+                    scale = Double.parseDouble(args[++i]);
+                    break;
+                case "--scenarios":
+                    names = Arrays.asList(args[++i].split(","));
+                    break;
+                case "--dir":
+                    benchmark.setDir(Paths.get(args[++i]));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+
+        List<Scenario> scenarios = new ArrayList<>();
+        for (Scenario scenario : scenarios(scale)) {
+            if (names == null || names.contains(scenario.name)) {
+                scenarios.add(scenario);
+            }
+        }
+        if (scenarios.isEmpty()) {
+            throw new IllegalArgumentException("No scenarios named: " + names);
+        }
+
+        Map<String, Result> results = new LinkedHashMap<>();
+        for (Scenario scenario : scenarios) {
+            System.out.printf("Running %s, %,d taps...%n", scenario.name, scenario.taps);
+            Result result = benchmark.run(scenario);
+            results.put(scenario.name, result);
+            System.out.println(result);
+        }
+
+        Baseline baseline = Files.exists(baselineFile) ? Baseline.read(baselineFile) : null;
+        List<String> regressions = new ArrayList<>();
+        if (baseline != null) {
+            if (!baseline.environment.equals(environment())) {
+                System.out.println("Warning: the baseline was recorded with " + baseline.environment
+                        + ", this run is " + environment());
+            }
+            for (Result result : results.values()) {
+                Result previous = baseline.results.get(result.name);
+                if (previous == null) {
+                    System.out.println(result.name + ": not in the baseline");
+                    continue;
+                }
+                System.out.println(result.name + ": " + result.changeFrom(previous));
+                regressions.addAll(result.regressions(previous, threshold));
+            }
+        }
+        if (baseline == null || record) {
+            Map<String, Result> merged = new LinkedHashMap<>();
+            if (baseline != null) {
+                merged.putAll(baseline.results);
+            }
+            merged.putAll(results);
+            new Baseline(environment(), merged).write(baselineFile);
+            System.out.println("Baseline written to " + baselineFile);
+        }
+        if (!regressions.isEmpty()) {
+            for (String regression : regressions) {
+                System.out.println("REGRESSION " + regression);
+            }
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @param scale multiplies the number of taps of every scenario.
+     * @return the standard scenarios, each varying one thing from base.
+     */
+    static List<Scenario> scenarios(double scale) {
+        long taps = Math.round(2_000_000 * scale);
+        return Arrays.asList(
+                new Scenario("base", taps),
+                new Scenario("large", taps * 5),
+                // each PAN makes many trips a day
+                new Scenario("few-pans", taps).setPans(taps / 200),
+                // most PANs make one trip
+                new Scenario("many-pans", taps).setPans(taps * 2),
+                // incomplete trips stay in progress until the end of the day
+                new Scenario("open-trips", taps).setIncompleteRate(0.3),
+                new Scenario("errors", taps).setErrorRate(0.05),
+                new Scenario("threads-4", taps).setThreads(4)
+        );
+    }
+
+    private int runs = 3;
+    private Path dir = Paths.get(System.getProperty("java.io.tmpdir"));
+
+    /**
+     * @param runs the measured runs of each scenario, after a warm up run.
+     * @return This instance. Used for method chaining.
+     */
+    public BatchBenchmark setRuns(int runs) {
+        if (runs < 1) {
+            throw new IllegalArgumentException("runs must be at least 1: " + runs);
+        }
+        this.runs = runs;
+        return this;
+    }
+
+    /**
+     * @param dir where to put the generated taps and the output files.
+     * @return This instance. Used for method chaining.
+     */
+    public BatchBenchmark setDir(Path dir) {
+        this.dir = dir;
+        return this;
+    }
+
+    /**
+     * Generates the scenario's taps, then processes them after a warm up
+     * run. The files are deleted afterwards.
+     *
+     * @param scenario the scenario to run.
+     * @return the median wall time and GC time, and the largest peak heap, of
+     * the measured runs.
+     * @throws IOException if the files can't be read or written.
+     */
+    public Result run(Scenario scenario) throws IOException {
+        Path tapsCsv = dir.resolve("benchmark-taps.csv");
+        Path tripsCsv = dir.resolve("benchmark-trips.csv");
+        Path errorCsv = dir.resolve("benchmark-errors.csv");
+        BulkTapDataGenerator generator = scenario.generator();
+        try {
+            long written = generator.generateTaps(scenario.taps, tapsCsv);
+            long[] wallNanos = new long[runs];
+            long[] gcMillis = new long[runs];
+            long peakHeap = 0;
+            BatchMetrics metrics = null;
+            for (int run = -1; run < runs; run++) {
+                System.gc();
+                for (MemoryPoolMXBean pool : heapPools()) {
+                    pool.resetPeakUsage();
+                }
+                long gcBefore = gcMillis();
+                long start = System.nanoTime();
+                metrics = scenario.batch(generator).process(tapsCsv, tripsCsv, errorCsv);
+                long elapsed = System.nanoTime() - start;
+                if (metrics.getTapsRead() + metrics.getTapReadErrors() != written) {
+                    throw new IllegalStateException("Read " + metrics.getTapsRead() + " taps and "
+                            + metrics.getTapReadErrors() + " errors of " + written);
+                }
+                if (run < 0) {
+                    // warm up
+                    continue;
+                }
+                wallNanos[run] = elapsed;
+                gcMillis[run] = gcMillis() - gcBefore;
+                peakHeap = Math.max(peakHeap, peakHeapBytes());
+            }
+            return new Result(scenario.name, written, metrics.getTapReadErrors(), metrics.getTripsWritten(),
+                    median(wallNanos) / 1_000_000, peakHeap, median(gcMillis));
+        } finally {
+            Files.deleteIfExists(tapsCsv);
+            Files.deleteIfExists(tripsCsv);
+            Files.deleteIfExists(errorCsv);
+        }
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pools.add(pool);
+            }
+        }
+        return pools;
+    }
+
+    /**
+     * @return the sum of each heap pool's peak since it was reset. The pools
+     * peak at different times, so this is an upper bound of the heap used.
+     */
+    private static long peakHeapBytes() {
+        long bytes = 0;
+        for (MemoryPoolMXBean pool : heapPools()) {
+            bytes += pool.getPeakUsage().getUsed();
+        }
+        return bytes;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(gc.getCollectionTime(), 0);
+        }
+        return millis;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    /**
+     * @return what the results depend on, other than the code.
+     */
+    static Map<String, String> environment() {
+        Map<String, String> environment = new LinkedHashMap<>();
+        environment.put("javaVersion", System.getProperty("java.version"));
+        environment.put("processors", Integer.toString(Runtime.getRuntime().availableProcessors()));
+        environment.put("maxHeapBytes", Long.toString(Runtime.getRuntime().maxMemory()));
+        return environment;
+    }
+
+    /**
+     * The taps to generate and how to process them.
+     */
+    public static final class Scenario {
+        private final String name;
+        private final long taps;
+        private long pans;
+        private double incompleteRate = 0.01;
+        private double errorRate;
+        private int threads = 1;
+
+        /**
+         * @param name the name of the scenario in the baseline.
+         * @param taps about how many taps to generate.
+         */
+        public Scenario(String name, long taps) {
+            this.name = name;
+            this.taps = taps;
+            this.pans = taps / 4;
+        }
+
+        /**
+         * @param pans the number of distinct PANs. A quarter of the taps by
+         * default.
+         * @return This instance. Used for method chaining.
+         */
+        public Scenario setPans(long pans) {
+            this.pans = pans;
+            return this;
+        }
+
+        /**
+         * @param incompleteRate the share of trips with no Tap-off.
+         * @return This instance. Used for method chaining.
+         */
+        public Scenario setIncompleteRate(double incompleteRate) {
+            this.incompleteRate = incompleteRate;
+            return this;
+        }
+
+        /**
+         * @param errorRate the share of extra taps that can't be read.
+         * @return This instance. Used for method chaining.
+         */
+        public Scenario setErrorRate(double errorRate) {
+            this.errorRate = errorRate;
+            return this;
+        }
+
+        /**
+         * @param threads the number of reader threads and matcher shards.
+         * @return This instance. Used for method chaining.
+         */
+        public Scenario setThreads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        private BulkTapDataGenerator generator() {
+            // a network of a mid sized city, as in BatchLT
+            return new BulkTapDataGenerator()
+                    .setSeed(name.hashCode())
+                    .setStops(200)
+                    .setBuses(800)
+                    .setCompanies(5)
+                    .setPans(Math.max(pans, 64))
+                    .setSkew(1)
+                    .setStatusRates(incompleteRate, 0.01)
+                    .setErrorRate(errorRate);
+        }
+
+        private Batch batch(BulkTapDataGenerator generator) {
+            return new Batch(generator.charges())
+                    .setReaderThreads(threads)
+                    .setMatcherShards(threads)
+                    .setCompressorThreads(threads);
+        }
+    }
+
+    /**
+     * The measurements of a scenario.
+     */
+    public static final class Result {
+        private final String name;
+        private final long taps;
+        private final long tapReadErrors;
+        private final long tripsWritten;
+        private final long wallMillis;
+        private final long peakHeapBytes;
+        private final long gcMillis;
+
+        Result(String name, long taps, long tapReadErrors, long tripsWritten,
+                long wallMillis, long peakHeapBytes, long gcMillis) {
+            this.name = name;
+            this.taps = taps;
+            this.tapReadErrors = tapReadErrors;
+            this.tripsWritten = tripsWritten;
+            this.wallMillis = wallMillis;
+            this.peakHeapBytes = peakHeapBytes;
+            this.gcMillis = gcMillis;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getTaps() {
+            return taps;
+        }
+
+        public long getTapReadErrors() {
+            return tapReadErrors;
+        }
+
+        public long getTripsWritten() {
+            return tripsWritten;
+        }
+
+        public long getWallMillis() {
+            return wallMillis;
+        }
+
+        public double getTapsPerSecond() {
+            return taps * 1000.0 / Math.max(wallMillis, 1);
+        }
+
+        public long getPeakHeapBytes() {
+            return peakHeapBytes;
+        }
+
+        public long getGcMillis() {
+            return gcMillis;
+        }
+
+        /**
+         * @param baseline the same scenario from the baseline.
+         * @param threshold the change allowed, as a fraction.
+         * @return a message for each measurement that regressed past the
+         * threshold, empty if none did.
+         */
+        List<String> regressions(Result baseline, double threshold) {
+            List<String> regressions = new ArrayList<>();
+            if (getTapsPerSecond() < baseline.getTapsPerSecond() * (1 - threshold)) {
+                regressions.add(String.format(Locale.ROOT, "%s: %,.0f taps/s, was %,.0f",
+                        name, getTapsPerSecond(), baseline.getTapsPerSecond()));
+            }
+            if (peakHeapBytes > baseline.peakHeapBytes * (1 + threshold)) {
+                regressions.add(String.format(Locale.ROOT, "%s: peak heap %,d MB, was %,d MB",
+                        name, peakHeapBytes >> 20, baseline.peakHeapBytes >> 20));
+            }
+            if (gcMillis > baseline.gcMillis * (1 + threshold) + GC_ALLOWANCE_MILLIS) {
+                regressions.add(String.format(Locale.ROOT, "%s: GC %,d ms, was %,d ms",
+                        name, gcMillis, baseline.gcMillis));
+            }
+            return regressions;
+        }
+
+        private String changeFrom(Result baseline) {
+            return String.format(Locale.ROOT, "taps/s %+.1f%%, peak heap %+.1f%%, GC %+d ms",
+                    change(getTapsPerSecond(), baseline.getTapsPerSecond()),
+                    change(peakHeapBytes, baseline.peakHeapBytes),
+                    gcMillis - baseline.gcMillis);
+        }
+
+        private static double change(double value, double baseline) {
+            return baseline == 0 ? 0 : (value / baseline - 1) * 100;
+        }
+
+        private String toJson() {
+            return String.format(Locale.ROOT, "{\"taps\":%d,\"tapReadErrors\":%d,\"tripsWritten\":%d"
+                    + ",\"wallMillis\":%d,\"tapsPerSecond\":%.1f,\"peakHeapBytes\":%d,\"gcMillis\":%d}",
+                    taps, tapReadErrors, tripsWritten, wallMillis, getTapsPerSecond(), peakHeapBytes, gcMillis);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s: %,d taps in %.2f s, %,.0f taps/s, peak heap %,d MB, GC %,d ms",
+                    name, taps, wallMillis / 1000.0, getTapsPerSecond(), peakHeapBytes >> 20, gcMillis);
+        }
+    }
+
+    /**
+     * The results of each scenario, and the environment they were recorded
+     * in, as stored in the baseline file.
+     */
+    static final class Baseline {
+        private static final Pattern OBJECT = Pattern.compile("\"([^\"]+)\"\\s*:\\s*\\{([^{}]*)\\}");
+        private static final Pattern FIELD = Pattern.compile("\"([^\"]+)\"\\s*:\\s*(\"([^\"]*)\"|[-+0-9.eE]+)");
+
+        private final Map<String, String> environment;
+        private final Map<String, Result> results;
+
+        Baseline(Map<String, String> environment, Map<String, Result> results) {
+            this.environment = environment;
+            this.results = results;
+        }
+
+        Map<String, Result> getResults() {
+            return results;
+        }
+
+        /**
+         * Reads a baseline written by {@link #write(Path)}. Only the simple
+         * JSON it writes is understood.
+         */
+        static Baseline read(Path file) throws IOException {
+            String json = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            Map<String, String> environment = new LinkedHashMap<>();
+            Map<String, Result> results = new LinkedHashMap<>();
+            Matcher object = OBJECT.matcher(json);
+            while (object.find()) {
+                Map<String, String> fields = new LinkedHashMap<>();
+                Matcher field = FIELD.matcher(object.group(2));
+                while (field.find()) {
+                    fields.put(field.group(1), field.group(3) != null ? field.group(3) : field.group(2));
+                }
+                String name = object.group(1);
+                if (name.equals("environment")) {
+                    environment.putAll(fields);
+                    continue;
+                }
+                results.put(name, new Result(name,
+                        Long.parseLong(fields.get("taps")),
+                        Long.parseLong(fields.get("tapReadErrors")),
+                        Long.parseLong(fields.get("tripsWritten")),
+                        Long.parseLong(fields.get("wallMillis")),
+                        Long.parseLong(fields.get("peakHeapBytes")),
+                        Long.parseLong(fields.get("gcMillis"))));
+            }
+            return new Baseline(environment, results);
+        }
+
+        void write(Path file) throws IOException {
+            StringBuilder sb = new StringBuilder("{\n  \"environment\": {");
+            String separator = "";
+            for (Map.Entry<String, String> entry : environment.entrySet()) {
+                sb.append(separator).append('"').append(entry.getKey()).append("\":\"")
+                        .append(entry.getValue()).append('"');
+                separator = ",";
+            }
+            sb.append("},\n  \"scenarios\": {");
+            separator = "\n";
+            for (Result result : results.values()) {
+                sb.append(separator).append("    \"").append(result.name).append("\": ").append(result.toJson());
+                separator = ",\n";
+            }
+            sb.append("\n  }\n}\n");
+            Files.write(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
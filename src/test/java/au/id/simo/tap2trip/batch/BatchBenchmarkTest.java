@@ -0,0 +1,75 @@
+package au.id.simo.tap2trip.batch;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BatchBenchmarkTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testRun() throws IOException {
+        BatchBenchmark.Result result = new BatchBenchmark()
+                .setRuns(1)
+                .setDir(tempDir)
+                .run(new BatchBenchmark.Scenario("small", 10_000).setErrorRate(0.1).setThreads(2));
+        assertEquals("small", result.getName());
+        assertTrue(Math.abs(result.getTaps() - 10_500) < 300, "taps: " + result.getTaps());
+        assertTrue(result.getTapReadErrors() > 300, "errors: " + result.getTapReadErrors());
+        assertTrue(result.getTripsWritten() > 4000, "trips: " + result.getTripsWritten());
+        assertTrue(result.getPeakHeapBytes() > 0);
+        // the generated files are deleted
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void testBaselineRoundTrip() throws IOException {
+        Map<String, BatchBenchmark.Result> results = new LinkedHashMap<>();
+        results.put("base", new BatchBenchmark.Result("base", 2_000_000, 0, 990_000, 4000, 300 << 20, 120));
+        results.put("errors", new BatchBenchmark.Result("errors", 2_050_000, 50_000, 990_000, 5000, 310 << 20, 130));
+        Path file = tempDir.resolve("baseline.json");
+        new BatchBenchmark.Baseline(BatchBenchmark.environment(), results).write(file);
+
+        BatchBenchmark.Baseline read = BatchBenchmark.Baseline.read(file);
+        assertEquals(results.keySet(), read.getResults().keySet());
+        BatchBenchmark.Result errors = read.getResults().get("errors");
+        assertEquals(2_050_000, errors.getTaps());
+        assertEquals(50_000, errors.getTapReadErrors());
+        assertEquals(990_000, errors.getTripsWritten());
+        assertEquals(5000, errors.getWallMillis());
+        assertEquals(310 << 20, errors.getPeakHeapBytes());
+        assertEquals(130, errors.getGcMillis());
+        assertEquals(410_000, errors.getTapsPerSecond(), 0.1);
+    }
+
+    @Test
+    public void testRegressions() {
+        BatchBenchmark.Result baseline = new BatchBenchmark.Result("base", 2_000_000, 0, 990_000, 4000, 300 << 20, 100);
+        // within 10%
+        BatchBenchmark.Result same = new BatchBenchmark.Result("base", 2_000_000, 0, 990_000, 4400, 320 << 20, 150);
+        assertEquals(0, same.regressions(baseline, 0.1).size());
+
+        BatchBenchmark.Result slower = new BatchBenchmark.Result("base", 2_000_000, 0, 990_000, 4500, 300 << 20, 100);
+        List<String> regressions = slower.regressions(baseline, 0.1);
+        assertEquals(1, regressions.size());
+        assertTrue(regressions.get(0).contains("taps/s"), regressions.get(0));
+        assertEquals(0, slower.regressions(baseline, 0.2).size());
+
+        BatchBenchmark.Result bigger = new BatchBenchmark.Result("base", 2_000_000, 0, 990_000, 3000, 340 << 20, 200);
+        regressions = bigger.regressions(baseline, 0.1);
+        assertEquals(2, regressions.size());
+        assertTrue(regressions.get(0).contains("peak heap"), regressions.get(0));
+        assertTrue(regressions.get(1).contains("GC"), regressions.get(1));
+    }
+}
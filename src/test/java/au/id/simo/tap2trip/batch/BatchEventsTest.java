@@ -0,0 +1,71 @@
+package au.id.simo.tap2trip.batch;
+
+import au.id.simo.tap2trip.ChargeCalculator;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BatchEventsTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testRecordedEvents() throws Exception {
+        assertTrue(BatchEvents.AVAILABLE);
+        Path taps = tempDir.resolve("taps.csv");
+        Files.write(taps, Arrays.asList(
+                "ID, DateTimeUTC, TapType, StopId, CompanyId, BusID, PAN",
+                "1, 22-01-2018 13:00:00, ON, Stop1, Company1, Bus37, 5500005555555559",
+                "2, 22-01-2018 13:05:00, OFF, Stop2, Company1, Bus37, 5500005555555559",
+                "3, 22-01-2018 13:06:00, ON, Stop9, Company1, Bus37, 5500005555555559",
+                "4, 22-01-2018 13:07:00, ON, Stop2, Company1, Bus37, 4111111111111111"
+        ), StandardCharsets.UTF_8);
+        Path trips = tempDir.resolve("trips.csv");
+        Path jfr = tempDir.resolve("batch.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("au.id.simo.tap2trip.Trip");
+            recording.start();
+            new Batch(new ChargeCalculator().addCharge("Stop1", "Stop2", 325))
+                    .setPipelined(true)
+                    .process(taps, trips, tempDir.resolve("errors.csv"));
+            recording.stop();
+            recording.dump(jfr);
+        }
+        List<RecordedEvent> events = RecordingFile.readAllEvents(jfr);
+        Map<String, RecordedEvent> byName = new HashMap<>();
+        int tripEvents = 0;
+        for (RecordedEvent event : events) {
+            String name = event.getEventType().getName();
+            if (name.equals("au.id.simo.tap2trip.Trip")) {
+                tripEvents++;
+            }
+            byName.put(name, event);
+        }
+        assertEquals(4, byName.get("au.id.simo.tap2trip.Parse").getInt("count"));
+        assertEquals(4, byName.get("au.id.simo.tap2trip.Match").getInt("count"));
+        RecordedEvent write = byName.get("au.id.simo.tap2trip.Write");
+        assertEquals(2, write.getInt("count"));
+        assertTrue(write.getLong("bytes") > 0);
+        assertEquals(Files.size(trips), write.getLong("bytes"));
+
+        RecordedEvent error = byName.get("au.id.simo.tap2trip.TapError");
+        assertEquals(3, error.getLong("recordNumber"));
+        assertEquals("UNKNOWN_STOP", error.getString("type"));
+
+        // sampled when the period is completed
+        assertEquals(1, byName.get("au.id.simo.tap2trip.InProgress").getInt("inProgress"));
+        assertEquals(2, tripEvents);
+        assertEquals("INCOMPLETE", byName.get("au.id.simo.tap2trip.Trip").getString("status"));
+    }
+}
@@ -1,8 +1,6 @@
 package au.id.simo.tap2trip.batch;
 
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -15,33 +13,37 @@ public class BatchLT {
     /**
      * Main method entry point.
      * 
-     * @param args 
+     * @param args optionally the number of taps to generate, 5,000,000 by
+     * default.
+     * @throws IOException if the files can't be written.
      */
     public static void main(String[] args) throws IOException {
-        new BatchLT().testLoad();
+        long taps = args.length >= 1 ? Long.parseLong(args[0]) : 5_000_000;
+        new BatchLT().testLoad(taps);
     }
     
-    public void testLoad() throws IOException {
-        // generate data
-        // 
-        BulkTapDataGenerator gen = new BulkTapDataGenerator();
+    public void testLoad(long taps) throws IOException {
+        // generate data for a network of a mid sized city
+        BulkTapDataGenerator gen = new BulkTapDataGenerator()
+                .setStops(200)
+                .setBuses(800)
+                .setCompanies(5)
+                .setPans(Math.max(taps / 4, 64))
+                .setSkew(1);
         Path genDataCsv = Paths.get("generated-taps.csv");
         Path tripsCsv = Paths.get("trips.csv");
         Path errorCsv = Paths.get("error.csv");
         
-        System.out.print("Generating 5,002,000 taps...");
-        try (Writer writer = new FileWriter(genDataCsv.toFile())){
-            gen.generateTaps(
-                    5_000_000,
-                    1000,
-                    1000,
-                    writer);
-        }
-        System.out.println("Done");
+        System.out.printf("Generating %,d taps...", taps);
+        long start = System.nanoTime();
+        long written = gen.generateTaps(taps, genDataCsv);
+        System.out.printf("Done, %,d taps in %.1f seconds%n", written, (System.nanoTime() - start) / 1e9);
         
         System.out.println("Running Batch....");
-        Batch.main(new String[]{genDataCsv.toString(), tripsCsv.toString(), errorCsv.toString()});
-        System.out.println("Done");
+        start = System.nanoTime();
+        BatchMetrics metrics = new Batch(gen.charges()).process(genDataCsv, tripsCsv, errorCsv);
+        metrics.printCounts(System.out);
+        System.out.printf("Done in %.1f seconds%n", (System.nanoTime() - start) / 1e9);
 
         if (Files.deleteIfExists(genDataCsv)) {
             System.out.println("Deleted " + genDataCsv);
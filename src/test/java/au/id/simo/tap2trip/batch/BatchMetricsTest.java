@@ -0,0 +1,57 @@
+package au.id.simo.tap2trip.batch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class BatchMetricsTest {
+
+    private byte[] allocated;
+
+    @Test
+    public void testUsageEstimatedFromSamples() throws Exception {
+        BatchMetrics metrics = new BatchMetrics();
+        for (int i = 0; i < 100; i++) {
+            metrics.incrementTapsRead();
+        }
+        metrics.recordUsage(BatchMetrics.Stage.PARSE, 1000, 2000, 10);
+        assertEquals(100.0, metrics.getCpuNanosPerItem(BatchMetrics.Stage.PARSE));
+        assertEquals(200.0, metrics.getAllocatedBytesPerItem(BatchMetrics.Stage.PARSE));
+        assertEquals(10_000, metrics.getCpuNanos(BatchMetrics.Stage.PARSE));
+        assertEquals(20_000, metrics.getAllocatedBytes(BatchMetrics.Stage.PARSE));
+        assertEquals(0, metrics.getAllocatedBytes(BatchMetrics.Stage.MATCH));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        metrics.printCounts(new PrintStream(out, true, "UTF-8"));
+        String printed = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(printed.contains("PARSE          0.0            0.0         100.0        200.0"), printed);
+        assertFalse(printed.contains("MATCH"), printed);
+
+        String json = metrics.toJson();
+        assertTrue(json.startsWith("{\"tapsRead\":100,\"tapReadErrors\":0,\"tripsWritten\":0,"), json);
+        assertTrue(json.contains("\"parse\":{\"items\":100,"), json);
+        assertTrue(json.contains("\"measuredItems\":10,\"cpuNanos\":10000,\"allocatedBytes\":20000,"
+                + "\"cpuNanosPerItem\":100.0,\"allocatedBytesPerItem\":200.0}"), json);
+        assertTrue(json.endsWith("}}"), json);
+    }
+
+    @Test
+    public void testStageTimerMeasuresAllocation() {
+        assumeTrue(ThreadUsage.SUPPORTED);
+        BatchMetrics metrics = new BatchMetrics();
+        StageTimer timer = new StageTimer(metrics, BatchMetrics.Stage.MATCH, 2);
+        timer.start();
+        allocated = new byte[1 << 20];
+        timer.stop(1);
+        // only measured every other time
+        timer.start();
+        allocated = new byte[1 << 20];
+        timer.stop(1);
+        assertEquals(2, metrics.getLatency(BatchMetrics.Stage.MATCH).getCount());
+        assertTrue(metrics.getAllocatedBytesPerItem(BatchMetrics.Stage.MATCH) >= allocated.length);
+        assertTrue(metrics.getAllocatedBytesPerItem(BatchMetrics.Stage.MATCH) < 2 * allocated.length);
+    }
+}
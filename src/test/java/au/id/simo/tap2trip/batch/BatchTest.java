@@ -1,9 +1,29 @@
 package au.id.simo.tap2trip.batch;
 
 import au.id.simo.tap2trip.ChargeCalculator;
+import au.id.simo.tap2trip.IdDictionary;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
@@ -11,6 +31,11 @@ import static org.junit.jupiter.api.Assertions.*;
  */
 public class BatchTest {
 
+    private final IdDictionary ids = new IdDictionary();
+
+    @TempDir
+    Path tempDir;
+
     @Test
     public void testExample() throws Exception {
         Batch batch = new Batch(new ChargeCalculator().addCharge("Stop1", "Stop2", 325));
@@ -65,4 +90,262 @@ public class BatchTest {
         String[] errorLines = errorCsv.toString().split("\n");
         assertEquals(2, errorLines.length, "The column headers and another error row should be written");
     }
+    
+    @Test
+    public void testTripAcrossRunsWithSnapshot() throws Exception {
+        Path snapshot = tempDir.resolve("in-progress.bin");
+        Batch batch = new Batch(new ChargeCalculator().addCharge("Stop1", "Stop2", 325))
+                .setInProgressSnapshot(snapshot);
+        StringWriter firstTrips = new StringWriter();
+        batch.process(new StringReader(String.join("\n",
+            "ID, DateTimeUTC, TapType, StopId, CompanyId, BusID, PAN",
+            "1, 22-01-2018 23:58:00, ON, Stop1, Company1, Bus37, 5500005555555559"
+        )), firstTrips, new StringWriter());
+        assertEquals(1, firstTrips.toString().split("\n").length, "The trip is still in progress");
+        assertTrue(Files.exists(snapshot));
+
+        StringWriter secondTrips = new StringWriter();
+        batch.process(new StringReader(String.join("\n",
+            "ID, DateTimeUTC, TapType, StopId, CompanyId, BusID, PAN",
+            "2, 23-01-2018 00:03:00, OFF, Stop2, Company1, Bus37, 5500005555555559"
+        )), secondTrips, new StringWriter());
+        assertEquals(
+            String.join("\n",
+                "Started,Finished,DurationSecs,FromStopId,ToStopId,ChargeAmount,CompanyId,BusID,PAN,Status",
+                "22-01-2018 23:58:00,23-01-2018 00:03:00,300,Stop1,Stop2,$3.25,Company1,Bus37,5500005555555559,COMPLETED",
+                ""
+            ),
+            secondTrips.toString()
+        );
+    }
+
+    @Test
+    public void testInputStreamSameAsReader() throws Exception {
+        Batch batch = new Batch(new ChargeCalculator().addCharge("Stop1", "Stop2", 325));
+        String taps = String.join("\n",
+            "ID, DateTimeUTC, TapType, StopId, CompanyId, BusID, PAN",
+            "1, 22-01-2018 13:00:00, ON, Stop1, Company1, Bus37, 5500005555555559",
+            "2, 22-01-2018 13:05:00, OFF, Stop3, Company1, Bus37, 5500005555555559",
+            "3, 22-01-2018 13:06:00, ON, Stop2, Company1, Bus37, 5500005555555559",
+            "4, 22-01-2018 13:07, OFF, Stop1, Company1, Bus37, 5500005555555559",
+            "5, 22-01-2018 13:08:00, OFF, Stop1, Company1, Bus37, 5500005555555559",
+            "6, 22-01-2018 13:09:00, OFF, Stop2,"
+        );
+        StringWriter readerTrips = new StringWriter();
+        StringWriter readerErrors = new StringWriter();
+        batch.process(new StringReader(taps), readerTrips, readerErrors);
+
+        StringWriter streamTrips = new StringWriter();
+        StringWriter streamErrors = new StringWriter();
+        batch.process(
+                new ByteArrayInputStream(taps.getBytes(StandardCharsets.UTF_8)),
+                streamTrips,
+                streamErrors
+        );
+        assertEquals(readerTrips.toString(), streamTrips.toString());
+        assertEquals(readerErrors.toString(), streamErrors.toString());
+        assertEquals(4, readerErrors.toString().split("\n").length);
+
+        StringWriter shardedTrips = new StringWriter();
+        StringWriter shardedErrors = new StringWriter();
+        batch.setMatcherShards(3).process(new StringReader(taps), shardedTrips, shardedErrors);
+        assertEquals(readerTrips.toString(), shardedTrips.toString());
+        assertEquals(readerErrors.toString(), shardedErrors.toString());
+
+        Path tapsFile = tempDir.resolve("taps.csv");
+        Path tripsFile = tempDir.resolve("trips.csv");
+        Path errorFile = tempDir.resolve("errors.csv");
+        Files.write(tapsFile, taps.getBytes(StandardCharsets.UTF_8));
+        // replaced, not appended to
+        Files.write(tripsFile, new byte[100_000]);
+        batch.setMatcherShards(1).process(tapsFile, tripsFile, errorFile);
+        assertEquals(readerTrips.toString(), new String(Files.readAllBytes(tripsFile), StandardCharsets.UTF_8));
+        assertEquals(readerErrors.toString(), new String(Files.readAllBytes(errorFile), StandardCharsets.UTF_8));
+
+        batch.setTripFormat(Batch.TripFormat.BINARY).process(tapsFile, tripsFile, errorFile);
+        StringWriter binaryTrips = new StringWriter();
+        try (TripBinaryReader reader = new TripBinaryReader(tripsFile, ids)) {
+            reader.forEachTrip(new TripCsvWriter(binaryTrips, ids, new BatchMetrics()));
+        }
+        assertEquals(readerTrips.toString(), binaryTrips.toString());
+    }
+
+    @Test
+    public void testPipelinedSameAsSequential() throws Exception {
+        ChargeCalculator chargeCalc = new ChargeCalculator()
+                .addCharge("Stop1", "Stop2", 325)
+                .addCharge("Stop2", "Stop3", 550);
+        String taps = manyTaps(10_000);
+        StringWriter sequentialTrips = new StringWriter();
+        StringWriter sequentialErrors = new StringWriter();
+        BatchMetrics sequential = new Batch(chargeCalc)
+                .process(new StringReader(taps), sequentialTrips, sequentialErrors);
+
+        StringWriter pipelinedTrips = new StringWriter();
+        StringWriter pipelinedErrors = new StringWriter();
+        BatchMetrics pipelined = new Batch(chargeCalc)
+                .setPipelined(true)
+                .process(new StringReader(taps), pipelinedTrips, pipelinedErrors);
+        assertEquals(sequentialTrips.toString(), pipelinedTrips.toString());
+        assertEquals(sequentialErrors.toString(), pipelinedErrors.toString());
+        assertEquals(sequential.getTapsRead(), pipelined.getTapsRead());
+        assertEquals(sequential.getTapReadErrors(), pipelined.getTapReadErrors());
+        assertEquals(sequential.getTripsWritten(), pipelined.getTripsWritten());
+        assertTrue(pipelined.getTapReadErrors() > 0);
+    }
+
+    @Test
+    public void testSortMatchingShuffled() throws Exception {
+        ChargeCalculator chargeCalc = new ChargeCalculator()
+                .addCharge("Stop1", "Stop2", 325)
+                .addCharge("Stop2", "Stop3", 550);
+        // in date time order, so it can be matched as it is read
+        String taps = manyTaps(3000);
+        StringWriter sequentialTrips = new StringWriter();
+        BatchMetrics sequential = new Batch(chargeCalc)
+                .process(new StringReader(taps), sequentialTrips, new StringWriter());
+
+        List<String> records = new ArrayList<>(Arrays.asList(taps.split("\n")));
+        String header = records.remove(0);
+        Collections.shuffle(records, new Random(18));
+        String shuffled = header + "\n" + String.join("\n", records) + "\n";
+        StringWriter sortedTrips = new StringWriter();
+        BatchMetrics sorted = new Batch(chargeCalc)
+                .setSortMatching(100, tempDir)
+                .process(new StringReader(shuffled), sortedTrips, new StringWriter());
+
+        assertEquals(sortedLines(sequentialTrips.toString()), sortedLines(sortedTrips.toString()));
+        assertEquals(sequential.getTapsRead(), sorted.getTapsRead());
+        assertEquals(sequential.getTapReadErrors(), sorted.getTapReadErrors());
+        assertEquals(sequential.getTripsWritten(), sorted.getTripsWritten());
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(0, files.count(), "Sorted runs should be deleted");
+        }
+    }
+
+    private static List<String> sortedLines(String csv) {
+        List<String> lines = new ArrayList<>(Arrays.asList(csv.split("\n")));
+        Collections.sort(lines);
+        return lines;
+    }
+
+    @Test
+    public void testPipelineStopsOnWriteFailure() throws Exception {
+        Batch batch = new Batch(new ChargeCalculator().addCharge("Stop1", "Stop2", 325))
+                .setPipelined(true);
+        // fails part way through, after the reader has filled the rings
+        FilterWriter failingTrips = new FilterWriter(new StringWriter()) {
+            private int written;
+
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                written += len;
+                if (written > 100_000) {
+                    throw new IOException("Disk full");
+                }
+                super.write(cbuf, off, len);
+            }
+        };
+        IOException ex = assertThrows(IOException.class,
+                () -> batch.process(new StringReader(manyTaps(100_000)), failingTrips, new StringWriter()));
+        Throwable cause = ex;
+        while (cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        assertEquals("Disk full", cause.getMessage());
+    }
+
+    @Test
+    public void testIngestThenProcess() throws Exception {
+        ChargeCalculator chargeCalc = new ChargeCalculator()
+                .addCharge("Stop1", "Stop2", 325)
+                .addCharge("Stop2", "Stop3", 550);
+        String taps = manyTaps(10_000);
+        StringWriter csvTrips = new StringWriter();
+        StringWriter csvErrors = new StringWriter();
+        BatchMetrics csvMetrics = new Batch(chargeCalc)
+                .process(new StringReader(taps), csvTrips, csvErrors);
+
+        Path tapsCsv = tempDir.resolve("taps.csv");
+        Path tapsBin = tempDir.resolve("taps.bin");
+        Path ingestErrors = tempDir.resolve("ingest-errors.csv");
+        Files.write(tapsCsv, taps.getBytes(StandardCharsets.UTF_8));
+        Batch batch = new Batch(chargeCalc);
+        BatchMetrics ingestMetrics = batch.ingest(tapsCsv, tapsBin, ingestErrors);
+
+        StringWriter binTrips = new StringWriter();
+        StringWriter binErrors = new StringWriter();
+        BatchMetrics binMetrics = batch.process(tapsBin, binTrips, binErrors);
+        assertEquals(csvTrips.toString(), binTrips.toString());
+        assertEquals(csvMetrics.getTripsWritten(), binMetrics.getTripsWritten());
+        assertEquals(csvMetrics.getTapsRead(), binMetrics.getTapsRead());
+        assertEquals(csvMetrics.getTapReadErrors(),
+                ingestMetrics.getTapReadErrors() + binMetrics.getTapReadErrors());
+        assertTrue(ingestMetrics.getTapReadErrors() > 0);
+        // the rejects are split between the two error files, with the same
+        // record numbers
+        List<String> errors = new ArrayList<>();
+        errors.addAll(Files.readAllLines(ingestErrors, StandardCharsets.UTF_8).subList(1, (int) ingestMetrics.getTapReadErrors() + 1));
+        errors.addAll(Arrays.asList(binErrors.toString().split("\r\n")).subList(1, (int) binMetrics.getTapReadErrors() + 1));
+        errors.sort(Comparator.comparingLong(line -> Long.parseLong(line.substring(0, line.indexOf(',')))));
+        List<String> expected = Arrays.asList(csvErrors.toString().split("\r\n"));
+        assertEquals(expected.subList(1, expected.size()), errors);
+    }
+
+    @Test
+    public void testGzipFiles() throws Exception {
+        ChargeCalculator chargeCalc = new ChargeCalculator()
+                .addCharge("Stop1", "Stop2", 325)
+                .addCharge("Stop2", "Stop3", 550);
+        String taps = manyTaps(10_000);
+        StringWriter csvTrips = new StringWriter();
+        StringWriter csvErrors = new StringWriter();
+        new Batch(chargeCalc).process(new StringReader(taps), csvTrips, csvErrors);
+
+        Path tapsGz = tempDir.resolve("taps.csv.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(tapsGz))) {
+            out.write(taps.getBytes(StandardCharsets.UTF_8));
+        }
+        Path tripsGz = tempDir.resolve("trips.csv.gz");
+        Path errorsGz = tempDir.resolve("errors.csv.gz");
+        new Batch(chargeCalc).setCompressorThreads(2).process(tapsGz, tripsGz, errorsGz);
+        assertEquals(csvTrips.toString(), gunzip(tripsGz));
+        assertEquals(csvErrors.toString(), gunzip(errorsGz));
+    }
+
+    private static String gunzip(Path file) throws IOException {
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                out.write(buf, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @return taps for a number of PANs, with some that can't be read or
+     * charged.
+     */
+    private static String manyTaps(int count) {
+        StringBuilder sb = new StringBuilder("ID, DateTimeUTC, TapType, StopId, CompanyId, BusID, PAN\n");
+        for (int i = 0; i < count; i++) {
+            String stop = "Stop" + (i % 3 + 1);
+            String type = i % 7 == 0 ? "ON" : (i % 2 == 0 ? "ON" : "OFF");
+            if (i % 997 == 0) {
+                sb.append(i).append(", 22-01-2018 13:00, ON, Stop1,\n");
+                continue;
+            }
+            sb.append(i).append(", 22-01-2018 13:")
+                    .append(String.format("%02d:%02d", i / 60 % 60, i % 60))
+                    .append(", ").append(type)
+                    .append(", ").append(i % 101 == 0 ? "Stop9" : stop)
+                    .append(", Company1, Bus37, ")
+                    .append(5500005555555559L + i % 500)
+                    .append('\n');
+        }
+        return sb.toString();
+    }
 }
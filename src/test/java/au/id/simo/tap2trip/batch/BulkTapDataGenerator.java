@@ -1,190 +1,645 @@
 package au.id.simo.tap2trip.batch;
 
-import au.id.simo.tap2trip.Tap;
-import au.id.simo.tap2trip.Trip;
-import java.io.FileWriter;
+import au.id.simo.tap2trip.ChargeCalculator;
 import java.io.IOException;
-import java.io.Writer;
-import java.time.Instant;
-import java.time.format.DateTimeFormatter;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
-import java.util.TreeMap;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVPrinter;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This class generates test data.
  *
+ * Taps are written in date time order as they are generated, a minute at a
+ * time, so memory use depends on the number of taps a minute and trips in
+ * progress rather than the total number of taps. The PANs are split over a fixed number of lanes, each
+ * generating its PANs' trips from its own random numbers. Lanes are generated
+ * on multiple threads, and the output only depends on the seed and settings,
+ * not the number of threads.
+ *
+ * Trips start following a weekday time of day profile, with morning and
+ * evening peaks. The PAN, stops and bus of each trip are picked at random,
+ * optionally skewed towards the first of each, so some PANs travel far more
+ * often than others and some stops are far busier.
+ *
  * Limitations:
  * <ol>
- * <li>The generated timestamps are not very realistic, though functional.
+ * <li>A PAN can start a new trip before its last one has finished, making an
+ * INCOMPLETE trip. This is rare unless there are few PANs or a large skew.
+ * <li>Buses do not follow routes, any bus can stop at any stop.
+ * <li>Taps that can't be read, if asked for, are extra Tap-ons with an
+ * unknown tap type or an hour of 25, not part of any trip.
  * </ol>
  */
 public class BulkTapDataGenerator {
 
-    private static final DateTimeFormatter DTF = Batch.DTF;
-    private static final Random RND = new Random();
+    /**
+     * The PANs, and their trips, are split over this many lanes.
+     */
+    private static final int LANES = 64;
+    /**
+     * Taps are generated and written this many seconds at a time.
+     */
+    private static final int CHUNK_SECONDS = 60;
+    private static final int SECONDS_PER_DAY = 86400;
+    private static final int CHUNKS_PER_DAY = SECONDS_PER_DAY / CHUNK_SECONDS;
+    /**
+     * Chunks generated ahead of the one being written. Each chunk is a task
+     * per lane, so this keeps up to 64 threads busy.
+     */
+    private static final int CHUNKS_AHEAD = 2;
+    private static final int MIN_TRIP_SECONDS = 120;
+    private static final int MEAN_TRIP_SECONDS = 20 * 60;
+    private static final int MAX_TRIP_SECONDS = 2 * 60 * 60;
+    private static final int MIN_CANCELLED_SECONDS = 30;
+    private static final int MAX_CANCELLED_SECONDS = 300;
+    private static final long PAN_BASE = 4_000_000_000_000_000L;
+    private static final byte[] HEADER = "ID,DateTimeUTC,TapType,StopId,CompanyId,BusID,PAN\n"
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ON = ",ON,".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] OFF = ",OFF,".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] UNKNOWN = ",TAP,".getBytes(StandardCharsets.US_ASCII);
+    /**
+     * The share of a day's trips started by the end of each chunk of the day.
+     */
+    private static final double[] DAY_PROFILE = dayProfile();
 
-    private static final Instant MIDDAY = Instant.parse("2022-01-01T12:00:00.00Z");
-    private static final Instant START_OF_DAY = Instant.parse("2022-01-01T00:00:00.00Z");
-    private static final Instant END_OF_DAY = Instant.parse("2022-01-01T23:59:59.00Z");
-    
     public static void main(String[] args) throws IOException {
-        // file size config
-        // the generated taps file records count will be about 2x the total of
-        // these three numbers.
-        Integer tripsComplete = 10;
-        Integer tripsIncomplete = 5;
-        Integer tripsCancelled = 2;
-        
-        BulkTapDataGenerator dataGen = new BulkTapDataGenerator();
-        dataGen.generateTaps(tripsComplete, tripsIncomplete, tripsCancelled, new FileWriter("generated-taps.csv"));
-    }
-
-    /**
-     * Current instant. Used in generating timestamps. Trip starts only occur
-     * before midday, and trip ends only occur after.
-     */
-    private Instant instant = START_OF_DAY.plusSeconds(1);
-
-    /**
-     * Generates basic data for testing purposes.
-     * 
-     * The number of records written is described by the formula:
-     * {@code tripsComplete x2 + tripsCancelled x2 + tripsIncomplete}
-     * 
-     * Better for load testing than correctness testing.
-     * 
-     * @param tripsComplete Number of complete trips to generate.
-     * @param tripsIncomplete Number of incomplete trips to generate.
-     * @param tripsCancelled Number of ON taps without corresponding OFF taps.
-     * @param writer where the generated taps are written to. Writer is closed.
-     * @throws IOException if there is any exceptions thrown when writing to the
-     * provided Writer.
-     */
-    public void generateTaps(Integer tripsComplete, Integer tripsIncomplete, Integer tripsCancelled, Writer writer) throws IOException {
-        
-        // data config
-        List<String> stops = Arrays.asList("Stop1", "Stop2", "Stop3");
-        List<String> companys = Arrays.asList("Company1");
-        List<String> busses = Arrays.asList("Bus1", "Bus2", "Bus3");
-
-        Map<Trip.Status, Integer> tripStatusCountMap = new LinkedHashMap<>();
-        tripStatusCountMap.put(Trip.Status.COMPLETED, tripsComplete);
-        tripStatusCountMap.put(Trip.Status.CANCELLED, tripsCancelled);
-        tripStatusCountMap.put(Trip.Status.INCOMPLETE, tripsIncomplete);
-        Integer tripsTotal = tripsComplete + tripsCancelled + tripsIncomplete;
-
-        // contains all ON taps for trips intending to be COMPLETE.
-        List<Map<Batch.TapCSVCols, String>> tripInProgressList = new ArrayList<>();
-
-        CSVFormat tapsCsvFormat = CSVFormat.DEFAULT.builder()
-                .setHeader(Batch.TapCSVCols.class)
-                .build();
-        try (CSVPrinter tapsFile = tapsCsvFormat.print(writer)) {
-            long tapIdCounter = 0;
-            for (int i = 0; i < tripsTotal; i++) {
-                // pick a trip status to create a tap record for
-                Trip.Status status = randomPick(tripStatusCountMap.keySet());
-                Integer statusCount = tripStatusCountMap.get(status);
-
-                // ensure cols are ordered as they are defined in the enum when
-                // Map.values() is called.
-                Map<Batch.TapCSVCols, String> record = new TreeMap<>((o1, o2) -> {
-                    return o1.ordinal() - o2.ordinal();
-                });
-                record.put(Batch.TapCSVCols.ID, Long.toString(++tapIdCounter));
-                record.put(Batch.TapCSVCols.DateTimeUTC, nextOnDateTime());
-                record.put(Batch.TapCSVCols.TapType, Tap.Type.ON.toString());
-                record.put(Batch.TapCSVCols.StopId, randomPick(stops));
-                record.put(Batch.TapCSVCols.CompanyId, randomPick(companys));
-                record.put(Batch.TapCSVCols.BusID, randomPick(busses));
-                record.put(Batch.TapCSVCols.PAN, randomPAN());
-
-                tapsFile.printRecord(record.values());
-
-                // status = INCOMPLETE will not be added to the tripInProgressList
-                if (status == Trip.Status.COMPLETED) {
-                    tripInProgressList.add(record);
-                } else if (status == Trip.Status.CANCELLED) {
-                    record.put(Batch.TapCSVCols.DateTimeUTC, nextOnDateTime());
-                    record.put(Batch.TapCSVCols.TapType, Tap.Type.OFF.toString());
-                    tapsFile.printRecord(record.values());
+        long taps = args.length >= 1 ? Long.parseLong(args[0]) : 1_000_000;
+        Path file = Paths.get(args.length >= 2 ? args[1] : "generated-taps.csv");
+        long seed = args.length >= 3 ? Long.parseLong(args[2]) : 1;
+
+        long start = System.nanoTime();
+        long written = new BulkTapDataGenerator()
+                .setSeed(seed)
+                .generateTaps(taps, file);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Generated %,d taps in %.1f seconds%n", written, seconds);
+    }
+
+    private long seed = 1;
+    private int stops = 3;
+    private int buses = 3;
+    private int companies = 1;
+    private long pans = 1_000_000;
+    private double skew;
+    private double incompleteRate = 0.01;
+    private double cancelledRate = 0.01;
+    private double errorRate;
+    private LocalDate startDate = LocalDate.of(2022, 1, 1);
+    private int days = 1;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * @param seed the seed for the random numbers. The same seed and
+     * settings always generate the same taps.
+     * @return This instance. Used for method chaining.
+     */
+    public BulkTapDataGenerator setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * @param stops the number of stops, named Stop1 to StopN. At least 2.
+     * @return This instance. Used for method chaining.
+     */
+    public BulkTapDataGenerator setStops(int stops) {
+        if (stops < 2) {
+            throw new IllegalArgumentException("stops must be at least 2: " + stops);
+        }
+        this.stops = stops;
+        return this;
+    }
+
+    /**
+     * @param buses the number of buses, named Bus1 to BusN. Each bus belongs
+     * to one company.
+     * @return This instance. Used for method chaining.
+     */
+    public BulkTapDataGenerator setBuses(int buses) {
+        if (buses < 1) {
+            throw new IllegalArgumentException("buses must be at least 1: " + buses);
+        }
+        this.buses = buses;
+        return this;
+    }
+
+    /**
+     * @param companies the number of companies, named Company1 to CompanyN.
+     * @return This instance. Used for method chaining.
+     */
+    public BulkTapDataGenerator setCompanies(int companies) {
+        if (companies < 1) {
+            throw new IllegalArgumentException("companies must be at least 1: " + companies);
+        }
+        this.companies = companies;
+        return this;
+    }
+
+    /**
+     * @param pans the number of distinct PANs to pick from. At least 64.
+     * @return This instance. Used for method chaining.
+     */
+    public BulkTapDataGenerator setPans(long pans) {
+        if (pans < LANES) {
+            throw new IllegalArgumentException("pans must be at least " + LANES + ": " + pans);
+        }
+        this.pans = pans;
+        return this;
+    }
+
+    /**
+     * Skews the picking of PANs, stops and buses towards the first of each.
+     * With a skew of 0 they are picked evenly. With a skew of 1 the first 1%
+     * of PANs are picked 10% of the time, with 3 about 30% of the time.
+     * @param skew the skew, 0 or more.
+     * @return This instance. Used for method chaining.
+     */
+    public BulkTapDataGenerator setSkew(double skew) {
+        if (!(skew >= 0)) {
+            throw new IllegalArgumentException("skew must not be negative: " + skew);
+        }
+        this.skew = skew;
+        return this;
+    }
+
+    /**
+     * @param incompleteRate the share of trips with no Tap-off.
+     * @param cancelledRate the share of trips tapping off at the stop they
+     * tapped on at, a few minutes later.
+     * @return This instance. Used for method chaining.
+     */
+    public BulkTapDataGenerator setStatusRates(double incompleteRate, double cancelledRate) {
+        if (!(incompleteRate >= 0 && cancelledRate >= 0 && incompleteRate + cancelledRate <= 1)) {
+            throw new IllegalArgumentException("Invalid rates: " + incompleteRate + ", " + cancelledRate);
+        }
+        this.incompleteRate = incompleteRate;
+        this.cancelledRate = cancelledRate;
+        return this;
+    }
+
+    /**
+     * @param errorRate the number of taps that can't be read to add, as a
+     * share of the Tap-ons. Half have an unknown tap type and half an invalid
+     * time.
+     * @return This instance. Used for method chaining.
+     */
+    public BulkTapDataGenerator setErrorRate(double errorRate) {
+        if (!(errorRate >= 0 && errorRate <= 1)) {
+            throw new IllegalArgumentException("Invalid rate: " + errorRate);
+        }
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * @param startDate the first day taps are generated for, in UTC.
+     * @param days the number of days the trips start over.
+     * @return This instance. Used for method chaining.
+     */
+    public BulkTapDataGenerator setDays(LocalDate startDate, int days) {
+        if (days < 1) {
+            throw new IllegalArgumentException("days must be at least 1: " + days);
+        }
+        this.startDate = startDate;
+        this.days = days;
+        return this;
+    }
+
+    /**
+     * @param threads the number of threads generating taps.
+     * @return This instance. Used for method chaining.
+     */
+    public BulkTapDataGenerator setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @return the charges between every pair of the generated stops, rising
+     * with the distance between their numbers.
+     */
+    public ChargeCalculator charges() {
+        ChargeCalculator chargeCalc = new ChargeCalculator();
+        for (int from = 0; from < stops; from++) {
+            for (int to = from + 1; to < stops; to++) {
+                chargeCalc.addCharge(stopId(from), stopId(to), 200 + 50 * (to - from));
+            }
+        }
+        return chargeCalc;
+    }
+
+    /**
+     * Generates the taps to a file.
+     * @param taps about how many taps to generate.
+     * @param file the file to create or replace.
+     * @return the number of taps written.
+     * @throws IOException if the file can't be written.
+     * @see #generateTaps(long, OutputStream)
+     */
+    public long generateTaps(long taps, Path file) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            return generateTaps(taps, out);
+        }
+    }
+
+    /**
+     * Generates the taps as a taps CSV, header first. Every trip has a
+     * Tap-on, and all but the incomplete trips a Tap-off. Trips are picked to
+     * be incomplete at random, so the number of taps written is close to,
+     * but not exactly, the number asked for. Taps that can't be read are on
+     * top of the number asked for.
+     * @param taps about how many taps to generate.
+     * @param out where the taps are written. Not closed.
+     * @return the number of taps written.
+     * @throws IOException if the taps can't be written.
+     */
+    public long generateTaps(long taps, OutputStream out) throws IOException {
+        long trips = Math.round(taps / (2 - incompleteRate));
+        Lane[] lanes = new Lane[LANES];
+        for (int i = 0; i < LANES; i++) {
+            lanes[i] = new Lane(i, trips / LANES + (i < trips % LANES ? 1 : 0));
+        }
+        // enough chunks after the last trip starts for it to finish
+        long chunks = (long) days * CHUNKS_PER_DAY + lanes[0].pending.length;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "tap-generator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            ChunkWriter writer = new ChunkWriter(out);
+            List<CompletableFuture<LaneChunk>> tails = new ArrayList<>();
+            for (int i = 0; i < LANES; i++) {
+                tails.add(CompletableFuture.completedFuture(null));
+            }
+            ArrayDeque<List<CompletableFuture<LaneChunk>>> queued = new ArrayDeque<>();
+            long nextChunk = 0;
+            for (long chunk = 0; chunk < chunks; chunk++) {
+                for (; nextChunk < chunks && nextChunk <= chunk + CHUNKS_AHEAD; nextChunk++) {
+                    long c = nextChunk;
+                    List<CompletableFuture<LaneChunk>> parts = new ArrayList<>(LANES);
+                    for (int i = 0; i < LANES; i++) {
+                        Lane lane = lanes[i];
+                        // each lane's chunks are generated in order
+                        CompletableFuture<LaneChunk> part = tails.get(i)
+                                .thenApplyAsync(previous -> lane.generate(c), executor);
+                        tails.set(i, part);
+                        parts.add(part);
+                    }
+                    queued.add(parts);
                 }
+                List<CompletableFuture<LaneChunk>> parts = queued.remove();
+                LaneChunk[] laneChunks = new LaneChunk[LANES];
+                for (int i = 0; i < LANES; i++) {
+                    laneChunks[i] = parts.get(i).join();
+                }
+                writer.write(laneChunks);
+            }
+            return writer.finish();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String stopId(int stop) {
+        return "Stop" + (stop + 1);
+    }
+
+    /**
+     * @return the share of a day's trips started by the end of each chunk.
+     */
+    private static double[] dayProfile() {
+        double[] cumulative = new double[CHUNKS_PER_DAY];
+        double total = 0;
+        for (int chunk = 0; chunk < CHUNKS_PER_DAY; chunk++) {
+            double hour = (chunk + 0.5) * CHUNK_SECONDS / 3600.0;
+            double weight = 0.02
+                    + (hour >= 5 && hour < 23 ? 0.25 : 0)
+                    + 1.0 * Math.exp(-0.5 * Math.pow((hour - 8.25) / 1.0, 2))
+                    + 0.8 * Math.exp(-0.5 * Math.pow((hour - 17.5) / 1.25, 2));
+            total += weight;
+            cumulative[chunk] = total;
+        }
+        for (int chunk = 0; chunk < CHUNKS_PER_DAY; chunk++) {
+            cumulative[chunk] /= total;
+        }
+        return cumulative;
+    }
+
+    /**
+     * The taps of one lane for one chunk, formatted without their IDs.
+     */
+    private static final class LaneChunk {
+        private final byte[] buf;
+        /**
+         * The end of each record in buf.
+         */
+        private final int[] recordEnds;
+        /**
+         * The number of records up to the end of each second of the chunk.
+         */
+        private final int[] secondEnds;
+
+        private LaneChunk(byte[] buf, int[] recordEnds, int[] secondEnds) {
+            this.buf = buf;
+            this.recordEnds = recordEnds;
+            this.secondEnds = secondEnds;
+        }
+    }
+
+    /**
+     * Tap-offs due in a chunk, as pairs of the PAN index and the packed
+     * second, stop and bus.
+     */
+    private static final class PendingTaps {
+        private long[] entries = new long[64];
+        private int size;
+
+        private void add(long pan, long packed) {
+            if (size + 2 > entries.length) {
+                entries = Arrays.copyOf(entries, entries.length * 2);
+            }
+            entries[size++] = pan;
+            entries[size++] = packed;
+        }
+    }
+
+    /**
+     * Generates the trips of the PANs whose index modulo LANES is the lane's
+     * number. Not thread safe, a lane's chunks are generated one at a time.
+     */
+    private final class Lane {
+        private final int number;
+        private final long lanePans;
+        private final long trips;
+        private final SplittableRandom random;
+        private final PendingTaps[] pending;
+        private final DateTimeCodec dateTimeCodec = new DateTimeCodec();
+        private final byte[][] stopIds = new byte[stops][];
+        private final byte[][] busAndCompanyIds = new byte[buses][];
+        private long started;
+
+        private Lane(int number, long trips) {
+            this.number = number;
+            this.lanePans = (pans - number + LANES - 1) / LANES;
+            this.trips = trips;
+            this.random = new SplittableRandom(seed * 0x9E3779B97F4A7C15L + number);
+            this.pending = new PendingTaps[MAX_TRIP_SECONDS / CHUNK_SECONDS + 2];
+            for (int i = 0; i < pending.length; i++) {
+                pending[i] = new PendingTaps();
+            }
+            for (int i = 0; i < stops; i++) {
+                stopIds[i] = stopId(i).getBytes(StandardCharsets.US_ASCII);
+            }
+            for (int i = 0; i < buses; i++) {
+                busAndCompanyIds[i] = (",Company" + (i % companies + 1) + ",Bus" + (i + 1) + ",")
+                        .getBytes(StandardCharsets.US_ASCII);
+            }
+        }
+
+        private LaneChunk generate(long chunk) {
+            long total = chunk < (long) days * CHUNKS_PER_DAY
+                    ? Math.round(trips * (chunk / CHUNKS_PER_DAY + DAY_PROFILE[(int) (chunk % CHUNKS_PER_DAY)]) / days)
+                    : trips;
+            int count = (int) (total - started);
+            started = total;
 
-                statusCount--;
-                if (statusCount == 0) {
-                    // this trip status has completed
-                    tripStatusCountMap.remove(status);
+            PendingTaps offs = pending[(int) (chunk % pending.length)];
+            // Tap-ons, as their second and the packed PAN, stop and bus
+            long[] ons = new long[count * 2];
+            // taps that can't be read, as the PAN and packed second, stop and bus
+            long[] bad = new long[0];
+            int badSize = 0;
+            for (int i = 0; i < count; i++) {
+                int second = random.nextInt(CHUNK_SECONDS);
+                long pan = pick(lanePans) * LANES + number;
+                int from = (int) pick(stops);
+                int bus = (int) pick(buses);
+                ons[i * 2] = pan;
+                ons[i * 2 + 1] = pack(second, from, bus);
+                if (errorRate > 0 && random.nextDouble() < errorRate) {
+                    if (badSize == bad.length) {
+                        bad = Arrays.copyOf(bad, Math.max(16, bad.length * 2));
+                    }
+                    bad[badSize++] = pan;
+                    bad[badSize++] = pack(random.nextInt(CHUNK_SECONDS), from, bus);
+                }
+                double status = random.nextDouble();
+                if (status < incompleteRate) {
+                    continue;
+                }
+                int to;
+                int duration;
+                if (status < incompleteRate + cancelledRate) {
+                    to = from;
+                    duration = MIN_CANCELLED_SECONDS
+                            + random.nextInt(MAX_CANCELLED_SECONDS - MIN_CANCELLED_SECONDS);
                 } else {
-                    tripStatusCountMap.put(status, statusCount);
+                    to = (int) pick(stops);
+                    if (to == from) {
+                        to = (from + 1 + random.nextInt(stops - 1)) % stops;
+                    }
+                    duration = tripSeconds();
                 }
+                int offSecond = second + duration;
+                PendingTaps due = pending[(int) ((chunk + offSecond / CHUNK_SECONDS) % pending.length)];
+                due.add(pan, pack(offSecond % CHUNK_SECONDS, to, bus));
             }
-            // loop over trips in progress and tap off
-            for (Map<Batch.TapCSVCols, String> record : tripInProgressList) {
-                record.put(Batch.TapCSVCols.ID, Long.toString(++tapIdCounter));
-                record.put(Batch.TapCSVCols.TapType, Tap.Type.OFF.toString());
-                record.put(Batch.TapCSVCols.DateTimeUTC, nextOffDateTime());
-                // pick a new stop that is not the current one.
-                record.compute(Batch.TapCSVCols.StopId, (k, v) -> randomPick(stops, v));
-                tapsFile.printRecord(record.values());
+
+            int records = count + offs.size / 2 + badSize / 2;
+            byte[] buf = new byte[records * maxRecordLength()];
+            int[] recordEnds = new int[records];
+            int[] secondEnds = new int[CHUNK_SECONDS];
+            long[] sortedOffs = sortBySecond(offs.entries, offs.size);
+            long[] sortedOns = sortBySecond(ons, ons.length);
+            long[] sortedBad = sortBySecond(bad, badSize);
+            long epochSecond = startDate.atStartOfDay().toEpochSecond(ZoneOffset.UTC) + chunk * CHUNK_SECONDS;
+            int len = 0;
+            int record = 0;
+            int off = 0;
+            int on = 0;
+            int b = 0;
+            for (int second = 0; second < CHUNK_SECONDS; second++) {
+                // Tap-offs first, in case the PAN taps on again
+                for (; off < sortedOffs.length && second(sortedOffs[off + 1]) == second; off += 2) {
+                    len = format(buf, len, epochSecond + second, OFF, sortedOffs[off], sortedOffs[off + 1]);
+                    recordEnds[record++] = len;
+                }
+                for (; on < sortedOns.length && second(sortedOns[on + 1]) == second; on += 2) {
+                    len = format(buf, len, epochSecond + second, ON, sortedOns[on], sortedOns[on + 1]);
+                    recordEnds[record++] = len;
+                }
+                for (; b < sortedBad.length && second(sortedBad[b + 1]) == second; b += 2) {
+                    long pan = sortedBad[b];
+                    boolean badTime = pan / LANES % 2 != 0;
+                    int start = len;
+                    len = format(buf, len, epochSecond + second, badTime ? ON : UNKNOWN, pan, sortedBad[b + 1]);
+                    if (badTime) {
+                        // after the comma and the day, month and year
+                        buf[start + 12] = '2';
+                        buf[start + 13] = '5';
+                    }
+                    recordEnds[record++] = len;
+                }
+                secondEnds[second] = record;
             }
+            offs.size = 0;
+            return new LaneChunk(buf, recordEnds, secondEnds);
+        }
+
+        /**
+         * @return a number from 0 to less than n, skewed towards 0.
+         */
+        private long pick(long n) {
+            if (skew == 0) {
+                return random.nextLong(n);
+            }
+            return Math.min((long) (n * Math.pow(random.nextDouble(), 1 + skew)), n - 1);
+        }
+
+        private int tripSeconds() {
+            double exponential = -Math.log(1 - random.nextDouble()) * (MEAN_TRIP_SECONDS - MIN_TRIP_SECONDS);
+            return (int) Math.min(MIN_TRIP_SECONDS + exponential, MAX_TRIP_SECONDS);
+        }
+
+        private int format(byte[] buf, int len, long epochSecond, byte[] type, long pan, long packed) {
+            buf[len++] = ',';
+            len = dateTimeCodec.format(epochSecond, buf, len);
+            System.arraycopy(type, 0, buf, len, type.length);
+            len += type.length;
+            byte[] stopId = stopIds[stop(packed)];
+            System.arraycopy(stopId, 0, buf, len, stopId.length);
+            len += stopId.length;
+            byte[] busAndCompany = busAndCompanyIds[bus(packed)];
+            System.arraycopy(busAndCompany, 0, buf, len, busAndCompany.length);
+            len += busAndCompany.length;
+            long digits = PAN_BASE + pan;
+            for (int i = len + 15; i >= len; i--) {
+                buf[i] = (byte) ('0' + digits % 10);
+                digits /= 10;
+            }
+            len += 16;
+            buf[len++] = '\n';
+            return len;
+        }
+
+        private int maxRecordLength() {
+            // comma, date, ",OFF,", ids and separators, PAN and line feed
+            return 1 + DateTimeCodec.LENGTH + OFF.length
+                    + stopIds[stops - 1].length
+                    + busAndCompanyIds[buses - 1].length
+                    + 17;
         }
     }
 
     /**
-     * Pick a random item from a collection.
-     *
-     * @param <T> the type of the collection passed in
-     * @param pickFrom the collection to select an item from
-     * @param excludes When picking an item from the provided list, any of these
-     * will not be selected
-     * @return An randomly selected item from the provided collection, which
-     * will not be any of the provided exclude item(s)
+     * @return the pairs of entries in order of their packed second.
      */
-    @SuppressWarnings(value = "unchecked")
-    public static <T> T randomPick(Collection<T> pickFrom, T... excludes) {
-        ArrayList<T> pickList = new ArrayList<>(pickFrom);
-        pickList.removeAll(Arrays.asList(excludes));
-        int index = RND.nextInt(pickList.size());
-        return pickList.get(index);
+    private static long[] sortBySecond(long[] entries, int size) {
+        int[] starts = new int[CHUNK_SECONDS + 1];
+        for (int i = 0; i < size; i += 2) {
+            starts[second(entries[i + 1]) + 1] += 2;
+        }
+        for (int i = 1; i <= CHUNK_SECONDS; i++) {
+            starts[i] += starts[i - 1];
+        }
+        long[] sorted = new long[size];
+        for (int i = 0; i < size; i += 2) {
+            int to = starts[second(entries[i + 1])];
+            starts[second(entries[i + 1])] += 2;
+            sorted[to] = entries[i];
+            sorted[to + 1] = entries[i + 1];
+        }
+        return sorted;
+    }
+
+    private static long pack(int second, int stop, int bus) {
+        return ((long) second << 48) | ((long) stop << 24) | bus;
+    }
+
+    private static int second(long packed) {
+        return (int) (packed >>> 48);
+    }
+
+    private static int stop(long packed) {
+        return (int) (packed >>> 24) & 0xFFFFFF;
+    }
+
+    private static int bus(long packed) {
+        return (int) packed & 0xFFFFFF;
     }
 
     /**
-     *
-     * @return a randomly generated 16 digit number as a String, pretending to
-     * be a credit card number.
+     * Writes the chunks, giving each tap the next ID.
      */
-    public static String randomPAN() {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < 16; i++) {
-            sb.append(RND.nextInt(10));
+    private static final class ChunkWriter {
+        private final OutputStream out;
+        private final byte[] buf = new byte[1024 * 1024];
+        private int len;
+        private long id;
+
+        private ChunkWriter(OutputStream out) throws IOException {
+            this.out = out;
+            System.arraycopy(HEADER, 0, buf, 0, HEADER.length);
+            len = HEADER.length;
         }
-        return sb.toString();
-    }
 
-    public String nextOnDateTime() {
-        String formattedTime = DTF.format(instant);
-        if (instant.isBefore(MIDDAY)) {
-            instant = instant.plusSeconds(1);
+        private void write(LaneChunk[] lanes) throws IOException {
+            for (int second = 0; second < CHUNK_SECONDS; second++) {
+                for (LaneChunk lane : lanes) {
+                    int first = second == 0 ? 0 : lane.secondEnds[second - 1];
+                    for (int record = first; record < lane.secondEnds[second]; record++) {
+                        int start = record == 0 ? 0 : lane.recordEnds[record - 1];
+                        int length = lane.recordEnds[record] - start;
+                        if (len + length + 20 > buf.length) {
+                            out.write(buf, 0, len);
+                            len = 0;
+                        }
+                        len = writeId(++id);
+                        System.arraycopy(lane.buf, start, buf, len, length);
+                        len += length;
+                    }
+                }
+            }
         }
-        return formattedTime;
-    }
 
-    public String nextOffDateTime() {
-        if (instant.isBefore(MIDDAY)) {
-            instant = MIDDAY.plusSeconds(1);
+        private int writeId(long value) {
+            int digits = 1;
+            for (long v = value; v >= 10; v /= 10) {
+                digits++;
+            }
+            for (int i = len + digits - 1; i >= len; i--) {
+                buf[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            return len + digits;
         }
-        String formattedTime = DTF.format(instant);
-        if (instant.isBefore(END_OF_DAY)) {
-            instant = instant.plusSeconds(1);
+
+        /**
+         * @return the number of taps written.
+         */
+        private long finish() throws IOException {
+            out.write(buf, 0, len);
+            len = 0;
+            out.flush();
+            return id;
         }
-        return formattedTime;
     }
 }
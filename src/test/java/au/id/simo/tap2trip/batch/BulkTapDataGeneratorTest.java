@@ -0,0 +1,93 @@
+package au.id.simo.tap2trip.batch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BulkTapDataGeneratorTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testSameSeedSameTaps() throws IOException {
+        byte[] oneThread = generate(1, 7);
+        assertArrayEquals(oneThread, generate(4, 7));
+        assertFalse(Arrays.equals(oneThread, generate(4, 8)));
+    }
+
+    @Test
+    public void testTapsInOrderAndMatched() throws IOException {
+        BulkTapDataGenerator generator = generator(4, 3);
+        Path taps = tempDir.resolve("taps.csv");
+        long written = generator.generateTaps(20_000, taps);
+        assertTrue(Math.abs(written - 20_000) < 200, "written: " + written);
+
+        long previous = Long.MIN_VALUE;
+        long id = 0;
+        for (String line : Files.readAllLines(taps, StandardCharsets.UTF_8).subList(1, (int) written + 1)) {
+            String[] fields = line.split(",");
+            assertEquals(Long.toString(++id), fields[0]);
+            long epochSecond = DateTimeCodec.parseEpochSecond(fields[1]);
+            assertTrue(epochSecond >= previous, line);
+            previous = epochSecond;
+        }
+
+        StringWriter trips = new StringWriter();
+        StringWriter errors = new StringWriter();
+        BatchMetrics metrics = new Batch(generator.charges()).process(taps, trips, errors);
+        assertEquals(written, metrics.getTapsRead());
+        assertEquals(0, metrics.getTapReadErrors());
+        // the last trips finish early the next day
+        long nextDay = LocalDate.of(2022, 1, 2).atStartOfDay().toEpochSecond(ZoneOffset.UTC);
+        assertTrue(previous < nextDay + 3 * 3600, line(previous));
+    }
+
+    @Test
+    public void testErrorRate() throws IOException {
+        BulkTapDataGenerator generator = generator(2, 5).setErrorRate(0.1);
+        Path taps = tempDir.resolve("taps.csv");
+        long written = generator.generateTaps(20_000, taps);
+
+        StringWriter trips = new StringWriter();
+        StringWriter errors = new StringWriter();
+        BatchMetrics metrics = new Batch(generator.charges()).process(taps, trips, errors);
+        assertEquals(written, metrics.getTapsRead() + metrics.getTapReadErrors());
+        // about 10% of the 10,000 or so Tap-ons
+        assertTrue(Math.abs(metrics.getTapReadErrors() - 1000) < 150, "errors: " + metrics.getTapReadErrors());
+        // half with an unknown tap type, half with an invalid time
+        assertTrue(errors.toString().contains("Type.TAP"));
+        assertTrue(errors.toString().contains(" 25:"));
+    }
+
+    private static String line(long epochSecond) {
+        return new DateTimeCodec().format(epochSecond);
+    }
+
+    private static byte[] generate(int threads, long seed) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        generator(threads, seed).generateTaps(5_000, out);
+        return out.toByteArray();
+    }
+
+    private static BulkTapDataGenerator generator(int threads, long seed) {
+        return new BulkTapDataGenerator()
+                .setSeed(seed)
+                .setThreads(threads)
+                .setStops(20)
+                .setBuses(50)
+                .setCompanies(3)
+                .setPans(1000)
+                .setSkew(1)
+                .setStatusRates(0.05, 0.05);
+    }
+}
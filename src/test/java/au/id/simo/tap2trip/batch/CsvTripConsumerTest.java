@@ -1,16 +1,24 @@
 package au.id.simo.tap2trip.batch;
 
+import au.id.simo.tap2trip.IdDictionary;
 import au.id.simo.tap2trip.Trip;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
 
 
 public class CsvTripConsumerTest {
+
+    private final IdDictionary dictionary = new IdDictionary();
     
     @Test
     public void testHappyOutput() throws IOException {
@@ -19,6 +27,7 @@ public class CsvTripConsumerTest {
         Duration duration = Duration.between(onInst, offInst);
         
         Trip trip = new Trip(
+                dictionary,
                 onInst,
                 offInst,
                 duration,
@@ -33,7 +42,7 @@ public class CsvTripConsumerTest {
         
         StringWriter sw = new StringWriter();
         BatchMetrics metrics = new BatchMetrics();
-        TripCsvWriter csvConsumer = new TripCsvWriter(sw, metrics);
+        TripCsvWriter csvConsumer = new TripCsvWriter(sw, dictionary, metrics);
         csvConsumer.accept(trip);
         
         String expected =
@@ -45,10 +54,10 @@ public class CsvTripConsumerTest {
     
     @Test
     public void testEmptyIfNull() throws IOException {
-        Trip nullTrip = new Trip(null, null,null,null,null,null,null,null,null,null);
+        Trip nullTrip = new Trip(dictionary, null, null,null,null,null,null,null,null,null,null);
         StringWriter sw = new StringWriter();
         BatchMetrics metrics = new BatchMetrics();
-        TripCsvWriter csvConsumer = new TripCsvWriter(sw, metrics);
+        TripCsvWriter csvConsumer = new TripCsvWriter(sw, dictionary, metrics);
         csvConsumer.accept(nullTrip);
         
         // apache commons CSV will always quote the first empty field on a row.
@@ -59,4 +68,66 @@ public class CsvTripConsumerTest {
         assertEquals(expected, sw.toString());
         assertEquals(1, metrics.getTripsWritten());
     }
+
+    @Test
+    public void testSameAsCsvPrinter() throws IOException {
+        String[] ids = {
+            "Stop1", "", " Stop1", "Stop1 ", "#Stop1", "!Stop1", "$Stop1", "Stop,1",
+            "Stop\"1", "\"Stop1\"", "Stop\n1", "Stop\r1", "St\u00f3p1", "\u505c\u7559\u0031", "Stop1\t"
+        };
+        Integer[] charges = {0, 5, 99, 100, 325, -5, -150, Integer.MAX_VALUE, Integer.MIN_VALUE, null};
+        Instant started = Instant.parse("2018-01-22T13:00:00Z");
+
+        StringWriter sw = new StringWriter();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        StringWriter expected = new StringWriter();
+        BatchMetrics metrics = new BatchMetrics();
+        TripCsvWriter writerConsumer = new TripCsvWriter(sw, dictionary, metrics);
+        TripCsvWriter channelConsumer = new TripCsvWriter(Channels.newChannel(bytes), dictionary, new BatchMetrics());
+        CSVPrinter printer = CSVFormat.DEFAULT.builder()
+                .setHeader(Batch.TripsCSVCols.class)
+                .setRecordSeparator('\n')
+                .build()
+                .print(expected);
+        int count = 0;
+        for (int i = 0; i < ids.length; i++) {
+            for (int j = 0; j < charges.length; j++) {
+                String id = ids[(i + j) % ids.length];
+                Trip trip = new Trip(
+                        dictionary,
+                        j == 0 ? null : started,
+                        started.plusSeconds(i * 86400L + j),
+                        Duration.ofSeconds(j - 3),
+                        id,
+                        ids[i],
+                        charges[j],
+                        ids[j % ids.length],
+                        id,
+                        ids[i],
+                        Trip.Status.values()[j % Trip.Status.values().length]
+                );
+                writerConsumer.accept(trip);
+                channelConsumer.accept(trip);
+                printer.printRecord(
+                        trip.getStarted() == null ? "" : Batch.DTF.format(trip.getStarted()),
+                        Batch.DTF.format(trip.getFinished()),
+                        trip.getDuration().getSeconds(),
+                        trip.getFromStopId(),
+                        trip.getToStopId(),
+                        trip.getChargeAmount() == null ? ""
+                                : String.format("$%d.%02d", trip.getChargeAmount() / 100, trip.getChargeAmount() % 100),
+                        trip.getCompanyId(),
+                        trip.getBusId(),
+                        trip.getPAN(),
+                        trip.getStatus()
+                );
+                count++;
+            }
+        }
+        channelConsumer.close();
+        printer.flush();
+        assertEquals(expected.toString(), sw.toString());
+        assertEquals(expected.toString(), new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(count, metrics.getTripsWritten());
+    }
 }
@@ -0,0 +1,100 @@
+package au.id.simo.tap2trip.batch;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DateTimeCodecTest {
+
+    @Test
+    public void testFormatSameAsDtf() {
+        DateTimeCodec codec = new DateTimeCodec();
+        Random random = new Random(7);
+        long[] edges = {
+            0, -1, 1516626000L, 1516665599L, 1516665600L,
+            // first and last seconds of years 1 and 9999, and either side
+            -62135596800L, -62135596801L, 253402300799L, 253402300800L
+        };
+        for (long epochSecond : edges) {
+            assertFormat(codec, epochSecond);
+        }
+        for (int i = 0; i < 100_000; i++) {
+            // mostly the same day in a row, to use the cached date
+            long epochSecond = i % 10 == 0
+                    ? random.nextLong() % 253402300800L
+                    : 1516626000L + random.nextInt(86400 * 3);
+            assertFormat(codec, epochSecond);
+        }
+    }
+
+    private static void assertFormat(DateTimeCodec codec, long epochSecond) {
+        String expected = Batch.DTF.format(Instant.ofEpochSecond(epochSecond));
+        assertEquals(expected, codec.format(epochSecond), "epochSecond: " + epochSecond);
+        byte[] out = new byte[40];
+        int end = codec.format(epochSecond, out, 3);
+        assertEquals(expected, new String(out, 3, end - 3, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testParseSameAsDtf() {
+        String[] values = {
+            "22-01-2018 13:00:00",
+            "29-02-2020 23:59:59",
+            "01-01-0001 00:00:00",
+            "31-12-9999 23:59:59",
+            // resolved by the formatter
+            "31-04-2018 10:00:00",
+            "29-02-2019 10:00:00",
+            "22-01-2018 24:00:00",
+            // rejected
+            "22-01-2018 13:00",
+            "22-13-2018 13:00:00",
+            "32-01-2018 13:00:00",
+            "22-01-2018 13:60:00",
+            "22/01/2018 13:00:00",
+            "aa-01-2018 13:00:00",
+            "00-01-2018 13:00:00",
+            "22-01-0000 13:00:00",
+            "22-01-2018 24:00:01",
+            "22-01-+12345 25:00:00",
+            "22-01-2018 13:00:00 with more than 64 chars of text after the date",
+            ""
+        };
+        DateTimeCodec codec = new DateTimeCodec();
+        for (String value : values) {
+            Instant expected;
+            try {
+                expected = Batch.DTF.parse(value, Instant::from);
+            } catch (DateTimeParseException ex) {
+                DateTimeParseException bytesEx = assertThrows(DateTimeParseException.class,
+                        () -> DateTimeCodec.parseEpochSecond(bytes(value), 1, value.length() + 1));
+                assertEquals(ex.getMessage(), bytesEx.getMessage());
+                DateTimeParseException stringEx = assertThrows(DateTimeParseException.class,
+                        () -> DateTimeCodec.parseEpochSecond(value));
+                assertEquals(ex.getMessage(), stringEx.getMessage());
+                assertEquals(DateTimeCodec.INVALID, codec.tryParseEpochSecond(bytes(value), 1, value.length() + 1));
+                String message = ex.getCause() == null
+                        ? ex.getMessage()
+                        : ex.getMessage() + ": " + ex.getCause().getMessage();
+                assertEquals(message, codec.getParseError());
+                continue;
+            }
+            assertEquals(expected.getEpochSecond(),
+                    codec.tryParseEpochSecond(bytes(value), 1, value.length() + 1), value);
+            assertNull(codec.getParseError());
+            assertEquals(expected.getEpochSecond(),
+                    DateTimeCodec.parseEpochSecond(bytes(value), 1, value.length() + 1), value);
+            assertEquals(expected.getEpochSecond(), DateTimeCodec.parseEpochSecond(value), value);
+        }
+    }
+
+    /**
+     * @return the value with a byte either side, to check the offsets are used.
+     */
+    private static byte[] bytes(String value) {
+        return ("," + value + ",").getBytes(StandardCharsets.UTF_8);
+    }
+}
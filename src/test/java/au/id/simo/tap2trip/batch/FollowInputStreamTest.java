@@ -0,0 +1,53 @@
+package au.id.simo.tap2trip.batch;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FollowInputStreamTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testReadsWhatIsAppended() throws Exception {
+        Path file = tempDir.resolve("taps.csv");
+        Files.write(file, "first".getBytes(StandardCharsets.UTF_8));
+        FollowInputStream in = new FollowInputStream(file, Duration.ofMillis(5));
+        byte[] buf = new byte[16];
+        assertEquals("first", new String(buf, 0, in.read(buf), StandardCharsets.UTF_8));
+
+        CompletableFuture<Integer> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return in.read(buf);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        Files.write(file, "second".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        int read = waiting.get(10, TimeUnit.SECONDS);
+        assertEquals("second", new String(buf, 0, read, StandardCharsets.UTF_8));
+
+        // truncated and written again
+        Files.write(file, "new".getBytes(StandardCharsets.UTF_8));
+        assertEquals("new", new String(buf, 0, in.read(buf), StandardCharsets.UTF_8));
+
+        CompletableFuture<Integer> closed = CompletableFuture.supplyAsync(() -> {
+            try {
+                return in.read(buf);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        in.close();
+        assertEquals(-1, closed.get(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,20 @@
+package au.id.simo.tap2trip.batch;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import sun.misc.Signal;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class HangupSignalTest {
+
+    @Test
+    public void testActionRunOnSignal() throws InterruptedException {
+        CountDownLatch hangups = new CountDownLatch(2);
+        assumeTrue(HangupSignal.install(hangups::countDown), "SIGHUP can't be handled");
+        Signal.raise(new Signal("HUP"));
+        Signal.raise(new Signal("HUP"));
+        assertTrue(hangups.await(10, TimeUnit.SECONDS));
+    }
+}
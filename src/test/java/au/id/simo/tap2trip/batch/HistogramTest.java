@@ -0,0 +1,62 @@
+package au.id.simo.tap2trip.batch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HistogramTest {
+
+    @Test
+    public void testPercentiles() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(0.5));
+        assertEquals(0, histogram.getMean());
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        histogram.record(-5);
+        assertEquals(101, histogram.getCount());
+        assertEquals(5050, histogram.getSum());
+        assertEquals(100, histogram.getMax());
+        // 51st value is 50, in the bucket of 32 to 63
+        assertEquals(63, histogram.getPercentile(0.5));
+        // capped at the largest value
+        assertEquals(100, histogram.getPercentile(0.99));
+        assertEquals(0, histogram.getPercentile(0));
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(1));
+    }
+
+    @Test
+    public void testConcurrentRecord() throws Exception {
+        Histogram histogram = new Histogram();
+        BatchMetrics metrics = new BatchMetrics();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < 10_000; i++) {
+                        histogram.record(i);
+                        metrics.incrementTapsRead();
+                        metrics.recordStage(BatchMetrics.Stage.MATCH, i, 2);
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(40_000, histogram.getCount());
+        assertEquals(4 * (9999L * 10_000 / 2), histogram.getSum());
+        assertEquals(40_000, metrics.getTapsRead());
+        assertEquals(40_000, metrics.getLatency(BatchMetrics.Stage.MATCH).getCount());
+        assertEquals(2.0, metrics.getBatchSize(BatchMetrics.Stage.MATCH).getMean());
+    }
+}
@@ -0,0 +1,79 @@
+package au.id.simo.tap2trip.batch;
+
+import au.id.simo.tap2trip.IdDictionary;
+import au.id.simo.tap2trip.Tap;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MappedTapBinaryReaderTest {
+
+    private final IdDictionary ids = new IdDictionary();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Path file = tempDir.resolve("taps.bin");
+        String[] pans = {"5500005555555559", "0123", "4111111111111111111", "PAN", "0123"};
+        List<Tap> taps = new ArrayList<>();
+        Instant dateTime = Instant.parse("2018-01-22T13:00:00Z");
+        try (TapBinaryWriter writer = new TapBinaryWriter(file, ids)) {
+            for (int i = 0; i < 5000; i++) {
+                Tap tap = new Tap(
+                        ids,
+                        i,
+                        dateTime.plusSeconds(i).plusNanos(i % 3 == 0 ? 999_999_999 : 0),
+                        Tap.Type.values()[i % 2],
+                        "Stop" + i % 10,
+                        "Company" + i % 2,
+                        "Bus" + i % 40,
+                        pans[i % pans.length]
+                );
+                taps.add(tap);
+                writer.write(tap, i * 2L + 1);
+            }
+        }
+        assertTrue(MappedTapBinaryReader.isBinaryTaps(file));
+        try (MappedTapBinaryReader reader = new MappedTapBinaryReader(file, ids)) {
+            for (int i = 0; i < taps.size(); i++) {
+                assertTrue(reader.nextRecord());
+                assertEquals(i * 2L + 1, reader.getRecordNumber());
+                Tap expected = taps.get(i);
+                Tap actual = reader.getTap();
+                assertEquals(expected.getId(), actual.getId());
+                assertEquals(expected.getDateTime(), actual.getDateTime());
+                assertEquals(expected.getTapType(), actual.getTapType());
+                assertEquals(expected.getStopCode(), actual.getStopCode());
+                assertEquals(expected.getCompanyCode(), actual.getCompanyCode());
+                assertEquals(expected.getBusCode(), actual.getBusCode());
+                assertEquals(expected.getPAN(), actual.getPAN());
+            }
+            assertFalse(reader.nextRecord());
+        }
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        Path file = tempDir.resolve("taps.bin");
+        new TapBinaryWriter(file, ids).close();
+        try (MappedTapBinaryReader reader = new MappedTapBinaryReader(file, ids)) {
+            assertFalse(reader.nextRecord());
+        }
+    }
+
+    @Test
+    public void testNotBinaryTaps() throws IOException {
+        Path file = tempDir.resolve("taps.csv");
+        Files.write(file, "ID, DateTimeUTC\n".getBytes("UTF-8"));
+        assertFalse(MappedTapBinaryReader.isBinaryTaps(file));
+        assertThrows(IOException.class, () -> new MappedTapBinaryReader(file, ids));
+    }
+}
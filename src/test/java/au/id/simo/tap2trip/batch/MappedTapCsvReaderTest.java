@@ -0,0 +1,100 @@
+package au.id.simo.tap2trip.batch;
+
+import au.id.simo.tap2trip.IdDictionary;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MappedTapCsvReaderTest {
+
+    private final IdDictionary ids = new IdDictionary();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testSameAsTapCsvReader() throws Exception {
+        StringBuilder sb = new StringBuilder("ID, DateTimeUTC, TapType, StopId, CompanyId, BusID, PAN\r\n");
+        for (int i = 1; i <= 500; i++) {
+            if (i % 50 == 0) {
+                sb.append(i).append(", bad date, ON, Stop1, Company1, Bus37, 5500005555555559\n");
+            } else if (i % 70 == 0) {
+                sb.append("\n\n");
+            } else {
+                sb.append(i).append(", 22-01-2018 13:00:00, ON, Stop").append(i % 7)
+                        .append(", Company1, Bus37, 55000055555555").append(i % 100).append("\r\n");
+            }
+        }
+        String csv = sb.toString();
+        List<String> expected = read(new TapCsvReader(stream(csv), ids));
+        assertEquals(494, expected.size());
+
+        Path file = write(csv);
+        for (int chunkSize : new int[]{1, 100, 4096, MappedTapCsvReader.DEFAULT_CHUNK_SIZE}) {
+            for (int threads : new int[]{1, 3}) {
+                assertEquals(
+                        expected,
+                        read(new MappedTapCsvReader(file, ids, threads, chunkSize)),
+                        "chunkSize: " + chunkSize + " threads: " + threads
+                );
+            }
+        }
+    }
+
+    @Test
+    public void testLineBreakInQuotedField() throws Exception {
+        StringBuilder sb = new StringBuilder("ID, DateTimeUTC, TapType, StopId, CompanyId, BusID, PAN\n");
+        for (int i = 1; i <= 100; i++) {
+            sb.append(i).append(",22-01-2018 13:00:00,ON,\"Stop\n")
+                    .append(i).append("\",Company1,Bus37,5500005555555559\n");
+        }
+        String csv = sb.toString();
+        List<String> expected = read(new TapCsvReader(stream(csv), ids));
+        assertEquals(100, expected.size());
+        assertEquals(expected, read(new MappedTapCsvReader(write(csv), ids, 2, 64)));
+    }
+
+    @Test
+    public void testUnterminatedQuote() throws Exception {
+        String csv = "ID, DateTimeUTC, TapType, StopId, CompanyId, BusID, PAN\n"
+                + "1,22-01-2018 13:00:00,ON,Stop1,Company1,Bus37,5500005555555559\n"
+                + "2,\"22-01-2018 13:00:00,ON,Stop1,Company1,Bus37,5500005555555559\n";
+        try (MappedTapCsvReader reader = new MappedTapCsvReader(write(csv), ids, 2, 1)) {
+            assertTrue(reader.nextRecord());
+            assertEquals(1, reader.getRecordNumber());
+            IOException ex = assertThrows(IOException.class, reader::nextRecord);
+            assertEquals("(startline 3) EOF reached before encapsulated token finished", ex.getMessage());
+        }
+    }
+
+    private Path write(String csv) throws IOException {
+        Path file = Files.createTempFile(tempDir, "taps", ".csv");
+        Files.write(file, csv.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static ByteArrayInputStream stream(String csv) {
+        return new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> read(TapSource source) throws IOException {
+        List<String> results = new ArrayList<>();
+        try (TapSource taps = source) {
+            while (taps.nextRecord()) {
+                try {
+                    results.add(taps.getRecordNumber() + " " + taps.getTap().getStopId() + " " + taps.getTap().getPAN());
+                } catch (TapParsingException ex) {
+                    results.add(taps.getRecordNumber() + " " + ex.getCause().getMessage());
+                }
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,83 @@
+package au.id.simo.tap2trip.batch;
+
+import au.id.simo.tap2trip.ChargeCalculator;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MetricsExporterTest {
+
+    @Test
+    public void testExports() throws Exception {
+        BatchMetrics metrics = new BatchMetrics();
+        metrics.addTapsRead(3);
+        metrics.incrementTapReadErrors();
+        metrics.recordStage(BatchMetrics.Stage.PARSE, 1000, 1024);
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(MetricsExporter.OBJECT_NAME);
+
+        try (MetricsExporter exporter = new MetricsExporter()
+                .setReportInterval(Duration.ofMillis(10), new PrintStream(report, true, "UTF-8"))
+                .setJmx(true)
+                .setHttpPort(0)) {
+            exporter.start(metrics);
+
+            String text = get(exporter.getHttpPort());
+            assertTrue(text.contains("tap2trip_taps_read 3\n"), text);
+            assertTrue(text.contains("tap2trip_tap_read_errors 1\n"), text);
+            assertTrue(text.contains("tap2trip_stage_count{stage=\"parse\"} 1\n"), text);
+            assertTrue(text.contains("tap2trip_stage_batch_size_max{stage=\"parse\"} 1024\n"), text);
+
+            assertEquals(3L, mbeanServer.getAttribute(name, "TapsRead"));
+            assertEquals(0.25, (Double) mbeanServer.getAttribute(name, "ErrorRate"), 1e-9);
+
+            TapStreamTest.awaitContains("Taps read: 3", () -> new String(report.toByteArray(), StandardCharsets.UTF_8));
+        }
+        assertFalse(mbeanServer.isRegistered(name));
+    }
+
+    @Test
+    public void testBatchRecordsStages() throws Exception {
+        BatchMetrics metrics = new Batch(new ChargeCalculator().addCharge("Stop1", "Stop2", 325))
+                .setMetricsExporter(new MetricsExporter().setJmx(true))
+                .process(new StringReader(String.join("\n",
+                        "ID, DateTimeUTC, TapType, StopId, CompanyId, BusID, PAN",
+                        "1, 22-01-2018 13:00:00, ON, Stop1, Company1, Bus37, 5500005555555559",
+                        "2, 22-01-2018 13:05:00, OFF, Stop2, Company1, Bus37, 5500005555555559"
+                )), new StringWriter(), new StringWriter());
+        // both taps are in one block
+        assertEquals(1, metrics.getLatency(BatchMetrics.Stage.PARSE).getCount());
+        assertEquals(1, metrics.getLatency(BatchMetrics.Stage.MATCH).getCount());
+        assertFalse(ManagementFactory.getPlatformMBeanServer()
+                .isRegistered(new ObjectName(MetricsExporter.OBJECT_NAME)));
+    }
+
+    private static String get(int port) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/metrics")
+                .openConnection();
+        try (InputStream in = connection.getInputStream()) {
+            assertEquals(200, connection.getResponseCode());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int read; (read = in.read(buf)) > 0; ) {
+                out.write(buf, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
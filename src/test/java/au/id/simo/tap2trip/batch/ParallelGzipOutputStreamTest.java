@@ -0,0 +1,80 @@
+package au.id.simo.tap2trip.batch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ParallelGzipOutputStreamTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testMultiMemberRoundTrip() throws IOException {
+        byte[] data = sampleData(3_000_000);
+        Path file = tempDir.resolve("data.gz");
+        try (OutputStream out = new ParallelGzipOutputStream(Files.newOutputStream(file), 4, 64 * 1024)) {
+            // mix of single bytes and arrays crossing block boundaries
+            out.write(data, 0, 10);
+            for (int i = 10; i < 1000; i++) {
+                out.write(data[i]);
+            }
+            out.write(data, 1000, data.length - 1000);
+        }
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+            assertArrayEquals(data, readAll(in));
+        }
+        try (InputStream in = new ReadAheadGzipInputStream(file)) {
+            assertArrayEquals(data, readAll(in));
+        }
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        Path file = tempDir.resolve("empty.gz");
+        new ParallelGzipOutputStream(Files.newOutputStream(file), 2).close();
+        assertTrue(Files.size(file) > 0);
+        try (InputStream in = new ReadAheadGzipInputStream(file)) {
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void testReaderClosedBeforeEnd() throws IOException {
+        Path file = tempDir.resolve("data.gz");
+        try (OutputStream out = new ParallelGzipOutputStream(Files.newOutputStream(file), 2)) {
+            out.write(sampleData(10_000_000));
+        }
+        try (InputStream in = new ReadAheadGzipInputStream(file)) {
+            assertNotEquals(-1, in.read());
+        }
+    }
+
+    private static byte[] sampleData(int size) {
+        Random random = new Random(3);
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            // compressible, like a CSV file
+            data[i] = (byte) ('0' + random.nextInt(12));
+        }
+        return data;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[7919];
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,98 @@
+package au.id.simo.tap2trip.batch;
+
+import au.id.simo.tap2trip.ChargeCalculator;
+import au.id.simo.tap2trip.IdDictionary;
+import au.id.simo.tap2trip.Tap;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReorderingTapSourceTest {
+
+    private static final String HEADER = "ID, DateTimeUTC, TapType, StopId, CompanyId, BusID, PAN\n";
+
+    private final IdDictionary ids = new IdDictionary();
+
+    @Test
+    public void testPutsLateTapsInOrder() throws IOException {
+        TapSource taps = reorder(Duration.ofMinutes(2), 1024,
+                "1, 22-01-2018 13:01:00, ON, Stop1, Company1, Bus37, 1",
+                "2, 22-01-2018 13:00:00, ON, Stop1, Company1, Bus37, 2",
+                "3, 22-01-2018 13:02:00, ON, Stop1, Company1, Bus37, 3",
+                "4, 22-01-2018 13:00:00, ON, Stop1, Company1, Bus37, 4",
+                "5, not a date, ON, Stop1, Company1, Bus37, 5",
+                "6, 22-01-2018 13:05:00, ON, Stop1, Company1, Bus37, 6",
+                // more than 2 minutes older than 13:05
+                "7, 22-01-2018 13:02:59, ON, Stop1, Company1, Bus37, 7",
+                "8, 22-01-2018 13:03:00, ON, Stop1, Company1, Bus37, 8"
+        );
+        assertEquals(
+                "2 4 5:error 1 3 7:error 8 6",
+                read(taps)
+        );
+    }
+
+    @Test
+    public void testReleasesEarlyWhenFull() throws IOException {
+        TapSource taps = reorder(Duration.ofHours(1), 2,
+                "1, 22-01-2018 13:03:00, ON, Stop1, Company1, Bus37, 1",
+                "2, 22-01-2018 13:02:00, ON, Stop1, Company1, Bus37, 2",
+                "3, 22-01-2018 13:04:00, ON, Stop1, Company1, Bus37, 3",
+                // older than the tap released early
+                "4, 22-01-2018 13:01:00, ON, Stop1, Company1, Bus37, 4",
+                "5, 22-01-2018 13:02:00, ON, Stop1, Company1, Bus37, 5"
+        );
+        assertEquals("2 4:error 5 1 3", read(taps));
+    }
+
+    @Test
+    public void testBatchMatchesLateTaps() throws IOException {
+        Batch batch = new Batch(new ChargeCalculator().addCharge("Stop1", "Stop2", 325))
+                .setReorderWindow(Duration.ofMinutes(5));
+        StringReader tapsCsv = new StringReader(HEADER
+                + "1, 22-01-2018 13:05:00, OFF, Stop2, Company1, Bus37, 5500005555555559\n"
+                + "2, 22-01-2018 13:00:00, ON, Stop1, Company1, Bus37, 5500005555555559\n"
+                + "3, 22-01-2018 13:20:00, ON, Stop1, Company1, Bus37, 4111111111111111\n"
+                + "4, 22-01-2018 13:10:00, OFF, Stop2, Company1, Bus37, 4111111111111111\n");
+        StringWriter tripsCsv = new StringWriter();
+        StringWriter errorCsv = new StringWriter();
+        batch.process(tapsCsv, tripsCsv, errorCsv);
+
+        String[] trips = tripsCsv.toString().split("\n");
+        assertEquals(3, trips.length);
+        assertTrue(trips[1].endsWith("5500005555555559,COMPLETED"), trips[1]);
+        assertTrue(trips[2].endsWith("4111111111111111,INCOMPLETE"), trips[2]);
+        String[] errors = errorCsv.toString().split("\r?\n");
+        assertEquals(2, errors.length);
+        assertTrue(errors[1].startsWith("4,\"Tap is more than PT5M older than the latest tap"), errors[1]);
+    }
+
+    private TapSource reorder(Duration lateness, int maxTaps, String... records) {
+        String csv = HEADER + String.join("\n", records) + "\n";
+        TapCsvReader reader = new TapCsvReader(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)), ids);
+        return new ReorderingTapSource(reader, lateness, maxTaps);
+    }
+
+    /**
+     * @return the PAN of each tap, or the record number of each error.
+     */
+    private static String read(TapSource taps) throws IOException {
+        List<String> read = new ArrayList<>();
+        while (taps.nextRecord()) {
+            try {
+                Tap tap = taps.getTap();
+                read.add(tap.getPAN());
+            } catch (TapParsingException ex) {
+                read.add(taps.getRecordNumber() + ":error");
+            }
+        }
+        return String.join(" ", read);
+    }
+}
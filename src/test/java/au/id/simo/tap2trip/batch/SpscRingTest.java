@@ -0,0 +1,53 @@
+package au.id.simo.tap2trip.batch;
+
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SpscRingTest {
+
+    @Test
+    public void testBounded() {
+        SpscRing<Integer> ring = new SpscRing<>(3);
+        assertEquals(4, ring.capacity());
+        assertNull(ring.poll());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.offer(4));
+        assertEquals(0, ring.poll());
+        assertTrue(ring.offer(4));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(i, ring.poll());
+        }
+        assertNull(ring.poll());
+    }
+
+    @Test
+    public void testInOrderAcrossThreads() throws Exception {
+        SpscRing<Integer> ring = new SpscRing<>(16);
+        int count = 1_000_000;
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread consumer = new Thread(() -> {
+            try {
+                for (int expected = 0; expected < count; expected++) {
+                    Integer item;
+                    while ((item = ring.poll()) == null) {
+                        Thread.yield();
+                    }
+                    assertEquals(expected, item);
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < count; i++) {
+            while (!ring.offer(i)) {
+                Thread.yield();
+            }
+        }
+        consumer.join();
+        assertNull(failure.get());
+    }
+}
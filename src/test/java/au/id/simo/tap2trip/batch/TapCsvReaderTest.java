@@ -0,0 +1,241 @@
+package au.id.simo.tap2trip.batch;
+
+import au.id.simo.tap2trip.IdDictionary;
+import au.id.simo.tap2trip.Tap;
+import au.id.simo.tap2trip.TapError;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TapCsvReaderTest {
+
+    private static final String HEADER = "ID, DateTimeUTC, TapType, StopId, CompanyId, BusID, PAN\n";
+
+    private final IdDictionary ids = new IdDictionary();
+
+    @Test
+    public void testHappyPath() throws Exception {
+        TapCsvReader reader = reader(HEADER
+                + "1, 22-01-2018 13:00:00, ON, Stop1, Company1, Bus37, 5500005555555559\n");
+        assertTrue(reader.nextRecord());
+        assertEquals(1, reader.getRecordNumber());
+        Tap tap = reader.getTap();
+        assertEquals(1, tap.getId());
+        assertEquals(Instant.parse("2018-01-22T13:00:00Z"), tap.getDateTime());
+        assertEquals(Tap.Type.ON, tap.getTapType());
+        assertEquals("Stop1", tap.getStopId());
+        assertEquals("Company1", tap.getCompanyId());
+        assertEquals("Bus37", tap.getBusId());
+        assertEquals("5500005555555559", tap.getPAN());
+        assertFalse(reader.nextRecord());
+    }
+
+    @Test
+    public void testRecordsSpanningBufferRefills() throws Exception {
+        StringBuilder sb = new StringBuilder(HEADER);
+        for (int i = 1; i <= 100; i++) {
+            sb.append(i).append(", 22-01-2018 13:00:00, OFF, Stop").append(i)
+                    .append(", \"Company, \"\"").append(i).append("\"\"\", Bus37, 5500005555555559\r\n");
+        }
+        // a tiny buffer forces records to be moved and the buffer to grow
+        TapCsvReader reader = new TapCsvReader(
+                new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.UTF_8)),
+                ids,
+                16);
+        for (int i = 1; i <= 100; i++) {
+            assertTrue(reader.nextRecord());
+            assertEquals(i, reader.getRecordNumber());
+            Tap tap = reader.getTap();
+            assertEquals(i, tap.getId());
+            assertEquals("Stop" + i, tap.getStopId());
+            // leading space means the quotes are part of the field
+            assertEquals("\"Company", tap.getCompanyId());
+        }
+        assertFalse(reader.nextRecord());
+    }
+
+    @Test
+    public void testQuotedFields() throws Exception {
+        TapCsvReader reader = reader(HEADER
+                + "\"1\",22-01-2018 13:00:00,ON,\"Stop\r\n1\",\"Co,\"\"1\"\"\"  ,Bus37,5500005555555559");
+        assertTrue(reader.nextRecord());
+        Tap tap = reader.getTap();
+        assertEquals(1, tap.getId());
+        assertEquals("Stop\r\n1", tap.getStopId());
+        assertEquals("Co,\"1\"", tap.getCompanyId());
+        assertFalse(reader.nextRecord());
+    }
+
+    @Test
+    public void testUnterminatedQuote() throws Exception {
+        TapCsvReader reader = reader(HEADER + "1,\"22-01-2018");
+        IOException ex = assertThrows(IOException.class, reader::nextRecord);
+        assertEquals("(startline 2) EOF reached before encapsulated token finished", ex.getMessage());
+    }
+
+    /**
+     * Compares the taps and errors with those read through commons-csv and
+     * {@link Batch#parseTap(CSVRecord, IdDictionary)}.
+     */
+    @Test
+    public void testSameAsCommonsCsv() throws Exception {
+        String csv = "\n" + HEADER
+                + "\n"
+                + "1, 22-01-2018 13:00:00, ON, Stop1, Company1, Bus37, 5500005555555559\n"
+                + "\r\n"
+                + "   \n"
+                + "2,x\r"
+                + "3, 31-04-2018 10:00:00, OFF, Stop1, Company1, Bus37, 1\n"
+                + "4, 29-02-2020 23:59:59, OFF, Stop1, Company1, Bus37, 1\n"
+                + "5, 22-01-2018 24:00:00, OFF, Stop1, Company1, Bus37, 1\n"
+                + "6, 32-01-2018 10:00:00, OFF, Stop1, Company1, Bus37, 1\n"
+                + "7, 22-13-2018 10:00:00, OFF, Stop1, Company1, Bus37, 1\n"
+                + "8, 22-01-2018 10:00, OFF, Stop1, Company1, Bus37, 1\n"
+                + "9, 22-01-0000 10:00:00, OFF, Stop1, Company1, Bus37, 1\n"
+                + "-10, 22-01-2018 10:00:00, on, Stop1, Company1, Bus37, 1\n"
+                + "+11, 22-01-2018 10:00:00, OFF, Stop1\n"
+                + "12345678901234567890, 22-01-2018 10:00:00, OFF, Stop1, C, B, 1\n"
+                + "9223372036854775807, 22-01-2018 10:00:00, OFF, Stöp1, C, B, 1\n"
+                + "١٢, 01-01-1970 00:00:00, ON,,,,\n"
+                + ",,,,,,\n"
+                + "13, 22-01-2018 10:00:00, OFF, Stop1, C, B, 1, extra,";
+        List<String> expected = readWithCommonsCsv(csv);
+        assertEquals(17, expected.size());
+        assertEquals(expected, readWithTapCsvReader(csv));
+    }
+
+    /**
+     * Compares the taps and error messages of {@link TapCsvReader#readTap()}
+     * with those of commons-csv and
+     * {@link Batch#parseTap(CSVRecord, IdDictionary)} for many date times.
+     */
+    @Test
+    public void testReadTapSameAsCommonsCsv() throws Exception {
+        StringBuilder csv = new StringBuilder(HEADER
+                + "1, 22-01-2018 13:00:00, ON, Stop1, Company1, Bus37, 5500005555555559\n"
+                + "2,x\r"
+                + "3, 31-04-2018 10:00:00, OFF, Stop1, Company1, Bus37, 1\n"
+                + "4, 22-01-2018 24:00:00, OFF, Stop1, Company1, Bus37, 1\n"
+                + "5, 22-01-2018 24:00:01, OFF, Stop1, Company1, Bus37, 1\n"
+                + "6, 22-01-2018 25:00:00, OFF, Stop1, Company1, Bus37, 1\n"
+                + "7, 22-01-2018 10:00, OFF, Stop1, Company1, Bus37, 1\n"
+                + "8, 22-01-2018 10:00:00 and more, OFF, Stop1, Company1, Bus37, 1\n"
+                + "9, 22-01-+12345 10:00:00, OFF, Stop1, Company1, Bus37, 1\n"
+                + "10, 22-01-+12345 25:00:00, OFF, Stop1, Company1, Bus37, 1\n"
+                + "11, 22-01-2018 10:00:00 is too long to be included in full in the message, OFF, Stop1, C, B, 1\n"
+                + "12, 2\u00B2-01-2018 10:00:00, OFF, Stop1, C, B, 1\n"
+                + "13, 22-01-2018 10:00:00, TAP, Stop1, C, B, 1\n"
+                + "14, 22-01-2018 10:00:00, \u00D6N, Stop1, C, B, 1\n"
+                + "15, 22-01-2018 10:00:00, on, Stop1\n"
+                + "16, 22-01-2018 10:00:00\n"
+                + "-, 22-01-2018 10:00:00, OFF, Stop1, C, B, 1\n"
+                + "+, 22-01-2018 10:00:00, OFF, Stop1, C, B, 1\n"
+                + "--1, 22-01-2018 10:00:00, OFF, Stop1, C, B, 1\n"
+                + "9223372036854775808, 22-01-2018 10:00:00, OFF, Stop1, C, B, 1\n"
+                + "-9223372036854775808, 22-01-2018 10:00:00, OFF, Stop1, C, B, 1\n"
+                + "\u0661\u0662, 01-01-1970 00:00:00, ON,,,,\n"
+                + "1x, 32-13-0000 25:61:61, ON\n"
+                + ",,,,,,\n");
+        Random random = new Random(11);
+        for (int i = 0; i < 20_000; i++) {
+            // mostly valid, with every field sometimes out of range
+            csv.append(i).append(", ")
+                    .append(twoDigits(random.nextInt(40))).append('-')
+                    .append(twoDigits(random.nextInt(15))).append('-')
+                    .append(random.nextInt(10) == 0 ? "0000" : "2018").append(' ')
+                    .append(twoDigits(random.nextInt(26))).append(':')
+                    .append(twoDigits(random.nextInt(64))).append(':')
+                    .append(twoDigits(random.nextInt(64)))
+                    .append(", ON, Stop1, C, B, 1\n");
+        }
+        List<String> expected = readWithCommonsCsv(csv.toString());
+        int errors = 0;
+        try (TapCsvReader reader = reader(csv.toString())) {
+            while (reader.nextRecord()) {
+                Tap tap = reader.readTap();
+                String result;
+                if (tap == null) {
+                    errors++;
+                    assertEquals(TapError.Code.INVALID_TAP, reader.getTapError().getCode());
+                    result = reader.getTapError().getMessage();
+                } else {
+                    assertNull(reader.getTapError());
+                    result = describe(tap);
+                }
+                assertEquals(expected.get((int) reader.getRecordNumber() - 1), reader.getRecordNumber() + " " + result);
+            }
+            assertEquals(expected.size(), reader.getRecordNumber());
+        }
+        assertTrue(errors > 10_000, "errors: " + errors);
+    }
+
+    private static String twoDigits(int value) {
+        return value < 10 ? "0" + value : String.valueOf(value);
+    }
+
+    /**
+     * @return the messages of the exception and its causes, as the error
+     * file had them when each error was written from its exception.
+     */
+    private static String message(Throwable ex) {
+        StringBuilder sb = new StringBuilder(ex.getMessage());
+        for (Throwable cause = ex.getCause(); cause != null; cause = cause.getCause()) {
+            sb.append(": ").append(cause.getMessage());
+        }
+        return sb.toString();
+    }
+
+    private TapCsvReader reader(String csv) {
+        return new TapCsvReader(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)), ids);
+    }
+
+    private List<String> readWithCommonsCsv(String csv) throws IOException {
+        CSVFormat format = CSVFormat.DEFAULT.builder()
+                .setHeader(Batch.TapCSVCols.class)
+                .setSkipHeaderRecord(true)
+                .build();
+        List<String> results = new ArrayList<>();
+        for (CSVRecord record : format.parse(new StringReader(csv))) {
+            try {
+                results.add(record.getRecordNumber() + " " + describe(Batch.parseTap(record, ids)));
+            } catch (TapParsingException ex) {
+                results.add(record.getRecordNumber() + " " + message(ex));
+            }
+        }
+        return results;
+    }
+
+    private List<String> readWithTapCsvReader(String csv) throws IOException {
+        List<String> results = new ArrayList<>();
+        try (TapCsvReader reader = reader(csv)) {
+            while (reader.nextRecord()) {
+                try {
+                    results.add(reader.getRecordNumber() + " " + describe(reader.getTap()));
+                } catch (TapParsingException ex) {
+                    results.add(reader.getRecordNumber() + " " + message(ex));
+                }
+            }
+        }
+        return results;
+    }
+
+    private static String describe(Tap tap) {
+        return String.join("|",
+                String.valueOf(tap.getId()),
+                String.valueOf(tap.getDateTime()),
+                String.valueOf(tap.getTapType()),
+                tap.getStopId(),
+                tap.getCompanyId(),
+                tap.getBusId(),
+                tap.getPAN());
+    }
+}
@@ -0,0 +1,76 @@
+package au.id.simo.tap2trip.batch;
+
+import au.id.simo.tap2trip.TapError;
+import java.io.IOException;
+import java.io.StringWriter;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TapErrorCsvWriterTest {
+
+    private static final String[] MESSAGES = {
+        "Unknown stop ID: Stop9",
+        "Error in parsing Tap: For input string: \"1x\"",
+        "Error in parsing Tap: Index for header 'PAN' is 6 but CSVRecord only has 6 values!",
+        "No charge, \"quoted\" and\nsplit over lines",
+        "#comment",
+        "trailing space ",
+        "Stöp",
+        ""
+    };
+
+    /**
+     * Compares the output with the same errors printed by commons-csv, as
+     * the error file was before.
+     */
+    @Test
+    public void testSameAsCsvPrinter() throws IOException {
+        StringWriter expected = new StringWriter();
+        CSVPrinter printer = CSVFormat.DEFAULT.builder()
+                .setHeader("Record No.", "Message")
+                .build()
+                .print(expected);
+        StringWriter actual = new StringWriter();
+        BatchMetrics metrics = new BatchMetrics();
+        // enough errors to fill the buffer a few times
+        long[] recordNumbers = new long[1000];
+        TapError[] errors = new TapError[1000];
+        try (TapErrorCsvWriter writer = new TapErrorCsvWriter(actual, metrics)) {
+            for (int i = 0; i < 10_000; i++) {
+                long recordNumber = i * 1_000_003L;
+                TapError error = new TapError(TapError.Code.INVALID_TAP, MESSAGES[i % MESSAGES.length], null);
+                printer.printRecord(recordNumber, error.getMessage());
+                if (i % 3 == 0) {
+                    writer.writeError(recordNumber, error);
+                } else {
+                    recordNumbers[0] = recordNumber;
+                    errors[0] = error;
+                    writer.writeErrors(recordNumbers, errors, 1);
+                }
+            }
+        }
+        assertEquals(expected.toString(), actual.toString());
+        assertEquals(10_000, metrics.getBatchSize(BatchMetrics.Stage.ERROR).getSum());
+    }
+
+    @Test
+    public void testWriteErrors() throws IOException {
+        StringWriter out = new StringWriter();
+        TapErrorCsvWriter writer = new TapErrorCsvWriter(out);
+        writer.writeErrors(new long[0], new TapError[0], 0);
+        // nothing is passed to the Writer until flushed
+        assertEquals("", out.toString());
+        TapError cause = TapError.of(TapError.Code.INVALID_TAP,
+                new TapParsingException("Error in parsing Tap", new IllegalArgumentException("bad")));
+        writer.writeErrors(
+                new long[]{3, 7, 9},
+                new TapError[]{cause, TapError.unknownStop("Stop9"), null},
+                2);
+        writer.flush();
+        assertEquals("Record No.,Message\r\n"
+                + "3,Error in parsing Tap: bad\r\n"
+                + "7,Unknown stop ID: Stop9\r\n", out.toString());
+    }
+}
@@ -0,0 +1,247 @@
+package au.id.simo.tap2trip.batch;
+
+import au.id.simo.tap2trip.ChargeCalculator;
+import au.id.simo.tap2trip.IdDictionary;
+import au.id.simo.tap2trip.Tap;
+import au.id.simo.tap2trip.TapError;
+import au.id.simo.tap2trip.Trip;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TapStreamTest {
+
+    private static final String HEADER = "ID, DateTimeUTC, TapType, StopId, CompanyId, BusID, PAN\n";
+
+    private final IdDictionary ids = new IdDictionary();
+
+    @Test
+    public void testTripsWrittenAsTapsArrive() throws Exception {
+        TapStream stream = new TapStream(new ChargeCalculator(ids).addCharge("Stop1", "Stop2", 325))
+                .setFlushLatency(Duration.ofMillis(20))
+                .setPeriod(Duration.ofDays(1));
+        PipedOutputStream tapsOut = new PipedOutputStream();
+        TapCsvReader taps = new TapCsvReader(new PipedInputStream(tapsOut), ids);
+        ByteArrayOutputStream trips = new ByteArrayOutputStream();
+        StringWriter errors = new StringWriter();
+        BatchMetrics streamMetrics = new BatchMetrics();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<BatchMetrics> result = executor.submit(() -> stream.run(
+                    taps,
+                    new TripCsvWriter(Channels.newChannel(trips), ids, streamMetrics),
+                    errors,
+                    streamMetrics
+            ));
+            write(tapsOut, HEADER
+                    + "1, 22-01-2018 13:00:00, ON, Stop1, Company1, Bus37, 5500005555555559\n"
+                    + "2, 22-01-2018 13:05:00, OFF, Stop2, Company1, Bus37, 5500005555555559\n"
+                    + "3, 22-01-2018 23:00:00, ON, Stop2, Company1, Bus37, 4111111111111111\n");
+            awaitContains("5500005555555559,COMPLETED", trips::toString);
+            assertFalse(trips.toString().contains("INCOMPLETE"));
+
+            // the next day closes the period
+            write(tapsOut, "4, 23-01-2018 08:00:00, ON, Stop1, Company1, Bus37, 5500005555555559\n"
+                    + "5, 23-01-2018 08:00:00, ON, Stop9, Company1, Bus37, 5500005555555559\n");
+            awaitContains("4111111111111111,INCOMPLETE", trips::toString);
+            awaitContains("5,Unknown", errors::toString);
+
+            stream.closePeriod();
+            awaitContains("23-01-2018 08:00:00,,,Stop1", trips::toString);
+
+            tapsOut.close();
+            BatchMetrics metrics = result.get(10, TimeUnit.SECONDS);
+            assertSame(streamMetrics, metrics);
+            assertEquals(4, metrics.getTapsRead());
+            assertEquals(1, metrics.getTapReadErrors());
+            // 1 COMPLETED, 4111... INCOMPLETE at the period and 5500... INCOMPLETE when closed
+            assertEquals(3, metrics.getTripsWritten());
+            assertTrue(metrics.getLatency(BatchMetrics.Stage.WRITE).getCount() > 0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testTcpConnections() throws Exception {
+        TapStream stream = new TapStream(new ChargeCalculator(ids).addCharge("Stop1", "Stop2", 325))
+                .setFlushLatency(Duration.ofMillis(20));
+        TcpTapSource taps = new TcpTapSource(0, ids);
+        ByteArrayOutputStream trips = new ByteArrayOutputStream();
+        StringWriter errors = new StringWriter();
+        BatchMetrics streamMetrics = new BatchMetrics();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<BatchMetrics> result = executor.submit(() -> stream.run(
+                    taps,
+                    new TripCsvWriter(Channels.newChannel(trips), ids, streamMetrics),
+                    errors,
+                    streamMetrics
+            ));
+            send(taps.getPort(), HEADER
+                    + "1, 22-01-2018 13:00:00, ON, Stop1, Company1, Bus37, 5500005555555559\n");
+            send(taps.getPort(), HEADER
+                    + "2, 22-01-2018 13:05:00, OFF, Stop2, Company1, Bus37, 5500005555555559\n"
+                    + "3, 22-01-2018 13:05:00, OFF, Stop2\n");
+            awaitContains("5500005555555559,COMPLETED", trips::toString);
+            // record numbers carry on from the first connection
+            awaitContains("3,", errors::toString);
+
+            stream.stop();
+            BatchMetrics metrics = result.get(10, TimeUnit.SECONDS);
+            assertEquals(2, metrics.getTapsRead());
+            assertEquals(1, metrics.getTapReadErrors());
+            assertEquals(1, metrics.getTripsWritten());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testStopMatchesQueuedTaps() throws Exception {
+        TapStream stream = new TapStream(new ChargeCalculator(ids).addCharge("Stop1", "Stop2", 325));
+        StringBuilder csv = new StringBuilder(HEADER)
+                .append("1, 22-01-2018 13:00:00, ON, Stop1, Company1, Bus37, 4111111111111111\n")
+                .append("2, 22-01-2018 13:05:00, OFF, Stop2, Company1, Bus37, 4111111111111111\n");
+        for (int i = 3; i <= 10_000; i++) {
+            if (i % 10 == 0) {
+                csv.append(i).append(", bad\n");
+            } else {
+                csv.append(i).append(", 22-01-2018 13:10:00, ON, Stop1, Company1, Bus37, ")
+                        .append(5500005555555559L + i).append('\n');
+            }
+        }
+        CountDownLatch stopped = new CountDownLatch(1);
+        StoppingTapSource taps = new StoppingTapSource(
+                new TapCsvReader(new ByteArrayInputStream(csv.toString().getBytes(StandardCharsets.UTF_8)), ids),
+                3000,
+                () -> {
+                    stream.stop();
+                    stopped.countDown();
+                }
+        );
+        ByteArrayOutputStream trips = new ByteArrayOutputStream();
+        StringWriter errors = new StringWriter();
+        BatchMetrics metrics = new BatchMetrics();
+        TripCsvWriter tripCsvWriter = new TripCsvWriter(Channels.newChannel(trips), ids, metrics);
+        // holds up matching at the first trip, so taps are queued when stopped
+        TripWriter tripWriter = new TripWriter() {
+            @Override
+            public void accept(Trip trip) {
+                try {
+                    stopped.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                tripCsvWriter.accept(trip);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                tripCsvWriter.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                tripCsvWriter.close();
+            }
+        };
+
+        stream.run(taps, tripWriter, errors, metrics);
+        assertEquals(3000, taps.taken);
+        // every tap taken from the source is a trip or an error
+        assertEquals(2700, metrics.getTapsRead());
+        assertEquals(300, metrics.getTapReadErrors());
+        // the 2 taps of the first trip, and an INCOMPLETE trip for the rest
+        assertEquals(2699, metrics.getTripsWritten());
+        assertEquals(2699 + 1, trips.toString().split("\n").length);
+        assertEquals(300 + 1, errors.toString().split("\r?\n").length);
+        assertTrue(errors.toString().contains("\n3000,"));
+    }
+
+    private static void write(OutputStream out, String csv) throws IOException {
+        out.write(csv.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static void send(int port, String csv) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            write(socket.getOutputStream(), csv);
+        }
+    }
+
+    static void awaitContains(String expected, Supplier<String> output) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!output.get().contains(expected)) {
+            assertTrue(System.nanoTime() - deadline < 0, "Timed out waiting for: " + expected + " in:\n" + output.get());
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Calls stop when the given number of records have been read.
+     */
+    private static class StoppingTapSource implements TapSource {
+        private final TapSource taps;
+        private final int stopAt;
+        private final Runnable stop;
+        private int taken;
+
+        StoppingTapSource(TapSource taps, int stopAt, Runnable stop) {
+            this.taps = taps;
+            this.stopAt = stopAt;
+            this.stop = stop;
+        }
+
+        @Override
+        public boolean nextRecord() throws IOException {
+            if (!taps.nextRecord()) {
+                return false;
+            }
+            taken++;
+            return true;
+        }
+
+        @Override
+        public long getRecordNumber() {
+            return taps.getRecordNumber();
+        }
+
+        @Override
+        public Tap readTap() {
+            if (taken == stopAt) {
+                stop.run();
+            }
+            return taps.readTap();
+        }
+
+        @Override
+        public TapError getTapError() {
+            return taps.getTapError();
+        }
+
+        @Override
+        public void close() throws IOException {
+            taps.close();
+        }
+    }
+}
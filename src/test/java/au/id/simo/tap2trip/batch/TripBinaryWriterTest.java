@@ -0,0 +1,171 @@
+package au.id.simo.tap2trip.batch;
+
+import au.id.simo.tap2trip.IdDictionary;
+import au.id.simo.tap2trip.Trip;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TripBinaryWriterTest {
+
+    private final IdDictionary ids = new IdDictionary();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Path file = tempDir.resolve("trips.bin");
+        String[] pans = {"5500005555555559", "0123", "4111111111111111111", "PAN", "0", null};
+        List<Trip> trips = new ArrayList<>();
+        trips.add(new Trip(ids, null, null, null, null, null, null, null, null, null, null));
+        Instant started = Instant.parse("2018-01-22T13:00:00Z");
+        for (int i = 0; i < TripBinaryWriter.BLOCK_SIZE * 2 + 10; i++) {
+            trips.add(new Trip(
+                    ids,
+                    started.plusSeconds(i),
+                    i % 5 == 0 ? null : started.plusSeconds(i + 300),
+                    i % 5 == 0 ? null : Duration.ofSeconds(300),
+                    "Stop" + i % 50,
+                    i % 5 == 0 ? null : "St\u00f3p" + i % 7,
+                    i % 11 == 0 ? null : i - 1000,
+                    "Company" + i % 3,
+                    "Bus" + i,
+                    pans[i % pans.length],
+                    Trip.Status.values()[i % Trip.Status.values().length]
+            ));
+        }
+        BatchMetrics metrics = new BatchMetrics();
+        try (TripBinaryWriter writer = new TripBinaryWriter(
+                FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE),
+                ids,
+                metrics)) {
+            trips.forEach(writer);
+        }
+        assertEquals(trips.size(), metrics.getTripsWritten());
+
+        List<Trip> read = new ArrayList<>();
+        try (TripBinaryReader reader = new TripBinaryReader(file, ids)) {
+            reader.forEachTrip(read::add);
+        }
+        assertEquals(csv(trips), csv(read));
+    }
+
+    @Test
+    public void testScanColumn() throws IOException {
+        Path file = tempDir.resolve("trips.bin");
+        Instant started = Instant.parse("2018-01-22T13:00:00Z");
+        try (TripBinaryWriter writer = new TripBinaryWriter(
+                FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE),
+                ids,
+                new BatchMetrics())) {
+            for (int i = 0; i < 20_000; i++) {
+                writer.accept(new Trip(ids, started, started, Duration.ZERO,
+                        "Stop1", i % 2 == 0 ? "Stop2" : "Stop1", i % 2 == 0 ? 325 : 0,
+                        "Company1", "Bus37", String.valueOf(i), Trip.Status.COMPLETED));
+            }
+        }
+        long cents = 0;
+        int toStop2 = 0;
+        int blocks = 0;
+        try (TripBinaryReader reader = new TripBinaryReader(file, ids)) {
+            while (reader.nextBlock()) {
+                blocks++;
+                IntBuffer charges = reader.getChargeColumn();
+                IntBuffer toStops = reader.getToStopColumn();
+                for (int row = 0; row < reader.getBlockSize(); row++) {
+                    cents += charges.get(row);
+                    if ("Stop2".equals(reader.getId(toStops.get(row)))) {
+                        toStop2++;
+                    }
+                }
+            }
+        }
+        assertEquals(2, blocks);
+        assertEquals(10_000 * 325L, cents);
+        assertEquals(10_000, toStop2);
+    }
+
+    @Test
+    public void testFailedBlockWrite() throws IOException {
+        FailingChannel channel = new FailingChannel();
+        BatchMetrics metrics = new BatchMetrics();
+        TripBinaryWriter writer = new TripBinaryWriter(channel, ids, metrics);
+        channel.failing = true;
+        Instant started = Instant.parse("2018-01-22T13:00:00Z");
+        Trip trip = new Trip(ids, started, started, Duration.ZERO, "Stop1", "Stop2", 325,
+                "Company1", "Bus37", "5500005555555559", Trip.Status.COMPLETED);
+        for (int i = 1; i < TripBinaryWriter.BLOCK_SIZE; i++) {
+            writer.accept(trip);
+        }
+        IllegalStateException ex = assertThrows(IllegalStateException.class, () -> writer.accept(trip));
+        assertEquals("disk full", ex.getCause().getMessage());
+        assertEquals(TripBinaryWriter.BLOCK_SIZE, metrics.getTripsWritten());
+
+        // the same failure, not a full block, and nothing more is written
+        ex = assertThrows(IllegalStateException.class, () -> writer.accept(trip));
+        assertEquals("disk full", ex.getCause().getMessage());
+        assertEquals(TripBinaryWriter.BLOCK_SIZE, metrics.getTripsWritten());
+        IOException closeEx = assertThrows(IOException.class, writer::close);
+        assertEquals("disk full", closeEx.getMessage());
+        assertFalse(channel.isOpen());
+        assertEquals(1, channel.failedWrites);
+    }
+
+    @Test
+    public void testNotBinaryTrips() throws IOException {
+        Path file = tempDir.resolve("trips.csv");
+        Files.write(file, "Started,Finished\n".getBytes("UTF-8"));
+        assertThrows(IOException.class, () -> new TripBinaryReader(file, ids));
+    }
+
+    private String csv(List<Trip> trips) throws IOException {
+        StringWriter sw = new StringWriter();
+        TripCsvWriter writer = new TripCsvWriter(sw, ids, new BatchMetrics());
+        trips.forEach(writer);
+        return sw.toString();
+    }
+
+    /**
+     * Discards the bytes written, or fails once failing is set.
+     */
+    private static class FailingChannel implements WritableByteChannel {
+        private boolean failing;
+        private boolean open = true;
+        private int failedWrites;
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (failing) {
+                failedWrites++;
+                throw new IOException("disk full");
+            }
+            int written = src.remaining();
+            src.position(src.limit());
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+}